@@ -0,0 +1,100 @@
+package eu.bcvsolutions.idm.connector.msgraph.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.requests.extensions.GroupCollectionResponse;
+import com.microsoft.graph.requests.extensions.UserCollectionResponse;
+import com.microsoft.graph.serializer.DefaultSerializer;
+import com.microsoft.graph.serializer.ISerializer;
+
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Recorded responses of Graph API used by benchmarks. Ids and names are generated, shape of JSON is the same as
+ * Graph API returns.
+ */
+public final class Fixtures {
+
+	// Page of 100 users with all basic attributes, licenses and onPremisesExtensionAttributes
+	public static final String USERS_PAGE = "fixtures/users-page.json";
+	// Groups with expanded members and owners, groups have 19 to 2000 members
+	public static final String GROUPS_MEMBERS = "fixtures/groups-members.json";
+	// licenseDetails of one user with service plans
+	public static final String LICENSE_DETAILS = "fixtures/license-details.json";
+
+	// Connector logs every object on info level, it must be used in jvmArgsAppend of every benchmark
+	public static final String QUIET_LOGGING = "-Dorg.identityconnectors.common.logging.class=eu.bcvsolutions.idm.connector.msgraph.benchmark.QuietLogger";
+
+	// Same serializer as Graph client uses for responses
+	public static final ISerializer SERIALIZER = new DefaultSerializer(new DefaultLogger());
+
+	private Fixtures() {
+
+	}
+
+	/**
+	 * @param name path of fixture
+	 * @return content of fixture
+	 */
+	public static String read(String name) {
+		try (InputStream input = Fixtures.class.getClassLoader().getResourceAsStream(name)) {
+			if (input == null) {
+				throw new IllegalArgumentException("Fixture " + name + " does not exist");
+			}
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+			return new String(output.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static List<User> users() {
+		return SERIALIZER.deserializeObject(read(USERS_PAGE), UserCollectionResponse.class).value;
+	}
+
+	public static List<Group> groups() {
+		return SERIALIZER.deserializeObject(read(GROUPS_MEMBERS), GroupCollectionResponse.class).value;
+	}
+
+	/**
+	 * Prepare membership from expanded members and owners, the same as connector does when users have userPrincipalName
+	 *
+	 * @param group group with raw JSON
+	 * @return membership of group
+	 */
+	public static MembershipLoader.Membership membership(Group group) {
+		Map<String, String> memberIds = toIds(group.getRawObject().getAsJsonArray("members"));
+		Map<String, String> ownerIds = toIds(group.getRawObject().getAsJsonArray("owners"));
+		return new MembershipLoader.Membership(new ArrayList<>(memberIds.keySet()), new ArrayList<>(ownerIds.keySet()), memberIds, ownerIds);
+	}
+
+	private static Map<String, String> toIds(JsonArray records) {
+		Map<String, String> ids = new HashMap<>();
+		for (JsonElement element : records) {
+			JsonObject record = element.getAsJsonObject();
+			ids.put(record.get("userPrincipalName").getAsString(), record.get("id").getAsString());
+		}
+		return ids;
+	}
+}
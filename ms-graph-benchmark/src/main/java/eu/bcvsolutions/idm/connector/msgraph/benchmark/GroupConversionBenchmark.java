@@ -0,0 +1,63 @@
+package eu.bcvsolutions.idm.connector.msgraph.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.graph.models.extensions.Group;
+
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Conversion of groups with members and owners to connector objects, one group per invocation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.QUIET_LOGGING)
+public class GroupConversionBenchmark {
+
+	// Number of members of group from fixture
+	@Param({"19", "100", "500", "1000", "2000"})
+	public int members;
+
+	private Group group;
+	private MembershipLoader.Membership membership;
+	private ProjectionPlan projection;
+
+	@Setup
+	public void setup() {
+		List<Group> groups = new ArrayList<>(Fixtures.groups());
+		group = groups.stream()
+				.filter(item -> item.getRawObject().getAsJsonArray("members").size() == members)
+				.findFirst()
+				.orElseThrow(() -> new IllegalStateException("Fixture does not contain group with " + members + " members"));
+		membership = Fixtures.membership(group);
+		projection = ProjectionPlan.all();
+	}
+
+	@Benchmark
+	public ConnectorObject handleGroup() {
+		return Utils.handleGroup(group, ObjectClass.GROUP, membership, projection);
+	}
+}
@@ -0,0 +1,58 @@
+package eu.bcvsolutions.idm.connector.msgraph.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.microsoft.graph.requests.extensions.GroupCollectionResponse;
+import com.microsoft.graph.requests.extensions.LicenseDetailsCollectionResponse;
+import com.microsoft.graph.requests.extensions.UserCollectionResponse;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Deserialization of whole pages by Graph SDK serializer, it's done for every page returned by Graph API
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.QUIET_LOGGING)
+public class PageDeserializationBenchmark {
+
+	private String usersPage;
+	private String groupsPage;
+	private String licenseDetailsPage;
+
+	@Setup
+	public void setup() {
+		usersPage = Fixtures.read(Fixtures.USERS_PAGE);
+		groupsPage = Fixtures.read(Fixtures.GROUPS_MEMBERS);
+		licenseDetailsPage = Fixtures.read(Fixtures.LICENSE_DETAILS);
+	}
+
+	@Benchmark
+	public UserCollectionResponse usersPage() {
+		return Fixtures.SERIALIZER.deserializeObject(usersPage, UserCollectionResponse.class);
+	}
+
+	@Benchmark
+	public GroupCollectionResponse groupsWithMembersPage() {
+		return Fixtures.SERIALIZER.deserializeObject(groupsPage, GroupCollectionResponse.class);
+	}
+
+	@Benchmark
+	public LicenseDetailsCollectionResponse licenseDetailsPage() {
+		return Fixtures.SERIALIZER.deserializeObject(licenseDetailsPage, LicenseDetailsCollectionResponse.class);
+	}
+}
@@ -0,0 +1,82 @@
+package eu.bcvsolutions.idm.connector.msgraph.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.requests.extensions.UserCollectionResponse;
+
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphPageReader;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.StreamingObjectParser;
+import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Page of users from JSON to connector objects, via SDK objects and via streaming parser which is used in search.
+ * Every invocation converts the whole page, so results are in users per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.QUIET_LOGGING)
+public class StreamingPageBenchmark {
+
+	private static final int PAGE_SIZE = 100;
+
+	private String usersPage;
+	private String groupsPage;
+	private ProjectionPlan projection;
+	private StreamingObjectParser userParser;
+	private StreamingObjectParser groupParser;
+
+	@Setup
+	public void setup() {
+		usersPage = Fixtures.read(Fixtures.USERS_PAGE);
+		groupsPage = Fixtures.read(Fixtures.GROUPS_MEMBERS);
+		projection = ProjectionPlan.all();
+		userParser = new StreamingObjectParser(ObjectClass.ACCOUNT, projection, null);
+		groupParser = new StreamingObjectParser(ObjectClass.GROUP, projection, null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void sdkUsers(Blackhole blackhole) {
+		UserCollectionResponse response = Fixtures.SERIALIZER.deserializeObject(usersPage, UserCollectionResponse.class);
+		for (User user : response.value) {
+			blackhole.consume(Utils.handleUser(user, ObjectClass.ACCOUNT, projection));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public GraphPageReader.Page<?> streamingUsers() throws IOException {
+		return GraphPageReader.parse(new StringReader(usersPage), userParser::parseUser);
+	}
+
+	/**
+	 * Groups with members expanded, only first 19 members are kept, other groups wait for loading of members
+	 */
+	@Benchmark
+	public GraphPageReader.Page<?> streamingGroups() throws IOException {
+		return GraphPageReader.parse(new StringReader(groupsPage), groupParser::parseGroup);
+	}
+}
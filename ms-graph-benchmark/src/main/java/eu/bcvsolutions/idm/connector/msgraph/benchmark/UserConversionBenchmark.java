@@ -0,0 +1,103 @@
+package eu.bcvsolutions.idm.connector.msgraph.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributesAccessor;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.microsoft.graph.models.extensions.User;
+
+import eu.bcvsolutions.idm.connector.msgraph.util.AttributeMapper;
+import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
+import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Conversion of users between SDK objects and connector objects. Every invocation converts the whole page,
+ * so results are in users per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Fixtures.QUIET_LOGGING)
+public class UserConversionBenchmark {
+
+	private static final int PAGE_SIZE = 100;
+
+	private List<User> users;
+	private List<AttributesAccessor> accessors;
+	private ProjectionPlan projection;
+
+	@Setup
+	public void setup() {
+		users = Fixtures.users();
+		if (users.size() != PAGE_SIZE) {
+			throw new IllegalStateException("Fixture must contain " + PAGE_SIZE + " users");
+		}
+		projection = ProjectionPlan.all();
+
+		// Attributes for create are the same as IdM sends, all attributes of the user and password
+		accessors = new ArrayList<>();
+		for (User user : users) {
+			Set<Attribute> attributes = new HashSet<>();
+			Utils.handleUser(user, ObjectClass.ACCOUNT, projection).getAttributes().stream()
+					.filter(attribute -> !attribute.is(Uid.NAME))
+					.forEach(attributes::add);
+			attributes.add(AttributeBuilder.buildPassword(new GuardedString("Heslo123456".toCharArray())));
+			accessors.add(new AttributesAccessor(attributes));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void handleUser(Blackhole blackhole) {
+		for (User user : users) {
+			blackhole.consume(Utils.handleUser(user, ObjectClass.ACCOUNT, projection));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void addAttributes(Blackhole blackhole) {
+		AttributeMapper mapper = AttributeMapper.forClass(User.class);
+		for (User user : users) {
+			ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+			mapper.addAttributes(user, builder, projection);
+			blackhole.consume(builder);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAGE_SIZE)
+	public void prepareUserObject(Blackhole blackhole) {
+		for (AttributesAccessor accessor : accessors) {
+			blackhole.consume(Utils.prepareUserObject(accessor, new GuardedStringAccessor(), SchemaService.defaultService()));
+		}
+	}
+}
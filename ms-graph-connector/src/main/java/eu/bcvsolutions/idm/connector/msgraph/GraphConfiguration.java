@@ -25,6 +25,17 @@ public class GraphConfiguration extends AbstractConfiguration {
 	private String proxyUsername;
 	private GuardedString proxyPassword;
 	private boolean loadAzureRoles;
+	private boolean expandGroupMembership;
+	private int pagePrefetchDepth = 0;
+	private int maxConnections = 10;
+	private int requestsPerSecond = 0;
+	private int readMaxAttempts = 3;
+	private int createMaxAttempts = 5;
+	private int updateMaxAttempts = 3;
+	private int retryBaseDelay = 500;
+	private String memberIndexDirectory;
+	private boolean loadDirectoryExtensions;
+	private String schemaCacheDirectory;
 
 	@ConfigurationProperty(displayMessageKey = "graph.connector.clientId.display",
 			helpMessageKey = "graph.connector.clientId.help", required = true, order = 1)
@@ -139,6 +150,116 @@ public class GraphConfiguration extends AbstractConfiguration {
 		this.loadAzureRoles = loadAzureRoles;
 	}
 
+	@ConfigurationProperty(displayMessageKey = "graph.connector.expandGroupMembership.display",
+			helpMessageKey = "graph.connector.expandGroupMembership.help", order = 12)
+	public boolean isExpandGroupMembership() {
+		return expandGroupMembership;
+	}
+
+	public void setExpandGroupMembership(boolean expandGroupMembership) {
+		this.expandGroupMembership = expandGroupMembership;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.pagePrefetchDepth.display",
+			helpMessageKey = "graph.connector.pagePrefetchDepth.help", order = 13)
+	public int getPagePrefetchDepth() {
+		return pagePrefetchDepth;
+	}
+
+	public void setPagePrefetchDepth(int pagePrefetchDepth) {
+		this.pagePrefetchDepth = pagePrefetchDepth;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.maxConnections.display",
+			helpMessageKey = "graph.connector.maxConnections.help", order = 14)
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.requestsPerSecond.display",
+			helpMessageKey = "graph.connector.requestsPerSecond.help", order = 15)
+	public int getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	public void setRequestsPerSecond(int requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.readMaxAttempts.display",
+			helpMessageKey = "graph.connector.readMaxAttempts.help", order = 16)
+	public int getReadMaxAttempts() {
+		return readMaxAttempts;
+	}
+
+	public void setReadMaxAttempts(int readMaxAttempts) {
+		this.readMaxAttempts = readMaxAttempts;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.createMaxAttempts.display",
+			helpMessageKey = "graph.connector.createMaxAttempts.help", order = 17)
+	public int getCreateMaxAttempts() {
+		return createMaxAttempts;
+	}
+
+	public void setCreateMaxAttempts(int createMaxAttempts) {
+		this.createMaxAttempts = createMaxAttempts;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.updateMaxAttempts.display",
+			helpMessageKey = "graph.connector.updateMaxAttempts.help", order = 18)
+	public int getUpdateMaxAttempts() {
+		return updateMaxAttempts;
+	}
+
+	public void setUpdateMaxAttempts(int updateMaxAttempts) {
+		this.updateMaxAttempts = updateMaxAttempts;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.retryBaseDelay.display",
+			helpMessageKey = "graph.connector.retryBaseDelay.help", order = 19)
+	public int getRetryBaseDelay() {
+		return retryBaseDelay;
+	}
+
+	public void setRetryBaseDelay(int retryBaseDelay) {
+		this.retryBaseDelay = retryBaseDelay;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.memberIndexDirectory.display",
+			helpMessageKey = "graph.connector.memberIndexDirectory.help", order = 20)
+	public String getMemberIndexDirectory() {
+		return memberIndexDirectory;
+	}
+
+	public void setMemberIndexDirectory(String memberIndexDirectory) {
+		this.memberIndexDirectory = memberIndexDirectory;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.loadDirectoryExtensions.display",
+			helpMessageKey = "graph.connector.loadDirectoryExtensions.help", order = 21)
+	public boolean isLoadDirectoryExtensions() {
+		return loadDirectoryExtensions;
+	}
+
+	public void setLoadDirectoryExtensions(boolean loadDirectoryExtensions) {
+		this.loadDirectoryExtensions = loadDirectoryExtensions;
+	}
+
+	@ConfigurationProperty(displayMessageKey = "graph.connector.schemaCacheDirectory.display",
+			helpMessageKey = "graph.connector.schemaCacheDirectory.help", order = 22)
+	public String getSchemaCacheDirectory() {
+		return schemaCacheDirectory;
+	}
+
+	public void setSchemaCacheDirectory(String schemaCacheDirectory) {
+		this.schemaCacheDirectory = schemaCacheDirectory;
+	}
+
 	@Override
 	public void validate() {
 		if (StringUtil.isBlank(clientId)) {
@@ -155,6 +276,21 @@ public class GraphConfiguration extends AbstractConfiguration {
 		if (clientSecret == null) {
 			throw new ConfigurationException("Client secret must not be blank!");
 		}
+		if (pagePrefetchDepth < 0) {
+			throw new ConfigurationException("Page prefetch depth must not be negative!");
+		}
+		if (maxConnections <= 0) {
+			throw new ConfigurationException("Max connections must be greater than 0!");
+		}
+		if (requestsPerSecond < 0) {
+			throw new ConfigurationException("Requests per second must not be negative!");
+		}
+		if (readMaxAttempts <= 0 || createMaxAttempts <= 0 || updateMaxAttempts <= 0) {
+			throw new ConfigurationException("Max attempts must be greater than 0!");
+		}
+		if (retryBaseDelay < 0) {
+			throw new ConfigurationException("Retry base delay must not be negative!");
+		}
 	}
 
 	public String getMessage(String key) {
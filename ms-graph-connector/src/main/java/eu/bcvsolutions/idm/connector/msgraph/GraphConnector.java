@@ -1,59 +1,68 @@
 package eu.bcvsolutions.idm.connector.msgraph;
 
-import java.lang.reflect.Field;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.identityconnectors.common.logging.Log;
-import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.Attribute;
-import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.ObjectClass;
-import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
-import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
-import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
+import org.identityconnectors.framework.spi.operations.ScriptOnConnectorOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateOp;
 
-import com.microsoft.graph.auth.confidentialClient.ClientCredentialProvider;
-import com.microsoft.graph.auth.enums.NationalCloud;
-import com.microsoft.graph.core.DefaultClientConfig;
-import com.microsoft.graph.http.IHttpProvider;
-import com.microsoft.graph.httpcore.HttpClients;
 import com.microsoft.graph.models.extensions.DirectoryRole;
 import com.microsoft.graph.models.extensions.Group;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.User;
-import com.microsoft.graph.requests.extensions.GraphServiceClient;
 
+import eu.bcvsolutions.idm.connector.msgraph.operation.BulkOperation;
 import eu.bcvsolutions.idm.connector.msgraph.operation.CreateOperation;
 import eu.bcvsolutions.idm.connector.msgraph.operation.DeleteOperation;
 import eu.bcvsolutions.idm.connector.msgraph.operation.SearchOperation;
+import eu.bcvsolutions.idm.connector.msgraph.operation.SyncOperation;
 import eu.bcvsolutions.idm.connector.msgraph.operation.UpdateOperation;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphFilter;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphFilterTranslator;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphMetrics;
 import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.MemberIndex;
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.StreamingObjectParser;
+import eu.bcvsolutions.idm.connector.msgraph.util.RetryPolicy;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
 import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
-import okhttp3.Authenticator;
-import okhttp3.Credentials;
-import okhttp3.OkHttpClient;
 
 /**
  * @author Roman Kučera
@@ -61,16 +70,18 @@ import okhttp3.OkHttpClient;
  */
 @ConnectorClass(configurationClass = GraphConfiguration.class, displayNameKey = "graph.connector.display")
 public class GraphConnector implements Connector,
-		CreateOp, UpdateOp, DeleteOp, SchemaOp, TestOp, SearchOp<String> {
+		CreateOp, UpdateOp, DeleteOp, SchemaOp, TestOp, SearchOp<GraphFilter>, SyncOp, ScriptOnConnectorOp {
 
 	private static final Log LOG = Log.getLog(GraphConnector.class);
 
-	// It's used for search operation. We want to get all attributes from scheme not only some of them which is API default
-	public static List<String> basicUserAttrs = new ArrayList<>();
+	private static final String BULK_SCRIPT = "bulk";
 
 	private GraphConfiguration configuration;
-	private static IGraphServiceClient graphClient;
-	private static GuardedStringAccessor guardedStringAccessor;
+	private IGraphServiceClient graphClient;
+	private String graphClientKey;
+	private MemberIndex memberIndex;
+	private SchemaService schemaService;
+	private GraphMetrics metrics;
 
 	@Override
 	public GraphConfiguration getConfiguration() {
@@ -80,12 +91,21 @@ public class GraphConnector implements Connector,
 	@Override
 	public void init(final Configuration configuration) {
 		this.configuration = (GraphConfiguration) configuration;
+		this.metrics = new GraphMetrics();
+		this.metrics.register(this.configuration.getTenant());
 		LOG.ok("Connector {0} successfully initialized", getClass().getName());
 	}
 
 	@Override
-	public void dispose() {
-		// dispose of any resources the this connector uses.
+	public synchronized void dispose() {
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		if (graphClientKey != null) {
+			GraphClientRegistry.release(graphClientKey);
+			graphClientKey = null;
+			graphClient = null;
+		}
 	}
 
 	@Override
@@ -93,23 +113,22 @@ public class GraphConnector implements Connector,
 			final ObjectClass objectClass,
 			final Set<Attribute> createAttributes,
 			final OperationOptions options) {
-		if (graphClient == null) {
-			initGraphClient();
-		}
-
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			CreateOperation createOperation = new CreateOperation(graphClient, guardedStringAccessor);
-			User user = createOperation.createUser(createAttributes);
-			return new Uid(user.userPrincipalName);
-		}
+		initGraphClient();
+		return call(RetryPolicy.Operation.CREATE, () -> {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				CreateOperation createOperation = new CreateOperation(graphClient, new GuardedStringAccessor(), schemaService);
+				User user = createOperation.createUser(createAttributes);
+				return new Uid(user.userPrincipalName);
+			}
 
-		if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			CreateOperation createOperation = new CreateOperation(graphClient, guardedStringAccessor);
-			Group group = createOperation.createGroup(createAttributes);
-			return new Uid(group.id);
-		}
+			if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				CreateOperation createOperation = new CreateOperation(graphClient, new GuardedStringAccessor(), schemaService);
+				Group group = createOperation.createGroup(createAttributes);
+				return new Uid(group.id);
+			}
 
-		throw new ConnectorException("Object was not created for unknown reason, see log for further details");
+			throw new ConnectorException("Object was not created for unknown reason, see log for further details");
+		});
 	}
 
 	@Override
@@ -119,26 +138,25 @@ public class GraphConnector implements Connector,
 			final Set<Attribute> replaceAttributes,
 			final OperationOptions options) {
 
-		if (graphClient == null) {
-			initGraphClient();
-		}
+		initGraphClient();
+		return call(RetryPolicy.Operation.UPDATE, () -> {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				UpdateOperation updateOperation = new UpdateOperation(graphClient, new GuardedStringAccessor(), configuration, schemaService, memberIndex);
+				User user = updateOperation.updateUser(replaceAttributes, uid);
+				if (StringUtils.isBlank(user.userPrincipalName)) {
+					return uid;
+				}
+				return new Uid(user.userPrincipalName);
+			}
 
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			UpdateOperation updateOperation = new UpdateOperation(graphClient, guardedStringAccessor, configuration);
-			User user = updateOperation.updateUser(replaceAttributes, uid);
-			if (StringUtils.isBlank(user.userPrincipalName)) {
+			if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				UpdateOperation updateOperation = new UpdateOperation(graphClient, new GuardedStringAccessor(), configuration, schemaService, memberIndex);
+				updateOperation.updateGroup(replaceAttributes, uid);
 				return uid;
 			}
-			return new Uid(user.userPrincipalName);
-		}
-
-		if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			UpdateOperation updateOperation = new UpdateOperation(graphClient, guardedStringAccessor, configuration);
-			updateOperation.updateGroup(replaceAttributes, uid);
-			return uid;
-		}
 
-		throw new ConnectorException("Object was not created for unknown reason, see log for further details");
+			throw new ConnectorException("Object was not created for unknown reason, see log for further details");
+		});
 	}
 
 	@Override
@@ -147,94 +165,138 @@ public class GraphConnector implements Connector,
 			final Uid uid,
 			final OperationOptions options) {
 
-		if (graphClient == null) {
-			initGraphClient();
-		}
-
-		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			DeleteOperation deleteOperation = new DeleteOperation(graphClient);
-			deleteOperation.deleteUser(uid);
-			return;
-		}
+		initGraphClient();
+		run(RetryPolicy.Operation.DELETE, () -> {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				DeleteOperation deleteOperation = new DeleteOperation(graphClient);
+				deleteOperation.deleteUser(uid);
+				return;
+			}
 
-		if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			DeleteOperation deleteOperation = new DeleteOperation(graphClient);
-			deleteOperation.deleteGroup(uid);
-			return;
-		}
+			if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				DeleteOperation deleteOperation = new DeleteOperation(graphClient);
+				deleteOperation.deleteGroup(uid);
+				return;
+			}
 
-		throw new ConnectorException("Object was not deleted for unknown reason, see log for further details");
+			throw new ConnectorException("Object was not deleted for unknown reason, see log for further details");
+		});
 	}
 
 	@Override
 	public Schema schema() {
-		ObjectClassInfoBuilder accountObjectClassBuilder = new ObjectClassInfoBuilder();
-		accountObjectClassBuilder.setType(ObjectClass.ACCOUNT_NAME);
-		prepareSchema(accountObjectClassBuilder, User.class.getDeclaredFields());
-
-		ObjectClassInfoBuilder groupObjectClassBuilder = new ObjectClassInfoBuilder();
-		groupObjectClassBuilder.setType(ObjectClass.GROUP_NAME);
-		prepareSchema(groupObjectClassBuilder, Group.class.getDeclaredFields());
-
-		SchemaBuilder schemaBuilder = new SchemaBuilder(GraphConnector.class);
-		schemaBuilder.defineObjectClass(accountObjectClassBuilder.build());
-		schemaBuilder.defineObjectClass(groupObjectClassBuilder.build());
-		return schemaBuilder.build();
+		// Schema is built once per configuration, directory extensions need Graph client
+		initGraphClient();
+		return schemaService.getSchema();
 	}
 
-	private void prepareSchema(ObjectClassInfoBuilder objectClassBuilder, Field[] declaredFieldsGroups) {
-		objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define("assignedLicenses").setMultiValued(true).setType(String.class).build());
-		Arrays.stream(declaredFieldsGroups).forEach(field -> {
-			if (Utils.isBasicDataType(field)) {
-				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build(field.getName(), field.getType()));
-			} else {
-				if ("passwordProfile".equals(field.getName())) {
-					// ConnId does not support complex object so we need to manually create attributes for password
-					objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("forceChangePasswordNextSignIn", Boolean.class));
-					objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("forceChangePasswordNextSignInWithMfa", Boolean.class));
-					objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("__PASSWORD__", GuardedString.class));
-				} else if ("members".equals(field.getName())) {
-					objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define("members").setMultiValued(true).setType(String.class).build());
-				} else if ("owners".equals(field.getName())) {
-					objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define("owners").setMultiValued(true).setType(String.class).build());
-				} else {
-//					TODO this works for custom object but I dont want to use it for now, probably more object will need some manual mapping as passwordProfile
-//					prepareSchema(objectClassBuilder, field.getType().getDeclaredFields());
-				}
+	@Override
+	public void test() {
+		// Client is registered for the configuration, so if user changed some config we get a client with the correct one
+		initGraphClient();
+		GraphMetrics.Scope scope = metrics.bind();
+		try {
+			// try to load one user from API
+			graphClient.users().buildRequest().top(1).get();
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Execute more create, update and delete requests concurrently, see {@link BulkOperation}
+	 *
+	 * @param requests requests which should be executed
+	 * @return result for every request in the same order as requests
+	 */
+	public List<BulkOperation.Result> bulk(List<BulkOperation.Request> requests) {
+		initGraphClient();
+		return new BulkOperation(configuration).execute(requests, request -> {
+			switch (request.getType()) {
+				case CREATE:
+					return create(request.getObjectClass(), request.getAttributes(), null);
+				case UPDATE:
+					return update(request.getObjectClass(), request.getUid(), request.getAttributes(), null);
+				default:
+					delete(request.getObjectClass(), request.getUid(), null);
+					return request.getUid();
 			}
 		});
 	}
 
+	/**
+	 * Only bulk operation is supported, script language must be "bulk". Script arguments:
+	 * "objectClass" - name of object class, default is __ACCOUNT__,
+	 * "requests" - list of maps with "operation" (create, update, delete), "uid" and "attributes" (map of attribute name and value or list of values).
+	 * Result is list of maps with "uid", "success" and "error" in the same order as requests.
+	 */
 	@Override
-	public void test() {
-		// Init client every time in test method so if user changed some config it create a new client with the correct one
-		initGraphClient();
-		// try to load one user from API
-		graphClient.users().buildRequest().top(1).get();
+	public Object runScriptOnConnector(ScriptContext request, OperationOptions options) {
+		if (!BULK_SCRIPT.equalsIgnoreCase(request.getScriptLanguage())) {
+			throw new UnsupportedOperationException("Script language " + request.getScriptLanguage() + " is not supported, use " + BULK_SCRIPT);
+		}
+		Map<String, Object> arguments = request.getScriptArguments();
+		ObjectClass objectClass = arguments.get("objectClass") == null
+				? ObjectClass.ACCOUNT
+				: new ObjectClass(arguments.get("objectClass").toString());
+		Object requestsArgument = arguments.get("requests");
+		if (!(requestsArgument instanceof List)) {
+			throw new InvalidAttributeValueException("Script argument requests must be list");
+		}
+
+		List<BulkOperation.Request> requests = new ArrayList<>();
+		for (Object item : (List<?>) requestsArgument) {
+			if (!(item instanceof Map)) {
+				throw new InvalidAttributeValueException("Every request in bulk must be map");
+			}
+			requests.add(toBulkRequest(objectClass, (Map<?, ?>) item));
+		}
+
+		List<Map<String, Object>> results = new ArrayList<>();
+		bulk(requests).forEach(result -> {
+			Map<String, Object> map = new HashMap<>();
+			map.put("uid", result.getUid() == null ? null : result.getUid().getUidValue());
+			map.put("success", result.isSuccess());
+			map.put("error", result.getError());
+			results.add(map);
+		});
+		return results;
+	}
+
+	private static BulkOperation.Request toBulkRequest(ObjectClass objectClass, Map<?, ?> item) {
+		Set<Attribute> attributes = new HashSet<>();
+		if (item.get("attributes") instanceof Map) {
+			((Map<?, ?>) item.get("attributes")).forEach((name, value) -> {
+				if (value instanceof Collection) {
+					attributes.add(AttributeBuilder.build(name.toString(), (Collection<?>) value));
+				} else if (value == null) {
+					attributes.add(AttributeBuilder.build(name.toString()));
+				} else {
+					attributes.add(AttributeBuilder.build(name.toString(), value));
+				}
+			});
+		}
+		Uid uid = item.get("uid") == null ? null : new Uid(item.get("uid").toString());
+		String operation = String.valueOf(item.get("operation"));
+		switch (operation.toLowerCase()) {
+			case "create":
+				return BulkOperation.Request.create(objectClass, attributes);
+			case "update":
+				return BulkOperation.Request.update(objectClass, uid, attributes);
+			case "delete":
+				return BulkOperation.Request.delete(objectClass, uid);
+			default:
+				throw new InvalidAttributeValueException("Operation " + operation + " is not supported in bulk");
+		}
 	}
 
 	@Override
-	public FilterTranslator<String> createFilterTranslator(
+	public FilterTranslator<GraphFilter> createFilterTranslator(
 			final ObjectClass objectClass,
 			final OperationOptions options) {
 
 		if (objectClass.is(ObjectClass.ACCOUNT_NAME) || objectClass.is(ObjectClass.GROUP_NAME)) {
-			return new AbstractFilterTranslator<String>() {
-				@Override
-				protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-					if (not) {
-						throw new UnsupportedOperationException("This type of equals expression is not allow for now.");
-					}
-
-					Attribute attr = filter.getAttribute();
-
-					if (attr == null || !attr.is(Uid.NAME)) {
-						throw new IllegalArgumentException("Attribute is null or not UID attribute.");
-					}
-
-					return ((Uid) attr).getUidValue();
-				}
-			};
+			return new GraphFilterTranslator(objectClass);
 		}
 		return null;
 	}
@@ -242,56 +304,195 @@ public class GraphConnector implements Connector,
 	@Override
 	public void executeQuery(
 			final ObjectClass objectClass,
-			final String query,
+			final GraphFilter query,
 			final ResultsHandler handler,
 			final OperationOptions options) {
 
-		if (graphClient == null) {
-			initGraphClient();
+		initGraphClient();
+		run(RetryPolicy.Operation.READ, () -> {
+			ProjectionPlan projection = ProjectionPlan.of(options, schemaService);
+			SearchOperation searchOperation = new SearchOperation(graphClient, configuration, projection, memberIndex);
+			if (query != null && query.getUid() != null) {
+				searchOneRecord(objectClass, query.getUid(), handler, searchOperation, projection);
+			} else if (options != null && options.getPageSize() != null && options.getPageSize() > 0) {
+				searchPage(objectClass, query, handler, searchOperation, projection, options);
+			} else {
+				searchAll(objectClass, query, handler, searchOperation, projection);
+			}
+		});
+	}
+
+	@Override
+	public void sync(
+			final ObjectClass objectClass,
+			final SyncToken token,
+			final SyncResultsHandler handler,
+			final OperationOptions options) {
+
+		initGraphClient();
+		run(RetryPolicy.Operation.READ, () -> {
+			ProjectionPlan projection = ProjectionPlan.of(options, schemaService);
+			SearchOperation searchOperation = new SearchOperation(graphClient, configuration, projection, memberIndex);
+			SyncOperation syncOperation = new SyncOperation(graphClient, searchOperation, projection, memberIndex);
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				syncOperation.syncUsers(objectClass, token, handler);
+				return;
+			}
+
+			if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				syncOperation.syncGroups(objectClass, token, handler);
+				return;
+			}
+
+			throw new UnsupportedOperationException("Sync is not supported for object class " + objectClass);
+		});
+	}
+
+	@Override
+	public SyncToken getLatestSyncToken(final ObjectClass objectClass) {
+		initGraphClient();
+		return call(RetryPolicy.Operation.READ, () -> {
+			ProjectionPlan projection = ProjectionPlan.all(schemaService);
+			SearchOperation searchOperation = new SearchOperation(graphClient, configuration, projection, memberIndex);
+			SyncOperation syncOperation = new SyncOperation(graphClient, searchOperation, projection, memberIndex);
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				return syncOperation.getLatestUserToken();
+			}
+
+			if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				return syncOperation.getLatestGroupToken();
+			}
+
+			throw new UnsupportedOperationException("Sync is not supported for object class " + objectClass);
+		});
+	}
+
+	/**
+	 * Execute operation with retry policy and metrics bound to the current thread
+	 *
+	 * @param operation type of operation for retry policy
+	 * @param action    body of operation
+	 * @return result of action
+	 */
+	private <T> T call(RetryPolicy.Operation operation, Supplier<T> action) {
+		RetryPolicy policy = RetryPolicy.apply(operation, configuration);
+		try {
+			GraphMetrics.Scope scope = metrics.bind();
+			try {
+				return action.get();
+			} finally {
+				scope.close();
+			}
+		} finally {
+			policy.close();
 		}
-		SearchOperation searchOperation = new SearchOperation(graphClient);
-		if (query != null) {
-			searchOneRecord(objectClass, query, handler, searchOperation);
+	}
+
+	/**
+	 * The same as {@link #call(RetryPolicy.Operation, Supplier)} for operations without result
+	 */
+	private void run(RetryPolicy.Operation operation, Runnable action) {
+		call(operation, () -> {
+			action.run();
+			return null;
+		});
+	}
+
+	private void searchAll(ObjectClass objectClass, GraphFilter filter, ResultsHandler handler, SearchOperation searchOperation, ProjectionPlan projection) {
+		LOG.info("Get all, filter {0}", filter);
+		StreamingObjectParser parser = new StreamingObjectParser(objectClass, projection, memberIndex);
+		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+			searchOperation.getUsers(filter, parser::parseUser, users -> users.stream().allMatch(handler::handle));
+		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+			MembershipLoader membershipLoader = new MembershipLoader(graphClient, memberIndex);
+			boolean proceed = searchOperation.getGroups(filter, parser::parseGroup, groups -> handleGroupRecords(groups, handler, membershipLoader, projection));
+
+			// Filter is evaluated by Graph API only for groups. There are only few Azure roles, so all of them are
+			// returned and the framework drops roles which don't match the filter, the same way as other untranslated filters
+			if (proceed && configuration.isLoadAzureRoles()) {
+				searchAzureRoles(objectClass, handler, searchOperation, membershipLoader, projection);
+			}
 		} else {
-			searchAll(objectClass, handler, searchOperation);
+			LOG.warn("Unsupported object class {0}", objectClass);
 		}
 	}
 
-	private void searchAll(ObjectClass objectClass, ResultsHandler handler, SearchOperation searchOperation) {
-		LOG.info("Get all");
+	/**
+	 * Return only one page of results. Cookie for next page is passed to handler if it supports paged results.
+	 */
+	private void searchPage(ObjectClass objectClass, GraphFilter filter, ResultsHandler handler, SearchOperation searchOperation, ProjectionPlan projection, OperationOptions options) {
+		LOG.info("Get page with size {0}, filter {1}", options.getPageSize(), filter);
+		if (options.getPagedResultsOffset() != null) {
+			LOG.warn("Paged results offset is not supported, use paged results cookie instead");
+		}
+		SearchResult result;
+		StreamingObjectParser parser = new StreamingObjectParser(objectClass, projection, memberIndex);
 		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
-			List<User> users = searchOperation.getUsers();
-			users.forEach(user -> handler.handle(Utils.handleUser(user, objectClass)));
+			result = searchOperation.getUsersPage(filter, options, parser::parseUser, users -> users.stream().allMatch(handler::handle));
 		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
-			List<Group> groups = searchOperation.getGroups();
-			groups.forEach(group -> handler.handle(Utils.handleGroup(group, objectClass, graphClient)));
+			MembershipLoader membershipLoader = new MembershipLoader(graphClient, memberIndex);
+			result = searchOperation.getGroupsPage(filter, options, parser::parseGroup, groups -> handleGroupRecords(groups, handler, membershipLoader, projection));
 
-			if (configuration.isLoadAzureRoles()) {
-				List<DirectoryRole> azureRoles = searchOperation.getAzureGroups();
-				azureRoles.forEach(azureRole -> handler.handle(Utils.handleAzureRole(azureRole, objectClass, graphClient)));
+			if (result.isAllResultsReturned() && configuration.isLoadAzureRoles()) {
+				// There are only few Azure roles, so they are returned together with the last page of groups and
+				// the framework drops roles which don't match the filter
+				searchAzureRoles(objectClass, handler, searchOperation, membershipLoader, projection);
 			}
 		} else {
 			LOG.warn("Unsupported object class {0}", objectClass);
+			return;
+		}
+		if (handler instanceof SearchResultsHandler) {
+			((SearchResultsHandler) handler).handleResult(result);
+		}
+	}
+
+	private boolean handleUser(User user, ObjectClass objectClass, ResultsHandler handler, ProjectionPlan projection) {
+		if (memberIndex != null) {
+			// Users are loaded anyway, so we keep their userPrincipalNames for members of groups
+			memberIndex.put(user.id, user.userPrincipalName);
 		}
+		return handler.handle(Utils.handleUser(user, objectClass, projection));
 	}
 
-	private void searchOneRecord(ObjectClass objectClass, String query, ResultsHandler handler, SearchOperation searchOperation) {
+	private boolean handleGroupRecords(List<StreamingObjectParser.GroupRecord> groups, ResultsHandler handler, MembershipLoader membershipLoader, ProjectionPlan projection) {
+		Map<String, MembershipLoader.Membership> memberships = membershipLoader.loadGroupRecords(groups,
+				projection.isLoadMembers(), projection.isLoadOwners());
+		return groups.stream().allMatch(group -> handler.handle(group.toConnectorObject(memberships.get(group.getId()))));
+	}
+
+	private void searchAzureRoles(ObjectClass objectClass, ResultsHandler handler, SearchOperation searchOperation, MembershipLoader membershipLoader, ProjectionPlan projection) {
+		searchOperation.getAzureGroups(azureRoles -> {
+			Map<String, MembershipLoader.Membership> memberships = projection.isLoadMembers()
+					? membershipLoader.loadAzureRoles(azureRoles.stream().map(azureRole -> azureRole.id).collect(Collectors.toList()))
+					: Collections.emptyMap();
+			return azureRoles.stream().allMatch(azureRole -> handler.handle(Utils.handleAzureRole(azureRole, objectClass, memberships.get(azureRole.id))));
+		});
+	}
+
+	private void searchOneRecord(ObjectClass objectClass, String query, ResultsHandler handler, SearchOperation searchOperation, ProjectionPlan projection) {
 		LOG.info("Get one record");
 		if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
 			User user = searchOperation.getUser(query);
 			if (user != null) {
-				handler.handle(Utils.handleUser(user, objectClass));
+				handleUser(user, objectClass, handler, projection);
 			}
 		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+			MembershipLoader membershipLoader = new MembershipLoader(graphClient, memberIndex);
 			Group group = searchOperation.getGroup(query);
 			if (group != null) {
-				handler.handle(Utils.handleGroup(group, objectClass, graphClient));
+				MembershipLoader.Membership membership = membershipLoader.loadGroups(Collections.singletonList(group),
+						projection.isLoadMembers(), projection.isLoadOwners()).get(group.id);
+				handler.handle(Utils.handleGroup(group, objectClass, membership, projection));
 			}
 
 			if (configuration.isLoadAzureRoles()) {
 				DirectoryRole azureRole = searchOperation.getAzureRole(query);
 				if (azureRole != null) {
-					handler.handle(Utils.handleAzureRole(azureRole, objectClass, graphClient));
+					MembershipLoader.Membership membership = projection.isLoadMembers()
+							? membershipLoader.loadAzureRoles(Collections.singletonList(azureRole.id)).get(azureRole.id)
+							: null;
+					handler.handle(Utils.handleAzureRole(azureRole, objectClass, membership));
 				}
 			}
 		} else {
@@ -299,61 +500,18 @@ public class GraphConnector implements Connector,
 		}
 	}
 
-	private void initGraphClient() {
-		if (basicUserAttrs.isEmpty()) {
-			Arrays.stream(User.class.getDeclaredFields()).forEach(field -> {
-				// We will put all basic user attributes into List.
-				if (Utils.isBasicDataType(field) && !"deviceEnrollmentLimit".equals(field.getName())) {
-					basicUserAttrs.add(field.getName());
-				}
-			});
-		}
-
-		guardedStringAccessor = new GuardedStringAccessor();
-		this.configuration.getClientSecret().access(guardedStringAccessor);
-
-		ClientCredentialProvider authProvider = new ClientCredentialProvider(
-				this.configuration.getClientId(),
-				Arrays.asList(this.configuration.getScopes()),
-				new String(guardedStringAccessor.getArray()),
-				this.configuration.getTenant(),
-				NationalCloud.valueOf(this.getConfiguration().getNationalCloud()));
-		guardedStringAccessor.clearArray();
-
-		boolean useProxyAuth = !StringUtils.isBlank(this.configuration.getProxyUsername()) && this.configuration.getProxyPassword() != null;
-		boolean useProxy = !StringUtils.isBlank(this.configuration.getProxyHostname()) && this.configuration.getProxyPort() > 0;
-
-		// Custom proxy authenticator
-		Authenticator proxyAuthenticator = null;
-		if (useProxyAuth) {
-			proxyAuthenticator = (route, response) -> {
-				this.configuration.getProxyPassword().access(guardedStringAccessor);
-				String credential = Credentials.basic(this.configuration.getProxyUsername(), new String(guardedStringAccessor.getArray()));
-				guardedStringAccessor.clearArray();
-				return response.request().newBuilder()
-						.header("Proxy-Authorization", credential)
-						.build();
-			};
-		}
-
-		// Custom client so we can use proxy if it's configure in connector
-		OkHttpClient.Builder builder = HttpClients.custom();
-		if (useProxy) {
-			builder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(this.configuration.getProxyHostname(), this.configuration.getProxyPort())));
-		}
-		if (useProxyAuth) {
-			builder.proxyAuthenticator(proxyAuthenticator);
+	private synchronized void initGraphClient() {
+		memberIndex = MemberIndex.forConfiguration(configuration);
+		String key = GraphClientRegistry.fingerprint(configuration);
+		if (!key.equals(graphClientKey)) {
+			IGraphServiceClient client = GraphClientRegistry.acquire(key, configuration);
+			if (graphClientKey != null) {
+				GraphClientRegistry.release(graphClientKey);
+			}
+			graphClient = client;
+			graphClientKey = key;
 		}
-
-		// Custom http provider with custom http client
-		IHttpProvider httpProvider = DefaultClientConfig
-				.createWithAuthenticationProvider(authProvider)
-				.getHttpProvider(builder.build());
-
-		graphClient = GraphServiceClient
-				.builder()
-				.authenticationProvider(authProvider)
-				.httpProvider(httpProvider)
-				.buildClient();
+		// Schema is cached per configuration, it's loaded again only when directory extensions expired
+		schemaService = SchemaService.forConfiguration(configuration, graphClient);
 	}
 }
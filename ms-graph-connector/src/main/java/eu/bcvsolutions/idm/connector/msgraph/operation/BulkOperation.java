@@ -0,0 +1,181 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.OperationContext;
+import eu.bcvsolutions.idm.connector.msgraph.util.TenantThrottle;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Class for bulk operations. Requests are executed concurrently by bulk executor of {@link TenantThrottle}, it has
+ * max connections threads from the current configuration and it's shared by all bulk operations for the tenant.
+ * Every request has its own result, so one failed request doesn't stop the others.
+ */
+public class BulkOperation {
+
+	private static final Log LOG = Log.getLog(BulkOperation.class);
+
+	private final GraphConfiguration configuration;
+
+	public BulkOperation(GraphConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Execute all requests and wait until they are finished
+	 *
+	 * @param requests requests which should be executed
+	 * @param executor function which executes one request and returns UID of object
+	 * @return result for every request in the same order as requests
+	 */
+	public List<Result> execute(List<Request> requests, Function<Request, Uid> executor) {
+		if (requests.isEmpty()) {
+			return Collections.emptyList();
+		}
+		// Limits from the current configuration are applied to the throttle and its executor
+		ExecutorService executorService = TenantThrottle.forTenant(configuration.getTenant(), configuration.getRequestsPerSecond(),
+				configuration.getMaxConnections()).getBulkExecutor();
+		LOG.info("Executing {0} requests in bulk with max {1} threads", requests.size(), configuration.getMaxConnections());
+
+		// Pooled threads don't inherit policy and metrics of this thread, every request binds them itself
+		OperationContext context = OperationContext.capture();
+		List<Future<Result>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				int index = i;
+				futures.add(executorService.submit(context.wrap(() -> executeOne(index, requests.get(index), executor))));
+			}
+
+			List<Result> results = new ArrayList<>();
+			for (Future<Result> future : futures) {
+				results.add(future.get());
+			}
+			LOG.info("Bulk finished, {0} of {1} requests failed", results.stream().filter(result -> !result.isSuccess()).count(), results.size());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Bulk operation was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new ConnectorException("Bulk operation failed", e.getCause());
+		} finally {
+			// Executor is shared, so only requests of this bulk which were not finished are stopped
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private Result executeOne(int index, Request request, Function<Request, Uid> executor) {
+		try {
+			return new Result(index, executor.apply(request), null);
+		} catch (RuntimeException e) {
+			LOG.warn(e, "Request {0} in bulk failed", index);
+			return new Result(index, request.getUid(), e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+		}
+	}
+
+	/**
+	 * Type of request in bulk
+	 */
+	public enum Type {
+		CREATE, UPDATE, DELETE
+	}
+
+	/**
+	 * One request in bulk
+	 */
+	public static class Request {
+		private final Type type;
+		private final ObjectClass objectClass;
+		private final Uid uid;
+		private final Set<Attribute> attributes;
+
+		private Request(Type type, ObjectClass objectClass, Uid uid, Set<Attribute> attributes) {
+			this.type = type;
+			this.objectClass = objectClass;
+			this.uid = uid;
+			this.attributes = attributes;
+		}
+
+		public static Request create(ObjectClass objectClass, Set<Attribute> attributes) {
+			return new Request(Type.CREATE, objectClass, null, attributes);
+		}
+
+		public static Request update(ObjectClass objectClass, Uid uid, Set<Attribute> attributes) {
+			return new Request(Type.UPDATE, objectClass, uid, attributes);
+		}
+
+		public static Request delete(ObjectClass objectClass, Uid uid) {
+			return new Request(Type.DELETE, objectClass, uid, Collections.emptySet());
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public ObjectClass getObjectClass() {
+			return objectClass;
+		}
+
+		public Uid getUid() {
+			return uid;
+		}
+
+		public Set<Attribute> getAttributes() {
+			return attributes;
+		}
+	}
+
+	/**
+	 * Result of one request in bulk
+	 */
+	public static class Result {
+		private final int index;
+		private final Uid uid;
+		private final String error;
+
+		private Result(int index, Uid uid, String error) {
+			this.index = index;
+			this.uid = uid;
+			this.error = error;
+		}
+
+		/**
+		 * @return index of request in bulk
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return UID of object, it's null if create failed
+		 */
+		public Uid getUid() {
+			return uid;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return message of error or null if request was successful
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -1,22 +1,34 @@
 package eu.bcvsolutions.idm.connector.msgraph.operation;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.StringUtils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributesAccessor;
 import org.jetbrains.annotations.NotNull;
 
+import com.google.gson.JsonParser;
 import com.microsoft.graph.models.extensions.Group;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.Invitation;
 import com.microsoft.graph.models.extensions.User;
 
-import eu.bcvsolutions.idm.connector.msgraph.GraphConnector;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchExecutor;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchResponse;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchStep;
 import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
+import eu.bcvsolutions.idm.connector.msgraph.util.SkuCatalog;
 import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
 
 /**
@@ -27,12 +39,20 @@ public class CreateOperation {
 
 	private static final Log LOG = Log.getLog(CreateOperation.class);
 
+	private static final String CREATE_STEP = "create";
+	private static final String LICENSES_STEP = "licenses";
+	private static final String USER_STEP = "user";
+
 	private final IGraphServiceClient graphClient;
 	private final GuardedStringAccessor guardedStringAccessor;
+	private final SchemaService schema;
+	private final BatchExecutor batchExecutor;
 
-	public CreateOperation(IGraphServiceClient graphClient, GuardedStringAccessor guardedStringAccessor) {
+	public CreateOperation(IGraphServiceClient graphClient, GuardedStringAccessor guardedStringAccessor, SchemaService schema) {
 		this.graphClient = graphClient;
 		this.guardedStringAccessor = guardedStringAccessor;
+		this.schema = schema;
+		this.batchExecutor = new BatchExecutor(graphClient);
 	}
 
 	/**
@@ -54,58 +74,124 @@ public class CreateOperation {
 	}
 
 	/**
-	 * Create normal member in cloud
+	 * Create normal member in cloud. If user has licenses, user and licenses are sent in one $batch,
+	 * new user can't have any license, so we don't need to load current licenses.
+	 *
 	 * @param attributesAccessor accessor with attributes
 	 * @return user object
 	 */
 	@NotNull
 	private User createNormalMember(AttributesAccessor attributesAccessor) {
-		User user = Utils.prepareUserObject(attributesAccessor, guardedStringAccessor);
-
-		user = graphClient
-				.users()
-				.buildRequest()
-				.post(user);
-		LOG.info("User {0} created", user.userPrincipalName);
+		User user = Utils.prepareUserObject(attributesAccessor, guardedStringAccessor, schema);
+		List<UUID> licenses = getLicenses(attributesAccessor);
+		if (licenses.isEmpty()) {
+			user = graphClient
+					.users()
+					.buildRequest()
+					.post(user);
+			LOG.info("User {0} created", user.userPrincipalName);
+			return user;
+		}
 
-		assignLicence(attributesAccessor, user);
+		SkuCatalog skuCatalog = SkuCatalog.forClient(graphClient);
+		skuCatalog.reserve(licenses, graphClient);
+		boolean assigned = false;
+		try {
+			List<BatchStep> steps = new ArrayList<>();
+			steps.add(new BatchStep(CREATE_STEP, "POST", "/users", JsonParser.parseString(graphClient.getSerializer().serializeObject(user))));
+			steps.add(new BatchStep(LICENSES_STEP, "POST", "/users/" + encode(user.userPrincipalName) + "/assignLicense", Utils.prepareLicenseBody(licenses))
+					.dependsOn(CREATE_STEP));
+			Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+			assigned = responses.get(LICENSES_STEP).isSuccess();
+
+			BatchResponse created = responses.get(CREATE_STEP);
+			created.checkSuccess();
+			user = created.getBodyAs(User.class, graphClient.getSerializer());
+			LOG.info("User {0} created", user.userPrincipalName);
+			checkLicenses(responses.get(LICENSES_STEP), user.userPrincipalName);
+			return user;
+		} finally {
+			// Units are returned to catalog whenever licenses were not assigned, also when the whole $batch failed
+			if (!assigned) {
+				skuCatalog.release(licenses);
+			}
+		}
+	}
 
-		return user;
+	/**
+	 * Create guest user in cloud. Invitation must be sent first, because we need id of invited user.
+	 * Licenses are assigned and user is loaded again in one $batch.
+	 *
+	 * @param attributesAccessor accessor with attributes
+	 * @return guest user object
+	 */
+	public User createGuest(AttributesAccessor attributesAccessor) {
+		List<UUID> licenses = getLicenses(attributesAccessor);
+		SkuCatalog skuCatalog = SkuCatalog.forClient(graphClient);
+		// Units are reserved before invitation, so guest is not invited when there is no free unit
+		skuCatalog.reserve(licenses, graphClient);
+		boolean assigned = licenses.isEmpty();
+		try {
+			Invitation invitation = new Invitation();
+			invitation.invitedUserEmailAddress = attributesAccessor.findString("mail");
+			invitation.invitedUserDisplayName = attributesAccessor.findString("displayName");
+			// TODO make it configurable
+			invitation.inviteRedirectUrl = "https://google.com";
+			// TODO make it configurable
+			invitation.sendInvitationMessage = true;
+
+			invitation = graphClient.invitations()
+					.buildRequest()
+					.post(invitation);
+
+			String userPath = "/users/" + invitation.invitedUser.id;
+			List<BatchStep> steps = new ArrayList<>();
+			BatchStep userStep = BatchStep.get(USER_STEP, userPath + "?$select=" + schema.getUserSelect());
+			if (!licenses.isEmpty()) {
+				steps.add(new BatchStep(LICENSES_STEP, "POST", userPath + "/assignLicense", Utils.prepareLicenseBody(licenses)));
+				// User is loaded after licenses are assigned, so we get the current state
+				userStep.dependsOn(LICENSES_STEP);
+			}
+			steps.add(userStep);
+			Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+
+			if (!licenses.isEmpty()) {
+				assigned = responses.get(LICENSES_STEP).isSuccess();
+				checkLicenses(responses.get(LICENSES_STEP), invitation.invitedUser.id);
+			}
+			return responses.get(USER_STEP).getBodyAs(User.class, graphClient.getSerializer());
+		} finally {
+			if (!assigned) {
+				skuCatalog.release(licenses);
+			}
+		}
 	}
 
-	private void assignLicence(AttributesAccessor attributesAccessor, User user) {
+	private List<UUID> getLicenses(AttributesAccessor attributesAccessor) {
 		List<String> assignedLicenses = attributesAccessor.findStringList("assignedLicenses");
-		if (assignedLicenses != null && !assignedLicenses.isEmpty()) {
-			Utils.setLicenses(assignedLicenses, user.userPrincipalName, graphClient);
+		if (assignedLicenses == null) {
+			return Collections.emptyList();
 		}
+		return assignedLicenses.stream().map(UUID::fromString).distinct().collect(Collectors.toList());
 	}
 
 	/**
-	 * Create guest user in cloud
-	 * @param attributesAccessor accessor with attributes
-	 * @return guest user object (only is is filled)
+	 * Check response of license assignment, units of licenses are returned to catalog by caller if it failed
 	 */
-	public User createGuest(AttributesAccessor attributesAccessor) {
-		Invitation invitation = new Invitation();
-		invitation.invitedUserEmailAddress = attributesAccessor.findString("mail");
-		invitation.invitedUserDisplayName = attributesAccessor.findString("displayName");
-		// TODO make it configurable
-		invitation.inviteRedirectUrl = "https://google.com";
-		// TODO make it configurable
-		invitation.sendInvitationMessage = true;
-
-		invitation = graphClient.invitations()
-				.buildRequest()
-				.post(invitation);
-
-		User user = graphClient.users(invitation.invitedUser.id)
-				.buildRequest()
-				.select(StringUtils.join(GraphConnector.basicUserAttrs, ','))
-				.get();
-
-		assignLicence(attributesAccessor, user);
-
-		return user;
+	private void checkLicenses(BatchResponse response, String user) {
+		if (!response.isSuccess()) {
+			throw new ConnectorException("User " + user + " was created, but licenses were not assigned. Status "
+					+ response.getStatus() + ": " + response.getBody());
+		}
+		LOG.info("Licenses assigned to user {0}", user);
+	}
+
+	private static String encode(String id) {
+		try {
+			return URLEncoder.encode(id, StandardCharsets.UTF_8.toString());
+		} catch (UnsupportedEncodingException e) {
+			throw new ConnectorException("Creating user failed: ", e);
+		}
 	}
 
 	/**
@@ -6,8 +6,11 @@ import java.nio.charset.StandardCharsets;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.Uid;
 
+import com.microsoft.graph.http.GraphServiceException;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 
 /**
@@ -36,6 +39,12 @@ public class DeleteOperation {
 			LOG.info("User {0} deleted", uid.getUidValue());
 		} catch (UnsupportedEncodingException e) {
 			throw new ConnectorException("Deleting one user failed: ", e);
+		} catch (GraphServiceException e) {
+			// 404 of DELETE which was sent again is returned as success, so this user didn't exist before
+			if (e.getResponseCode() == 404) {
+				throw new UnknownUidException(uid, ObjectClass.ACCOUNT);
+			}
+			throw e;
 		}
 
 	}
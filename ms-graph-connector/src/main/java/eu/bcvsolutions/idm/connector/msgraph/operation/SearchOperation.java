@@ -4,24 +4,53 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.Uid;
 
+import com.google.gson.JsonObject;
 import com.microsoft.graph.core.ClientException;
 import com.microsoft.graph.http.GraphServiceException;
+import com.microsoft.graph.http.IHttpRequest;
 import com.microsoft.graph.models.extensions.DirectoryRole;
 import com.microsoft.graph.models.extensions.Group;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graph.options.QueryOption;
 import com.microsoft.graph.requests.extensions.IDirectoryRoleCollectionPage;
-import com.microsoft.graph.requests.extensions.IGroupCollectionPage;
-import com.microsoft.graph.requests.extensions.IUserCollectionPage;
+import com.microsoft.graph.requests.extensions.IGroupCollectionRequest;
+import com.microsoft.graph.requests.extensions.IGroupRequest;
+import com.microsoft.graph.requests.extensions.IUserCollectionRequest;
 
-import eu.bcvsolutions.idm.connector.msgraph.GraphConnector;
-import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchExecutor;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchResponse;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchStep;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphFilter;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphMetrics;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphPageReader;
+import eu.bcvsolutions.idm.connector.msgraph.util.MemberIndex;
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+import eu.bcvsolutions.idm.connector.msgraph.util.PagePrefetcher;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
 
 /**
  * @author Roman Kučera
@@ -30,14 +59,33 @@ import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
 public class SearchOperation {
 	private static final Log LOG = Log.getLog(SearchOperation.class);
 
+	private static final String USER_STEP = "user";
+	private static final String GROUP_STEP = "group";
+	private static final String DELETED_USER_STEP = "deleted_user";
+	// Max value of $top for users and groups
+	private static final int MAX_PAGE_SIZE = 999;
+	// Attributes which Graph API supports in $orderby without advanced queries
+	private static final List<String> USER_SORT_ATTRS = Arrays.asList("displayName", "userPrincipalName");
+	private static final List<String> GROUP_SORT_ATTRS = Collections.singletonList("displayName");
+	private static final String CONSISTENCY_LEVEL = "ConsistencyLevel";
+	private static final String EVENTUAL = "eventual";
+	// Prefix of paged results cookie for advanced queries
+	private static final String ADVANCED_COOKIE_PREFIX = EVENTUAL + "|";
+
 	private final IGraphServiceClient graphClient;
+	private final GraphConfiguration graphConfiguration;
+	private final ProjectionPlan projection;
+	private final MemberIndex memberIndex;
 
-	public SearchOperation(IGraphServiceClient graphClient) {
+	public SearchOperation(IGraphServiceClient graphClient, GraphConfiguration graphConfiguration, ProjectionPlan projection, MemberIndex memberIndex) {
 		this.graphClient = graphClient;
+		this.graphConfiguration = graphConfiguration;
+		this.projection = projection;
+		this.memberIndex = memberIndex;
 	}
 
 	/**
-	 * Get one user, It will load all attributes which are in schema
+	 * Get one user, It will load all attributes which are in schema or only requested attributes if caller limited them
 	 *
 	 * @param id User identification
 	 * @return User object
@@ -46,14 +94,11 @@ public class SearchOperation {
 		try {
 			String encodedId = URLEncoder.encode(id, StandardCharsets.UTF_8.toString());
 
-			User user = graphClient.users(encodedId)
+			// Licenses are part of the user in assignedLicenses, so they are loaded in the same request
+			return graphClient.users(encodedId)
 					.buildRequest()
-					.select(StringUtils.join(GraphConnector.basicUserAttrs, ','))
+					.select(projection.getUserSelect())
 					.get();
-
-			user.assignedLicenses = Utils.getLicensesForUser(encodedId, graphClient);
-
-			return user;
 		} catch (ClientException | UnsupportedEncodingException e) {
 			LOG.info("ClientException:", e);
 			if (e instanceof GraphServiceException) {
@@ -67,6 +112,75 @@ public class SearchOperation {
 		}
 	}
 
+	/**
+	 * Get multiple users by their identification via $batch
+	 *
+	 * @param ids User identifications, object id or userPrincipalName, duplicates are loaded only once
+	 * @return Users which were found, key is identification which was used in request
+	 */
+	public Map<String, User> getUsers(List<String> ids) {
+		// Every step in $batch must have unique id, otherwise the whole $batch is rejected
+		Set<String> uniqueIds = new LinkedHashSet<>(ids);
+		List<BatchStep> steps = new ArrayList<>();
+		uniqueIds.forEach(id -> {
+			try {
+				String encodedId = URLEncoder.encode(id, StandardCharsets.UTF_8.toString());
+				steps.add(BatchStep.get(USER_STEP + "_" + id, "/users/" + encodedId + "?$select=" + projection.getUserSelect()));
+			} catch (UnsupportedEncodingException e) {
+				throw new ConnectorException("Getting users failed: ", e);
+			}
+		});
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		Map<String, User> users = new HashMap<>();
+		uniqueIds.forEach(id -> {
+			// Body of response is not needed after deserialization, so it can be collected while other users are read
+			BatchResponse userResponse = removeResponse(responses, USER_STEP + "_" + id);
+			if (userResponse.getStatus() == 404) {
+				LOG.info("User {0} not found", id);
+				return;
+			}
+			userResponse.checkSuccess();
+			users.put(id, userResponse.getBodyAs(User.class, graphClient.getSerializer()));
+		});
+		return users;
+	}
+
+	/**
+	 * Get userPrincipalNames of deleted users via $batch. Graph API prefixes userPrincipalName of deleted user
+	 * with its id without dashes, the prefix is removed, so the result is the same UID which user had before.
+	 *
+	 * @param ids object ids of deleted users
+	 * @return userPrincipalNames of users which are still in deleted items, key is object id
+	 */
+	public Map<String, String> getDeletedUserPrincipalNames(List<String> ids) {
+		Set<String> uniqueIds = new LinkedHashSet<>(ids);
+		List<BatchStep> steps = new ArrayList<>();
+		uniqueIds.forEach(id -> steps.add(BatchStep.get(DELETED_USER_STEP + "_" + id,
+				"/directory/deletedItems/" + id + "?$select=id,userPrincipalName")));
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		Map<String, String> userPrincipalNames = new HashMap<>();
+		uniqueIds.forEach(id -> {
+			BatchResponse response = removeResponse(responses, DELETED_USER_STEP + "_" + id);
+			if (response.getStatus() == 404) {
+				LOG.info("Deleted user {0} not found", id);
+				return;
+			}
+			response.checkSuccess();
+			JsonObject user = response.getBodyAsObject();
+			if (user == null || !user.has("userPrincipalName") || user.get("userPrincipalName").isJsonNull()) {
+				return;
+			}
+			String userPrincipalName = user.get("userPrincipalName").getAsString();
+			String prefix = id.replace("-", "");
+			userPrincipalNames.put(id, StringUtils.startsWithIgnoreCase(userPrincipalName, prefix)
+					? userPrincipalName.substring(prefix.length())
+					: userPrincipalName);
+		});
+		return userPrincipalNames;
+	}
+
 	/**
 	 * Get one group
 	 *
@@ -74,7 +188,48 @@ public class SearchOperation {
 	 * @return Group object
 	 */
 	public Group getGroup(String id) {
-		return graphClient.groups(id).buildRequest().get();
+		IGroupRequest request = graphClient.groups(id).buildRequest();
+		if (projection.getGroupSelect() != null) {
+			request.select(projection.getGroupSelect());
+		}
+		return request.get();
+	}
+
+	/**
+	 * Get multiple groups by their identification via $batch
+	 *
+	 * @param ids Group identifications
+	 * @return Groups which were found, key is the id of group
+	 */
+	public Map<String, Group> getGroups(List<String> ids) {
+		String select = projection.getGroupSelect() == null ? "" : "?$select=" + projection.getGroupSelect();
+		Set<String> uniqueIds = new LinkedHashSet<>(ids);
+		List<BatchStep> steps = new ArrayList<>();
+		uniqueIds.forEach(id -> steps.add(BatchStep.get(GROUP_STEP + "_" + id, "/groups/" + id + select)));
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		Map<String, Group> groups = new HashMap<>();
+		uniqueIds.forEach(id -> {
+			BatchResponse groupResponse = removeResponse(responses, GROUP_STEP + "_" + id);
+			if (groupResponse.getStatus() == 404) {
+				LOG.info("Group {0} not found", id);
+				return;
+			}
+			groupResponse.checkSuccess();
+			groups.put(id, groupResponse.getBodyAs(Group.class, graphClient.getSerializer()));
+		});
+		return groups;
+	}
+
+	/**
+	 * Response is removed from map, so its body can be collected while other responses are processed
+	 */
+	private static BatchResponse removeResponse(Map<String, BatchResponse> responses, String stepId) {
+		BatchResponse response = responses.remove(stepId);
+		if (response == null) {
+			throw new ConnectorException("Response for step " + stepId + " is missing in $batch");
+		}
+		return response;
 	}
 
 	/**
@@ -88,60 +243,358 @@ public class SearchOperation {
 	}
 
 	/**
-	 * Get all users
+	 * Get all users matching the filter. Every loaded page is passed to handler before next page is requested, so we don't hold whole tenant in memory.
+	 * Users are converted by parser directly from the response, see {@link GraphPageReader}.
 	 *
-	 * @return List of Users
+	 * @param filter  filter evaluated by Graph API, null for all users
+	 * @param parser  parser for one user
+	 * @param handler handler for one page of users, returns false when we should stop
+	 * @return false if handler stopped the processing
 	 */
-	public List<User> getUsers() {
-		List<User> users = new ArrayList<>();
-		IUserCollectionPage userCollectionPage = graphClient.users().buildRequest().get();
-		users.addAll(userCollectionPage.getCurrentPage());
+	public <T> boolean getUsers(GraphFilter filter, GraphPageReader.ObjectParser<T> parser, Predicate<List<T>> handler) {
+		GraphFilter query = filter;
+		GraphPageReader.Page<T> page;
+		try {
+			page = readFirstPage(usersRequest(query, null), parser);
+		} catch (GraphPageReader.GraphRequestException e) {
+			query = toAdvancedQuery(query, e.getResponseCode(), e);
+			page = readFirstPage(usersRequest(query, null), parser);
+		}
+		return processPages(page, nextPage(getHeaderOptions(query), parser), handler);
+	}
 
-		LOG.info("First page loaded");
-		while (userCollectionPage.getNextPage() != null) {
-			LOG.info("Loading next page");
-			userCollectionPage = userCollectionPage.getNextPage().buildRequest().get();
-			users.addAll(userCollectionPage.getCurrentPage());
+	/**
+	 * Get all groups matching the filter. Every loaded page is passed to handler before next page is requested.
+	 * Handler gets whole page so it can load members and owners for all groups in page at once.
+	 * If it's enabled in configuration, members and owners are expanded directly into the groups.
+	 *
+	 * @param filter  filter evaluated by Graph API, null for all groups
+	 * @param parser  parser for one group
+	 * @param handler handler for one page of groups, returns false when we should stop
+	 * @return false if handler stopped the processing
+	 */
+	public <T> boolean getGroups(GraphFilter filter, GraphPageReader.ObjectParser<T> parser, Predicate<List<T>> handler) {
+		GraphFilter query = filter;
+		GraphPageReader.Page<T> page;
+		try {
+			page = readFirstPage(groupsRequest(query, null), parser);
+		} catch (GraphPageReader.GraphRequestException e) {
+			query = toAdvancedQuery(query, e.getResponseCode(), e);
+			page = readFirstPage(groupsRequest(query, null), parser);
 		}
+		return processPages(page, nextPage(getHeaderOptions(query), parser), handler);
+	}
 
-		return users;
+	/**
+	 * Get all Azure roles. Every loaded page is passed to handler before next page is requested
+	 *
+	 * @param handler handler for one page of roles, returns false when we should stop
+	 * @return false if handler stopped the processing
+	 */
+	public boolean getAzureGroups(Predicate<List<DirectoryRole>> handler) {
+		IDirectoryRoleCollectionPage azureRolesPage = graphClient.directoryRoles().buildRequest().get();
+		return processPages(azureRolesPage,
+				page -> page.getNextPage() == null ? null : page.getNextPage().buildRequest().get(),
+				IDirectoryRoleCollectionPage::getCurrentPage,
+				handler);
 	}
 
 	/**
-	 * Get all groups
+	 * Get one page of users. Paged results cookie is the next link from Graph API, so the caller can continue
+	 * from any page. Sorting is done by Graph API via $orderby.
 	 *
-	 * @return List of Groups
+	 * @param filter  filter evaluated by Graph API, null for all users. It's not used when cookie is set, next link contains it
+	 * @param options options with page size, cookie and sort keys
+	 * @param parser  parser for one user
+	 * @param handler handler for one page of users, returns false when we should stop
+	 * @return result with cookie for next page
 	 */
-	public List<Group> getGroups() {
-		IGroupCollectionPage groupCollectionPage = graphClient.groups().buildRequest().get();
-		List<Group> groups = new ArrayList<>(groupCollectionPage.getCurrentPage());
+	public <T> SearchResult getUsersPage(GraphFilter filter, OperationOptions options, GraphPageReader.ObjectParser<T> parser, Predicate<List<T>> handler) {
+		GraphPageReader.Page<T> page;
+		boolean advanced;
+		String cookie = options.getPagedResultsCookie();
+		if (cookie != null) {
+			advanced = cookie.startsWith(ADVANCED_COOKIE_PREFIX);
+			page = GraphPageReader.forClient(graphClient).read(checkCookie(cookie), getHeaderOptions(filter, advanced), parser);
+		} else {
+			GraphFilter query = filter;
+			try {
+				page = readFirstPage(usersRequest(query, options), parser);
+			} catch (GraphPageReader.GraphRequestException e) {
+				query = toAdvancedQuery(query, e.getResponseCode(), e);
+				page = readFirstPage(usersRequest(query, options), parser);
+			}
+			advanced = query != null && query.isAdvanced();
+		}
+		GraphMetrics.recordPage();
+		boolean proceed = handler.test(page.getObjects());
+		return toSearchResult(page.getNextLink(), advanced, proceed);
+	}
 
-		LOG.info("First page loaded");
-		while (groupCollectionPage.getNextPage() != null) {
-			LOG.info("Loading next page");
-			groupCollectionPage = groupCollectionPage.getNextPage().buildRequest().get();
-			groups.addAll(groupCollectionPage.getCurrentPage());
+	/**
+	 * Get one page of groups. See {@link #getUsersPage(GraphFilter, OperationOptions, GraphPageReader.ObjectParser, Predicate)}
+	 *
+	 * @param filter  filter evaluated by Graph API, null for all groups
+	 * @param options options with page size, cookie and sort keys
+	 * @param parser  parser for one group
+	 * @param handler handler for whole page of groups, returns false when we should stop
+	 * @return result with cookie for next page
+	 */
+	public <T> SearchResult getGroupsPage(GraphFilter filter, OperationOptions options, GraphPageReader.ObjectParser<T> parser, Predicate<List<T>> handler) {
+		GraphPageReader.Page<T> page;
+		boolean advanced;
+		String cookie = options.getPagedResultsCookie();
+		if (cookie != null) {
+			advanced = cookie.startsWith(ADVANCED_COOKIE_PREFIX);
+			page = GraphPageReader.forClient(graphClient).read(checkCookie(cookie), getHeaderOptions(filter, advanced), parser);
+		} else {
+			GraphFilter query = filter;
+			try {
+				page = readFirstPage(groupsRequest(query, options), parser);
+			} catch (GraphPageReader.GraphRequestException e) {
+				query = toAdvancedQuery(query, e.getResponseCode(), e);
+				page = readFirstPage(groupsRequest(query, options), parser);
+			}
+			advanced = query != null && query.isAdvanced();
 		}
+		GraphMetrics.recordPage();
+		boolean proceed = handler.test(page.getObjects());
+		return toSearchResult(page.getNextLink(), advanced, proceed);
+	}
 
-		return groups;
+	/**
+	 * Send prepared request via streaming reader, so only URL and headers of request are used
+	 */
+	private <T> GraphPageReader.Page<T> readFirstPage(IHttpRequest request, GraphPageReader.ObjectParser<T> parser) {
+		return GraphPageReader.forClient(graphClient).read(request.getRequestUrl().toString(), request.getHeaders(), parser);
+	}
+
+	private <T> Function<GraphPageReader.Page<T>, GraphPageReader.Page<T>> nextPage(List<Option> headers, GraphPageReader.ObjectParser<T> parser) {
+		GraphPageReader pageReader = GraphPageReader.forClient(graphClient);
+		return page -> page.getNextLink() == null ? null : pageReader.read(page.getNextLink(), headers, parser);
 	}
 
 	/**
-	 * Get all Azure roles
+	 * Prepare request for users
 	 *
-	 * @return List of Roles
+	 * @param filter  filter evaluated by Graph API, can be null
+	 * @param options options with page size and sort keys, null if all users are requested
 	 */
-	public List<DirectoryRole> getAzureGroups() {
-		IDirectoryRoleCollectionPage azureRolesPage = graphClient.directoryRoles().buildRequest().get();
-		List<DirectoryRole> azureRoles = new ArrayList<>(azureRolesPage.getCurrentPage());
+	private IUserCollectionRequest usersRequest(GraphFilter filter, OperationOptions options) {
+		IUserCollectionRequest request = graphClient.users().buildRequest(getQueryOptions(filter));
+		if (projection.getUserListSelect() != null) {
+			request.select(projection.getUserListSelect());
+		}
+		if (filter != null && filter.getFilter() != null) {
+			request.filter(filter.getFilter());
+		}
+		if (options != null) {
+			request.top(getTop(options));
+			String orderBy = getOrderBy(options, USER_SORT_ATTRS, "userPrincipalName");
+			if (orderBy != null) {
+				request.orderBy(orderBy);
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Prepare request for groups
+	 *
+	 * @param filter  filter evaluated by Graph API, can be null
+	 * @param options options with page size and sort keys, null if all groups are requested
+	 */
+	private IGroupCollectionRequest groupsRequest(GraphFilter filter, OperationOptions options) {
+		IGroupCollectionRequest request = graphClient.groups().buildRequest(getQueryOptions(filter));
+		if (projection.getGroupSelect() != null) {
+			request.select(projection.getGroupSelect());
+		}
+		String expand = getMembershipExpand();
+		if (expand != null) {
+			request.expand(expand);
+		}
+		if (filter != null && filter.getFilter() != null) {
+			request.filter(filter.getFilter());
+		}
+		if (options != null) {
+			request.top(getTop(options));
+			String orderBy = getOrderBy(options, GROUP_SORT_ATTRS, null);
+			if (orderBy != null) {
+				request.orderBy(orderBy);
+			}
+		}
+		return request;
+	}
 
+	/**
+	 * Options for advanced queries. $filter is set directly in request
+	 */
+	private List<Option> getQueryOptions(GraphFilter filter) {
+		List<Option> options = new ArrayList<>();
+		if (filter == null) {
+			return options;
+		}
+		if (filter.isAdvanced()) {
+			options.add(new QueryOption("$count", "true"));
+		}
+		options.addAll(getHeaderOptions(filter));
+		return options;
+	}
+
+	private List<Option> getHeaderOptions(GraphFilter filter) {
+		return getHeaderOptions(filter, filter != null && filter.isAdvanced());
+	}
+
+	/**
+	 * Advanced query must send ConsistencyLevel header in every request, also for next pages
+	 */
+	private List<Option> getHeaderOptions(GraphFilter filter, boolean advanced) {
+		if (!advanced) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(new HeaderOption(CONSISTENCY_LEVEL, EVENTUAL));
+	}
+
+	/**
+	 * Some attributes and operators are supported by Graph API only in advanced query, then it returns 400.
+	 * We don't know all of them, so we send the request again as advanced query.
+	 *
+	 * @param filter       filter which was used in failed request
+	 * @param responseCode status of failed request
+	 * @param exception    error from Graph API
+	 * @return filter for advanced query
+	 */
+	private GraphFilter toAdvancedQuery(GraphFilter filter, int responseCode, RuntimeException exception) {
+		if (filter == null || filter.isAdvanced() || responseCode != 400) {
+			throw exception;
+		}
+		LOG.info("Filter {0} is not supported in basic query, advanced query will be used", filter);
+		return filter.toAdvanced();
+	}
+
+	private SearchResult toSearchResult(String nextLink, boolean advanced, boolean proceed) {
+		if (!proceed) {
+			LOG.info("Handler stopped the processing");
+		}
+		// Next link of advanced query must be requested with ConsistencyLevel header, so we need to know it from the cookie
+		String cookie = nextLink != null && advanced ? ADVANCED_COOKIE_PREFIX + nextLink : nextLink;
+		// Number of remaining results is not known, Graph API returns count only for advanced queries
+		return new SearchResult(cookie, -1, nextLink == null);
+	}
+
+	/**
+	 * Cookie is used as URL of request with our access token, so we accept only links to Graph API
+	 *
+	 * @return next link without prefix
+	 */
+	private String checkCookie(String cookie) {
+		String nextLink = StringUtils.removeStart(cookie, ADVANCED_COOKIE_PREFIX);
+		if (!nextLink.startsWith(graphClient.getServiceRoot() + "/")) {
+			throw new InvalidAttributeValueException("Paged results cookie is not valid");
+		}
+		return nextLink;
+	}
+
+	private int getTop(OperationOptions options) {
+		return Math.min(MAX_PAGE_SIZE, options.getPageSize());
+	}
+
+	/**
+	 * Prepare $orderby from sort keys. Graph API supports sorting only by some attributes, other sort keys are ignored
+	 *
+	 * @param options   options with sort keys
+	 * @param supported attributes which can be used in $orderby
+	 * @param uidAttr   attribute which is used as UID and name, null if we can't sort by UID
+	 * @return value for $orderby or null if there is nothing to sort by
+	 */
+	private String getOrderBy(OperationOptions options, List<String> supported, String uidAttr) {
+		if (options.getSortKeys() == null) {
+			return null;
+		}
+		List<String> orderBy = new ArrayList<>();
+		for (SortKey sortKey : options.getSortKeys()) {
+			String field = sortKey.getField();
+			if (Uid.NAME.equals(field) || Name.NAME.equals(field)) {
+				field = uidAttr;
+			}
+			if (field == null || !supported.contains(field)) {
+				LOG.warn("Sorting by {0} is not supported, sort key is ignored", sortKey.getField());
+				continue;
+			}
+			orderBy.add(sortKey.isAscendingOrder() ? field : field + " desc");
+		}
+		return orderBy.isEmpty() ? null : StringUtils.join(orderBy, ',');
+	}
+
+	/**
+	 * Prepare $expand for members and owners of groups
+	 *
+	 * @return value for $expand or null if expand is disabled or membership is not requested
+	 */
+	private String getMembershipExpand() {
+		if (!graphConfiguration.isExpandGroupMembership()) {
+			return null;
+		}
+		String memberSelect = "(" + MembershipLoader.getMemberSelect(memberIndex) + ")";
+		List<String> expand = new ArrayList<>();
+		if (projection.isLoadMembers()) {
+			expand.add(ProjectionPlan.MEMBERS + memberSelect);
+		}
+		if (projection.isLoadOwners()) {
+			expand.add(ProjectionPlan.OWNERS + memberSelect);
+		}
+		return expand.isEmpty() ? null : StringUtils.join(expand, ',');
+	}
+
+	/**
+	 * Go through all pages and pass every page to handler. Without prefetch next page is requested only after whole current
+	 * page was handled. With prefetch configured, next pages are loaded in advance, but never more than configured depth.
+	 * No other page is requested after handler stopped the processing.
+	 *
+	 * @param page     first page
+	 * @param nextPage function which loads next page or returns null if there is no other page
+	 * @param handler  handler for one page, returns false when we should stop
+	 * @return false if handler stopped the processing
+	 */
+	private <T> boolean processPages(GraphPageReader.Page<T> page, Function<GraphPageReader.Page<T>, GraphPageReader.Page<T>> nextPage, Predicate<List<T>> handler) {
+		return processPages(page, nextPage, GraphPageReader.Page::getObjects, handler);
+	}
+
+	/**
+	 * See {@link #processPages(GraphPageReader.Page, Function, Predicate)}
+	 *
+	 * @param content function which returns objects of page
+	 */
+	private <T, P> boolean processPages(P page, Function<P, P> nextPage, Function<P, List<T>> content, Predicate<List<T>> handler) {
 		LOG.info("First page loaded");
-		while (azureRolesPage.getNextPage() != null) {
-			LOG.info("Loading next page");
-			azureRolesPage = azureRolesPage.getNextPage().buildRequest().get();
-			azureRoles.addAll(azureRolesPage.getCurrentPage());
+		int lookAhead = graphConfiguration.getPagePrefetchDepth();
+		// Next pages are loaded in background while handler processes current page
+		PagePrefetcher<P> prefetcher = lookAhead > 0 ? PagePrefetcher.start(page, nextPage, lookAhead) : null;
+		if (prefetcher != null) {
+			try (PagePrefetcher<P> pages = prefetcher) {
+				while (pages.hasNext()) {
+					P current = pages.next();
+					GraphMetrics.recordPage();
+					if (!handler.test(content.apply(current))) {
+						LOG.info("Handler stopped the processing, no other page will be loaded");
+						return false;
+					}
+				}
+				return true;
+			}
 		}
 
-		return azureRoles;
+		while (page != null) {
+			GraphMetrics.recordPage();
+			if (!handler.test(content.apply(page))) {
+				LOG.info("Handler stopped the processing, no other page will be loaded");
+				return false;
+			}
+			page = nextPage.apply(page);
+			if (page != null) {
+				LOG.info("Next page loaded");
+			}
+		}
+		return true;
 	}
 }
@@ -0,0 +1,443 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.options.QueryOption;
+import com.microsoft.graph.requests.extensions.GroupDeltaCollectionRequestBuilder;
+import com.microsoft.graph.requests.extensions.IGroupDeltaCollectionPage;
+import com.microsoft.graph.requests.extensions.IGroupDeltaCollectionRequest;
+import com.microsoft.graph.requests.extensions.IUserDeltaCollectionPage;
+import com.microsoft.graph.requests.extensions.IUserDeltaCollectionRequest;
+import com.microsoft.graph.requests.extensions.UserDeltaCollectionRequestBuilder;
+
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphMetrics;
+import eu.bcvsolutions.idm.connector.msgraph.util.GroupMembershipState;
+import eu.bcvsolutions.idm.connector.msgraph.util.MemberIndex;
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
+
+/**
+ * @author Roman Kučera
+ * Class for sync operations. It's using delta query of Graph API, delta link is used as sync token.
+ */
+public class SyncOperation {
+	private static final Log LOG = Log.getLog(SyncOperation.class);
+
+	private static final String REMOVED = "@removed";
+	private static final String MEMBERS_DELTA = "members@delta";
+	private static final int CHUNK_SIZE = 100;
+
+	private final IGraphServiceClient graphClient;
+	private final SearchOperation searchOperation;
+	private final MembershipLoader membershipLoader;
+	private final ProjectionPlan projection;
+	private final MemberIndex memberIndex;
+	private final GroupMembershipState membershipState;
+
+	public SyncOperation(IGraphServiceClient graphClient, SearchOperation searchOperation, ProjectionPlan projection, MemberIndex memberIndex) {
+		this.graphClient = graphClient;
+		this.searchOperation = searchOperation;
+		this.membershipLoader = new MembershipLoader(graphClient, memberIndex);
+		this.projection = projection;
+		this.memberIndex = memberIndex;
+		this.membershipState = GroupMembershipState.forIndex(memberIndex);
+	}
+
+	/**
+	 * Get all changes of users since the token. If token is null all users are returned as created, the first round
+	 * of delta contains all selected attributes, so users are converted directly. Next rounds return only changed
+	 * attributes, so changed users are loaded again via $batch.
+	 *
+	 * @param objectClass user object class
+	 * @param token       delta link from previous sync, can be null
+	 * @param handler     handler for changes
+	 */
+	public void syncUsers(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler) {
+		IUserDeltaCollectionRequest request;
+		boolean firstRound = token == null;
+		if (firstRound) {
+			LOG.info("Sync without token, all users will be returned");
+			request = graphClient.users().delta().buildRequest().select(projection.getUserSelect());
+		} else {
+			request = new UserDeltaCollectionRequestBuilder((String) token.getValue(), graphClient, null).buildRequest();
+		}
+
+		String pageLink = request.getRequestUrl().toString();
+		IUserDeltaCollectionPage page = request.get();
+		while (true) {
+			// If IdM stops in the middle of page, it will continue from the beginning of this page next time
+			SyncToken pageToken = new SyncToken(pageLink);
+			GraphMetrics.recordPage();
+			if (!handleUserPage(page.getCurrentPage(), firstRound, objectClass, pageToken, handler)) {
+				LOG.info("Handler stopped the sync");
+				return;
+			}
+			if (page.getNextPage() == null) {
+				break;
+			}
+			pageLink = page.getNextPage().getRequestUrl();
+			page = page.getNextPage().buildRequest().get();
+			LOG.info("Next page of delta loaded");
+		}
+
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(new SyncToken(page.deltaLink()));
+		}
+	}
+
+	/**
+	 * Get token which represents current state, so next sync will return only changes made after this call
+	 *
+	 * @return sync token
+	 */
+	public SyncToken getLatestUserToken() {
+		IUserDeltaCollectionPage page = graphClient.users().delta()
+				.buildRequest(Collections.singletonList(new QueryOption("$deltatoken", "latest")))
+				.select(projection.getUserSelect())
+				.get();
+		while (page.deltaLink() == null && page.getNextPage() != null) {
+			page = page.getNextPage().buildRequest().get();
+		}
+		return new SyncToken(page.deltaLink());
+	}
+
+	/**
+	 * Get all changes of groups since the token. Group delta contains members@delta with added and removed members,
+	 * they are applied to members from the previous sync page by page, see {@link GroupMembershipState}. Members are
+	 * loaded again for groups which are not in the state. Groups are returned after the whole delta round is loaded,
+	 * because one group can be returned in multiple pages when it has many membership changes.
+	 *
+	 * @param objectClass group object class
+	 * @param token       delta link from previous sync, can be null
+	 * @param handler     handler for changes
+	 */
+	public void syncGroups(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler) {
+		IGroupDeltaCollectionRequest request;
+		if (token == null) {
+			LOG.info("Sync without token, all groups will be returned");
+			request = graphClient.groups().delta().buildRequest().select(getGroupDeltaSelect());
+		} else {
+			request = new GroupDeltaCollectionRequestBuilder((String) token.getValue(), graphClient, null).buildRequest();
+		}
+		// All changes are returned after whole round is loaded, so if IdM stops we need to start from the beginning
+		SyncToken startToken = new SyncToken(request.getRequestUrl().toString());
+
+		// First round contains all members in members@delta, so state of previous sync is not needed
+		boolean firstRound = token == null;
+		if (firstRound && membershipState != null) {
+			membershipState.clear();
+		}
+		Map<String, Boolean> removed = new LinkedHashMap<>();
+		// Only ids of groups are kept for the whole round, members@delta are applied to the state in every page
+		Set<String> membershipChanged = new HashSet<>();
+		IGroupDeltaCollectionPage page = request.get();
+		while (true) {
+			GraphMetrics.recordPage();
+			page.getCurrentPage().forEach(group -> {
+				JsonObject rawObject = group.getRawObject();
+				removed.put(group.id, isRemoved(rawObject));
+				if (rawObject != null && rawObject.has(MEMBERS_DELTA)) {
+					membershipChanged.add(group.id);
+					applyMemberChanges(group.id, rawObject.getAsJsonArray(MEMBERS_DELTA), firstRound);
+				}
+			});
+			if (page.getNextPage() == null) {
+				break;
+			}
+			page = page.getNextPage().buildRequest().get();
+			LOG.info("Next page of delta loaded");
+		}
+
+		List<String> changedIds = removed.entrySet().stream()
+				.filter(entry -> !entry.getValue())
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+		LOG.info("{0} groups changed, membership changed for {1} groups", removed.size(), membershipChanged.size());
+
+		for (int i = 0; i < changedIds.size(); i += CHUNK_SIZE) {
+			List<String> chunk = changedIds.subList(i, Math.min(i + CHUNK_SIZE, changedIds.size()));
+			if (!handleGroupChunk(chunk, membershipChanged, firstRound, objectClass, startToken, handler)) {
+				LOG.info("Handler stopped the sync");
+				return;
+			}
+		}
+		for (Map.Entry<String, Boolean> entry : removed.entrySet()) {
+			if (entry.getValue()) {
+				LOG.info("Group {0} was removed", entry.getKey());
+				if (membershipState != null) {
+					membershipState.remove(entry.getKey());
+				}
+				SyncDeltaBuilder builder = new SyncDeltaBuilder();
+				builder.setToken(startToken);
+				builder.setObjectClass(objectClass);
+				builder.setDeltaType(SyncDeltaType.DELETE);
+				builder.setUid(new Uid(entry.getKey()));
+				if (!handler.handle(builder.build())) {
+					LOG.info("Handler stopped the sync");
+					return;
+				}
+			}
+		}
+
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(new SyncToken(page.deltaLink()));
+		}
+	}
+
+	/**
+	 * Apply records of members@delta to members of group in the state. Group which is not in the state is skipped
+	 * in next rounds, its members will be loaded.
+	 */
+	private void applyMemberChanges(String groupId, JsonArray changes, boolean firstRound) {
+		if (membershipState == null) {
+			return;
+		}
+		Map<String, Boolean> members = membershipState.get(groupId);
+		if (members == null) {
+			if (!firstRound) {
+				return;
+			}
+			members = new HashMap<>();
+		}
+		for (JsonElement change : changes) {
+			JsonObject record = change.getAsJsonObject();
+			String id = record.get("id").getAsString();
+			if (isRemoved(record)) {
+				members.remove(id);
+			} else {
+				members.put(id, MembershipLoader.isUser(record));
+			}
+		}
+		membershipState.put(groupId, members);
+	}
+
+	/**
+	 * Get token which represents current state of groups
+	 *
+	 * @return sync token
+	 */
+	public SyncToken getLatestGroupToken() {
+		// Next sync starts from this point, so members from previous sync would not match it
+		if (membershipState != null) {
+			membershipState.clear();
+		}
+		IGroupDeltaCollectionPage page = graphClient.groups().delta()
+				.buildRequest(Collections.singletonList(new QueryOption("$deltatoken", "latest")))
+				.select(getGroupDeltaSelect())
+				.get();
+		while (page.deltaLink() == null && page.getNextPage() != null) {
+			page = page.getNextPage().buildRequest().get();
+		}
+		return new SyncToken(page.deltaLink());
+	}
+
+	/**
+	 * Members must be always selected in delta otherwise Graph API will not track changes of membership
+	 */
+	private String getGroupDeltaSelect() {
+		String select = projection.getGroupSelect() == null
+				? projection.getSchema().getGroupSelect()
+				: projection.getGroupSelect();
+		return select + "," + ProjectionPlan.MEMBERS;
+	}
+
+	/**
+	 * Groups and their memberships are removed from maps once they are converted, so SDK objects are not kept
+	 * while the handler processes the rest of the chunk
+	 */
+	private boolean handleGroupChunk(List<String> ids, Set<String> membershipChanged, boolean firstRound,
+									 ObjectClass objectClass, SyncToken token, SyncResultsHandler handler) {
+		Map<String, Group> groups = searchOperation.getGroups(ids);
+		Map<String, MembershipLoader.Membership> memberships = loadMemberships(groups.values(), membershipChanged, firstRound);
+
+		for (String id : ids) {
+			Group group = groups.remove(id);
+			MembershipLoader.Membership membership = memberships.remove(id);
+			if (group == null) {
+				// Group was removed between delta and our request, it will be returned as removed in next sync
+				continue;
+			}
+			SyncDeltaBuilder builder = new SyncDeltaBuilder();
+			builder.setToken(token);
+			builder.setObjectClass(objectClass);
+			builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+			builder.setObject(Utils.handleGroup(group, objectClass, membership, projection));
+			if (!handler.handle(builder.build())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Members are taken from the state, their names are resolved via index of members. Groups which are not
+	 * in the state are loaded again, groups in the first round without members@delta have no members. Delta doesn't
+	 * track owners, so they are always loaded.
+	 */
+	private Map<String, MembershipLoader.Membership> loadMemberships(Collection<Group> groups, Set<String> membershipChanged,
+																	  boolean firstRound) {
+		if (!projection.isLoadMembers()) {
+			return membershipLoader.loadGroups(new ArrayList<>(groups), false, projection.isLoadOwners());
+		}
+		List<Group> reloaded = new ArrayList<>();
+		List<Group> other = new ArrayList<>();
+		// Key is id of group, value are members by their ids, true for users
+		Map<String, Map<String, Boolean>> members = new HashMap<>();
+		Map<String, Boolean> allMembers = new HashMap<>();
+		for (Group group : groups) {
+			Map<String, Boolean> current = membershipState == null ? null : membershipState.get(group.id);
+			if (current == null && firstRound && !membershipChanged.contains(group.id)) {
+				current = new HashMap<>();
+				if (membershipState != null) {
+					membershipState.put(group.id, current);
+				}
+			}
+			if (current == null) {
+				// Without state all members must be loaded, members@delta contains only changes since previous sync
+				reloaded.add(group);
+				continue;
+			}
+			members.put(group.id, current);
+			allMembers.putAll(current);
+			other.add(group);
+		}
+		LOG.info("Members of {0} groups are taken from state, {1} groups are not known and their members will be loaded",
+				members.size(), reloaded.size());
+
+		Map<String, String> names = membershipLoader.resolveMemberNames(allMembers);
+		Map<String, MembershipLoader.Membership> memberships = new HashMap<>();
+		membershipLoader.loadGroups(reloaded, true, projection.isLoadOwners()).forEach((id, membership) -> {
+			if (membershipState != null) {
+				Map<String, Boolean> loaded = new HashMap<>();
+				// Only users have name different from id
+				membership.getMemberIds().forEach((name, memberId) -> loaded.put(memberId, !name.equals(memberId)));
+				membershipState.put(id, loaded);
+			}
+			memberships.put(id, membership);
+		});
+		membershipLoader.loadGroups(other, false, projection.isLoadOwners()).forEach((id, owners) -> {
+			Map<String, Boolean> current = members.remove(id);
+			if (current == null) {
+				memberships.put(id, owners);
+				return;
+			}
+			Map<String, String> memberIds = new HashMap<>();
+			current.keySet().forEach(memberId -> memberIds.put(names.getOrDefault(memberId, memberId), memberId));
+			memberships.put(id, new MembershipLoader.Membership(new ArrayList<>(memberIds.keySet()), owners.getOwners(),
+					memberIds, owners.getOwnerIds()));
+		});
+		return memberships;
+	}
+
+	/**
+	 * @param page       users from one page of delta
+	 * @param firstRound true if users contain all selected attributes, so they don't need to be loaded again
+	 */
+	private boolean handleUserPage(List<User> page, boolean firstRound, ObjectClass objectClass, SyncToken token, SyncResultsHandler handler) {
+		// Delta can return the same user more than once, the last record is the current one
+		Map<String, User> unique = new LinkedHashMap<>();
+		page.forEach(user -> unique.put(user.id, user));
+		List<User> changes = new ArrayList<>(unique.values());
+
+		List<String> changedIds = new ArrayList<>();
+		changes.stream()
+				.filter(user -> !isRemoved(user.getRawObject()))
+				.forEach(user -> changedIds.add(user.id));
+		Map<String, User> changedUsers = firstRound || changedIds.isEmpty() ? new HashMap<>() : searchOperation.getUsers(changedIds);
+		if (firstRound) {
+			changes.stream()
+					.filter(user -> !isRemoved(user.getRawObject()))
+					.forEach(user -> changedUsers.put(user.id, user));
+		}
+		Map<String, String> removedUids = getRemovedUserUids(changes);
+
+		for (User change : changes) {
+			SyncDeltaBuilder builder = new SyncDeltaBuilder();
+			builder.setToken(token);
+			builder.setObjectClass(objectClass);
+			if (isRemoved(change.getRawObject())) {
+				String uid = removedUids.get(change.id);
+				if (uid == null) {
+					// Object id would never match UID of account in IdM, so such delete can't be processed
+					LOG.warn("User {0} was removed, but its userPrincipalName can not be found, change is skipped", change.id);
+					continue;
+				}
+				LOG.info("User {0} was removed", uid);
+				builder.setDeltaType(SyncDeltaType.DELETE);
+				builder.setUid(new Uid(uid));
+			} else {
+				// User is removed from map once it's converted, so it's not kept while the rest of page is handled
+				User user = changedUsers.remove(change.id);
+				if (user == null) {
+					// User was removed between delta and our request, it will be returned as removed in next sync
+					continue;
+				}
+				if (memberIndex != null) {
+					memberIndex.put(user.id, user.userPrincipalName);
+				}
+				builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+				builder.setObject(Utils.handleUser(user, objectClass, projection));
+			}
+			if (!handler.handle(builder.build())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delta returns only id of removed user. UserPrincipalName is taken from index of members, other users
+	 * are loaded from deleted items via $batch.
+	 *
+	 * @return userPrincipalNames of removed users, key is object id
+	 */
+	private Map<String, String> getRemovedUserUids(List<User> changes) {
+		Map<String, String> uids = new HashMap<>();
+		List<String> unknown = new ArrayList<>();
+		changes.stream()
+				.filter(change -> isRemoved(change.getRawObject()))
+				.forEach(change -> {
+					String userPrincipalName = StringUtils.isNotBlank(change.userPrincipalName) ? change.userPrincipalName
+							: memberIndex == null ? null : memberIndex.get(change.id);
+					if (userPrincipalName == null) {
+						unknown.add(change.id);
+					} else {
+						uids.put(change.id, userPrincipalName);
+					}
+				});
+		if (!unknown.isEmpty()) {
+			uids.putAll(searchOperation.getDeletedUserPrincipalNames(unknown));
+		}
+		return uids;
+	}
+
+	private boolean isRemoved(JsonObject rawObject) {
+		return rawObject != null && rawObject.has(REMOVED);
+	}
+}
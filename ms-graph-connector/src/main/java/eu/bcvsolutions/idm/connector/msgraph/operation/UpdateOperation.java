@@ -3,20 +3,40 @@ package eu.bcvsolutions.idm.connector.msgraph.operation;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributesAccessor;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.Uid;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.Group;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.User;
 
 import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.AttributeMapper;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchExecutor;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchResponse;
+import eu.bcvsolutions.idm.connector.msgraph.util.BatchStep;
 import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.MemberIndex;
+import eu.bcvsolutions.idm.connector.msgraph.util.MembershipLoader;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
 import eu.bcvsolutions.idm.connector.msgraph.util.Utils;
 
 /**
@@ -27,14 +47,31 @@ public class UpdateOperation {
 
 	private static final Log LOG = Log.getLog(UpdateOperation.class);
 
+	// Max number of members in one members@odata.bind request
+	private static final int BIND_CHUNK_SIZE = 20;
+	private static final String ADD_MEMBERS = "add_members_";
+	private static final String REMOVE_MEMBER = "remove_member_";
+	private static final String REMOVE_OWNER = "remove_owner_";
+	private static final String ADD_REFERENCE = "add_";
+	private static final String GET_REFERENCE = "get_";
+	// Graph API returns this code for reference which already exists, but also for other invalid requests
+	private static final String BAD_REQUEST = "Request_BadRequest";
+
 	private final IGraphServiceClient graphClient;
 	private final GuardedStringAccessor guardedStringAccessor;
 	private final GraphConfiguration graphConfiguration;
+	private final SchemaService schema;
+	private final MembershipLoader membershipLoader;
+	private final BatchExecutor batchExecutor;
 
-	public UpdateOperation(IGraphServiceClient graphClient, GuardedStringAccessor guardedStringAccessor, GraphConfiguration graphConfiguration) {
+	public UpdateOperation(IGraphServiceClient graphClient, GuardedStringAccessor guardedStringAccessor, GraphConfiguration graphConfiguration,
+						   SchemaService schema, MemberIndex memberIndex) {
 		this.graphClient = graphClient;
 		this.guardedStringAccessor = guardedStringAccessor;
 		this.graphConfiguration = graphConfiguration;
+		this.schema = schema;
+		this.membershipLoader = new MembershipLoader(graphClient, memberIndex);
+		this.batchExecutor = new BatchExecutor(graphClient);
 	}
 
 	/**
@@ -45,7 +82,7 @@ public class UpdateOperation {
 	 */
 	public User updateUser(final Set<Attribute> updateAttributes, Uid uid) {
 		AttributesAccessor attributesAccessor = new AttributesAccessor(updateAttributes);
-		User user = Utils.prepareUserObject(attributesAccessor, guardedStringAccessor);
+		User user = Utils.prepareUserObject(attributesAccessor, guardedStringAccessor, schema);
 		if (graphConfiguration.isDisablePasswordChangeAfterFirstLogin() && user.passwordProfile != null) {
 			LOG.info("Disable of password change after first login for password change operation is enable in connector configuration.");
 			user.passwordProfile.forceChangePasswordNextSignIn = false;
@@ -68,15 +105,203 @@ public class UpdateOperation {
 	}
 
 	/**
-	 * Update specific group
+	 * Update specific group. Members and owners are compared with the current state and only differences are sent.
+	 * New members are added via members@odata.bind in chunks, other changes of membership are sent via $batch.
 	 *
 	 * @param updateAttributes Set of attributes which should be updated
 	 * @param uid              Group identification
 	 */
 	public void updateGroup(Set<Attribute> updateAttributes, Uid uid) {
-		// TODO implement
-		throw new UnsupportedOperationException("Not implemented yet");
-//		Group group = new Group();
-//		graphClient.groups(uid.getUidValue()).buildRequest().patch(group);
+		String groupId = uid.getUidValue();
+		Set<Attribute> groupAttributes = updateAttributes.stream()
+				.filter(attribute -> !attribute.is(ProjectionPlan.MEMBERS) && !attribute.is(ProjectionPlan.OWNERS)
+						&& !attribute.is(Uid.NAME) && !attribute.is(Name.NAME))
+				.collect(Collectors.toSet());
+		if (!groupAttributes.isEmpty()) {
+			Group group = new Group();
+			AttributesAccessor basicAttributes = schema.getGroupExtensions().setAttributes(group, new AttributesAccessor(groupAttributes));
+			AttributeMapper.forClass(Group.class).setAttributes(group, basicAttributes);
+			graphClient.groups(groupId).buildRequest().patch(group);
+			LOG.info("Group {0} updated", groupId);
+		}
+
+		AttributesAccessor attributesAccessor = new AttributesAccessor(updateAttributes);
+		Attribute members = attributesAccessor.find(ProjectionPlan.MEMBERS);
+		Attribute owners = attributesAccessor.find(ProjectionPlan.OWNERS);
+		if (members == null && owners == null) {
+			return;
+		}
+
+		Group group = new Group();
+		group.id = groupId;
+		MembershipLoader.Membership membership = membershipLoader.loadGroups(Collections.singletonList(group),
+				members != null, owners != null).get(groupId);
+		if (members != null) {
+			updateMembers(groupId, toNames(members), membership.getMemberIds());
+		}
+		if (owners != null) {
+			updateOwners(groupId, toNames(owners), membership.getOwnerIds());
+		}
+	}
+
+	private void updateMembers(String groupId, Set<String> requested, Map<String, String> current) {
+		Map<String, String> resolved = resolveNotCurrent(requested, current);
+		Map<String, String> added = getAdded(resolved, current);
+		List<String> removed = getRemoved(requested, current, resolved);
+		LOG.info("Adding {0} and removing {1} members of group {2}", added.size(), removed.size(), groupId);
+
+		List<BatchStep> steps = new ArrayList<>();
+		// Graph API accepts max 20 members in one request
+		List<String> addedIds = new ArrayList<>(added.values());
+		List<List<String>> chunks = new ArrayList<>();
+		for (int i = 0; i < addedIds.size(); i += BIND_CHUNK_SIZE) {
+			chunks.add(addedIds.subList(i, Math.min(i + BIND_CHUNK_SIZE, addedIds.size())));
+		}
+		for (int i = 0; i < chunks.size(); i++) {
+			JsonArray bind = new JsonArray();
+			chunks.get(i).forEach(id -> bind.add(getDirectoryObjectUrl(id)));
+			JsonObject body = new JsonObject();
+			body.add("members@odata.bind", bind);
+			steps.add(new BatchStep(ADD_MEMBERS + i, "PATCH", "/groups/" + groupId, body));
+		}
+		removed.forEach(id -> steps.add(new BatchStep(REMOVE_MEMBER + id, "DELETE", "/groups/" + groupId + "/members/" + id + "/$ref", null)));
+		Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+
+		for (int i = 0; i < chunks.size(); i++) {
+			BatchResponse response = responses.get(ADD_MEMBERS + i);
+			if (isBadRequest(response)) {
+				// Some member could be added in the meantime, the whole chunk is rejected, so we add members one by one
+				LOG.info("Chunk {0} of members of group {1} was rejected, members will be added one by one", i, groupId);
+				addReferences(groupId, "members", chunks.get(i));
+			} else {
+				response.checkSuccess();
+			}
+		}
+		checkRemoved(removed, REMOVE_MEMBER, responses);
+	}
+
+	private void updateOwners(String groupId, Set<String> requested, Map<String, String> current) {
+		Map<String, String> resolved = resolveNotCurrent(requested, current);
+		Map<String, String> added = getAdded(resolved, current);
+		List<String> removed = getRemoved(requested, current, resolved);
+		LOG.info("Adding {0} and removing {1} owners of group {2}", added.size(), removed.size(), groupId);
+
+		// Owners can't be bound via PATCH, so they are added one by one in $batch. New owners are added first,
+		// because Graph API doesn't allow to remove the last owner
+		addReferences(groupId, "owners", new ArrayList<>(added.values()));
+		List<BatchStep> steps = new ArrayList<>();
+		removed.forEach(id -> steps.add(new BatchStep(REMOVE_OWNER + id, "DELETE", "/groups/" + groupId + "/owners/" + id + "/$ref", null)));
+		checkRemoved(removed, REMOVE_OWNER, batchExecutor.execute(steps));
+	}
+
+	/**
+	 * Add references to members or owners one by one via $batch. References which already exist are ignored,
+	 * rejected references are read from the group, so we know if they exist or the request was invalid.
+	 */
+	private void addReferences(String groupId, String relation, List<String> ids) {
+		List<BatchStep> steps = new ArrayList<>();
+		ids.forEach(id -> {
+			JsonObject body = new JsonObject();
+			body.addProperty("@odata.id", getDirectoryObjectUrl(id));
+			steps.add(new BatchStep(ADD_REFERENCE + id, "POST", "/groups/" + groupId + "/" + relation + "/$ref", body));
+		});
+		Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+		List<String> rejected = new ArrayList<>();
+		ids.forEach(id -> {
+			BatchResponse response = responses.get(ADD_REFERENCE + id);
+			if (isBadRequest(response)) {
+				rejected.add(id);
+			} else {
+				response.checkSuccess();
+			}
+		});
+		if (rejected.isEmpty()) {
+			return;
+		}
+
+		List<BatchStep> checks = new ArrayList<>();
+		rejected.forEach(id -> checks.add(BatchStep.get(GET_REFERENCE + id, "/groups/" + groupId + "/" + relation + "/" + id + "?$select=id")));
+		Map<String, BatchResponse> existing = batchExecutor.execute(checks);
+		rejected.forEach(id -> {
+			if (existing.get(GET_REFERENCE + id).getStatus() == 404) {
+				responses.get(ADD_REFERENCE + id).checkSuccess();
+			}
+			existing.get(GET_REFERENCE + id).checkSuccess();
+			LOG.info("Reference {0} already exists in {1} of group {2}", id, relation, groupId);
+		});
+	}
+
+	/**
+	 * Member which was already removed (404) is not an error
+	 */
+	private void checkRemoved(List<String> ids, String prefix, Map<String, BatchResponse> responses) {
+		ids.forEach(id -> {
+			BatchResponse response = responses.get(prefix + id);
+			if (response.getStatus() != 404) {
+				response.checkSuccess();
+			}
+		});
+	}
+
+	private static boolean isBadRequest(BatchResponse response) {
+		return response.getStatus() == 400 && BAD_REQUEST.equals(response.getErrorCode());
+	}
+
+	private String getDirectoryObjectUrl(String id) {
+		return graphClient.getServiceRoot() + "/directoryObjects/" + id;
+	}
+
+	/**
+	 * Member can be requested by id or by another name than the current one (e.g. renamed user), so requested names
+	 * which are not current are resolved to ids and the diff is made by ids.
+	 *
+	 * @return ids of requested names which are not current, key is the name of member
+	 */
+	private Map<String, String> resolveNotCurrent(Set<String> requested, Map<String, String> current) {
+		Set<String> currentNames = toLowerCase(current.keySet());
+		return membershipLoader.resolveIds(requested.stream()
+				.filter(name -> !currentNames.contains(name.toLowerCase()))
+				.collect(Collectors.toList()));
+	}
+
+	/**
+	 * @return ids of members which should be added, key is the name of member
+	 */
+	private static Map<String, String> getAdded(Map<String, String> resolved, Map<String, String> current) {
+		Set<String> currentIds = toLowerCase(current.values());
+		return resolved.entrySet().stream()
+				.filter(entry -> !currentIds.contains(entry.getValue().toLowerCase()))
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (first, second) -> first, LinkedHashMap::new));
+	}
+
+	/**
+	 * @return ids of members which should be removed, member whose name is not requested but whose id is resolved
+	 * from another requested name stays in group
+	 */
+	private static List<String> getRemoved(Set<String> requested, Map<String, String> current, Map<String, String> resolved) {
+		Set<String> requestedNames = toLowerCase(requested);
+		Set<String> resolvedIds = toLowerCase(resolved.values());
+		return current.entrySet().stream()
+				.filter(entry -> !requestedNames.contains(entry.getKey().toLowerCase()))
+				.map(Map.Entry::getValue)
+				.filter(id -> !resolvedIds.contains(id.toLowerCase()))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * userPrincipalName is not case sensitive, so names are compared in lower case
+	 */
+	private static Set<String> toLowerCase(Collection<String> names) {
+		return names.stream().map(String::toLowerCase).collect(Collectors.toSet());
+	}
+
+	private static Set<String> toNames(Attribute attribute) {
+		if (attribute.getValue() == null) {
+			return Collections.emptySet();
+		}
+		return attribute.getValue().stream()
+				.filter(Objects::nonNull)
+				.map(Object::toString)
+				.collect(Collectors.toCollection(LinkedHashSet::new));
 	}
 }
@@ -0,0 +1,263 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.auth.AuthConstants;
+import com.microsoft.graph.auth.BaseAuthentication;
+import com.microsoft.graph.auth.enums.NationalCloud;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.httpcore.ICoreAuthenticationProvider;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import okhttp3.FormBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Cache of access token for client credentials flow. One cache is shared by all Graph clients for the same tenant and
+ * client ID. Token is refreshed in background thread before it expires, so requests to Graph API don't wait for
+ * OAuth round trip. If token is needed and it's not valid (e.g. first request), all threads wait for one token request.
+ */
+// IAuthenticationProvider is deprecated, but GraphServiceClient of SDK 2.x still accepts only this interface,
+// it is not imported, because import of deprecated type is reported by Java 8 even with SuppressWarnings
+@SuppressWarnings("deprecation")
+public class AccessTokenCache implements com.microsoft.graph.authentication.IAuthenticationProvider, ICoreAuthenticationProvider {
+
+	private static final Log LOG = Log.getLog(AccessTokenCache.class);
+
+	// Token is not used if it expires in less than this time, it can expire during the request
+	private static final long EXPIRY_MARGIN = TimeUnit.SECONDS.toMillis(60);
+	// Background refresh starts this time before the token expires
+	private static final long REFRESH_BEFORE_EXPIRY = TimeUnit.MINUTES.toMillis(5);
+	private static final long REFRESH_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+	private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "graph-token-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Guarded by itself
+	private static final Map<String, AccessTokenCache> CACHES = new HashMap<>();
+
+	private final String key;
+	private final String tokenUrl;
+	private final String clientId;
+	private final String scopes;
+	private final GuardedString clientSecret;
+	private final OkHttpClient httpClient;
+
+	private volatile Token token;
+	// Guarded by this
+	private CompletableFuture<Token> pendingRequest;
+	private ScheduledFuture<?> scheduledRefresh;
+	// Guarded by CACHES
+	private int references;
+
+	private AccessTokenCache(String key, GraphConfiguration configuration, OkHttpClient httpClient) {
+		NationalCloud nationalCloud;
+		try {
+			nationalCloud = NationalCloud.valueOf(configuration.getNationalCloud());
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw new ConnectorException("Unknown national cloud " + configuration.getNationalCloud(), e);
+		}
+		this.key = key;
+		this.tokenUrl = Authority.get(nationalCloud, configuration.getTenant()) + AuthConstants.TOKEN_ENDPOINT;
+		this.clientId = configuration.getClientId();
+		this.scopes = StringUtils.join(configuration.getScopes(), ' ');
+		this.clientSecret = configuration.getClientSecret().copy();
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * Get cache for tenant and client ID from configuration. Every call must be paired with {@link #release()}
+	 *
+	 * @param key           identification of tenant, client and secret
+	 * @param configuration configuration of connector
+	 * @param httpClient    client which is used for token requests, it should contain proxy settings
+	 * @return token cache
+	 */
+	public static AccessTokenCache acquire(String key, GraphConfiguration configuration, OkHttpClient httpClient) {
+		synchronized (CACHES) {
+			AccessTokenCache cache = CACHES.get(key);
+			if (cache == null) {
+				cache = new AccessTokenCache(key, configuration, httpClient);
+				CACHES.put(key, cache);
+				// Token is requested in advance, so the first operation doesn't need to wait for it
+				cache.requestToken();
+			}
+			cache.references++;
+			return cache;
+		}
+	}
+
+	/**
+	 * Release cache. When nobody uses the cache anymore, background refresh is stopped
+	 */
+	public void release() {
+		synchronized (CACHES) {
+			if (--references > 0) {
+				return;
+			}
+			CACHES.remove(key);
+		}
+		synchronized (this) {
+			if (scheduledRefresh != null) {
+				scheduledRefresh.cancel(false);
+				scheduledRefresh = null;
+			}
+		}
+		clientSecret.dispose();
+	}
+
+	@Override
+	public void authenticateRequest(IHttpRequest request) {
+		request.addHeader("Authorization", "Bearer " + getAccessToken());
+	}
+
+	@Override
+	public Request authenticateRequest(Request request) {
+		return request.newBuilder()
+				.addHeader("Authorization", "Bearer " + getAccessToken())
+				.build();
+	}
+
+	/**
+	 * Get valid access token. Cached token is returned if it's valid, otherwise we wait for new token
+	 *
+	 * @return access token
+	 */
+	public String getAccessToken() {
+		Token current = token;
+		if (current != null && current.isValid(EXPIRY_MARGIN)) {
+			return current.value;
+		}
+		try {
+			return requestToken().join().value;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ConnectorException("Access token can't be obtained", e.getCause());
+		}
+	}
+
+	/**
+	 * Start new token request or join the one which is in progress
+	 *
+	 * @return future with new token
+	 */
+	private synchronized CompletableFuture<Token> requestToken() {
+		if (pendingRequest != null) {
+			return pendingRequest;
+		}
+		CompletableFuture<Token> request = new CompletableFuture<>();
+		pendingRequest = request;
+		// Request is executed by the first thread which needs the token, other threads just wait for the result
+		REFRESHER.execute(() -> {
+			try {
+				Token newToken = fetchToken();
+				token = newToken;
+				request.complete(newToken);
+				scheduleRefresh(newToken.expiresAt - REFRESH_BEFORE_EXPIRY - System.currentTimeMillis());
+			} catch (RuntimeException e) {
+				LOG.error("Access token can't be obtained", e);
+				request.completeExceptionally(e);
+				scheduleRefresh(REFRESH_RETRY_DELAY);
+			} finally {
+				synchronized (this) {
+					pendingRequest = null;
+				}
+			}
+		});
+		return request;
+	}
+
+	private synchronized void scheduleRefresh(long delay) {
+		synchronized (CACHES) {
+			if (references <= 0) {
+				// Cache was released, nobody needs the token anymore
+				return;
+			}
+		}
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false);
+		}
+		scheduledRefresh = REFRESHER.schedule(this::requestToken, Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private Token fetchToken() {
+		GuardedStringAccessor guardedStringAccessor = new GuardedStringAccessor();
+		clientSecret.access(guardedStringAccessor);
+		FormBody body = new FormBody.Builder()
+				.add("grant_type", "client_credentials")
+				.add("client_id", clientId)
+				.add("client_secret", new String(guardedStringAccessor.getArray()))
+				.add("scope", scopes)
+				.build();
+		guardedStringAccessor.clearArray();
+
+		LOG.info("Requesting new access token for client {0}", clientId);
+		long requestStart = System.currentTimeMillis();
+		Request request = new Request.Builder().url(tokenUrl).post(body).build();
+		try (Response response = httpClient.newCall(request).execute()) {
+			String content = response.body() == null ? "" : response.body().string();
+			if (!response.isSuccessful()) {
+				throw new ConnectorException("Access token request failed with status " + response.code() + ": " + content);
+			}
+			JsonObject json = JsonParser.parseString(content).getAsJsonObject();
+			// Expiration is counted from the start of the request, so we are never late
+			long expiresAt = requestStart + TimeUnit.SECONDS.toMillis(json.get("expires_in").getAsLong());
+			return new Token(json.get("access_token").getAsString(), expiresAt);
+		} catch (IOException e) {
+			throw new ConnectorException("Access token request failed", e);
+		}
+	}
+
+	private static class Token {
+		private final String value;
+		private final long expiresAt;
+
+		private Token(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isValid(long margin) {
+			return System.currentTimeMillis() + margin < expiresAt;
+		}
+	}
+
+	/**
+	 * Authorities of national clouds are known only to authentication providers of Graph SDK, this class is never
+	 * instantiated, it only gives access to them
+	 */
+	private static final class Authority extends BaseAuthentication {
+
+		private Authority() {
+			super(null, null, null, null, null, null, null);
+		}
+
+		static String get(NationalCloud nationalCloud, String tenant) {
+			return GetAuthority(nationalCloud, tenant);
+		}
+	}
+}
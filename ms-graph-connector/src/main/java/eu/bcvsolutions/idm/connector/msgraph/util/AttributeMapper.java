@@ -0,0 +1,315 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributesAccessor;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.microsoft.graph.models.extensions.AssignedLicense;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Maps attributes between SDK objects (User, Group) and ConnId. Fields of class are inspected only once,
+ * the prepared mapper is cached and used for every object of the class, so there is no reflection per object.
+ * Attributes can be read from SDK objects or directly from JSON, see {@link StreamingObjectParser}. Values of low cardinality
+ * attributes and skuIds of licenses are shared via {@link ValueCanonicalizer}.
+ */
+public final class AttributeMapper {
+
+	private static final Log LOG = Log.getLog(AttributeMapper.class);
+
+	private static final Map<Class<?>, AttributeMapper> MAPPERS = new ConcurrentHashMap<>();
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final String ASSIGNED_LICENSES_TYPE = "java.util.List<com.microsoft.graph.models.extensions.AssignedLicense>";
+	// Attributes of users and groups which have only few distinct values in tenant, see ValueCanonicalizer
+	private static final Set<String> LOW_CARDINALITY_ATTRS = new HashSet<>(Arrays.asList("ageGroup", "classification",
+			"consentProvidedForMinor", "country", "creationType", "employeeType", "externalUserState", "legalAgeGroupClassification",
+			"membershipRuleProcessingState", "onPremisesDomainName", "onPremisesNetBiosName", "passwordPolicies", "preferredDataLocation",
+			"preferredLanguage", "theme", "usageLocation", "userType", "visibility"));
+
+	private final Mapping[] readMappings;
+	// Index of read mapping by name of attribute
+	private final Map<String, Integer> readIndexes;
+	private final Map<String, Mapping> writeMappings;
+
+	private AttributeMapper(Class<?> clazz) {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+		// We are reading only fields declared directly in the class, same fields are in schema
+		List<Mapping> read = new ArrayList<>();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (!Modifier.isPublic(field.getModifiers()) || Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+			Kind kind = kindOf(field);
+			if (kind == null) {
+				LOG.ok("Field {0} of type {1} not supported now", field.getName(), field.getType().getName());
+				continue;
+			}
+			read.add(new Mapping(field.getName(), kind, unreflectGetter(lookup, field), null));
+		}
+		this.readMappings = read.toArray(new Mapping[0]);
+		this.readIndexes = new HashMap<>();
+		for (int i = 0; i < readMappings.length; i++) {
+			readIndexes.put(readMappings[i].name, i);
+		}
+
+		// We can write all public fields including inherited ones
+		Map<String, Mapping> write = new HashMap<>();
+		for (Field field : clazz.getFields()) {
+			if (Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+			Kind kind = kindOf(field);
+			if (kind == null || kind == Kind.LICENSES) {
+				write.put(field.getName(), new Mapping(field.getName(), null, null, null));
+			} else {
+				write.put(field.getName(), new Mapping(field.getName(), kind, null, unreflectSetter(lookup, field)));
+			}
+		}
+		this.writeMappings = write;
+	}
+
+	/**
+	 * Get mapper for class. Mapper is prepared when it's used for the first time
+	 *
+	 * @param clazz class of SDK object
+	 * @return mapper
+	 */
+	public static AttributeMapper forClass(Class<?> clazz) {
+		return MAPPERS.computeIfAbsent(clazz, AttributeMapper::new);
+	}
+
+	/**
+	 * Add attributes of SDK object into Connector object
+	 *
+	 * @param object     User or Group object
+	 * @param builder    Connector object builder where the attributes will be added
+	 * @param projection only requested attributes will be added
+	 */
+	public void addAttributes(Object object, ConnectorObjectBuilder builder, ProjectionPlan projection) {
+		for (Mapping mapping : readMappings) {
+			if (!projection.isRequested(mapping.name)) {
+				continue;
+			}
+			Object value = get(mapping, object);
+			if (mapping.kind == Kind.LICENSES) {
+				addValue(mapping, value == null ? null : toSkuIds((List<AssignedLicense>) value), builder);
+			} else {
+				addValue(mapping, value, builder);
+			}
+		}
+	}
+
+	/**
+	 * Find attribute which can be read from JSON
+	 *
+	 * @param name name of property in JSON
+	 * @return index of attribute or -1 if the property is not an attribute
+	 */
+	public int indexOf(String name) {
+		Integer index = readIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Read value of attribute from JSON. Licenses are read as list of skuIds. Value of unexpected type is skipped.
+	 *
+	 * @param index  index of attribute, see {@link #indexOf(String)}
+	 * @param reader reader positioned at the value
+	 * @return value or null
+	 */
+	public Object readValue(int index, JsonReader reader) throws IOException {
+		Kind kind = readMappings[index].kind;
+		JsonToken token = reader.peek();
+		if (token == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		if (kind == Kind.STRING && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+			return reader.nextString();
+		} else if (kind == Kind.BOOLEAN && token == JsonToken.BOOLEAN) {
+			return reader.nextBoolean();
+		} else if (kind == Kind.INTEGER && token == JsonToken.NUMBER) {
+			return reader.nextInt();
+		} else if (kind == Kind.LICENSES && token == JsonToken.BEGIN_ARRAY) {
+			return readSkuIds(reader);
+		}
+		LOG.ok("Value of attribute {0} has unexpected type {1}", readMappings[index].name, token);
+		reader.skipValue();
+		return null;
+	}
+
+	/**
+	 * Add value which was read from JSON into Connector object
+	 *
+	 * @param index   index of attribute, see {@link #indexOf(String)}
+	 * @param value   value from {@link #readValue(int, JsonReader)}
+	 * @param builder Connector object builder where the attribute will be added
+	 */
+	public void addValue(int index, Object value, ConnectorObjectBuilder builder) {
+		addValue(readMappings[index], value, builder);
+	}
+
+	/**
+	 * Graph API doesn't return attributes without value, but SDK object has them as null fields. So attributes which
+	 * were not in JSON are added without value, the same as {@link #addAttributes(Object, ConnectorObjectBuilder, ProjectionPlan)} does.
+	 *
+	 * @param read       indexes of attributes which were read
+	 * @param builder    Connector object builder where the attributes will be added
+	 * @param projection only requested attributes will be added
+	 */
+	public void addMissingAttributes(BitSet read, ConnectorObjectBuilder builder, ProjectionPlan projection) {
+		for (int i = read.nextClearBit(0); i < readMappings.length; i = read.nextClearBit(i + 1)) {
+			if (projection.isRequested(readMappings[i].name)) {
+				addValue(readMappings[i], null, builder);
+			}
+		}
+	}
+
+	private static void addValue(Mapping mapping, Object value, ConnectorObjectBuilder builder) {
+		if (mapping.kind == Kind.LICENSES) {
+			if (value != null) {
+				builder.addAttribute(mapping.name, (List<?>) value);
+			}
+		} else if (mapping.canonical && value instanceof String) {
+			builder.addAttribute(mapping.name, ValueCanonicalizer.canonicalize((String) value));
+		} else {
+			builder.addAttribute(mapping.name, value);
+		}
+	}
+
+	/**
+	 * Set attributes which connector received into SDK object
+	 *
+	 * @param object             User or Group object
+	 * @param attributesAccessor accessor with attributes
+	 */
+	public void setAttributes(Object object, AttributesAccessor attributesAccessor) {
+		for (String attribute : attributesAccessor.listAttributeNames()) {
+			Mapping mapping = writeMappings.get(attribute);
+			if (mapping == null) {
+				LOG.info("Specific attribute {0} does not exist", attribute);
+			} else if (mapping.kind == Kind.STRING) {
+				set(mapping, object, attributesAccessor.findString(attribute));
+			} else if (mapping.kind == Kind.BOOLEAN) {
+				set(mapping, object, attributesAccessor.findBoolean(attribute));
+			} else if (mapping.kind == Kind.INTEGER) {
+				set(mapping, object, attributesAccessor.findInteger(attribute));
+			} else {
+				LOG.info("Type of attribute {0} is not supported now", attribute);
+			}
+		}
+	}
+
+	private static List<String> toSkuIds(List<AssignedLicense> licenses) {
+		List<String> skuIds = new ArrayList<>(licenses.size());
+		for (AssignedLicense license : licenses) {
+			skuIds.add(ValueCanonicalizer.canonicalize(license.skuId.toString()));
+		}
+		return skuIds;
+	}
+
+	private static List<String> readSkuIds(JsonReader reader) throws IOException {
+		List<String> skuIds = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("skuId".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					skuIds.add(ValueCanonicalizer.canonicalize(reader.nextString()));
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		reader.endArray();
+		return skuIds;
+	}
+
+	private static Object get(Mapping mapping, Object object) {
+		try {
+			return (Object) mapping.getter.invokeExact(object);
+		} catch (Throwable e) {
+			throw new ConnectorException("Error when getting field " + mapping.name, e);
+		}
+	}
+
+	private static void set(Mapping mapping, Object object, Object value) {
+		try {
+			mapping.setter.invokeExact(object, value);
+		} catch (Throwable e) {
+			throw new ConnectorException("Error when setting field " + mapping.name, e);
+		}
+	}
+
+	private static Kind kindOf(Field field) {
+		if (field.getType() == String.class) {
+			return Kind.STRING;
+		} else if (field.getType() == Boolean.class) {
+			return Kind.BOOLEAN;
+		} else if (field.getType() == Integer.class) {
+			return Kind.INTEGER;
+		} else if (ASSIGNED_LICENSES_TYPE.equals(field.getGenericType().getTypeName())) {
+			return Kind.LICENSES;
+		}
+		return null;
+	}
+
+	private static MethodHandle unreflectGetter(MethodHandles.Lookup lookup, Field field) {
+		try {
+			return lookup.unreflectGetter(field).asType(GETTER_TYPE);
+		} catch (IllegalAccessException e) {
+			throw new ConnectorException("Field " + field.getName() + " is not accessible", e);
+		}
+	}
+
+	private static MethodHandle unreflectSetter(MethodHandles.Lookup lookup, Field field) {
+		try {
+			return lookup.unreflectSetter(field).asType(SETTER_TYPE);
+		} catch (IllegalAccessException e) {
+			throw new ConnectorException("Field " + field.getName() + " is not accessible", e);
+		}
+	}
+
+	private enum Kind {
+		STRING, BOOLEAN, INTEGER, LICENSES
+	}
+
+	private static final class Mapping {
+		private final String name;
+		private final Kind kind;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		private final boolean canonical;
+
+		private Mapping(String name, Kind kind, MethodHandle getter, MethodHandle setter) {
+			this.name = name;
+			this.kind = kind;
+			this.getter = getter;
+			this.setter = setter;
+			this.canonical = kind == Kind.STRING && LOW_CARDINALITY_ATTRS.contains(name);
+		}
+	}
+}
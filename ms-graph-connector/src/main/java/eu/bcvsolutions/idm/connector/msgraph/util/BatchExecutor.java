@@ -0,0 +1,218 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Executes multiple independent requests via JSON $batch endpoint so we save round trips to Graph API.
+ * Steps are split into batches with max 20 requests, steps which depend on each other are always sent in the same batch.
+ * Steps which were throttled (429) or failed on 503/504 are sent again after the delay which Graph API wants.
+ * Steps which failed with 404 are sent again if {@link RetryPolicy} of the current operation allows it.
+ * Batch with only GET steps is marked as idempotent, so the whole batch is sent again after 5xx or network error.
+ */
+public class BatchExecutor {
+
+	private static final Log LOG = Log.getLog(BatchExecutor.class);
+
+	public static final int MAX_BATCH_SIZE = 20;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long DEFAULT_RETRY_DELAY = 1000;
+
+	private final IGraphServiceClient graphClient;
+
+	public BatchExecutor(IGraphServiceClient graphClient) {
+		this.graphClient = graphClient;
+	}
+
+	/**
+	 * Execute all steps
+	 *
+	 * @param steps steps which should be executed
+	 * @return responses for all steps, key is the identification of step
+	 */
+	public Map<String, BatchResponse> execute(List<BatchStep> steps) {
+		Map<String, BatchResponse> responses = new LinkedHashMap<>();
+		for (List<BatchStep> batch : split(steps)) {
+			executeBatch(batch, responses);
+		}
+		return responses;
+	}
+
+	/**
+	 * Split steps into batches. Steps which depend on each other must be sent in one batch
+	 *
+	 * @param steps all steps
+	 * @return list of batches
+	 */
+	private List<List<BatchStep>> split(List<BatchStep> steps) {
+		// Find chains of dependent steps
+		Map<String, List<BatchStep>> chainByStepId = new HashMap<>();
+		List<List<BatchStep>> chains = new ArrayList<>();
+		for (BatchStep step : steps) {
+			List<BatchStep> chain = null;
+			for (String dependency : step.getDependsOn()) {
+				List<BatchStep> dependencyChain = chainByStepId.get(dependency);
+				if (dependencyChain == null) {
+					throw new ConnectorException("Step " + step.getId() + " depends on unknown step " + dependency);
+				}
+				if (chain == null) {
+					chain = dependencyChain;
+				} else if (chain != dependencyChain) {
+					// Step depends on two chains, so we need to merge them
+					chain.addAll(dependencyChain);
+					chains.remove(dependencyChain);
+					for (BatchStep merged : dependencyChain) {
+						chainByStepId.put(merged.getId(), chain);
+					}
+				}
+			}
+			if (chain == null) {
+				chain = new ArrayList<>();
+				chains.add(chain);
+			}
+			chain.add(step);
+			chainByStepId.put(step.getId(), chain);
+		}
+
+		List<List<BatchStep>> batches = new ArrayList<>();
+		List<BatchStep> batch = new ArrayList<>();
+		for (List<BatchStep> chain : chains) {
+			if (chain.size() > MAX_BATCH_SIZE) {
+				throw new ConnectorException("Chain of dependent requests is longer than " + MAX_BATCH_SIZE);
+			}
+			if (batch.size() + chain.size() > MAX_BATCH_SIZE) {
+				batches.add(batch);
+				batch = new ArrayList<>();
+			}
+			batch.addAll(chain);
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	private void executeBatch(List<BatchStep> batch, Map<String, BatchResponse> responses) {
+		List<BatchStep> pending = batch;
+		for (int attempt = 1; ; attempt++) {
+			Map<String, BatchResponse> result = send(pending);
+
+			List<BatchStep> retry = new ArrayList<>();
+			Set<String> retryIds = new HashSet<>();
+			long delay = 0;
+			for (BatchStep step : pending) {
+				BatchResponse response = result.get(step.getId());
+				if (response == null) {
+					response = new BatchResponse(step.getId(), 500, null, null);
+				}
+				GraphMetrics.recordBatchStatus(response.getStatus());
+				boolean dependencyRetried = response.getStatus() == 424 && step.getDependsOn().stream().anyMatch(retryIds::contains);
+				if (dependencyRetried) {
+					// Step was not executed, it must be sent together with its dependency however many attempts the dependency has
+					retry.add(step);
+					retryIds.add(step.getId());
+				} else if (attempt < MAX_ATTEMPTS && isRetryable(step, response)) {
+					retry.add(step);
+					retryIds.add(step.getId());
+					delay = Math.max(delay, getRetryDelay(response, attempt));
+				} else if (response.getStatus() == 404 && RetryPolicy.current().shouldRetry(step.getMethod(), 404, attempt)) {
+					// Object created in the previous step or request is not visible in the whole directory yet
+					retry.add(step);
+					retryIds.add(step.getId());
+					delay = Math.max(delay, RetryPolicy.current().getDelay(attempt));
+				} else {
+					responses.put(step.getId(), response);
+				}
+			}
+
+			if (retry.isEmpty()) {
+				return;
+			}
+			LOG.info("{0} requests in batch will be sent again after {1} ms", retry.size(), delay);
+			sleep(delay);
+			pending = retry;
+		}
+	}
+
+	/**
+	 * Send one $batch request
+	 *
+	 * @param steps steps in this batch
+	 * @return responses, key is the identification of step
+	 */
+	private Map<String, BatchResponse> send(List<BatchStep> steps) {
+		Set<String> idsInBatch = steps.stream().map(BatchStep::getId).collect(Collectors.toSet());
+
+		JsonArray requests = new JsonArray();
+		steps.forEach(step -> requests.add(step.toJson(step.getDependsOn().stream()
+				.filter(idsInBatch::contains)
+				.collect(Collectors.toList()))));
+		JsonObject content = new JsonObject();
+		content.add("requests", requests);
+
+		// Batch is always POST, but it can be sent again when no step changes anything
+		List<Option> options = steps.stream().allMatch(step -> "GET".equals(step.getMethod()))
+				? Collections.singletonList(new HeaderOption(RetryInterceptor.IDEMPOTENT_HEADER, "true"))
+				: Collections.emptyList();
+		LOG.info("Sending batch with {0} requests", steps.size());
+		JsonObject response = graphClient.customRequest("/$batch")
+				.buildRequest(options)
+				.post(content);
+
+		Map<String, BatchResponse> responses = new HashMap<>();
+		if (response != null && response.has("responses")) {
+			for (JsonElement element : response.getAsJsonArray("responses")) {
+				BatchResponse batchResponse = BatchResponse.fromJson(element.getAsJsonObject());
+				responses.put(batchResponse.getId(), batchResponse);
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * Throttled requests were not processed so we can always send them again. For 503 and 504 we don't know if
+	 * the request was processed, so we will send again only requests which don't change anything.
+	 */
+	private boolean isRetryable(BatchStep step, BatchResponse response) {
+		if (response.getStatus() == 429) {
+			return true;
+		}
+		return (response.getStatus() == 503 || response.getStatus() == 504) && "GET".equals(step.getMethod());
+	}
+
+	private long getRetryDelay(BatchResponse response, int attempt) {
+		long retryAfter = ThrottlingInterceptor.getRetryAfter(response.getHeader("Retry-After"));
+		if (retryAfter >= 0) {
+			return retryAfter;
+		}
+		return DEFAULT_RETRY_DELAY * (1L << (attempt - 1));
+	}
+
+	private void sleep(long delay) {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Waiting for batch retry was interrupted", e);
+		}
+	}
+}
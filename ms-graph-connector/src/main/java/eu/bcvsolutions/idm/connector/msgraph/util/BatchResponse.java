@@ -0,0 +1,120 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.serializer.ISerializer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Response for one step of JSON $batch request
+ */
+public class BatchResponse {
+
+	private final String id;
+	private final int status;
+	private final Map<String, String> headers;
+	private final JsonElement body;
+
+	public BatchResponse(String id, int status, Map<String, String> headers, JsonElement body) {
+		this.id = id;
+		this.status = status;
+		this.headers = headers == null ? Collections.emptyMap() : headers;
+		this.body = body;
+	}
+
+	/**
+	 * Parse response from JSON which we got in $batch response
+	 *
+	 * @param json JSON of one response
+	 * @return response
+	 */
+	static BatchResponse fromJson(JsonObject json) {
+		Map<String, String> headers = new LinkedHashMap<>();
+		if (json.has("headers") && json.get("headers").isJsonObject()) {
+			json.getAsJsonObject("headers").entrySet().forEach(header -> headers.put(header.getKey(), header.getValue().getAsString()));
+		}
+		return new BatchResponse(json.get("id").getAsString(), json.get("status").getAsInt(), headers, json.get("body"));
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @param name header name, case insensitive
+	 * @return value of header or null
+	 */
+	public String getHeader(String name) {
+		return headers.entrySet().stream()
+				.filter(header -> header.getKey().equalsIgnoreCase(name))
+				.map(Map.Entry::getValue)
+				.findFirst()
+				.orElse(null);
+	}
+
+	public JsonElement getBody() {
+		return body;
+	}
+
+	/**
+	 * @return body as JSON object or null if body is missing
+	 */
+	public JsonObject getBodyAsObject() {
+		if (body == null || !body.isJsonObject()) {
+			return null;
+		}
+		return body.getAsJsonObject();
+	}
+
+	/**
+	 * @return code of error from body of response, null if there is no error
+	 */
+	public String getErrorCode() {
+		JsonObject object = getBodyAsObject();
+		if (object == null || !object.has("error") || !object.get("error").isJsonObject()) {
+			return null;
+		}
+		JsonElement code = object.getAsJsonObject("error").get("code");
+		return code == null || code.isJsonNull() ? null : code.getAsString();
+	}
+
+	public boolean isSuccess() {
+		return status >= 200 && status < 300;
+	}
+
+	/**
+	 * Deserialize body into SDK object
+	 *
+	 * @param clazz      class of SDK object
+	 * @param serializer serializer from Graph client
+	 * @return SDK object
+	 */
+	public <T> T getBodyAs(Class<T> clazz, ISerializer serializer) {
+		checkSuccess();
+		return serializer.deserializeObject(body.toString(), clazz);
+	}
+
+	/**
+	 * Throw exception if request was not successful
+	 */
+	public void checkSuccess() {
+		if (!isSuccess()) {
+			throw new ConnectorException("Request " + id + " in batch failed with status " + status + ": " + body);
+		}
+	}
+}
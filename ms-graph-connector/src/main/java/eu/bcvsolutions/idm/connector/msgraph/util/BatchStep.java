@@ -0,0 +1,110 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * One sub-request of JSON $batch request
+ */
+public class BatchStep {
+
+	private final String id;
+	private final String method;
+	private final String url;
+	private final JsonElement body;
+	private final List<String> dependsOn = new ArrayList<>();
+	private final Map<String, String> headers = new LinkedHashMap<>();
+
+	/**
+	 * @param id     identification of step, must be unique in one batch
+	 * @param method HTTP method
+	 * @param url    URL relative to service root e.g. /users/{id}
+	 * @param body   body of request, can be null
+	 */
+	public BatchStep(String id, String method, String url, JsonElement body) {
+		this.id = id;
+		this.method = method;
+		this.url = url;
+		this.body = body;
+		if (body != null) {
+			headers.put("Content-Type", "application/json");
+		}
+	}
+
+	public static BatchStep get(String id, String url) {
+		return new BatchStep(id, "GET", url, null);
+	}
+
+	/**
+	 * Step will be executed only after the given steps finished successfully
+	 *
+	 * @param ids identifications of steps
+	 * @return this step
+	 */
+	public BatchStep dependsOn(String... ids) {
+		for (String dependency : ids) {
+			dependsOn.add(dependency);
+		}
+		return this;
+	}
+
+	public BatchStep header(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public JsonElement getBody() {
+		return body;
+	}
+
+	public List<String> getDependsOn() {
+		return dependsOn;
+	}
+
+	/**
+	 * Convert step to JSON which is used in $batch request
+	 *
+	 * @param dependencies dependencies which are part of the same batch
+	 * @return JSON object
+	 */
+	JsonObject toJson(List<String> dependencies) {
+		JsonObject json = new JsonObject();
+		json.addProperty("id", id);
+		json.addProperty("method", method);
+		json.addProperty("url", url);
+		if (!headers.isEmpty()) {
+			JsonObject headersJson = new JsonObject();
+			headers.forEach(headersJson::addProperty);
+			json.add("headers", headersJson);
+		}
+		if (body != null) {
+			json.add("body", body);
+		}
+		if (!dependencies.isEmpty()) {
+			JsonArray dependsOnJson = new JsonArray();
+			dependencies.forEach(dependsOnJson::add);
+			json.add("dependsOn", dependsOnJson);
+		}
+		return json;
+	}
+}
@@ -0,0 +1,87 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Statistics of requests to one endpoint of Graph API. Latency is time until headers of response are received.
+ */
+public class EndpointStatistics {
+
+	// Upper bounds of latency histogram buckets in milliseconds, the last bucket is for slower requests
+	static final long[] LATENCY_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder totalLatency = new LongAdder();
+	private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+	private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+	void record(int status, long latency) {
+		count.increment();
+		if (status == 429) {
+			throttled.increment();
+		} else if (status >= 500) {
+			serverErrors.increment();
+		}
+		totalLatency.add(latency);
+		maxLatency.accumulate(latency);
+		int bucket = 0;
+		while (bucket < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[bucket]) {
+			bucket++;
+		}
+		histogram.incrementAndGet(bucket);
+	}
+
+	void addBytes(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	public long getServerErrors() {
+		return serverErrors.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getAverageLatency() {
+		long requests = count.sum();
+		return requests == 0 ? 0 : totalLatency.sum() / requests;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/**
+	 * @return upper bounds of histogram buckets in milliseconds
+	 */
+	public long[] getLatencyBounds() {
+		return LATENCY_BOUNDS.clone();
+	}
+
+	/**
+	 * @return number of requests in every bucket, the last one is for requests slower than the last bound
+	 */
+	public long[] getLatencyHistogram() {
+		long[] values = new long[histogram.length()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = histogram.get(i);
+		}
+		return values;
+	}
+}
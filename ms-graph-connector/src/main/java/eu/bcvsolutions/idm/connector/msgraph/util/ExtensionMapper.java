@@ -0,0 +1,383 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
+import org.identityconnectors.framework.common.objects.AttributesAccessor;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.microsoft.graph.models.extensions.Entity;
+import com.microsoft.graph.models.extensions.OnPremisesExtensionAttributes;
+import com.microsoft.graph.models.extensions.User;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Maps attributes which are not fields of SDK objects: extensionAttribute1-15 of users, which Graph API returns
+ * in complex property onPremisesExtensionAttributes and which are flattened into separate attributes, and directory
+ * schema extensions (extension_{appId}_{name}) registered in tenant. Mapper is prepared by {@link SchemaService}
+ * together with schema, so the same attributes are in schema, in $select and in returned objects.
+ */
+public final class ExtensionMapper {
+
+	private static final Log LOG = Log.getLog(ExtensionMapper.class);
+
+	public static final String ON_PREMISES_EXTENSION_ATTRIBUTES = "onPremisesExtensionAttributes";
+	private static final String ON_PREMISES_ATTRIBUTE_PREFIX = "extensionAttribute";
+	private static final int ON_PREMISES_ATTRIBUTE_COUNT = 15;
+
+	// Fields of OnPremisesExtensionAttributes by name of flattened attribute
+	private static final Map<String, Field> ON_PREMISES_FIELDS = getOnPremisesFields();
+
+	private final boolean onPremisesAttributes;
+	private final Map<String, DirectoryExtension> directoryExtensions;
+	private final List<String> attributeNames;
+
+	/**
+	 * @param onPremisesAttributes true if object has onPremisesExtensionAttributes (users)
+	 * @param directoryExtensions  directory extensions which target the object class
+	 */
+	ExtensionMapper(boolean onPremisesAttributes, Collection<DirectoryExtension> directoryExtensions) {
+		this.onPremisesAttributes = onPremisesAttributes;
+		Map<String, DirectoryExtension> extensions = new LinkedHashMap<>();
+		directoryExtensions.forEach(extension -> extensions.put(extension.getName(), extension));
+		this.directoryExtensions = Collections.unmodifiableMap(extensions);
+
+		List<String> names = new ArrayList<>();
+		if (onPremisesAttributes) {
+			names.addAll(ON_PREMISES_FIELDS.keySet());
+		}
+		names.addAll(extensions.keySet());
+		this.attributeNames = Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * @param name name of attribute in ConnId
+	 * @return path of property which can be used in $filter, flattened attributes are inside onPremisesExtensionAttributes
+	 */
+	public static String toPropertyPath(String name) {
+		return ON_PREMISES_FIELDS.containsKey(name) ? ON_PREMISES_EXTENSION_ATTRIBUTES + "/" + name : name;
+	}
+
+	/**
+	 * @return names of all attributes handled by this mapper
+	 */
+	public List<String> getAttributeNames() {
+		return attributeNames;
+	}
+
+	List<DirectoryExtension> getDirectoryExtensions() {
+		return new ArrayList<>(directoryExtensions.values());
+	}
+
+	/**
+	 * @return true if there are directory extensions for the object class
+	 */
+	public boolean hasDirectoryExtensions() {
+		return !directoryExtensions.isEmpty();
+	}
+
+	/**
+	 * @param name name of attribute in ConnId
+	 * @return true if attribute is handled by this mapper
+	 */
+	public boolean isAttribute(String name) {
+		return (onPremisesAttributes && ON_PREMISES_FIELDS.containsKey(name)) || directoryExtensions.containsKey(name);
+	}
+
+	/**
+	 * @param name name of property in JSON
+	 * @return true if property must be read by {@link #readValue(String, JsonReader, ConnectorObjectBuilder, ProjectionPlan, Set)}
+	 */
+	public boolean isProperty(String name) {
+		return (onPremisesAttributes && ON_PREMISES_EXTENSION_ATTRIBUTES.equals(name)) || directoryExtensions.containsKey(name);
+	}
+
+	void addAttributeInfos(ObjectClassInfoBuilder objectClassBuilder) {
+		if (onPremisesAttributes) {
+			ON_PREMISES_FIELDS.keySet().forEach(name -> objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build(name, String.class)));
+		}
+		directoryExtensions.values().forEach(extension -> objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define(extension.getName())
+				.setType(extension.getType())
+				.setMultiValued(extension.isMultiValued())
+				.build()));
+	}
+
+	/**
+	 * Add properties of requested attributes into $select
+	 *
+	 * @param select     properties for $select
+	 * @param projection which attributes are requested
+	 */
+	void addSelect(Set<String> select, ProjectionPlan projection) {
+		if (onPremisesAttributes && ON_PREMISES_FIELDS.keySet().stream().anyMatch(projection::isRequested)) {
+			select.add(ON_PREMISES_EXTENSION_ATTRIBUTES);
+		}
+		directoryExtensions.keySet().stream()
+				.filter(projection::isRequested)
+				.forEach(select::add);
+	}
+
+	/**
+	 * Read property from JSON and add requested attributes into Connector object
+	 *
+	 * @param name       name of property, see {@link #isProperty(String)}
+	 * @param reader     reader positioned at the value
+	 * @param builder    Connector object builder where the attributes will be added
+	 * @param projection only requested attributes will be added
+	 * @param read       names of attributes which were added
+	 */
+	public void readValue(String name, JsonReader reader, ConnectorObjectBuilder builder, ProjectionPlan projection, Set<String> read) throws IOException {
+		if (ON_PREMISES_EXTENSION_ATTRIBUTES.equals(name)) {
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				reader.skipValue();
+				return;
+			}
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String attribute = reader.nextName();
+				if (ON_PREMISES_FIELDS.containsKey(attribute) && projection.isRequested(attribute) && reader.peek() == JsonToken.STRING) {
+					builder.addAttribute(attribute, reader.nextString());
+					read.add(attribute);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return;
+		}
+		if (!projection.isRequested(name)) {
+			reader.skipValue();
+			return;
+		}
+		DirectoryExtension extension = directoryExtensions.get(name);
+		addValue(extension, toValue(extension, JsonParser.parseReader(reader)), builder);
+		read.add(name);
+	}
+
+	/**
+	 * Add requested attributes which were not in JSON without value, the same as {@link AttributeMapper} does
+	 *
+	 * @param read       names of attributes which were added
+	 * @param builder    Connector object builder where the attributes will be added
+	 * @param projection only requested attributes will be added
+	 */
+	public void addMissingAttributes(Set<String> read, ConnectorObjectBuilder builder, ProjectionPlan projection) {
+		for (String name : attributeNames) {
+			if (!read.contains(name) && projection.isRequested(name)) {
+				builder.addAttribute(name, (Object) null);
+			}
+		}
+	}
+
+	/**
+	 * Add attributes of SDK object into Connector object. Directory extensions are not fields of SDK object,
+	 * they are kept in its additional data.
+	 *
+	 * @param object              User or Group object
+	 * @param onPremisesExtension onPremisesExtensionAttributes of user, can be null
+	 * @param builder             Connector object builder where the attributes will be added
+	 * @param projection          only requested attributes will be added
+	 */
+	public void addAttributes(Entity object, OnPremisesExtensionAttributes onPremisesExtension, ConnectorObjectBuilder builder, ProjectionPlan projection) {
+		if (onPremisesAttributes) {
+			ON_PREMISES_FIELDS.forEach((name, field) -> {
+				if (projection.isRequested(name)) {
+					String value = onPremisesExtension == null ? null : (String) get(field, onPremisesExtension);
+					builder.addAttribute(name, value);
+				}
+			});
+		}
+		for (DirectoryExtension extension : directoryExtensions.values()) {
+			if (projection.isRequested(extension.getName())) {
+				addValue(extension, toValue(extension, object.additionalDataManager().get(extension.getName())), builder);
+			}
+		}
+	}
+
+	/**
+	 * Set attributes handled by this mapper into SDK object
+	 *
+	 * @param object             User or Group object
+	 * @param attributesAccessor accessor with all attributes which connector received
+	 * @return accessor with other attributes, they are set by {@link AttributeMapper}
+	 */
+	public AttributesAccessor setAttributes(Entity object, AttributesAccessor attributesAccessor) {
+		Set<Attribute> other = attributesAccessor.listAttributeNames().stream()
+				.filter(name -> !isAttribute(name))
+				.map(attributesAccessor::find)
+				.collect(Collectors.toSet());
+		for (String name : attributesAccessor.listAttributeNames()) {
+			if (!isAttribute(name)) {
+				continue;
+			}
+			Field field = ON_PREMISES_FIELDS.get(name);
+			if (field != null && object instanceof User) {
+				User user = (User) object;
+				if (user.onPremisesExtensionAttributes == null) {
+					user.onPremisesExtensionAttributes = new OnPremisesExtensionAttributes();
+				}
+				set(field, user.onPremisesExtensionAttributes, attributesAccessor.findString(name));
+			} else {
+				object.additionalDataManager().put(name, toJson(directoryExtensions.get(name), attributesAccessor.find(name)));
+			}
+		}
+		return new AttributesAccessor(other);
+	}
+
+	private static void addValue(DirectoryExtension extension, Object value, ConnectorObjectBuilder builder) {
+		if (value instanceof List) {
+			builder.addAttribute(extension.getName(), (List<?>) value);
+		} else {
+			builder.addAttribute(extension.getName(), value);
+		}
+	}
+
+	private static Object toValue(DirectoryExtension extension, JsonElement json) {
+		if (json == null || json.isJsonNull()) {
+			return null;
+		}
+		if (json.isJsonArray()) {
+			List<Object> values = new ArrayList<>();
+			for (JsonElement element : json.getAsJsonArray()) {
+				Object value = toSingleValue(extension, element);
+				if (value != null) {
+					values.add(value);
+				}
+			}
+			return values;
+		}
+		return toSingleValue(extension, json);
+	}
+
+	private static Object toSingleValue(DirectoryExtension extension, JsonElement json) {
+		if (!json.isJsonPrimitive()) {
+			LOG.ok("Value of extension {0} is not primitive, it is skipped", extension.getName());
+			return null;
+		}
+		JsonPrimitive primitive = json.getAsJsonPrimitive();
+		try {
+			if (extension.getType() == Boolean.class) {
+				return primitive.getAsBoolean();
+			} else if (extension.getType() == Integer.class) {
+				return primitive.getAsInt();
+			} else if (extension.getType() == Long.class) {
+				return primitive.getAsLong();
+			}
+		} catch (NumberFormatException e) {
+			LOG.ok("Value of extension {0} has unexpected type", extension.getName());
+			return null;
+		}
+		return primitive.getAsString();
+	}
+
+	private static JsonElement toJson(DirectoryExtension extension, Attribute attribute) {
+		List<Object> values = attribute.getValue() == null ? Collections.emptyList() : attribute.getValue();
+		if (extension.isMultiValued()) {
+			JsonArray array = new JsonArray();
+			values.forEach(value -> array.add(toJsonPrimitive(value)));
+			return array;
+		}
+		return values.isEmpty() || values.get(0) == null ? JsonNull.INSTANCE : toJsonPrimitive(values.get(0));
+	}
+
+	private static JsonElement toJsonPrimitive(Object value) {
+		if (value instanceof Boolean) {
+			return new JsonPrimitive((Boolean) value);
+		} else if (value instanceof Number) {
+			return new JsonPrimitive((Number) value);
+		}
+		return value == null ? JsonNull.INSTANCE : new JsonPrimitive(value.toString());
+	}
+
+	private static Map<String, Field> getOnPremisesFields() {
+		Map<String, Field> fields = new LinkedHashMap<>();
+		for (int i = 1; i <= ON_PREMISES_ATTRIBUTE_COUNT; i++) {
+			String name = ON_PREMISES_ATTRIBUTE_PREFIX + i;
+			try {
+				fields.put(name, OnPremisesExtensionAttributes.class.getField(name));
+			} catch (NoSuchFieldException e) {
+				throw new ConnectorException("Field " + name + " does not exist in OnPremisesExtensionAttributes", e);
+			}
+		}
+		return Collections.unmodifiableMap(fields);
+	}
+
+	private static Object get(Field field, Object object) {
+		try {
+			return field.get(object);
+		} catch (IllegalAccessException e) {
+			throw new ConnectorException("Error when getting field " + field.getName(), e);
+		}
+	}
+
+	private static void set(Field field, Object object, Object value) {
+		try {
+			field.set(object, value);
+		} catch (IllegalAccessException e) {
+			throw new ConnectorException("Error when setting field " + field.getName(), e);
+		}
+	}
+
+	/**
+	 * Directory schema extension registered by some application in tenant
+	 */
+	public static final class DirectoryExtension {
+		private static final Map<String, Class<?>> TYPES = new HashMap<>();
+
+		static {
+			TYPES.put("Boolean", Boolean.class);
+			TYPES.put("Integer", Integer.class);
+			TYPES.put("LargeInteger", Long.class);
+			// String, DateTime and Binary (base64) are returned as strings
+		}
+
+		private final String name;
+		private final Class<?> type;
+		private final boolean multiValued;
+
+		/**
+		 * @param name        name of extension, e.g. extension_{appId}_{name}
+		 * @param dataType    type of extension in Graph API
+		 * @param multiValued true if extension has more values
+		 */
+		DirectoryExtension(String name, String dataType, boolean multiValued) {
+			this.name = name;
+			this.type = TYPES.getOrDefault(dataType, String.class);
+			this.multiValued = multiValued;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		public boolean isMultiValued() {
+			return multiValued;
+		}
+	}
+}
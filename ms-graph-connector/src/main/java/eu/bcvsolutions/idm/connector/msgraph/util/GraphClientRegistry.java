@@ -0,0 +1,264 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.microsoft.graph.core.DefaultClientConfig;
+import com.microsoft.graph.http.IHttpProvider;
+import com.microsoft.graph.httpcore.HttpClients;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.requests.extensions.GraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import okhttp3.Authenticator;
+import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Registry of Graph clients shared by connector instances. Client is created once for every configuration
+ * (tenant, client, secret, proxy, ...), so connector instances for the same tenant share connections and connector
+ * instances for different tenants don't influence each other. Client is closed when the last connector instance
+ * which uses it is disposed.
+ */
+public final class GraphClientRegistry {
+
+	private static final Log LOG = Log.getLog(GraphClientRegistry.class);
+
+	private static final long KEEP_ALIVE_MINUTES = 5;
+
+	// Guarded by itself
+	private static final Map<String, Entry> CLIENTS = new HashMap<>();
+
+	// Replaces the network for all requests, it's used only by emulator of Graph API in load tests
+	private static volatile Interceptor transport;
+
+	private GraphClientRegistry() {
+	}
+
+	/**
+	 * Get client for configuration. If there is no client for this configuration yet, new one is created.
+	 * Every call must be paired with {@link #release(String)}
+	 *
+	 * @param key           fingerprint of configuration, see {@link #fingerprint(GraphConfiguration)}
+	 * @param configuration configuration of connector
+	 * @return Graph client
+	 */
+	public static IGraphServiceClient acquire(String key, GraphConfiguration configuration) {
+		synchronized (CLIENTS) {
+			Entry entry = CLIENTS.get(key);
+			if (entry == null) {
+				LOG.info("Creating new Graph client for tenant {0}", configuration.getTenant());
+				entry = create(configuration);
+				CLIENTS.put(key, entry);
+			}
+			entry.references++;
+			return entry.graphClient;
+		}
+	}
+
+	/**
+	 * Release client. When nobody uses the client anymore, its connections and threads are closed
+	 *
+	 * @param key fingerprint of configuration which was used for {@link #acquire(String, GraphConfiguration)}
+	 */
+	public static void release(String key) {
+		Entry entry;
+		synchronized (CLIENTS) {
+			entry = CLIENTS.get(key);
+			if (entry == null || --entry.references > 0) {
+				return;
+			}
+			CLIENTS.remove(key);
+		}
+		LOG.info("Closing Graph client, it is not used anymore");
+		entry.tokenCache.release();
+		entry.httpClient.dispatcher().executorService().shutdown();
+		entry.httpClient.connectionPool().evictAll();
+	}
+
+	/**
+	 * Send all requests of new clients to the interceptor instead of the network. Interceptor is the last one
+	 * in the chain, so retry, throttling and metrics work the same as with real Graph API.
+	 * Clients which already exist are not changed.
+	 *
+	 * @param interceptor interceptor which returns responses, null to use the network again
+	 */
+	public static void setTransport(Interceptor interceptor) {
+		transport = interceptor;
+	}
+
+	/**
+	 * Compute fingerprint of all configuration properties which are used for creating of client. Secrets are part
+	 * of the fingerprint only as a hash, so changed secret leads to new client.
+	 *
+	 * @param configuration configuration of connector
+	 * @return fingerprint
+	 */
+	public static String fingerprint(GraphConfiguration configuration) {
+		MessageDigest digest = tokenDigest(configuration);
+		update(digest, configuration.getProxyHostname());
+		update(digest, String.valueOf(configuration.getProxyPort()));
+		update(digest, configuration.getProxyUsername());
+		update(digest, String.valueOf(configuration.getMaxConnections()));
+		update(digest, String.valueOf(configuration.getRequestsPerSecond()));
+		update(digest, configuration.getProxyPassword());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Compute identification of access token which is used by configuration. Tokens are shared by all clients
+	 * for the same tenant and client ID.
+	 *
+	 * @param configuration configuration of connector
+	 * @return identification of token
+	 */
+	private static String tokenKey(GraphConfiguration configuration) {
+		return toHex(tokenDigest(configuration).digest());
+	}
+
+	private static MessageDigest tokenDigest(GraphConfiguration configuration) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, configuration.getClientId());
+			update(digest, StringUtils.join(configuration.getScopes(), ' '));
+			update(digest, configuration.getTenant());
+			update(digest, configuration.getNationalCloud());
+			update(digest, configuration.getClientSecret());
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			throw new ConnectorException("Fingerprint of configuration can't be computed", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value != null) {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+		// Separator, so values "ab" + "c" and "a" + "bc" have different fingerprint
+		digest.update((byte) 0);
+	}
+
+	private static void update(MessageDigest digest, GuardedString value) {
+		if (value != null) {
+			value.access(chars -> {
+				ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+				digest.update(bytes.duplicate());
+				Arrays.fill(bytes.array(), (byte) 0);
+			});
+		}
+		digest.update((byte) 0);
+	}
+
+	private static Entry create(GraphConfiguration configuration) {
+		boolean useProxyAuth = !StringUtils.isBlank(configuration.getProxyUsername()) && configuration.getProxyPassword() != null;
+		boolean useProxy = !StringUtils.isBlank(configuration.getProxyHostname()) && configuration.getProxyPort() > 0;
+
+		// Custom proxy authenticator
+		Authenticator proxyAuthenticator = null;
+		if (useProxyAuth) {
+			proxyAuthenticator = (route, response) -> {
+				// Authenticator can be called from more threads at once, so every call has its own accessor
+				GuardedStringAccessor proxyPasswordAccessor = new GuardedStringAccessor();
+				configuration.getProxyPassword().access(proxyPasswordAccessor);
+				String credential = Credentials.basic(configuration.getProxyUsername(), new String(proxyPasswordAccessor.getArray()));
+				proxyPasswordAccessor.clearArray();
+				return response.request().newBuilder()
+						.header("Proxy-Authorization", credential)
+						.build();
+			};
+		}
+
+		// Requests to one tenant are sent to the same host, so the limits per host are the same as the global ones
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(configuration.getMaxConnections());
+		dispatcher.setMaxRequestsPerHost(configuration.getMaxConnections());
+
+		// Custom client so we can use proxy if it's configure in connector
+		OkHttpClient.Builder builder = HttpClients.custom()
+				.connectionPool(new ConnectionPool(configuration.getMaxConnections(), KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+				.dispatcher(dispatcher)
+				// Graph API supports HTTP/2, so more requests can be multiplexed over one connection
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+		if (useProxy) {
+			builder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(configuration.getProxyHostname(), configuration.getProxyPort())));
+		}
+		if (useProxyAuth) {
+			builder.proxyAuthenticator(proxyAuthenticator);
+		}
+		OkHttpClient httpClient = builder.build();
+		Interceptor transport = GraphClientRegistry.transport;
+
+		// Token requests are sent via the same client, so they use the proxy too
+		AccessTokenCache authProvider = AccessTokenCache.acquire(tokenKey(configuration), configuration,
+				transport == null ? httpClient : httpClient.newBuilder().addInterceptor(transport).build());
+
+		// Requests to Graph API share connections with token requests, but they are sent within the budget of tenant
+		TenantThrottle throttle = TenantThrottle.forTenant(configuration.getTenant(),
+				configuration.getRequestsPerSecond(), configuration.getMaxConnections());
+		OkHttpClient.Builder graphHttpClientBuilder = httpClient.newBuilder()
+				// Every attempt of failed request goes through the throttle again
+				.addInterceptor(new RetryInterceptor())
+				.addInterceptor(new ThrottlingInterceptor(throttle))
+				// Metrics are recorded last, so every attempt is counted with its own latency
+				.addInterceptor(new MetricsInterceptor());
+		if (transport != null) {
+			graphHttpClientBuilder.addInterceptor(transport);
+		}
+		OkHttpClient graphHttpClient = graphHttpClientBuilder.build();
+
+		// Custom http provider with custom http client
+		IHttpProvider httpProvider = DefaultClientConfig
+				.createWithAuthenticationProvider(authProvider)
+				.getHttpProvider(graphHttpClient);
+
+		IGraphServiceClient graphClient = GraphServiceClient
+				.builder()
+				.authenticationProvider(authProvider)
+				.httpProvider(httpProvider)
+				.buildClient();
+		// Collections are read by streaming parser, but via the same HTTP client
+		GraphPageReader.register(graphClient, graphHttpClient, authProvider);
+		return new Entry(graphClient, httpClient, authProvider);
+	}
+
+	private static class Entry {
+		private final IGraphServiceClient graphClient;
+		private final OkHttpClient httpClient;
+		private final AccessTokenCache tokenCache;
+		private int references;
+
+		private Entry(IGraphServiceClient graphClient, OkHttpClient httpClient, AccessTokenCache tokenCache) {
+			this.graphClient = graphClient;
+			this.httpClient = httpClient;
+			this.tokenCache = tokenCache;
+		}
+	}
+}
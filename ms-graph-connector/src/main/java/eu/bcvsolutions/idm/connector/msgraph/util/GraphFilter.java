@@ -0,0 +1,138 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Query for search operation. It's either identification of one object (UID) or OData $filter
+ * which is evaluated by Graph API. Some expressions need advanced query (ConsistencyLevel: eventual and $count).
+ */
+public final class GraphFilter {
+
+	// Value of UID if query is only UID equals, so we can get object directly
+	private final String uid;
+	// Expression which can't be merged with other equals expressions
+	private final String expression;
+	// Equals expressions for one attribute, they are merged into "in" when they are in "or"
+	private final String inAttribute;
+	private final List<String> inValues;
+	private final boolean advanced;
+
+	private GraphFilter(String uid, String expression, String inAttribute, List<String> inValues, boolean advanced) {
+		this.uid = uid;
+		this.expression = expression;
+		this.inAttribute = inAttribute;
+		this.inValues = inValues;
+		this.advanced = advanced;
+	}
+
+	/**
+	 * @param uid       value of UID
+	 * @param attribute attribute of Graph API which is used as UID
+	 * @param literal   value of UID formatted for $filter
+	 * @return query for one object
+	 */
+	public static GraphFilter uid(String uid, String attribute, String literal) {
+		return new GraphFilter(uid, null, attribute, Collections.singletonList(literal), false);
+	}
+
+	/**
+	 * @param attribute attribute of Graph API
+	 * @param literal   value formatted for $filter
+	 * @return query for objects with attribute equal to value
+	 */
+	public static GraphFilter equalTo(String attribute, String literal) {
+		return new GraphFilter(null, null, attribute, Collections.singletonList(literal), false);
+	}
+
+	/**
+	 * @param expression OData expression
+	 * @param advanced   true if expression needs advanced query
+	 * @return query with $filter
+	 */
+	public static GraphFilter filter(String expression, boolean advanced) {
+		return new GraphFilter(null, expression, null, null, advanced);
+	}
+
+	/**
+	 * Both queries must match
+	 *
+	 * @param left  query
+	 * @param right query
+	 * @return merged query
+	 */
+	public static GraphFilter and(GraphFilter left, GraphFilter right) {
+		return new GraphFilter(null, join(left.getFilter(), right.getFilter(), "and"), null, null, left.advanced || right.advanced);
+	}
+
+	/**
+	 * At least one of the queries must match. Equals expressions for the same attribute are merged into "in"
+	 *
+	 * @param left  query
+	 * @param right query
+	 * @return merged query
+	 */
+	public static GraphFilter or(GraphFilter left, GraphFilter right) {
+		boolean advanced = left.advanced || right.advanced;
+		if (left.inAttribute != null && left.inAttribute.equals(right.inAttribute)) {
+			List<String> values = new ArrayList<>(left.inValues);
+			values.addAll(right.inValues);
+			return new GraphFilter(null, null, left.inAttribute, values, advanced);
+		}
+		return new GraphFilter(null, join(left.getFilter(), right.getFilter(), "or"), null, null, advanced);
+	}
+
+	/**
+	 * @return the same query which will be sent as advanced query
+	 */
+	public GraphFilter toAdvanced() {
+		return new GraphFilter(uid, expression, inAttribute, inValues, true);
+	}
+
+	private static String join(String left, String right, String operator) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		return "(" + left + ") " + operator + " (" + right + ")";
+	}
+
+	/**
+	 * @return value of UID or null if the query is not for one object
+	 */
+	public String getUid() {
+		return uid;
+	}
+
+	/**
+	 * @return value for $filter or null
+	 */
+	public String getFilter() {
+		if (inAttribute == null) {
+			return expression;
+		}
+		if (inValues.size() == 1) {
+			return inAttribute + " eq " + inValues.get(0);
+		}
+		return inAttribute + " in (" + StringUtils.join(inValues, ',') + ")";
+	}
+
+	/**
+	 * @return true if ConsistencyLevel header and $count are needed
+	 */
+	public boolean isAdvanced() {
+		return advanced;
+	}
+
+	@Override
+	public String toString() {
+		return "GraphFilter{uid=" + uid + ", filter=" + getFilter() + ", advanced=" + advanced + "}";
+	}
+}
@@ -0,0 +1,160 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
+import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Translates ConnId filters into OData $filter for Graph API. Filter which can't be expressed is translated
+ * to null, so framework loads all objects and filters them on its side.
+ */
+public class GraphFilterTranslator extends AbstractFilterTranslator<GraphFilter> {
+
+	private static final Log LOG = Log.getLog(GraphFilterTranslator.class);
+
+	// Attributes which are not stored in the object itself, so Graph API can't filter by them
+	private static final List<String> UNSUPPORTED_ATTRS = Arrays.asList(ProjectionPlan.MEMBERS, ProjectionPlan.OWNERS,
+			"__PASSWORD__", "forceChangePasswordNextSignIn", "forceChangePasswordNextSignInWithMfa");
+
+	// Attribute of Graph API which is used as UID and name
+	private final String uidAttr;
+
+	public GraphFilterTranslator(ObjectClass objectClass) {
+		this.uidAttr = objectClass.is(ObjectClass.ACCOUNT_NAME) ? "userPrincipalName" : "id";
+	}
+
+	@Override
+	protected GraphFilter createEqualsExpression(EqualsFilter filter, boolean not) {
+		Attribute attr = filter.getAttribute();
+		String name = getAttributeName(attr);
+		if (name == null) {
+			return null;
+		}
+		List<Object> values = attr.getValue() == null ? Collections.emptyList() : attr.getValue();
+
+		if (ProjectionPlan.ASSIGNED_LICENSES.equals(name)) {
+			// Equals on multivalued attribute means exactly these values, which can't be expressed in $filter
+			return null;
+		}
+		if (values.isEmpty() || values.get(0) == null) {
+			// Filtering by null value is supported only in advanced queries
+			return GraphFilter.filter(name + (not ? " ne" : " eq") + " null", true);
+		}
+		if (values.size() > 1) {
+			return null;
+		}
+		String literal = toLiteral(values.get(0));
+		if (literal == null) {
+			return null;
+		}
+		if (not) {
+			return GraphFilter.filter(name + " ne " + literal, true);
+		}
+		if (attr.is(Uid.NAME) || attr.is(Name.NAME)) {
+			return GraphFilter.uid(values.get(0).toString(), name, literal);
+		}
+		return GraphFilter.equalTo(name, literal);
+	}
+
+	@Override
+	protected GraphFilter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+		String name = getAttributeName(filter.getAttribute());
+		if (name == null || ProjectionPlan.ASSIGNED_LICENSES.equals(name)) {
+			return null;
+		}
+		String expression = "startsWith(" + name + "," + toLiteral(filter.getValue()) + ")";
+		return not ? GraphFilter.filter("not(" + expression + ")", true) : GraphFilter.filter(expression, false);
+	}
+
+	/**
+	 * $search of Graph API matches only start of words (tokens) in value, so it would not return objects which
+	 * contain the value inside of a word. Contains is always evaluated by framework.
+	 */
+	@Override
+	protected GraphFilter createContainsExpression(ContainsFilter filter, boolean not) {
+		return null;
+	}
+
+	@Override
+	protected GraphFilter createContainsAllValuesExpression(ContainsAllValuesFilter filter, boolean not) {
+		String name = getAttributeName(filter.getAttribute());
+		if (not || !ProjectionPlan.ASSIGNED_LICENSES.equals(name) || filter.getAttribute().getValue() == null) {
+			return null;
+		}
+		List<String> expressions = new ArrayList<>();
+		for (Object value : filter.getAttribute().getValue()) {
+			try {
+				// Value is used in expression without quotes, so it must be valid UUID
+				UUID skuId = UUID.fromString(String.valueOf(value));
+				expressions.add(ProjectionPlan.ASSIGNED_LICENSES + "/any(x:x/skuId eq " + skuId + ")");
+			} catch (IllegalArgumentException e) {
+				LOG.warn("License {0} is not valid UUID, filter can not be used", value);
+				return null;
+			}
+		}
+		if (expressions.isEmpty()) {
+			return null;
+		}
+		// Lambda operators on assignedLicenses are supported only in advanced queries
+		return GraphFilter.filter(StringUtils.join(expressions, " and "), true);
+	}
+
+	@Override
+	protected GraphFilter createAndExpression(GraphFilter leftExpression, GraphFilter rightExpression) {
+		return GraphFilter.and(leftExpression, rightExpression);
+	}
+
+	@Override
+	protected GraphFilter createOrExpression(GraphFilter leftExpression, GraphFilter rightExpression) {
+		return GraphFilter.or(leftExpression, rightExpression);
+	}
+
+	/**
+	 * @return name of attribute in Graph API or null if Graph API can't filter by the attribute
+	 */
+	private String getAttributeName(Attribute attr) {
+		if (attr == null) {
+			return null;
+		}
+		if (attr.is(Uid.NAME) || attr.is(Name.NAME)) {
+			return uidAttr;
+		}
+		if (UNSUPPORTED_ATTRS.contains(attr.getName())) {
+			LOG.ok("Filtering by attribute {0} is not supported", attr.getName());
+			return null;
+		}
+		return ExtensionMapper.toPropertyPath(attr.getName());
+	}
+
+	/**
+	 * Format value for $filter, strings are in quotes and quote inside value is escaped by another quote
+	 *
+	 * @return literal or null if value type is not supported
+	 */
+	private static String toLiteral(Object value) {
+		if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+			return value.toString();
+		}
+		if (value instanceof String || value instanceof Character) {
+			return "'" + value.toString().replace("'", "''") + "'";
+		}
+		LOG.ok("Value of type {0} can not be used in filter", value.getClass().getName());
+		return null;
+	}
+}
@@ -0,0 +1,269 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Metrics of one connector instance. Graph client is shared by connector instances with the same configuration,
+ * so metrics are bound to the thread which executes connector operation, the same way as {@link RetryPolicy}.
+ * Tasks executed by other threads get them from {@link OperationContext}. Requests are recorded by {@link MetricsInterceptor}.
+ */
+public final class GraphMetrics implements GraphMetricsMXBean {
+
+	private static final Log LOG = Log.getLog(GraphMetrics.class);
+
+	private static final ThreadLocal<GraphMetrics> CURRENT = new ThreadLocal<>();
+	private static final AtomicInteger INSTANCE_COUNTER = new AtomicInteger();
+	private static final String DOMAIN = "eu.bcvsolutions.idm.connector.msgraph";
+
+	private final Map<String, EndpointStatistics> endpoints = new ConcurrentHashMap<>();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder pagesFetched = new LongAdder();
+	private final LongAdder objectsConverted = new LongAdder();
+	private final RateWindow requestRate = new RateWindow();
+	private final RateWindow objectRate = new RateWindow();
+	private ObjectName objectName;
+
+	/**
+	 * @return metrics bound to the current thread or null if there are none
+	 */
+	public static GraphMetrics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Count loaded page in metrics of the current operation
+	 */
+	public static void recordPage() {
+		GraphMetrics metrics = CURRENT.get();
+		if (metrics != null) {
+			metrics.pagesFetched.increment();
+		}
+	}
+
+	/**
+	 * Count converted object in metrics of the current operation
+	 */
+	public static void recordObject() {
+		GraphMetrics metrics = CURRENT.get();
+		if (metrics != null) {
+			metrics.objectsConverted.increment();
+			metrics.objectRate.mark();
+		}
+	}
+
+	/**
+	 * Count status of one request in $batch, requests in batch don't go through the interceptor
+	 *
+	 * @param status status of response for the request
+	 */
+	public static void recordBatchStatus(int status) {
+		GraphMetrics metrics = CURRENT.get();
+		if (metrics != null) {
+			metrics.recordStatus(status);
+		}
+	}
+
+	/**
+	 * Bind metrics to the current thread. Scope must be closed when operation ends, so use it in try-with-resources.
+	 *
+	 * @return scope of metrics
+	 */
+	public Scope bind() {
+		GraphMetrics previous = CURRENT.get();
+		CURRENT.set(this);
+		return () -> {
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		};
+	}
+
+	/**
+	 * Register metrics in platform MBean server
+	 *
+	 * @param tenant tenant of connector, it's part of the name of MBean
+	 */
+	public synchronized void register(String tenant) {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=GraphConnector,tenant=" + ObjectName.quote(String.valueOf(tenant))
+					+ ",instance=" + INSTANCE_COUNTER.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+			LOG.info("Metrics registered as {0}", name);
+		} catch (JMException e) {
+			// Metrics are not needed for the connector to work
+			LOG.warn(e, "Metrics can not be registered");
+		}
+	}
+
+	/**
+	 * Remove metrics from platform MBean server
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn(e, "Metrics can not be unregistered");
+		}
+		objectName = null;
+	}
+
+	void recordRequest(String endpoint, int status, long latency) {
+		requests.increment();
+		requestRate.mark();
+		recordStatus(status);
+		endpoints.computeIfAbsent(endpoint, key -> new EndpointStatistics()).record(status, latency);
+	}
+
+	void recordBytes(String endpoint, long bytes) {
+		bytesReceived.add(bytes);
+		endpoints.computeIfAbsent(endpoint, key -> new EndpointStatistics()).addBytes(bytes);
+	}
+
+	private void recordStatus(int status) {
+		if (status == 429) {
+			throttled.increment();
+		} else if (status >= 500) {
+			serverErrors.increment();
+		}
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	@Override
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	@Override
+	public long getServerErrorCount() {
+		return serverErrors.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getPagesFetched() {
+		return pagesFetched.sum();
+	}
+
+	@Override
+	public long getObjectsConverted() {
+		return objectsConverted.sum();
+	}
+
+	@Override
+	public double getObjectsConvertedPerSecond() {
+		return objectRate.getRate();
+	}
+
+	@Override
+	public double getRequestsPerSecond() {
+		return requestRate.getRate();
+	}
+
+	@Override
+	public Map<String, EndpointStatistics> getEndpoints() {
+		return new TreeMap<>(endpoints);
+	}
+
+	@Override
+	public void reset() {
+		endpoints.clear();
+		requests.reset();
+		throttled.reset();
+		serverErrors.reset();
+		bytesReceived.reset();
+		pagesFetched.reset();
+		objectsConverted.reset();
+		requestRate.reset();
+		objectRate.reset();
+	}
+
+	/**
+	 * Scope of metrics bound to thread
+	 */
+	public interface Scope extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	/**
+	 * Counts events in buckets for last seconds, so we can compute current rate
+	 */
+	private static class RateWindow {
+		private static final int SECONDS = 10;
+
+		private final AtomicLongArray counts = new AtomicLongArray(SECONDS + 1);
+		private final AtomicLongArray seconds = new AtomicLongArray(SECONDS + 1);
+
+		void mark() {
+			long second = System.currentTimeMillis() / 1000;
+			int bucket = (int) (second % counts.length());
+			long bucketSecond = seconds.get(bucket);
+			if (bucketSecond != second && seconds.compareAndSet(bucket, bucketSecond, second)) {
+				counts.set(bucket, 0);
+			}
+			counts.incrementAndGet(bucket);
+		}
+
+		/**
+		 * Current second is not complete, so only previous seconds are used
+		 */
+		double getRate() {
+			long now = System.currentTimeMillis() / 1000;
+			long sum = 0;
+			for (int bucket = 0; bucket < counts.length(); bucket++) {
+				long second = seconds.get(bucket);
+				if (second < now && second >= now - SECONDS) {
+					sum += counts.get(bucket);
+				}
+			}
+			return (double) sum / SECONDS;
+		}
+
+		/**
+		 * Bucket which is not for any of the last seconds is not counted in rate
+		 */
+		void reset() {
+			for (int bucket = 0; bucket < counts.length(); bucket++) {
+				seconds.set(bucket, 0);
+				counts.set(bucket, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Map;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Metrics of one connector instance published via JMX
+ */
+public interface GraphMetricsMXBean {
+
+	/**
+	 * @return number of requests sent to Graph API, every attempt is counted
+	 */
+	long getRequestCount();
+
+	/**
+	 * @return number of throttled requests (429), including requests in $batch
+	 */
+	long getThrottledCount();
+
+	/**
+	 * @return number of requests which failed with 5xx, including requests in $batch
+	 */
+	long getServerErrorCount();
+
+	/**
+	 * @return number of bytes received in bodies of responses
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return number of pages of users, groups and roles loaded in search and sync
+	 */
+	long getPagesFetched();
+
+	/**
+	 * @return number of objects converted to connector objects
+	 */
+	long getObjectsConverted();
+
+	/**
+	 * @return average number of objects converted per second in last 10 seconds
+	 */
+	double getObjectsConvertedPerSecond();
+
+	/**
+	 * @return average number of requests per second in last 10 seconds
+	 */
+	double getRequestsPerSecond();
+
+	/**
+	 * @return statistics for every endpoint, key is HTTP method and path with ids replaced by {id}
+	 */
+	Map<String, EndpointStatistics> getEndpoints();
+
+	/**
+	 * Set all metrics to zero
+	 */
+	void reset();
+}
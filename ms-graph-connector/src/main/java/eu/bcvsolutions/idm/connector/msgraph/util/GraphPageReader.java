@@ -0,0 +1,197 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.google.gson.stream.JsonReader;
+import com.microsoft.graph.httpcore.ICoreAuthenticationProvider;
+import com.microsoft.graph.models.extensions.IBaseGraphServiceClient;
+import com.microsoft.graph.options.Option;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Reads pages of collections (users, groups, members) from Graph API directly from the body of response via JsonReader.
+ * Every object is converted by parser while it's read, so neither JSON tree nor SDK objects are created for the page.
+ * Requests are sent via the same HTTP client as requests of Graph client, so retry, throttling and metrics are the same.
+ */
+public class GraphPageReader {
+
+	private static final Log LOG = Log.getLog(GraphPageReader.class);
+
+	private static final String VALUE = "value";
+	private static final String NEXT_LINK = "@odata.nextLink";
+
+	// Readers are created together with Graph clients in GraphClientRegistry
+	private static final Map<IBaseGraphServiceClient, GraphPageReader> READERS = new WeakHashMap<>();
+
+	private final OkHttpClient httpClient;
+	private final ICoreAuthenticationProvider authProvider;
+
+	private GraphPageReader(OkHttpClient httpClient, ICoreAuthenticationProvider authProvider) {
+		this.httpClient = httpClient;
+		this.authProvider = authProvider;
+	}
+
+	/**
+	 * Create reader for Graph client
+	 *
+	 * @param graphClient  client for Graph API
+	 * @param httpClient   HTTP client which is used by Graph client
+	 * @param authProvider provider of access token which is used by Graph client
+	 */
+	static void register(IBaseGraphServiceClient graphClient, OkHttpClient httpClient, ICoreAuthenticationProvider authProvider) {
+		synchronized (READERS) {
+			READERS.put(graphClient, new GraphPageReader(httpClient, authProvider));
+		}
+	}
+
+	/**
+	 * Get reader which sends requests the same way as Graph client
+	 *
+	 * @param graphClient client for Graph API created by {@link GraphClientRegistry}
+	 * @return reader
+	 */
+	public static GraphPageReader forClient(IBaseGraphServiceClient graphClient) {
+		synchronized (READERS) {
+			GraphPageReader reader = READERS.get(graphClient);
+			if (reader == null) {
+				throw new ConnectorException("Graph client was not created by GraphClientRegistry");
+			}
+			return reader;
+		}
+	}
+
+	/**
+	 * Load one page of collection
+	 *
+	 * @param url     URL of page, next link for other pages
+	 * @param headers headers of request, e.g. ConsistencyLevel for advanced queries
+	 * @param parser  parser for one object in the page
+	 * @return page with converted objects
+	 */
+	public <T> Page<T> read(String url, List<? extends Option> headers, ObjectParser<T> parser) {
+		Request.Builder builder = new Request.Builder()
+				.url(url)
+				.header("Accept", "application/json")
+				.get();
+		if (headers != null) {
+			headers.forEach(header -> builder.header(header.getName(), String.valueOf(header.getValue())));
+		}
+		Request request = authProvider.authenticateRequest(builder.build());
+
+		try (Response response = httpClient.newCall(request).execute()) {
+			ResponseBody body = response.body();
+			if (!response.isSuccessful()) {
+				String error = body == null ? null : body.string();
+				LOG.info("Request for page failed with status {0}: {1}", response.code(), error);
+				throw new GraphRequestException(response.code(), "Loading of page failed with status " + response.code() + ": " + error);
+			}
+			if (body == null) {
+				throw new ConnectorException("Response for page has no body");
+			}
+			return parse(body.charStream(), parser);
+		} catch (IOException e) {
+			throw new ConnectorException("Loading of page failed", e);
+		}
+	}
+
+	/**
+	 * Read page from JSON. Next link can be before or after the objects.
+	 *
+	 * @param json   JSON of collection response
+	 * @param parser parser for one object in the page, objects for which it returns null are skipped
+	 * @return page with converted objects
+	 */
+	public static <T> Page<T> parse(Reader json, ObjectParser<T> parser) throws IOException {
+		JsonReader reader = new JsonReader(json);
+		List<T> objects = new ArrayList<>();
+		String nextLink = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (VALUE.equals(name)) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					T object = parser.parse(reader);
+					if (object != null) {
+						objects.add(object);
+					}
+				}
+				reader.endArray();
+			} else if (NEXT_LINK.equals(name)) {
+				nextLink = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new Page<>(objects, nextLink);
+	}
+
+	/**
+	 * Converts one object of collection, reader is positioned at the beginning of the object and the whole object must be read
+	 *
+	 * @param <T> type of converted object
+	 */
+	@FunctionalInterface
+	public interface ObjectParser<T> {
+		T parse(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * Converted objects of one page and link to the next page
+	 *
+	 * @param <T> type of converted object
+	 */
+	public static class Page<T> {
+		private final List<T> objects;
+		private final String nextLink;
+
+		private Page(List<T> objects, String nextLink) {
+			this.objects = objects;
+			this.nextLink = nextLink;
+		}
+
+		public List<T> getObjects() {
+			return objects;
+		}
+
+		/**
+		 * @return URL of next page or null if this is the last page
+		 */
+		public String getNextLink() {
+			return nextLink;
+		}
+	}
+
+	/**
+	 * Graph API returned error for the page
+	 */
+	public static class GraphRequestException extends ConnectorException {
+		private static final long serialVersionUID = 1L;
+
+		private final int responseCode;
+
+		public GraphRequestException(int responseCode, String message) {
+			super(message);
+			this.responseCode = responseCode;
+		}
+
+		public int getResponseCode() {
+			return responseCode;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Ids of members of groups as they were returned by the last group sync. Sync of groups applies members@delta of group
+ * delta to this state, so members of big groups are not loaded again when only few of them changed.
+ * <p>
+ * State is stored next to the {@link MemberIndex}, one file per group with ids of members and flag if the member is
+ * user, so it survives restart of IdM and it's not kept in memory. Names of members are resolved via the index.
+ * Groups which are not in the state are loaded from Graph API once and then they are tracked again. Applying
+ * the same members@delta twice gives the same result, so the state stays correct when IdM repeats the delta round.
+ * State is only a cache, a group whose file can't be read or written is loaded again.
+ */
+public class GroupMembershipState {
+
+	private static final Log LOG = Log.getLog(GroupMembershipState.class);
+
+	private static final String USER = "user";
+	private static final String OBJECT = "object";
+
+	private final Path directory;
+
+	private GroupMembershipState(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param memberIndex index of members for the tenant, can be null
+	 * @return state of group members for the tenant of index, null if index is not configured
+	 */
+	public static GroupMembershipState forIndex(MemberIndex memberIndex) {
+		if (memberIndex == null) {
+			return null;
+		}
+		Path index = memberIndex.getFile();
+		String name = index.getFileName().toString().replaceAll("\\.idx$", "") + ".groups";
+		return new GroupMembershipState(index.resolveSibling(name));
+	}
+
+	/**
+	 * @param groupId id of group
+	 * @return members of group, key is id and value is true for users, null if the group is not tracked
+	 */
+	public Map<String, Boolean> get(String groupId) {
+		Path file = getFile(groupId);
+		if (file == null) {
+			return null;
+		}
+		try {
+			Map<String, Boolean> members = new HashMap<>();
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				int separator = line.indexOf(' ');
+				if (separator < 0) {
+					throw new IOException("Invalid line " + line);
+				}
+				members.put(line.substring(separator + 1), USER.equals(line.substring(0, separator)));
+			}
+			return members;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOG.warn(e, "Members of group {0} can not be read, they will be loaded again", groupId);
+			return null;
+		}
+	}
+
+	/**
+	 * File is written into temporary file and moved, so other sync never reads half written members
+	 *
+	 * @param groupId id of group
+	 * @param members all members of group, key is id and value is true for users
+	 */
+	public void put(String groupId, Map<String, Boolean> members) {
+		Path file = getFile(groupId);
+		if (file == null) {
+			return;
+		}
+		List<String> lines = new ArrayList<>(members.size());
+		members.forEach((id, user) -> lines.add((user ? USER : OBJECT) + " " + id));
+		Path temporary = null;
+		try {
+			Files.createDirectories(directory);
+			temporary = Files.createTempFile(directory, groupId, ".tmp");
+			Files.write(temporary, lines, StandardCharsets.UTF_8);
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn(e, "Members of group {0} can not be stored, they will be loaded again", groupId);
+			delete(temporary);
+			// Old members must not be used with newer delta
+			delete(file);
+		}
+	}
+
+	public void remove(String groupId) {
+		delete(getFile(groupId));
+	}
+
+	/**
+	 * Remove all groups, it's used when delta starts from other point than the state
+	 */
+	public void clear() {
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			files.forEach(this::delete);
+		} catch (IOException e) {
+			LOG.warn(e, "Members of groups in {0} can not be removed", directory);
+		}
+	}
+
+	/**
+	 * @return file for group or null if id of group is not valid file name
+	 */
+	private Path getFile(String groupId) {
+		try {
+			UUID.fromString(groupId);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			return null;
+		}
+		return directory.resolve(groupId);
+	}
+
+	private void delete(Path file) {
+		if (file == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LOG.warn(e, "File {0} can not be removed", file);
+		}
+	}
+}
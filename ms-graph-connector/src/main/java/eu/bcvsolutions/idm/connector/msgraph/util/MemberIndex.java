@@ -0,0 +1,307 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Index of user ids and userPrincipalNames stored in memory-mapped file, so it survives restart of IdM.
+ * It's filled when users are loaded in search or sync and it's used for members and owners of groups,
+ * so we need to load only ids of members from Graph API.
+ * <p>
+ * File contains header, hash table with open addressing (id of user and offset of userPrincipalName) and values.
+ * When userPrincipalName is changed, the new value is appended and the old one stays in file until the table is rebuilt.
+ * Index is only a cache, so the file is created again if it's not valid.
+ */
+public final class MemberIndex {
+
+	private static final Log LOG = Log.getLog(MemberIndex.class);
+
+	private static final int MAGIC = 0x4D474958;
+	private static final int VERSION = 1;
+	// Version is set to this value while table is rebuilt, so we know that the file is broken if IdM stops in the meantime
+	private static final int DIRTY = -1;
+	private static final int HEADER_SIZE = 32;
+	// Most and least significant bits of id, offset of value (0 means empty slot) and 4 unused bytes
+	private static final int SLOT_SIZE = 24;
+	private static final int INITIAL_CAPACITY = 1 << 14;
+	// Expected average size of userPrincipalName with its length
+	private static final int VALUE_SIZE = 48;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	private static final int VERSION_POSITION = 4;
+	private static final int CAPACITY_POSITION = 8;
+	private static final int SIZE_POSITION = 12;
+	private static final int DATA_END_POSITION = 16;
+
+	// File can be mapped only once in JVM, so connector instances for the same tenant share the index
+	private static final Map<Path, MemberIndex> INDEXES = new HashMap<>();
+
+	private final Path file;
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int size;
+	private int dataEnd;
+
+	private MemberIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get index for tenant from configuration
+	 *
+	 * @param configuration configuration of connector
+	 * @return index or null if index is not configured
+	 */
+	public static MemberIndex forConfiguration(GraphConfiguration configuration) {
+		if (StringUtils.isBlank(configuration.getMemberIndexDirectory())) {
+			return null;
+		}
+		String name = configuration.getTenant().toLowerCase().replaceAll("[^a-z0-9.-]", "_") + ".idx";
+		Path path = Paths.get(configuration.getMemberIndexDirectory(), name).toAbsolutePath().normalize();
+		synchronized (INDEXES) {
+			MemberIndex index = INDEXES.get(path);
+			if (index == null) {
+				index = new MemberIndex(path);
+				try {
+					index.open();
+				} catch (IOException e) {
+					// Index is only optimization, members will be loaded with userPrincipalName
+					LOG.warn(e, "Index of members {0} can not be opened", path);
+					return null;
+				}
+				INDEXES.put(path, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @param id id of user
+	 * @return userPrincipalName of user or null if user is not in index
+	 */
+	public synchronized String get(String id) {
+		UUID uuid = toUuid(id);
+		if (uuid == null) {
+			return null;
+		}
+		int slot = findSlot(uuid);
+		int offset = buffer.getInt(slotPosition(slot) + 16);
+		return offset == 0 ? null : readValue(offset);
+	}
+
+	/**
+	 * Add user into index or change his userPrincipalName
+	 *
+	 * @param id                id of user
+	 * @param userPrincipalName userPrincipalName of user
+	 */
+	public synchronized void put(String id, String userPrincipalName) {
+		UUID uuid = toUuid(id);
+		if (uuid == null || StringUtils.isBlank(userPrincipalName)) {
+			return;
+		}
+		byte[] value = userPrincipalName.getBytes(StandardCharsets.UTF_8);
+		if (value.length > Short.MAX_VALUE) {
+			return;
+		}
+		try {
+			int slot = findSlot(uuid);
+			int offset = buffer.getInt(slotPosition(slot) + 16);
+			if (offset != 0) {
+				if (userPrincipalName.equals(readValue(offset))) {
+					return;
+				}
+			} else if (size + 1 > capacity * LOAD_FACTOR) {
+				rebuild(capacity * 2, Collections.singletonMap(uuid, userPrincipalName));
+				return;
+			}
+			if (dataEnd + 2 + value.length > buffer.capacity()) {
+				rebuild(capacity, Collections.singletonMap(uuid, userPrincipalName));
+				return;
+			}
+			// Value is written before the slot points to it
+			int newOffset = writeValue(value);
+			if (offset == 0) {
+				int position = slotPosition(slot);
+				buffer.putLong(position, uuid.getMostSignificantBits());
+				buffer.putLong(position + 8, uuid.getLeastSignificantBits());
+				size++;
+				buffer.putInt(SIZE_POSITION, size);
+			}
+			buffer.putInt(slotPosition(slot) + 16, newOffset);
+		} catch (IOException e) {
+			LOG.warn(e, "User {0} can not be added into index of members", id);
+		}
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Close the file, next call of {@link #forConfiguration(GraphConfiguration)} opens it again
+	 */
+	void close() throws IOException {
+		synchronized (INDEXES) {
+			INDEXES.remove(file);
+		}
+		synchronized (this) {
+			buffer = null;
+			randomAccessFile.close();
+		}
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(file.getParent());
+		randomAccessFile = new RandomAccessFile(file.toFile(), "rw");
+		if (randomAccessFile.length() >= HEADER_SIZE) {
+			map(randomAccessFile.length());
+			if (buffer.getInt(0) == MAGIC && buffer.getInt(VERSION_POSITION) == VERSION) {
+				capacity = buffer.getInt(CAPACITY_POSITION);
+				size = buffer.getInt(SIZE_POSITION);
+				dataEnd = buffer.getInt(DATA_END_POSITION);
+				if (Integer.bitCount(capacity) == 1 && getDataStart(capacity) <= dataEnd && dataEnd <= buffer.capacity()) {
+					LOG.info("Index of members {0} opened with {1} users", file, size);
+					return;
+				}
+			}
+			LOG.warn("Index of members {0} is not valid, it will be created again", file);
+			capacity = 0;
+		}
+		rebuild(INITIAL_CAPACITY, Collections.emptyMap());
+	}
+
+	/**
+	 * Write whole table again with new capacity, old values which are not used anymore are removed.
+	 * File is never shrunk, mapped file can't be truncated on some systems.
+	 */
+	private void rebuild(int newCapacity, Map<UUID, String> additional) throws IOException {
+		Map<UUID, String> entries = readAll();
+		entries.putAll(additional);
+		long data = entries.values().stream().mapToLong(value -> 2 + value.getBytes(StandardCharsets.UTF_8).length).sum();
+		// Values are appended after rebuild, so there must be some free space
+		long required = getDataStart(newCapacity) + Math.max((long) newCapacity * VALUE_SIZE, data * 2);
+		long length = Math.max(required, buffer == null ? 0 : buffer.capacity());
+		LOG.info("Rebuilding index of members {0} with capacity {1}", file, newCapacity);
+
+		if (buffer == null || length > buffer.capacity()) {
+			randomAccessFile.setLength(length);
+			map(length);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(VERSION_POSITION, DIRTY);
+		for (int position = HEADER_SIZE; position < getDataStart(newCapacity); position += 8) {
+			buffer.putLong(position, 0);
+		}
+		capacity = newCapacity;
+		size = 0;
+		dataEnd = getDataStart(newCapacity);
+		entries.forEach((uuid, value) -> {
+			int position = slotPosition(findSlot(uuid));
+			buffer.putLong(position, uuid.getMostSignificantBits());
+			buffer.putLong(position + 8, uuid.getLeastSignificantBits());
+			buffer.putInt(position + 16, writeValue(value.getBytes(StandardCharsets.UTF_8)));
+			size++;
+		});
+		buffer.putInt(CAPACITY_POSITION, capacity);
+		buffer.putInt(SIZE_POSITION, size);
+		buffer.putInt(DATA_END_POSITION, dataEnd);
+		buffer.putInt(VERSION_POSITION, VERSION);
+		buffer.force();
+	}
+
+	private Map<UUID, String> readAll() {
+		Map<UUID, String> entries = new LinkedHashMap<>();
+		if (buffer == null || buffer.getInt(VERSION_POSITION) != VERSION) {
+			return entries;
+		}
+		for (int slot = 0; slot < capacity; slot++) {
+			int position = slotPosition(slot);
+			int offset = buffer.getInt(position + 16);
+			if (offset != 0) {
+				entries.put(new UUID(buffer.getLong(position), buffer.getLong(position + 8)), readValue(offset));
+			}
+		}
+		return entries;
+	}
+
+	private void map(long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Index of members is too big");
+		}
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	/**
+	 * Find slot with the id or empty slot where the id should be stored
+	 */
+	private int findSlot(UUID uuid) {
+		long hash = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+		int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+		while (true) {
+			int position = slotPosition(slot);
+			if (buffer.getInt(position + 16) == 0
+					|| (buffer.getLong(position) == uuid.getMostSignificantBits() && buffer.getLong(position + 8) == uuid.getLeastSignificantBits())) {
+				return slot;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+	}
+
+	private int writeValue(byte[] value) {
+		int offset = dataEnd;
+		buffer.putShort(offset, (short) value.length);
+		for (int i = 0; i < value.length; i++) {
+			buffer.put(offset + 2 + i, value[i]);
+		}
+		dataEnd += 2 + value.length;
+		buffer.putInt(DATA_END_POSITION, dataEnd);
+		return offset;
+	}
+
+	private String readValue(int offset) {
+		byte[] value = new byte[buffer.getShort(offset)];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = buffer.get(offset + 2 + i);
+		}
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static int slotPosition(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static int getDataStart(int capacity) {
+		return slotPosition(capacity);
+	}
+
+	private static UUID toUuid(String id) {
+		if (id == null) {
+			return null;
+		}
+		try {
+			return UUID.fromString(id);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
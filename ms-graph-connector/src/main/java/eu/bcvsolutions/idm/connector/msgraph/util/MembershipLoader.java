@@ -0,0 +1,476 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Loads members and owners for multiple groups or Azure roles at once. First page of members and owners for all
+ * objects is loaded via $batch, only big groups which have more pages need other requests.
+ * <p>
+ * If index of members is configured, only ids of members are loaded and userPrincipalNames are taken from the index.
+ * Users which are not in the index are loaded via $batch and added into it. Members which are not users (e.g. groups,
+ * devices, service principals) are returned as their id.
+ */
+public class MembershipLoader {
+
+	private static final Log LOG = Log.getLog(MembershipLoader.class);
+
+	// Max number of directory objects which Graph API returns in $expand
+	public static final int EXPAND_LIMIT = 20;
+	public static final String MEMBER_SELECT = "$select=id,userPrincipalName";
+	public static final String MEMBER_ID_SELECT = "$select=id";
+	private static final String MEMBERS_PREFIX = "members_";
+	private static final String OWNERS_PREFIX = "owners_";
+	private static final String USER_PREFIX = "user_";
+	private static final String USER_TYPE = "#microsoft.graph.user";
+
+	private final IGraphServiceClient graphClient;
+	private final BatchExecutor batchExecutor;
+	private final MemberIndex memberIndex;
+
+	public MembershipLoader(IGraphServiceClient graphClient, MemberIndex memberIndex) {
+		this.graphClient = graphClient;
+		this.batchExecutor = new BatchExecutor(graphClient);
+		this.memberIndex = memberIndex;
+	}
+
+	/**
+	 * @param memberIndex index of members, can be null
+	 * @return $select for members and owners
+	 */
+	public static String getMemberSelect(MemberIndex memberIndex) {
+		return memberIndex == null ? MEMBER_SELECT : MEMBER_ID_SELECT;
+	}
+
+	/**
+	 * Load members and owners of groups. If group was loaded with $expand of members or owners we will use
+	 * the expanded records, only groups where the expanded list was truncated are loaded via separate requests.
+	 *
+	 * @param groups      groups, they can contain expanded members and owners
+	 * @param loadMembers true if members should be loaded
+	 * @param loadOwners  true if owners should be loaded
+	 * @return membership for every group, key is the id of group
+	 */
+	public Map<String, Membership> loadGroups(List<Group> groups, boolean loadMembers, boolean loadOwners) {
+		Map<String, List<JsonObject>> expandedMembers = new HashMap<>();
+		Map<String, List<JsonObject>> expandedOwners = new HashMap<>();
+		groups.forEach(group -> {
+			expandedMembers.put(group.id, readExpanded(group.getRawObject(), ProjectionPlan.MEMBERS));
+			expandedOwners.put(group.id, readExpanded(group.getRawObject(), ProjectionPlan.OWNERS));
+		});
+		return loadGroups(groups.stream().map(group -> group.id).collect(Collectors.toList()),
+				expandedMembers, expandedOwners, loadMembers, loadOwners);
+	}
+
+	/**
+	 * Load members and owners of groups which were read by {@link StreamingObjectParser}. Expanded lists are used
+	 * the same way as in {@link #loadGroups(List, boolean, boolean)}.
+	 *
+	 * @param groups      groups, they can contain expanded members and owners
+	 * @param loadMembers true if members should be loaded
+	 * @param loadOwners  true if owners should be loaded
+	 * @return membership for every group, key is the id of group
+	 */
+	public Map<String, Membership> loadGroupRecords(List<StreamingObjectParser.GroupRecord> groups, boolean loadMembers, boolean loadOwners) {
+		Map<String, List<JsonObject>> expandedMembers = new HashMap<>();
+		Map<String, List<JsonObject>> expandedOwners = new HashMap<>();
+		groups.forEach(group -> {
+			expandedMembers.put(group.getId(), group.getMembers());
+			expandedOwners.put(group.getId(), group.getOwners());
+		});
+		return loadGroups(groups.stream().map(StreamingObjectParser.GroupRecord::getId).collect(Collectors.toList()),
+				expandedMembers, expandedOwners, loadMembers, loadOwners);
+	}
+
+	/**
+	 * @param ids             ids of groups
+	 * @param expandedMembers complete lists of expanded members, null value if members must be loaded
+	 * @param expandedOwners  complete lists of expanded owners, null value if owners must be loaded
+	 */
+	private Map<String, Membership> loadGroups(List<String> ids, Map<String, List<JsonObject>> expandedMembers,
+											   Map<String, List<JsonObject>> expandedOwners, boolean loadMembers, boolean loadOwners) {
+		Map<String, List<JsonObject>> members = new HashMap<>();
+		Map<String, List<JsonObject>> owners = new HashMap<>();
+		List<String> fetchMembers = new ArrayList<>();
+		List<String> fetchOwners = new ArrayList<>();
+		ids.forEach(id -> {
+			if (loadMembers) {
+				List<JsonObject> expanded = expandedMembers.get(id);
+				if (expanded == null) {
+					fetchMembers.add(id);
+				} else {
+					members.put(id, expanded);
+				}
+			}
+			if (loadOwners) {
+				List<JsonObject> expanded = expandedOwners.get(id);
+				if (expanded == null) {
+					fetchOwners.add(id);
+				} else {
+					owners.put(id, expanded);
+				}
+			}
+		});
+		fetch("/groups/", fetchMembers, fetchOwners, members, owners);
+		return toMemberships(ids, members, owners);
+	}
+
+	/**
+	 * Load members of Azure roles
+	 *
+	 * @param roleIds identifications of roles
+	 * @return membership for every role, key is the id of role
+	 */
+	public Map<String, Membership> loadAzureRoles(List<String> roleIds) {
+		Map<String, List<JsonObject>> members = new HashMap<>();
+		fetch("/directoryRoles/", roleIds, Collections.emptyList(), members, Collections.emptyMap());
+		return toMemberships(roleIds, members, Collections.emptyMap());
+	}
+
+	/**
+	 * Load first pages of members and owners via batch
+	 *
+	 * @param resource  path to resource e.g. /groups/
+	 * @param memberIds ids of objects for which we need to load members
+	 * @param ownerIds  ids of objects for which we need to load owners
+	 * @param members   loaded members will be put here, key is the id of object
+	 * @param owners    loaded owners will be put here, key is the id of object
+	 */
+	private void fetch(String resource, List<String> memberIds, List<String> ownerIds, Map<String, List<JsonObject>> members, Map<String, List<JsonObject>> owners) {
+		if (memberIds.isEmpty() && ownerIds.isEmpty()) {
+			return;
+		}
+
+		String select = getMemberSelect(memberIndex);
+		List<BatchStep> steps = new ArrayList<>();
+		memberIds.forEach(id -> steps.add(BatchStep.get(MEMBERS_PREFIX + id, resource + id + "/members?" + select)));
+		ownerIds.forEach(id -> steps.add(BatchStep.get(OWNERS_PREFIX + id, resource + id + "/owners?" + select)));
+
+		LOG.info("Loading members for {0} and owners for {1} objects", memberIds.size(), ownerIds.size());
+		Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+		memberIds.forEach(id -> members.put(id, readAll(responses.get(MEMBERS_PREFIX + id))));
+		ownerIds.forEach(id -> owners.put(id, readAll(responses.get(OWNERS_PREFIX + id))));
+	}
+
+	/**
+	 * Read records which were expanded into the object
+	 *
+	 * @param object   raw JSON of object
+	 * @param property name of expanded property
+	 * @return List of records or null if property was not expanded or the expanded list is not complete
+	 */
+	private List<JsonObject> readExpanded(JsonObject object, String property) {
+		if (object == null || !object.has(property) || !object.get(property).isJsonArray()) {
+			return null;
+		}
+		JsonArray expanded = object.getAsJsonArray(property);
+		if (expanded.size() >= EXPAND_LIMIT || object.has(property + "@odata.nextLink")) {
+			// Graph API returns only first records in $expand, we need to load the whole list
+			return null;
+		}
+		List<JsonObject> records = new ArrayList<>();
+		for (JsonElement element : expanded) {
+			records.add(element.getAsJsonObject());
+		}
+		return records;
+	}
+
+	/**
+	 * Read records from response of batch and load the rest of pages if there are some
+	 *
+	 * @param response response for one step from batch
+	 * @return List of records
+	 */
+	private List<JsonObject> readAll(BatchResponse response) {
+		response.checkSuccess();
+		JsonObject body = response.getBodyAsObject();
+
+		List<JsonObject> records = new ArrayList<>();
+		for (JsonElement element : body.getAsJsonArray("value")) {
+			records.add(element.getAsJsonObject());
+		}
+
+		if (body.has("@odata.nextLink")) {
+			LOG.info("Loading next pages of members for {0}", response.getId());
+			// Big groups have many pages, so only id, userPrincipalName and type are kept from every member
+			GraphPageReader pageReader = GraphPageReader.forClient(graphClient);
+			String nextLink = body.get("@odata.nextLink").getAsString();
+			while (nextLink != null) {
+				GraphPageReader.Page<JsonObject> page = pageReader.read(nextLink, null, StreamingObjectParser::parseMember);
+				records.addAll(page.getObjects());
+				nextLink = page.getNextLink();
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Convert loaded records to names of members. Users which are not in index are loaded at once for all objects.
+	 *
+	 * @param ids     ids of objects in the same order as they were requested
+	 * @param members loaded members, key is the id of object
+	 * @param owners  loaded owners, key is the id of object
+	 * @return membership for every object
+	 */
+	private Map<String, Membership> toMemberships(List<String> ids, Map<String, List<JsonObject>> members, Map<String, List<JsonObject>> owners) {
+		Map<String, String> names = resolveNames(Stream.concat(members.values().stream(), owners.values().stream())
+				.flatMap(List::stream)
+				.collect(Collectors.toList()));
+
+		Map<String, Membership> memberships = new HashMap<>();
+		ids.forEach(id -> {
+			memberships.put(id, new Membership(toNames(members.get(id), names), toNames(owners.get(id), names),
+					toIds(members.get(id), names), toIds(owners.get(id), names)));
+		});
+		return memberships;
+	}
+
+	private static List<String> toNames(List<JsonObject> records, Map<String, String> names) {
+		if (records == null) {
+			return null;
+		}
+		return records.stream()
+				.map(record -> names.get(record.get("id").getAsString()))
+				.collect(Collectors.toList());
+	}
+
+	private static Map<String, String> toIds(List<JsonObject> records, Map<String, String> names) {
+		if (records == null) {
+			return null;
+		}
+		Map<String, String> ids = new HashMap<>();
+		records.forEach(record -> {
+			String id = record.get("id").getAsString();
+			ids.put(names.get(id), id);
+		});
+		return ids;
+	}
+
+	/**
+	 * Get ids of members from their names which we return in members and owners attributes. Name is id for other
+	 * objects than users, so only userPrincipalNames are loaded via $batch.
+	 *
+	 * @param names names of members
+	 * @return ids, key is the name of member
+	 */
+	public Map<String, String> resolveIds(Collection<String> names) {
+		Map<String, String> ids = new HashMap<>();
+		List<BatchStep> steps = new ArrayList<>();
+		for (String name : names) {
+			if (isId(name)) {
+				ids.put(name, name);
+			} else {
+				try {
+					String encodedName = URLEncoder.encode(name, StandardCharsets.UTF_8.toString());
+					steps.add(BatchStep.get(USER_PREFIX + name, "/users/" + encodedName + "?" + MEMBER_SELECT));
+				} catch (UnsupportedEncodingException e) {
+					throw new ConnectorException("Resolving of members failed: ", e);
+				}
+			}
+		}
+		if (steps.isEmpty()) {
+			return ids;
+		}
+
+		LOG.info("Loading ids of {0} members", steps.size());
+		Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+		for (BatchStep step : steps) {
+			BatchResponse response = responses.get(step.getId());
+			String name = step.getId().substring(USER_PREFIX.length());
+			if (response.getStatus() == 404) {
+				throw new ConnectorException("Member " + name + " does not exist");
+			}
+			response.checkSuccess();
+			String id = response.getBodyAsObject().get("id").getAsString();
+			ids.put(name, id);
+			if (memberIndex != null) {
+				memberIndex.put(id, name);
+			}
+		}
+		return ids;
+	}
+
+	private static boolean isId(String name) {
+		try {
+			UUID.fromString(name);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get names of members from records of members@delta in group delta, they contain only id and type of member.
+	 * UserPrincipalNames are taken from the index, other users are loaded via $batch.
+	 *
+	 * @param records records of members@delta
+	 * @return names, key is the id of member
+	 */
+	public Map<String, String> resolveMemberNames(List<JsonObject> records) {
+		return records.isEmpty() ? new HashMap<>() : resolveNames(records);
+	}
+
+	/**
+	 * Get names of members which are stored only by their ids, see {@link GroupMembershipState}
+	 *
+	 * @param members key is the id of member, value is true for users
+	 * @return names, key is the id of member
+	 */
+	public Map<String, String> resolveMemberNames(Map<String, Boolean> members) {
+		List<JsonObject> records = new ArrayList<>(members.size());
+		members.forEach((id, user) -> {
+			JsonObject record = new JsonObject();
+			record.addProperty("id", id);
+			if (user) {
+				record.addProperty("@odata.type", USER_TYPE);
+			}
+			records.add(record);
+		});
+		return resolveMemberNames(records);
+	}
+
+	/**
+	 * Get name for every record, it's userPrincipalName for users and id for other objects
+	 *
+	 * @param records members and owners
+	 * @return names, key is the id of record
+	 */
+	private Map<String, String> resolveNames(List<JsonObject> records) {
+		Map<String, String> names = new HashMap<>();
+		Set<String> missing = new LinkedHashSet<>();
+		for (JsonObject record : records) {
+			String id = record.get("id").getAsString();
+			if (names.containsKey(id)) {
+				continue;
+			}
+			if (record.has("userPrincipalName") && !record.get("userPrincipalName").isJsonNull()) {
+				String userPrincipalName = record.get("userPrincipalName").getAsString();
+				names.put(id, userPrincipalName);
+				if (memberIndex != null) {
+					memberIndex.put(id, userPrincipalName);
+				}
+			} else if (isUser(record)) {
+				String userPrincipalName = memberIndex == null ? null : memberIndex.get(id);
+				if (userPrincipalName == null) {
+					missing.add(id);
+				} else {
+					names.put(id, userPrincipalName);
+				}
+			} else {
+				// Only users have userPrincipalName, other members are identified by id
+				names.put(id, id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			names.putAll(loadUserNames(missing));
+		}
+		return names;
+	}
+
+	/**
+	 * Load userPrincipalNames of users which are not in index and add them into the index if it's configured
+	 */
+	private Map<String, String> loadUserNames(Set<String> ids) {
+		LOG.info("Loading {0} members which are not in index", ids.size());
+		List<BatchStep> steps = new ArrayList<>();
+		ids.forEach(id -> steps.add(BatchStep.get(USER_PREFIX + id, "/users/" + id + "?" + MEMBER_SELECT)));
+		Map<String, BatchResponse> responses = batchExecutor.execute(steps);
+
+		Map<String, String> names = new HashMap<>();
+		ids.forEach(id -> {
+			BatchResponse response = responses.get(USER_PREFIX + id);
+			if (response.getStatus() == 404) {
+				// User was removed in the meantime
+				names.put(id, id);
+				return;
+			}
+			response.checkSuccess();
+			JsonElement userPrincipalName = response.getBodyAsObject().get("userPrincipalName");
+			if (userPrincipalName == null || userPrincipalName.isJsonNull()) {
+				names.put(id, id);
+				return;
+			}
+			names.put(id, userPrincipalName.getAsString());
+			if (memberIndex != null) {
+				memberIndex.put(id, userPrincipalName.getAsString());
+			}
+		});
+		return names;
+	}
+
+	/**
+	 * @param record member or owner with @odata.type
+	 * @return true if the record is user
+	 */
+	public static boolean isUser(JsonObject record) {
+		return record.has("@odata.type") && USER_TYPE.equals(record.get("@odata.type").getAsString());
+	}
+
+	/**
+	 * Members and owners of one group, null means that the list was not loaded
+	 */
+	public static class Membership {
+		private final List<String> members;
+		private final List<String> owners;
+		private final Map<String, String> memberIds;
+		private final Map<String, String> ownerIds;
+
+		/**
+		 * @param members   names of members, null if they were not loaded
+		 * @param owners    names of owners, null if they were not loaded
+		 * @param memberIds ids of members, key is the name of member
+		 * @param ownerIds  ids of owners, key is the name of owner
+		 */
+		public Membership(List<String> members, List<String> owners, Map<String, String> memberIds, Map<String, String> ownerIds) {
+			this.members = members;
+			this.owners = owners;
+			this.memberIds = memberIds;
+			this.ownerIds = ownerIds;
+		}
+
+		public List<String> getMembers() {
+			return members;
+		}
+
+		public List<String> getOwners() {
+			return owners;
+		}
+
+		/**
+		 * @return ids of members, key is the name of member
+		 */
+		public Map<String, String> getMemberIds() {
+			return memberIds;
+		}
+
+		/**
+		 * @return ids of owners, key is the name of owner
+		 */
+		public Map<String, String> getOwnerIds() {
+			return ownerIds;
+		}
+	}
+}
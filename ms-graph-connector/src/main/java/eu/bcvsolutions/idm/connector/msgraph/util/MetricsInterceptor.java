@@ -0,0 +1,88 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Records every request to Graph API into {@link GraphMetrics} of the current operation. It's the last interceptor,
+ * so every attempt of throttled or failed request is recorded.
+ */
+public class MetricsInterceptor implements Interceptor {
+
+	// Segments after these collections are ids of objects
+	private static final Set<String> COLLECTIONS = new HashSet<>(Arrays.asList("users", "groups", "directoryRoles",
+			"directoryObjects", "members", "owners", "subscribedSkus", "invitations"));
+	private static final Pattern VERSION = Pattern.compile("v\\d+\\.\\d+|beta");
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		GraphMetrics metrics = GraphMetrics.current();
+		if (metrics == null) {
+			return chain.proceed(chain.request());
+		}
+
+		Request request = chain.request();
+		String endpoint = getEndpoint(request);
+		long start = System.nanoTime();
+		Response response;
+		try {
+			response = chain.proceed(request);
+		} catch (IOException e) {
+			metrics.recordRequest(endpoint, -1, (System.nanoTime() - start) / 1_000_000);
+			throw e;
+		}
+		metrics.recordRequest(endpoint, response.code(), (System.nanoTime() - start) / 1_000_000);
+
+		ResponseBody body = response.body();
+		if (body == null) {
+			return response;
+		}
+		// Body is read later by caller, so bytes are counted while it's read
+		BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+			@Override
+			public long read(Buffer sink, long byteCount) throws IOException {
+				long read = super.read(sink, byteCount);
+				if (read > 0) {
+					metrics.recordBytes(endpoint, read);
+				}
+				return read;
+			}
+		});
+		return response.newBuilder()
+				.body(ResponseBody.create(source, body.contentType(), body.contentLength()))
+				.build();
+	}
+
+	/**
+	 * Name of endpoint is HTTP method and path without version, ids of objects are replaced by {id}
+	 */
+	static String getEndpoint(Request request) {
+		List<String> segments = request.url().pathSegments();
+		StringBuilder endpoint = new StringBuilder(request.method()).append(' ');
+		String previous = null;
+		for (int i = 0; i < segments.size(); i++) {
+			String segment = segments.get(i);
+			if (i == 0 && VERSION.matcher(segment).matches()) {
+				continue;
+			}
+			endpoint.append('/').append(previous != null && COLLECTIONS.contains(previous) && !segment.startsWith("$") ? "{id}" : segment);
+			previous = segment;
+		}
+		return endpoint.toString();
+	}
+}
@@ -0,0 +1,48 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.concurrent.Callable;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * {@link RetryPolicy} and {@link GraphMetrics} of connector operation. They are bound to the thread which executes
+ * the operation, tasks which are executed by pooled threads (bulk executor, loading of next pages) must bind them
+ * explicitly, so they use policy and metrics of the operation which submitted them and nothing is left in the pooled thread.
+ */
+public final class OperationContext {
+
+	private final RetryPolicy retryPolicy;
+	private final GraphMetrics metrics;
+
+	private OperationContext(RetryPolicy retryPolicy, GraphMetrics metrics) {
+		this.retryPolicy = retryPolicy;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return context of operation executed by the current thread
+	 */
+	public static OperationContext capture() {
+		return new OperationContext(RetryPolicy.bound(), GraphMetrics.current());
+	}
+
+	/**
+	 * @param task task which should be executed in this context
+	 * @return task which binds the context to the thread which executes it and removes it when the task ends
+	 */
+	public <T> Callable<T> wrap(Callable<T> task) {
+		return () -> {
+			RetryPolicy previousPolicy = RetryPolicy.bound();
+			RetryPolicy.bind(retryPolicy);
+			GraphMetrics.Scope scope = metrics == null ? null : metrics.bind();
+			try {
+				return task.call();
+			} finally {
+				if (scope != null) {
+					scope.close();
+				}
+				RetryPolicy.bind(previousPolicy);
+			}
+		};
+	}
+}
@@ -0,0 +1,150 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Loads next pages in background while the current page is processed. Only limited number of pages is loaded
+ * in advance, so if processing is slow the loading waits until some page is taken.
+ * <p>
+ * Pages are loaded by threads of one executor shared by all searches, it has limited number of threads. When all
+ * of them are busy, the search loads pages without prefetch. Loading is cancelled when the prefetcher is closed.
+ *
+ * @param <P> type of page
+ */
+public class PagePrefetcher<P> implements Iterator<P>, AutoCloseable {
+
+	private static final Log LOG = Log.getLog(PagePrefetcher.class);
+
+	private static final Object END = new Object();
+	private static final int MAX_LOADERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+	private static final long LOADER_KEEP_ALIVE = TimeUnit.MINUTES.toMillis(1);
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+	private static final ThreadPoolExecutor LOADERS = new ThreadPoolExecutor(0, MAX_LOADERS, LOADER_KEEP_ALIVE,
+			TimeUnit.MILLISECONDS, new SynchronousQueue<>(), runnable -> {
+		Thread thread = new Thread(runnable, "graph-page-prefetch-" + THREAD_COUNTER.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Pages in the queue and the page which is being loaded, the end of pages has its own place
+	private final BlockingQueue<Object> queue;
+	// Loader takes permit before it loads next page, consumer returns it when it takes page from the queue
+	private final Semaphore permits;
+	private Future<?> loader;
+	private volatile boolean closed;
+	private Object next;
+
+	private PagePrefetcher(int lookAhead) {
+		this.queue = new ArrayBlockingQueue<>(lookAhead + 1);
+		// The first page is already loaded and it takes one place
+		this.permits = new Semaphore(lookAhead - 1);
+	}
+
+	/**
+	 * @param firstPage first page which is already loaded
+	 * @param nextPage  function which loads next page or returns null if there is no other page
+	 * @param lookAhead max number of pages which are loaded in advance
+	 * @return prefetcher or null if all loaders are busy and pages should be loaded without prefetch
+	 */
+	public static <P> PagePrefetcher<P> start(P firstPage, Function<P, P> nextPage, int lookAhead) {
+		PagePrefetcher<P> prefetcher = new PagePrefetcher<>(Math.max(1, lookAhead));
+		try {
+			// Loader sends requests for the operation which started the search
+			prefetcher.loader = LOADERS.submit(OperationContext.capture().wrap(() -> {
+				prefetcher.load(firstPage, nextPage);
+				return null;
+			}));
+		} catch (RejectedExecutionException e) {
+			LOG.info("All {0} loaders of pages are busy", MAX_LOADERS);
+			return null;
+		}
+		return prefetcher;
+	}
+
+	private void load(P firstPage, Function<P, P> nextPage) {
+		Object result = END;
+		try {
+			P page = firstPage;
+			while (page != null) {
+				queue.add(page);
+				permits.acquire();
+				if (closed) {
+					return;
+				}
+				page = nextPage.apply(page);
+			}
+		} catch (InterruptedException e) {
+			// Processing was stopped, nobody waits for other pages
+			return;
+		} catch (RuntimeException e) {
+			if (closed) {
+				return;
+			}
+			LOG.error("Loading of next page failed", e);
+			result = new Failure(e);
+		}
+		queue.add(result);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ConnectorException("Waiting for next page was interrupted", e);
+			}
+			permits.release();
+		}
+		if (next instanceof Failure) {
+			throw ((Failure) next).exception;
+		}
+		return next != END;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public P next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		P page = (P) next;
+		next = null;
+		return page;
+	}
+
+	/**
+	 * Stop loading of other pages, the loader is interrupted if it waits for the response or for free place
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		loader.cancel(true);
+		queue.clear();
+	}
+
+	private static class Failure {
+		private final RuntimeException exception;
+
+		private Failure(RuntimeException exception) {
+			this.exception = exception;
+		}
+	}
+}
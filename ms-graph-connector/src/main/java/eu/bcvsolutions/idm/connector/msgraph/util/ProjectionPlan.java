@@ -0,0 +1,160 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Decides which attributes we need to load from Graph API based on attributesToGet from OperationOptions.
+ * If attributesToGet are not set we will load everything as before. Attributes which can be selected are taken
+ * from {@link SchemaService}, so extension attributes are loaded in the same request as other attributes.
+ */
+public final class ProjectionPlan {
+
+	public static final String ASSIGNED_LICENSES = "assignedLicenses";
+	public static final String MEMBERS = "members";
+	public static final String OWNERS = "owners";
+
+	// null means that all attributes are requested
+	private final Set<String> attributesToGet;
+	private final SchemaService schema;
+
+	private ProjectionPlan(Set<String> attributesToGet, SchemaService schema) {
+		this.attributesToGet = attributesToGet;
+		this.schema = schema;
+	}
+
+	/**
+	 * Create plan from operation options for schema without directory extensions
+	 *
+	 * @param options operation options, can be null
+	 * @return plan for search
+	 */
+	public static ProjectionPlan of(OperationOptions options) {
+		return of(options, SchemaService.defaultService());
+	}
+
+	/**
+	 * Create plan from operation options
+	 *
+	 * @param options operation options, can be null
+	 * @param schema  schema for configuration of connector
+	 * @return plan for search
+	 */
+	public static ProjectionPlan of(OperationOptions options, SchemaService schema) {
+		if (options == null || options.getAttributesToGet() == null) {
+			return all(schema);
+		}
+		return new ProjectionPlan(new LinkedHashSet<>(Arrays.asList(options.getAttributesToGet())), schema);
+	}
+
+	/**
+	 * Plan which loads all attributes of schema without directory extensions
+	 *
+	 * @return plan for search
+	 */
+	public static ProjectionPlan all() {
+		return all(SchemaService.defaultService());
+	}
+
+	/**
+	 * Plan which loads all attributes
+	 *
+	 * @param schema schema for configuration of connector
+	 * @return plan for search
+	 */
+	public static ProjectionPlan all(SchemaService schema) {
+		return new ProjectionPlan(null, schema);
+	}
+
+	public SchemaService getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return true if caller didn't limit attributes
+	 */
+	public boolean isAllRequested() {
+		return attributesToGet == null;
+	}
+
+	/**
+	 * @param attribute attribute name
+	 * @return true if attribute should be returned to caller
+	 */
+	public boolean isRequested(String attribute) {
+		return attributesToGet == null || attributesToGet.contains(attribute);
+	}
+
+	public boolean isLoadLicenses() {
+		return isRequested(ASSIGNED_LICENSES);
+	}
+
+	public boolean isLoadMembers() {
+		return isRequested(MEMBERS);
+	}
+
+	public boolean isLoadOwners() {
+		return isRequested(OWNERS);
+	}
+
+	/**
+	 * $select for one user. If all attributes are requested we will select all attributes from schema.
+	 * Licenses are selected via assignedLicenses, so we don't need to load licenseDetails.
+	 *
+	 * @return value for $select
+	 */
+	public String getUserSelect() {
+		if (isAllRequested()) {
+			return schema.getUserSelect();
+		}
+		Set<String> select = select(schema.getUserAttributes(), "id", "userPrincipalName");
+		schema.getUserExtensions().addSelect(select, this);
+		if (isLoadLicenses()) {
+			select.add(ASSIGNED_LICENSES);
+		}
+		return StringUtils.join(select, ',');
+	}
+
+	/**
+	 * $select for list of users. If all attributes are requested we return null and API default attributes will be returned,
+	 * unless there are directory extensions in schema.
+	 *
+	 * @return value for $select or null
+	 */
+	public String getUserListSelect() {
+		if (isAllRequested()) {
+			return schema.getUserListSelect();
+		}
+		return getUserSelect();
+	}
+
+	/**
+	 * $select for groups. If all attributes are requested we return null and API default attributes will be returned,
+	 * unless there are directory extensions in schema.
+	 *
+	 * @return value for $select or null
+	 */
+	public String getGroupSelect() {
+		if (isAllRequested()) {
+			return schema.getGroupListSelect();
+		}
+		Set<String> select = select(schema.getGroupAttributes(), "id");
+		schema.getGroupExtensions().addSelect(select, this);
+		return StringUtils.join(select, ',');
+	}
+
+	private Set<String> select(Collection<String> available, String... mandatory) {
+		Set<String> select = new LinkedHashSet<>(Arrays.asList(mandatory));
+		available.stream()
+				.filter(this::isRequested)
+				.forEach(select::add);
+		return select;
+	}
+}
@@ -0,0 +1,74 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Sends failed requests to Graph API again according to {@link RetryPolicy} of the current operation.
+ * POST requests marked by {@link #IDEMPOTENT_HEADER} are sent again like GET, the header is not sent to Graph API.
+ * DELETE which gets 404 after it was sent again is returned as successful, the object was deleted by previous attempt.
+ */
+public class RetryInterceptor implements Interceptor {
+
+	private static final Log LOG = Log.getLog(RetryInterceptor.class);
+
+	public static final String IDEMPOTENT_HEADER = "X-Connector-Idempotent";
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		RetryPolicy policy = RetryPolicy.current();
+		boolean idempotent = chain.request().header(IDEMPOTENT_HEADER) != null;
+		Request request = idempotent ? chain.request().newBuilder().removeHeader(IDEMPOTENT_HEADER).build() : chain.request();
+		for (int attempt = 1; ; attempt++) {
+			Response response;
+			try {
+				response = chain.proceed(request);
+			} catch (IOException e) {
+				if (!policy.shouldRetry(request.method(), idempotent, -1, attempt)) {
+					throw e;
+				}
+				LOG.warn("Request {0} {1} failed: {2}", request.method(), request.url().encodedPath(), e.getMessage());
+				sleep(policy.getDelay(attempt));
+				continue;
+			}
+
+			if (policy.isAlreadyDeleted(request.method(), response.code(), attempt)) {
+				LOG.info("Request {0} {1} was processed by previous attempt", request.method(), request.url().encodedPath());
+				response.close();
+				return response.newBuilder()
+						.code(204)
+						.message("No Content")
+						.removeHeader("Content-Type")
+						.removeHeader("Content-Length")
+						.body(ResponseBody.create(new byte[0], null))
+						.build();
+			}
+			if (!policy.shouldRetry(request.method(), idempotent, response.code(), attempt)) {
+				return response;
+			}
+			long delay = policy.getDelay(attempt);
+			LOG.info("Request {0} {1} failed with status {2}, it will be sent again after {3} ms",
+					request.method(), request.url().encodedPath(), response.code(), delay);
+			response.close();
+			sleep(delay);
+		}
+	}
+
+	private void sleep(long delay) {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Waiting for retry was interrupted", e);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Policy for sending failed requests again. Every connector operation uses its own policy which is valid for all
+ * requests sent from the thread until the policy is closed, tasks executed by other threads get it from
+ * {@link OperationContext}. Delay between attempts grows
+ * exponentially, random jitter is used so requests from more threads are not sent again at the same time.
+ * <p>
+ * Requests which can change something are never sent again if we don't know if they were processed, so POST is sent
+ * again only after 404 in create operation (user was just created and Graph API doesn't see it yet) or when it's
+ * marked as idempotent ($batch with only GET requests). Throttled requests are sent again by {@link ThrottlingInterceptor}.
+ * <p>
+ * DELETE which failed on network error or 5xx could be processed, so 404 of the next attempt means that the object
+ * was deleted by the previous one.
+ */
+public final class RetryPolicy implements AutoCloseable {
+
+	/**
+	 * Type of connector operation
+	 */
+	public enum Operation {
+		READ, CREATE, UPDATE, DELETE
+	}
+
+	private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+	private static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, false);
+	private static final ThreadLocal<RetryPolicy> CURRENT = new ThreadLocal<>();
+
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final boolean retryNotFound;
+	private final boolean deleteOperation;
+	private RetryPolicy previous;
+
+	private RetryPolicy(int maxAttempts, long baseDelay, boolean retryNotFound) {
+		this(maxAttempts, baseDelay, retryNotFound, false);
+	}
+
+	private RetryPolicy(int maxAttempts, long baseDelay, boolean retryNotFound, boolean deleteOperation) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.retryNotFound = retryNotFound;
+		this.deleteOperation = deleteOperation;
+	}
+
+	/**
+	 * Use policy for operation in the current thread. Policy must be closed when operation ends, so use it in
+	 * try-with-resources.
+	 *
+	 * @param operation     type of operation
+	 * @param configuration configuration of connector
+	 * @return policy which is used now
+	 */
+	public static RetryPolicy apply(Operation operation, GraphConfiguration configuration) {
+		RetryPolicy policy;
+		switch (operation) {
+			case CREATE:
+				// Objects which we just created are not visible in whole directory immediately, 404 is expected
+				policy = new RetryPolicy(configuration.getCreateMaxAttempts(), configuration.getRetryBaseDelay(), true);
+				break;
+			case UPDATE:
+				policy = new RetryPolicy(configuration.getUpdateMaxAttempts(), configuration.getRetryBaseDelay(), false);
+				break;
+			case DELETE:
+				policy = new RetryPolicy(configuration.getUpdateMaxAttempts(), configuration.getRetryBaseDelay(), false, true);
+				break;
+			default:
+				policy = new RetryPolicy(configuration.getReadMaxAttempts(), configuration.getRetryBaseDelay(), false);
+		}
+		policy.previous = CURRENT.get();
+		CURRENT.set(policy);
+		return policy;
+	}
+
+	/**
+	 * @return policy for the current thread
+	 */
+	public static RetryPolicy current() {
+		RetryPolicy policy = CURRENT.get();
+		return policy == null ? DEFAULT : policy;
+	}
+
+	/**
+	 * @return policy bound to the current thread or null if there is none
+	 */
+	static RetryPolicy bound() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * @param policy policy which should be bound to the current thread, null removes it
+	 */
+	static void bind(RetryPolicy policy) {
+		if (policy == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(policy);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * Decide if request should be sent again
+	 *
+	 * @param method  HTTP method of request
+	 * @param status  status of response, -1 if response was not received
+	 * @param attempt number of attempt which failed, starts from 1
+	 * @return true if request should be sent again
+	 */
+	public boolean shouldRetry(String method, int status, int attempt) {
+		return shouldRetry(method, false, status, attempt);
+	}
+
+	/**
+	 * Decide if request should be sent again
+	 *
+	 * @param method     HTTP method of request
+	 * @param idempotent true if request can be sent more times even if it's POST, e.g. $batch with only GET requests
+	 * @param status     status of response, -1 if response was not received
+	 * @param attempt    number of attempt which failed, starts from 1
+	 * @return true if request should be sent again
+	 */
+	public boolean shouldRetry(String method, boolean idempotent, int status, int attempt) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+		if (status == 404) {
+			// Request was not processed, so it's safe to send it again
+			return retryNotFound;
+		}
+		if (status == -1 || status == 502 || status == 503 || status == 504) {
+			// We don't know if request was processed, so only requests which can be sent more times are sent again
+			return idempotent || !"POST".equals(method);
+		}
+		return false;
+	}
+
+	/**
+	 * Decide if failed request was already processed by previous attempt
+	 *
+	 * @param method  HTTP method of request
+	 * @param status  status of response
+	 * @param attempt number of attempt, starts from 1
+	 * @return true if DELETE was sent again and the object doesn't exist anymore
+	 */
+	public boolean isAlreadyDeleted(String method, int status, int attempt) {
+		return deleteOperation && status == 404 && attempt > 1 && "DELETE".equals(method);
+	}
+
+	/**
+	 * Get delay before next attempt
+	 *
+	 * @param attempt number of attempt which failed, starts from 1
+	 * @return delay in milliseconds
+	 */
+	public long getDelay(int attempt) {
+		long maxDelay = Math.min(MAX_DELAY, baseDelay * (1L << Math.min(attempt - 1, 20)));
+		return ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1);
+	}
+}
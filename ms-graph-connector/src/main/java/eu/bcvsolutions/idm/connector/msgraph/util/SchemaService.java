@@ -0,0 +1,354 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptionInfo;
+import org.identityconnectors.framework.common.objects.OperationOptionInfoBuilder;
+import org.identityconnectors.framework.common.objects.Schema;
+import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.spi.operations.SearchOp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.models.extensions.User;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.GraphConnector;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Schema of connector and everything derived from it: attributes which can be put into $select, cached values
+ * of $select for all attributes and mappers of extension attributes. It's built only once per configuration,
+ * so IdM can call schema() often and search doesn't inspect SDK classes again.
+ * <p>
+ * Directory schema extensions are loaded from Graph API only when it's enabled in configuration. They are kept
+ * in memory and optionally in file, one file per tenant, so they are not loaded after every restart of IdM.
+ * Both caches expire after {@link #CACHE_TTL}, so new extensions registered in tenant appear in schema later.
+ * When extensions can't be loaded, previous ones are used and loading is tried again after {@link #RETRY_DELAY}.
+ */
+public final class SchemaService {
+
+	private static final Log LOG = Log.getLog(SchemaService.class);
+
+	private static final long CACHE_TTL = TimeUnit.HOURS.toMillis(24);
+	private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(5);
+	private static final String EXTENSIONS_URL = "/directoryObjects/getAvailableExtensionProperties";
+	private static final String LOADED = "loaded";
+	private static final String VALUE = "value";
+	// Attributes which Graph API returns only for one object, list of objects with them in $select fails
+	private static final Set<String> SINGLE_OBJECT_ATTRS = new LinkedHashSet<>(Arrays.asList("aboutMe", "mySite", "preferredName",
+			"allowExternalSenders", "autoSubscribeNewMembers", "hideFromAddressLists", "hideFromOutlookClients", "isSubscribedByMail",
+			"unseenCount"));
+
+	// Basic attributes of users and groups which we are able to put into $select
+	private static final List<String> USER_ATTRS = Collections.unmodifiableList(Arrays.stream(User.class.getDeclaredFields())
+			.filter(Utils::isBasicDataType)
+			.map(Field::getName)
+			.filter(name -> !"deviceEnrollmentLimit".equals(name))
+			.collect(Collectors.toList()));
+	private static final List<String> GROUP_ATTRS = Collections.unmodifiableList(Arrays.stream(Group.class.getDeclaredFields())
+			.filter(Utils::isBasicDataType)
+			.map(Field::getName)
+			.collect(Collectors.toList()));
+	// Options of paged search, see buildSchema()
+	private static final List<OperationOptionInfo> SEARCH_OPTIONS = Collections.unmodifiableList(Arrays.asList(
+			OperationOptionInfoBuilder.buildAttributesToGet(), OperationOptionInfoBuilder.buildPageSize(),
+			OperationOptionInfoBuilder.buildPagedResultsCookie(), OperationOptionInfoBuilder.buildSortKeys()));
+
+	private static final SchemaService DEFAULT = new SchemaService(Collections.emptyList(), Collections.emptyList(), 0, Long.MAX_VALUE);
+	private static final Map<String, SchemaService> SERVICES = new ConcurrentHashMap<>();
+
+	private final Schema schema;
+	private final ExtensionMapper userExtensions;
+	private final ExtensionMapper groupExtensions;
+	private final String userSelect;
+	private final String userListSelect;
+	private final String groupSelect;
+	private final String groupListSelect;
+	// Time when extensions were loaded from Graph API, 0 if they were never loaded
+	private final long loaded;
+	// Time when extensions are loaded again
+	private final long expires;
+
+	private SchemaService(List<ExtensionMapper.DirectoryExtension> userDirectoryExtensions,
+						  List<ExtensionMapper.DirectoryExtension> groupDirectoryExtensions, long loaded, long expires) {
+		this.userExtensions = new ExtensionMapper(true, userDirectoryExtensions);
+		this.groupExtensions = new ExtensionMapper(false, groupDirectoryExtensions);
+		this.loaded = loaded;
+		this.expires = expires;
+		this.schema = buildSchema();
+
+		ProjectionPlan all = ProjectionPlan.all(this);
+		Set<String> select = new LinkedHashSet<>(Arrays.asList("id", "userPrincipalName"));
+		select.addAll(USER_ATTRS);
+		userExtensions.addSelect(select, all);
+		select.add(ProjectionPlan.ASSIGNED_LICENSES);
+		this.userSelect = StringUtils.join(select, ',');
+		select.removeAll(SINGLE_OBJECT_ATTRS);
+		// Without extensions API default attributes are loaded as before, extensions are never returned by default
+		this.userListSelect = userExtensions.hasDirectoryExtensions() ? StringUtils.join(select, ',') : null;
+
+		select = new LinkedHashSet<>(Collections.singletonList("id"));
+		select.addAll(GROUP_ATTRS);
+		groupExtensions.addSelect(select, all);
+		this.groupSelect = StringUtils.join(select, ',');
+		select.removeAll(SINGLE_OBJECT_ATTRS);
+		this.groupListSelect = groupExtensions.hasDirectoryExtensions() ? StringUtils.join(select, ',') : null;
+	}
+
+	/**
+	 * @return schema without directory extensions, it doesn't need Graph API
+	 */
+	public static SchemaService defaultService() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get schema for configuration. Directory extensions are loaded only when they are enabled in configuration
+	 * and cached schema expired.
+	 *
+	 * @param configuration configuration of connector
+	 * @param graphClient   Graph client for the configuration
+	 * @return schema service
+	 */
+	public static SchemaService forConfiguration(GraphConfiguration configuration, IGraphServiceClient graphClient) {
+		if (!configuration.isLoadDirectoryExtensions()) {
+			return DEFAULT;
+		}
+		String key = GraphClientRegistry.fingerprint(configuration) + "|" + configuration.getSchemaCacheDirectory();
+		SchemaService service = SERVICES.get(key);
+		if (service != null && !service.isExpired()) {
+			return service;
+		}
+		synchronized (SERVICES) {
+			service = SERVICES.get(key);
+			if (service == null || service.isExpired()) {
+				service = load(configuration, graphClient, service);
+				SERVICES.put(key, service);
+			}
+			return service;
+		}
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return basic attributes of user which can be put into $select
+	 */
+	public List<String> getUserAttributes() {
+		return USER_ATTRS;
+	}
+
+	/**
+	 * @return basic attributes of group which can be put into $select
+	 */
+	public List<String> getGroupAttributes() {
+		return GROUP_ATTRS;
+	}
+
+	public ExtensionMapper getUserExtensions() {
+		return userExtensions;
+	}
+
+	public ExtensionMapper getGroupExtensions() {
+		return groupExtensions;
+	}
+
+	/**
+	 * @return $select with all attributes of one user including licenses and extensions
+	 */
+	public String getUserSelect() {
+		return userSelect;
+	}
+
+	/**
+	 * @return $select with all attributes for list of users or null if API default attributes are enough
+	 */
+	public String getUserListSelect() {
+		return userListSelect;
+	}
+
+	/**
+	 * @return $select with all attributes of group including extensions
+	 */
+	public String getGroupSelect() {
+		return groupSelect;
+	}
+
+	/**
+	 * @return $select with all attributes for list of groups or null if API default attributes are enough
+	 */
+	public String getGroupListSelect() {
+		return groupListSelect;
+	}
+
+	private boolean isExpired() {
+		return System.currentTimeMillis() > expires;
+	}
+
+	private Schema buildSchema() {
+		ObjectClassInfoBuilder accountObjectClassBuilder = new ObjectClassInfoBuilder();
+		accountObjectClassBuilder.setType(ObjectClass.ACCOUNT_NAME);
+		prepareSchema(accountObjectClassBuilder, User.class.getDeclaredFields());
+		userExtensions.addAttributeInfos(accountObjectClassBuilder);
+
+		ObjectClassInfoBuilder groupObjectClassBuilder = new ObjectClassInfoBuilder();
+		groupObjectClassBuilder.setType(ObjectClass.GROUP_NAME);
+		prepareSchema(groupObjectClassBuilder, Group.class.getDeclaredFields());
+		groupExtensions.addAttributeInfos(groupObjectClassBuilder);
+
+		SchemaBuilder schemaBuilder = new SchemaBuilder(GraphConnector.class);
+		schemaBuilder.defineObjectClass(accountObjectClassBuilder.build());
+		schemaBuilder.defineObjectClass(groupObjectClassBuilder.build());
+		// Paged search, options are defined for all operations and then they are kept only for search
+		SEARCH_OPTIONS.forEach(schemaBuilder::defineOperationOption);
+		schemaBuilder.clearSupportedOptionsByOperation();
+		SEARCH_OPTIONS.forEach(option -> schemaBuilder.addSupportedOperationOption(SearchOp.class, option));
+		return schemaBuilder.build();
+	}
+
+	private static void prepareSchema(ObjectClassInfoBuilder objectClassBuilder, Field[] declaredFields) {
+		objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define(ProjectionPlan.ASSIGNED_LICENSES).setMultiValued(true).setType(String.class).build());
+		Arrays.stream(declaredFields).forEach(field -> {
+			if (Utils.isBasicDataType(field)) {
+				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build(field.getName(), field.getType()));
+			} else if ("passwordProfile".equals(field.getName())) {
+				// ConnId does not support complex object so we need to manually create attributes for password
+				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("forceChangePasswordNextSignIn", Boolean.class));
+				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("forceChangePasswordNextSignInWithMfa", Boolean.class));
+				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.build("__PASSWORD__", GuardedString.class));
+			} else if (ProjectionPlan.MEMBERS.equals(field.getName()) || ProjectionPlan.OWNERS.equals(field.getName())) {
+				objectClassBuilder.addAttributeInfo(AttributeInfoBuilder.define(field.getName()).setMultiValued(true).setType(String.class).build());
+			}
+			// Other complex objects are not supported, onPremisesExtensionAttributes are flattened by ExtensionMapper
+		});
+	}
+
+	/**
+	 * Load extensions from file or from Graph API. When Graph API fails, previous extensions are used,
+	 * so search doesn't fail because of schema.
+	 */
+	private static SchemaService load(GraphConfiguration configuration, IGraphServiceClient graphClient, SchemaService previous) {
+		Path file = getCacheFile(configuration);
+		JsonObject cached = file == null ? null : readCache(file);
+		if (cached != null && System.currentTimeMillis() - cached.get(LOADED).getAsLong() <= CACHE_TTL) {
+			return loaded(cached);
+		}
+		try {
+			JsonObject response = graphClient.customRequest(EXTENSIONS_URL).buildRequest().post(new JsonObject());
+			JsonObject extensions = new JsonObject();
+			extensions.addProperty(LOADED, System.currentTimeMillis());
+			extensions.add(VALUE, response == null || !response.has(VALUE) ? new JsonArray() : response.get(VALUE));
+			LOG.info("Loaded {0} directory extensions for tenant {1}", extensions.getAsJsonArray(VALUE).size(), configuration.getTenant());
+			if (file != null) {
+				writeCache(file, extensions);
+			}
+			return loaded(extensions);
+		} catch (RuntimeException e) {
+			// Previous extensions keep the time when they were loaded, only the next attempt is delayed,
+			// so we don't send the request in every operation and new extensions don't wait for the whole TTL
+			LOG.warn(e, "Directory extensions for tenant {0} can not be loaded, previous schema is used, next attempt in {1} ms",
+					configuration.getTenant(), RETRY_DELAY);
+			long retry = System.currentTimeMillis() + RETRY_DELAY;
+			if (previous != null) {
+				return new SchemaService(previous.userExtensions.getDirectoryExtensions(), previous.groupExtensions.getDirectoryExtensions(),
+						previous.loaded, retry);
+			}
+			if (cached != null) {
+				return new SchemaService(toExtensions(cached, "User"), toExtensions(cached, "Group"), cached.get(LOADED).getAsLong(), retry);
+			}
+			return new SchemaService(Collections.emptyList(), Collections.emptyList(), 0, retry);
+		}
+	}
+
+	private static SchemaService loaded(JsonObject extensions) {
+		long loaded = extensions.get(LOADED).getAsLong();
+		return new SchemaService(toExtensions(extensions, "User"), toExtensions(extensions, "Group"), loaded, loaded + CACHE_TTL);
+	}
+
+	private static List<ExtensionMapper.DirectoryExtension> toExtensions(JsonObject extensions, String targetObject) {
+		List<ExtensionMapper.DirectoryExtension> result = new ArrayList<>();
+		for (JsonElement element : extensions.getAsJsonArray(VALUE)) {
+			JsonObject extension = element.getAsJsonObject();
+			if (!extension.has("name") || !extension.has("targetObjects")) {
+				continue;
+			}
+			boolean target = false;
+			for (JsonElement targetElement : extension.getAsJsonArray("targetObjects")) {
+				target |= targetObject.equals(targetElement.getAsString());
+			}
+			if (target) {
+				result.add(new ExtensionMapper.DirectoryExtension(extension.get("name").getAsString(),
+						extension.has("dataType") ? extension.get("dataType").getAsString() : null,
+						extension.has("isMultiValued") && extension.get("isMultiValued").getAsBoolean()));
+			}
+		}
+		return result;
+	}
+
+	private static Path getCacheFile(GraphConfiguration configuration) {
+		if (StringUtils.isBlank(configuration.getSchemaCacheDirectory())) {
+			return null;
+		}
+		String name = configuration.getTenant().toLowerCase().replaceAll("[^a-z0-9.-]", "_") + ".extensions.json";
+		return Paths.get(configuration.getSchemaCacheDirectory(), name).toAbsolutePath().normalize();
+	}
+
+	private static JsonObject readCache(Path file) {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			JsonObject extensions = JsonParser.parseReader(reader).getAsJsonObject();
+			return extensions.has(LOADED) && extensions.has(VALUE) ? extensions : null;
+		} catch (IOException | RuntimeException e) {
+			// File is only cache, extensions will be loaded again
+			LOG.warn(e, "Cache of directory extensions {0} can not be read", file);
+			return null;
+		}
+	}
+
+	private static void writeCache(Path file, JsonObject extensions) {
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				writer.write(extensions.toString());
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn(e, "Cache of directory extensions {0} can not be written", file);
+		}
+	}
+}
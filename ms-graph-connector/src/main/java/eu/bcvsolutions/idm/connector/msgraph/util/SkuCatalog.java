@@ -0,0 +1,126 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import com.microsoft.graph.models.extensions.IBaseGraphServiceClient;
+import com.microsoft.graph.models.extensions.SubscribedSku;
+import com.microsoft.graph.requests.extensions.ISubscribedSkuCollectionPage;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Cached catalog of licenses (subscribed SKUs) of tenant. It's used for validation of licenses before they are assigned,
+ * so we don't send requests which would fail because license doesn't exist or there are no free units.
+ * Catalog is loaded again after TTL expires. Units consumed by connector are counted in the meantime.
+ */
+public class SkuCatalog {
+
+	private static final Log LOG = Log.getLog(SkuCatalog.class);
+
+	private static final long TTL = TimeUnit.MINUTES.toMillis(15);
+
+	// Graph clients are shared per configuration, so there is one catalog for every configuration
+	private static final Map<IBaseGraphServiceClient, SkuCatalog> CATALOGS = new WeakHashMap<>();
+
+	// Key is skuId, value is number of free units. Guarded by this
+	private Map<UUID, Integer> freeUnits;
+	private long loadedAt;
+
+	private SkuCatalog() {
+	}
+
+	/**
+	 * Get catalog for tenant to which the client is connected
+	 *
+	 * @param graphClient client for Graph API
+	 * @return catalog
+	 */
+	public static SkuCatalog forClient(IBaseGraphServiceClient graphClient) {
+		synchronized (CATALOGS) {
+			return CATALOGS.computeIfAbsent(graphClient, client -> new SkuCatalog());
+		}
+	}
+
+	/**
+	 * Check that licenses exist in tenant and there is free unit for every one of them. Free units are reserved,
+	 * so they must be returned via {@link #release(Collection)} if the assignment fails.
+	 *
+	 * @param skuIds      licenses which will be assigned
+	 * @param graphClient client for Graph API
+	 */
+	public synchronized void reserve(Collection<UUID> skuIds, IBaseGraphServiceClient graphClient) {
+		if (skuIds.isEmpty()) {
+			return;
+		}
+		if (freeUnits == null || System.currentTimeMillis() - loadedAt > TTL) {
+			load(graphClient);
+		} else if (!freeUnits.keySet().containsAll(skuIds)) {
+			// License can be bought after the catalog was loaded
+			LOG.info("Unknown license in request, catalog of licenses will be loaded again");
+			load(graphClient);
+		}
+
+		for (UUID skuId : skuIds) {
+			Integer free = freeUnits.get(skuId);
+			if (free == null) {
+				throw new ConnectorException("License " + skuId + " does not exist in tenant");
+			}
+			if (free <= 0) {
+				throw new ConnectorException("There is no free unit of license " + skuId);
+			}
+		}
+		skuIds.forEach(skuId -> freeUnits.merge(skuId, -1, Integer::sum));
+	}
+
+	/**
+	 * Return units of licenses, e.g. when license was removed from user or assignment failed
+	 *
+	 * @param skuIds licenses
+	 */
+	public synchronized void release(Collection<UUID> skuIds) {
+		if (freeUnits == null) {
+			return;
+		}
+		skuIds.forEach(skuId -> freeUnits.computeIfPresent(skuId, (id, free) -> free + 1));
+	}
+
+	private void load(IBaseGraphServiceClient graphClient) {
+		LOG.info("Loading catalog of licenses");
+		Map<UUID, Integer> units = new HashMap<>();
+		ISubscribedSkuCollectionPage page = graphClient.subscribedSkus().buildRequest().get();
+		while (true) {
+			for (SubscribedSku sku : page.getCurrentPage()) {
+				units.put(sku.skuId, getFreeUnits(sku));
+			}
+			if (page.getNextPage() == null) {
+				break;
+			}
+			page = page.getNextPage().buildRequest().get();
+		}
+		freeUnits = units;
+		loadedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Units in warning state are still usable, they will be disabled after grace period
+	 */
+	private static int getFreeUnits(SubscribedSku sku) {
+		if (sku.prepaidUnits == null) {
+			return 0;
+		}
+		int prepaid = valueOf(sku.prepaidUnits.enabled) + valueOf(sku.prepaidUnits.warning);
+		return prepaid - valueOf(sku.consumedUnits);
+	}
+
+	private static int valueOf(Integer value) {
+		return value == null ? 0 : value;
+	}
+}
@@ -0,0 +1,280 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.User;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Converts users and groups from JSON of collection response directly to Connector objects, field by field.
+ * Result is the same as from {@link Utils#handleUser(User, ObjectClass, ProjectionPlan)} and
+ * {@link Utils#handleGroup(Group, ObjectClass, MembershipLoader.Membership, ProjectionPlan)}, but without SDK objects
+ * and their raw JSON. Parsers are used with {@link GraphPageReader}.
+ */
+public class StreamingObjectParser {
+
+	private static final Log LOG = Log.getLog(StreamingObjectParser.class);
+
+	private static final String ID = "id";
+	private static final String USER_PRINCIPAL_NAME = "userPrincipalName";
+	private static final String ODATA_TYPE = "@odata.type";
+	private static final String NEXT_LINK_SUFFIX = "@odata.nextLink";
+
+	private final ObjectClass objectClass;
+	private final ProjectionPlan projection;
+	private final MemberIndex memberIndex;
+	private final AttributeMapper userMapper = AttributeMapper.forClass(User.class);
+	private final AttributeMapper groupMapper = AttributeMapper.forClass(Group.class);
+	private final ExtensionMapper userExtensions;
+	private final ExtensionMapper groupExtensions;
+
+	/**
+	 * @param objectClass object class of returned objects
+	 * @param projection  which attributes should be returned
+	 * @param memberIndex index of members, userPrincipalNames of read users are put there, can be null
+	 */
+	public StreamingObjectParser(ObjectClass objectClass, ProjectionPlan projection, MemberIndex memberIndex) {
+		this.objectClass = objectClass;
+		this.projection = projection;
+		this.memberIndex = memberIndex;
+		this.userExtensions = projection.getSchema().getUserExtensions();
+		this.groupExtensions = projection.getSchema().getGroupExtensions();
+	}
+
+	/**
+	 * Read one user
+	 *
+	 * @param reader reader positioned at the beginning of user
+	 * @return Connector object or null if user has no userPrincipalName
+	 */
+	public ConnectorObject parseUser(JsonReader reader) throws IOException {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		BitSet read = new BitSet();
+		Set<String> readExtensions = new HashSet<>();
+		String id = null;
+		String userPrincipalName = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			int index = userMapper.indexOf(name);
+			if (ID.equals(name)) {
+				id = nextString(reader);
+			} else if (USER_PRINCIPAL_NAME.equals(name)) {
+				userPrincipalName = nextString(reader);
+				if (index >= 0 && projection.isRequested(name)) {
+					read.set(index);
+					userMapper.addValue(index, userPrincipalName, builder);
+				}
+			} else if (index >= 0 && projection.isRequested(name)) {
+				read.set(index);
+				userMapper.addValue(index, userMapper.readValue(index, reader), builder);
+			} else if (userExtensions.isProperty(name)) {
+				userExtensions.readValue(name, reader, builder, projection, readExtensions);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (StringUtils.isBlank(userPrincipalName)) {
+			LOG.info("User {0} has no userPrincipalName, it is skipped", id);
+			return null;
+		}
+		LOG.info("We will process user: {0}", userPrincipalName);
+		if (memberIndex != null && id != null) {
+			// Users are loaded anyway, so we keep their userPrincipalNames for members of groups
+			memberIndex.put(id, userPrincipalName);
+		}
+		builder.setUid(userPrincipalName);
+		builder.setName(userPrincipalName);
+		builder.setObjectClass(objectClass);
+		userMapper.addMissingAttributes(read, builder, projection);
+		userExtensions.addMissingAttributes(readExtensions, builder, projection);
+		GraphMetrics.recordObject();
+		return builder.build();
+	}
+
+	/**
+	 * Read one group. Members and owners are not part of the record unless they were expanded completely,
+	 * so they must be loaded by {@link MembershipLoader#loadGroupRecords(List, boolean, boolean)} first.
+	 *
+	 * @param reader reader positioned at the beginning of group
+	 * @return group record or null if group has no id
+	 */
+	public GroupRecord parseGroup(JsonReader reader) throws IOException {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		BitSet read = new BitSet();
+		Set<String> readExtensions = new HashSet<>();
+		String id = null;
+		List<JsonObject> members = null;
+		List<JsonObject> owners = null;
+		boolean membersTruncated = false;
+		boolean ownersTruncated = false;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			int index = groupMapper.indexOf(name);
+			if (ID.equals(name)) {
+				id = nextString(reader);
+			} else if (ProjectionPlan.MEMBERS.equals(name)) {
+				members = readExpanded(reader);
+			} else if (ProjectionPlan.OWNERS.equals(name)) {
+				owners = readExpanded(reader);
+			} else if ((ProjectionPlan.MEMBERS + NEXT_LINK_SUFFIX).equals(name)) {
+				membersTruncated = true;
+				reader.skipValue();
+			} else if ((ProjectionPlan.OWNERS + NEXT_LINK_SUFFIX).equals(name)) {
+				ownersTruncated = true;
+				reader.skipValue();
+			} else if (index >= 0 && projection.isRequested(name)) {
+				read.set(index);
+				groupMapper.addValue(index, groupMapper.readValue(index, reader), builder);
+			} else if (groupExtensions.isProperty(name)) {
+				groupExtensions.readValue(name, reader, builder, projection, readExtensions);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (StringUtils.isBlank(id)) {
+			LOG.info("Group object id attribute is null or empty, it is skipped");
+			return null;
+		}
+		LOG.info("We will process group: {0}", id);
+		builder.setUid(id);
+		builder.setName(id);
+		builder.setObjectClass(objectClass);
+		groupMapper.addMissingAttributes(read, builder, projection);
+		groupExtensions.addMissingAttributes(readExtensions, builder, projection);
+		GraphMetrics.recordObject();
+		// Graph API returns only first records in $expand, such lists must be loaded again
+		return new GroupRecord(id, builder,
+				membersTruncated || isTruncated(members) ? null : members,
+				ownersTruncated || isTruncated(owners) ? null : owners);
+	}
+
+	/**
+	 * Read one member or owner. Only id, userPrincipalName and type are kept, other properties are skipped.
+	 *
+	 * @param reader reader positioned at the beginning of directory object
+	 * @return record of member
+	 */
+	public static JsonObject parseMember(JsonReader reader) throws IOException {
+		JsonObject member = new JsonObject();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (ID.equals(name) || USER_PRINCIPAL_NAME.equals(name) || ODATA_TYPE.equals(name)) {
+				String value = nextString(reader);
+				if (value != null) {
+					member.addProperty(name, value);
+				}
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return member;
+	}
+
+	private static List<JsonObject> readExpanded(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+			reader.skipValue();
+			return null;
+		}
+		List<JsonObject> records = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			records.add(parseMember(reader));
+		}
+		reader.endArray();
+		return records;
+	}
+
+	private static boolean isTruncated(List<JsonObject> expanded) {
+		return expanded != null && expanded.size() >= MembershipLoader.EXPAND_LIMIT;
+	}
+
+	private static String nextString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		if (reader.peek() != JsonToken.STRING) {
+			reader.skipValue();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	/**
+	 * Group which was read from JSON, it waits for members and owners. Record can be converted only once,
+	 * its data are released right after conversion, so they are not kept until the whole page is handled.
+	 */
+	public static class GroupRecord {
+		private final String id;
+		private ConnectorObjectBuilder builder;
+		private List<JsonObject> members;
+		private List<JsonObject> owners;
+
+		private GroupRecord(String id, ConnectorObjectBuilder builder, List<JsonObject> members, List<JsonObject> owners) {
+			this.id = id;
+			this.builder = builder;
+			this.members = members;
+			this.owners = owners;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return complete list of expanded members or null if they must be loaded
+		 */
+		public List<JsonObject> getMembers() {
+			return members;
+		}
+
+		/**
+		 * @return complete list of expanded owners or null if they must be loaded
+		 */
+		public List<JsonObject> getOwners() {
+			return owners;
+		}
+
+		/**
+		 * @param membership loaded members and owners of group, can be null if they were not requested
+		 * @return Connector object with data
+		 */
+		public ConnectorObject toConnectorObject(MembershipLoader.Membership membership) {
+			if (builder == null) {
+				throw new IllegalStateException("Group " + id + " was already converted");
+			}
+			Utils.addMembership(builder, membership);
+			ConnectorObject object = builder.build();
+			builder = null;
+			members = null;
+			owners = null;
+			return object;
+		}
+	}
+}
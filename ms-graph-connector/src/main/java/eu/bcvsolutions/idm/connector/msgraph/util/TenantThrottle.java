@@ -0,0 +1,204 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Budget of requests for one tenant which is shared by all connector instances in JVM. It limits number of requests
+ * per second (token bucket) and number of requests which are processed at once. Limit of concurrent requests is
+ * adjusted by throttling signals from Graph API - it's increased slowly after successful requests and halved after
+ * request was throttled (AIMD). When Graph API sends Retry-After, no request is sent until the time passes.
+ * <p>
+ * Throttle owns the executor for bulk operations of the tenant, its number of threads is max concurrency, so all bulk
+ * operations for the tenant together don't run more requests than the throttle allows.
+ */
+public class TenantThrottle {
+
+	private static final Log LOG = Log.getLog(TenantThrottle.class);
+
+	private static final ConcurrentMap<String, TenantThrottle> THROTTLES = new ConcurrentHashMap<>();
+
+	// Limit of concurrent requests is decreased max once per this interval, one throttling often returns 429 for all requests in flight
+	private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+	// Threads of bulk executor which are not used for this time are stopped
+	private static final long BULK_KEEP_ALIVE = TimeUnit.SECONDS.toMillis(60);
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+	private final String tenant;
+	private final ThreadPoolExecutor bulkExecutor;
+
+	// Guarded by this
+	private double requestsPerSecond;
+	private double availableTokens;
+	private long lastRefill;
+	private int maxConcurrency;
+	private double concurrencyLimit;
+	private int inFlight;
+	private long lastDecrease;
+
+	private volatile long pausedUntil;
+
+	private TenantThrottle(String tenant) {
+		this.tenant = tenant;
+		this.lastRefill = System.nanoTime();
+		// Pool is resized in configure()
+		this.bulkExecutor = new ThreadPoolExecutor(1, 1, BULK_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "graph-bulk-" + THREAD_COUNTER.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.bulkExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get throttle for tenant. Limits from the configuration are applied to the throttle, so if there are more
+	 * configurations for one tenant the last one is used.
+	 *
+	 * @param tenant            tenant id
+	 * @param requestsPerSecond max number of requests per second, 0 means no limit
+	 * @param maxConcurrency    max number of requests which are processed at once
+	 * @return throttle
+	 */
+	public static TenantThrottle forTenant(String tenant, int requestsPerSecond, int maxConcurrency) {
+		TenantThrottle throttle = THROTTLES.computeIfAbsent(tenant.toLowerCase(Locale.ROOT), TenantThrottle::new);
+		throttle.configure(requestsPerSecond, maxConcurrency);
+		return throttle;
+	}
+
+	private synchronized void configure(int requestsPerSecond, int maxConcurrency) {
+		if (this.requestsPerSecond != requestsPerSecond) {
+			this.requestsPerSecond = requestsPerSecond;
+			this.availableTokens = requestsPerSecond;
+		}
+		if (this.maxConcurrency != maxConcurrency) {
+			this.maxConcurrency = maxConcurrency;
+			this.concurrencyLimit = maxConcurrency;
+			notifyAll();
+			resizeBulkExecutor(Math.max(1, maxConcurrency));
+		}
+	}
+
+	/**
+	 * Executor for requests of bulk operations, see {@link eu.bcvsolutions.idm.connector.msgraph.operation.BulkOperation}
+	 *
+	 * @return executor with max concurrency threads which is shared by all bulk operations for the tenant
+	 */
+	public ExecutorService getBulkExecutor() {
+		return bulkExecutor;
+	}
+
+	private void resizeBulkExecutor(int threads) {
+		LOG.info("Bulk executor of tenant {0} resized to {1} threads", tenant, threads);
+		// Core size can't be bigger than max size
+		if (threads > bulkExecutor.getMaximumPoolSize()) {
+			bulkExecutor.setMaximumPoolSize(threads);
+			bulkExecutor.setCorePoolSize(threads);
+		} else {
+			bulkExecutor.setCorePoolSize(threads);
+			bulkExecutor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Wait until request can be sent. Every call must be paired with {@link #onResponse(boolean)}
+	 */
+	public void beforeRequest() {
+		waitForPause();
+		sleep(reserveToken());
+		synchronized (this) {
+			while (inFlight >= Math.max(1, (int) concurrencyLimit)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ConnectorException("Waiting for request slot was interrupted", e);
+				}
+			}
+			inFlight++;
+		}
+	}
+
+	/**
+	 * Request was finished
+	 *
+	 * @param throttled true if Graph API throttled the request
+	 */
+	public synchronized void onResponse(boolean throttled) {
+		inFlight--;
+		if (throttled) {
+			long now = System.currentTimeMillis();
+			if (now - lastDecrease > DECREASE_INTERVAL) {
+				lastDecrease = now;
+				concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+				LOG.info("Tenant {0} was throttled, limit of concurrent requests decreased to {1}", tenant, (int) concurrencyLimit);
+			}
+		} else if (concurrencyLimit < maxConcurrency) {
+			concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stop sending of requests to tenant for some time
+	 *
+	 * @param delay time in milliseconds which Graph API wants us to wait
+	 */
+	public void pause(long delay) {
+		long until = System.currentTimeMillis() + delay;
+		synchronized (this) {
+			if (until > pausedUntil) {
+				pausedUntil = until;
+			}
+		}
+	}
+
+	private void waitForPause() {
+		long delay = pausedUntil - System.currentTimeMillis();
+		if (delay > 0) {
+			LOG.info("Requests to tenant {0} are paused for {1} ms", tenant, delay);
+			sleep(delay);
+		}
+	}
+
+	/**
+	 * Take one token from the bucket. If there is no token available, it's reserved in advance
+	 *
+	 * @return time in milliseconds which we need to wait for the reserved token
+	 */
+	private synchronized long reserveToken() {
+		if (requestsPerSecond <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		availableTokens = Math.min(requestsPerSecond, availableTokens + (now - lastRefill) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+		availableTokens--;
+		if (availableTokens >= 0) {
+			return 0;
+		}
+		return (long) Math.ceil(-availableTokens * 1000 / requestsPerSecond);
+	}
+
+	private static void sleep(long delay) {
+		if (delay <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Waiting for request slot was interrupted", e);
+		}
+	}
+}
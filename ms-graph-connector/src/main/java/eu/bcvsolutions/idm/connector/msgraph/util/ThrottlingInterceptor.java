@@ -0,0 +1,77 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Sends requests to Graph API within the budget of tenant. Throttled requests (429) were not processed by Graph API,
+ * so they are sent again after the time from Retry-After header. Other requests of the tenant wait too.
+ */
+public class ThrottlingInterceptor implements Interceptor {
+
+	private static final Log LOG = Log.getLog(ThrottlingInterceptor.class);
+
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long DEFAULT_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+	private final TenantThrottle throttle;
+
+	public ThrottlingInterceptor(TenantThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			throttle.beforeRequest();
+			Response response;
+			try {
+				response = chain.proceed(chain.request());
+			} catch (IOException | RuntimeException e) {
+				throttle.onResponse(false);
+				throw e;
+			}
+
+			boolean throttled = response.code() == 429;
+			throttle.onResponse(throttled);
+			long retryAfter = getRetryAfter(response.header("Retry-After"));
+			if (retryAfter >= 0) {
+				// 503 can contain Retry-After too, all requests to the tenant should wait
+				throttle.pause(retryAfter);
+			}
+			if (!throttled || attempt >= MAX_ATTEMPTS) {
+				return response;
+			}
+
+			long delay = retryAfter >= 0 ? retryAfter : DEFAULT_RETRY_DELAY * (1L << (attempt - 1));
+			LOG.info("Request {0} {1} was throttled, it will be sent again after {2} ms", chain.request().method(), chain.request().url().encodedPath(), delay);
+			response.close();
+			throttle.pause(delay);
+		}
+	}
+
+	/**
+	 * Read Retry-After header
+	 *
+	 * @param retryAfter value of header, Graph API sends number of seconds
+	 * @return delay in milliseconds or -1 if header is missing or has unknown format
+	 */
+	public static long getRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+		} catch (NumberFormatException e) {
+			LOG.warn("Unknown format of Retry-After header {0}", retryAfter);
+			return -1;
+		}
+	}
+}
@@ -5,8 +5,8 @@ import java.lang.reflect.Field;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -18,17 +18,14 @@ import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.microsoft.graph.models.extensions.AssignedLicense;
-import com.microsoft.graph.models.extensions.DirectoryObject;
 import com.microsoft.graph.models.extensions.DirectoryRole;
 import com.microsoft.graph.models.extensions.Group;
 import com.microsoft.graph.models.extensions.IBaseGraphServiceClient;
-import com.microsoft.graph.models.extensions.IGraphServiceClient;
-import com.microsoft.graph.models.extensions.LicenseDetails;
 import com.microsoft.graph.models.extensions.PasswordProfile;
 import com.microsoft.graph.models.extensions.User;
-import com.microsoft.graph.requests.extensions.IDirectoryObjectCollectionWithReferencesPage;
-import com.microsoft.graph.requests.extensions.ILicenseDetailsCollectionPage;
 
 /**
  * @author Roman Kučera
@@ -48,9 +45,10 @@ public final class Utils {
 	 *
 	 * @param user        User object
 	 * @param objectClass user object class
+	 * @param projection  which attributes should be returned
 	 * @return Connector object with data
 	 */
-	public static ConnectorObject handleUser(User user, ObjectClass objectClass) {
+	public static ConnectorObject handleUser(User user, ObjectClass objectClass, ProjectionPlan projection) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 
 		if (user != null && !StringUtils.isBlank(user.userPrincipalName)) {
@@ -58,9 +56,10 @@ public final class Utils {
 			builder.setUid(user.userPrincipalName);
 			builder.setName(user.userPrincipalName);
 			builder.setObjectClass(objectClass);
+			GraphMetrics.recordObject();
 
-			Field[] declaredFields = User.class.getDeclaredFields();
-			addAttributeToBuilder(user, builder, declaredFields);
+			AttributeMapper.forClass(User.class).addAttributes(user, builder, projection);
+			projection.getSchema().getUserExtensions().addAttributes(user, user.onPremisesExtensionAttributes, builder, projection);
 		} else {
 			LOG.info("User object is null or userPrincipalName attribute is null or empty");
 		}
@@ -73,10 +72,11 @@ public final class Utils {
 	 *
 	 * @param group       Group object
 	 * @param objectClass group object class
-	 * @param graphClient
+	 * @param membership  loaded members and owners of group, can be null if they were not requested
+	 * @param projection  which attributes should be returned
 	 * @return Connector object with data
 	 */
-	public static ConnectorObject handleGroup(Group group, ObjectClass objectClass, IGraphServiceClient graphClient) {
+	public static ConnectorObject handleGroup(Group group, ObjectClass objectClass, MembershipLoader.Membership membership, ProjectionPlan projection) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 
 		if (group != null && !StringUtils.isBlank(group.id)) {
@@ -84,19 +84,13 @@ public final class Utils {
 			builder.setUid(group.id);
 			builder.setName(group.id);
 			builder.setObjectClass(objectClass);
+			GraphMetrics.recordObject();
 
-			Field[] declaredFields = Group.class.getDeclaredFields();
-			addAttributeToBuilder(group, builder, declaredFields);
+			AttributeMapper.forClass(Group.class).addAttributes(group, builder, projection);
+			projection.getSchema().getGroupExtensions().addAttributes(group, null, builder, projection);
 
 			//Add members and owners
-			List<DirectoryObject> members = getAllRecords(graphClient.groups(group.id).members().buildRequest().get());
-			List<DirectoryObject> owners = getAllRecords(graphClient.groups(group.id).owners().buildRequest().get());
-
-			List<String> membersAsString = members.stream().map(user -> user.getRawObject().get("userPrincipalName").getAsString()).collect(Collectors.toList());
-			List<String> ownersAsString = owners.stream().map(user -> user.getRawObject().get("userPrincipalName").getAsString()).collect(Collectors.toList());
-
-			builder.addAttribute("members", membersAsString);
-			builder.addAttribute("owners", ownersAsString);
+			addMembership(builder, membership);
 		} else {
 			LOG.info("Group object is null or id attribute is null or empty");
 		}
@@ -104,7 +98,15 @@ public final class Utils {
 		return builder.build();
 	}
 
-	public static ConnectorObject handleAzureRole(DirectoryRole azureRole, ObjectClass objectClass, IGraphServiceClient graphClient) {
+	/**
+	 * Convert Azure role to ConnectorObject
+	 *
+	 * @param azureRole   Azure role object
+	 * @param objectClass group object class
+	 * @param membership  loaded members of role, can be null if they were not requested
+	 * @return Connector object with data
+	 */
+	public static ConnectorObject handleAzureRole(DirectoryRole azureRole, ObjectClass objectClass, MembershipLoader.Membership membership) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 
 		if (azureRole != null && !StringUtils.isBlank(azureRole.id)) {
@@ -112,57 +114,27 @@ public final class Utils {
 			builder.setUid(azureRole.id);
 			builder.setName(azureRole.id);
 			builder.setObjectClass(objectClass);
+			GraphMetrics.recordObject();
 			builder.addAttribute("displayName", azureRole.displayName);
 			builder.addAttribute("description", azureRole.description);
 
-			//Add members and owners
-			List<DirectoryObject> members = getAllRecords(graphClient.directoryRoles(azureRole.id).members().buildRequest().get());
-			List<String> membersAsString = members.stream().map(user -> user.getRawObject().get("userPrincipalName").getAsString()).collect(Collectors.toList());
-			builder.addAttribute("members", membersAsString);
+			//Add members
+			addMembership(builder, membership);
 		}
 
 		return builder.build();
 	}
 
-	private static List<DirectoryObject> getAllRecords(IDirectoryObjectCollectionWithReferencesPage page) {
-		List<DirectoryObject> records = new ArrayList<>(page.getCurrentPage());
-
-		while (page.getNextPage() != null) {
-			page = page.getNextPage().buildRequest().get();
-			records.addAll(page.getCurrentPage());
+	static void addMembership(ConnectorObjectBuilder builder, MembershipLoader.Membership membership) {
+		if (membership == null) {
+			return;
+		}
+		if (membership.getMembers() != null) {
+			builder.addAttribute(ProjectionPlan.MEMBERS, membership.getMembers());
+		}
+		if (membership.getOwners() != null) {
+			builder.addAttribute(ProjectionPlan.OWNERS, membership.getOwners());
 		}
-		return records;
-	}
-
-	/**
-	 * Using reflexion to map attributes from User and Group into Connector object
-	 *
-	 * @param object         User or Group object, but it should work for more general DirectoryObject
-	 * @param builder        Connector object builder where the attributes will be added
-	 * @param declaredFields Array of fields of specific object
-	 */
-	private static void addAttributeToBuilder(DirectoryObject object, ConnectorObjectBuilder builder, Field[] declaredFields) {
-		Class<?> clazz = object.getClass();
-		Arrays.stream(declaredFields).forEach(field -> {
-			try {
-				Field objectField = clazz.getField(field.getName());
-				if (isBasicDataType(objectField)) {
-					Object fieldValue = objectField.get(object);
-					builder.addAttribute(field.getName(), fieldValue);
-				} else if ("java.util.List<com.microsoft.graph.models.extensions.AssignedLicense>".equals(objectField.getGenericType().getTypeName())) {
-					LOG.info("Convert assigned licenses so connector can handle it");
-					List<AssignedLicense> licenses = (List<AssignedLicense>) objectField.get(object);
-					if (licenses != null) {
-						List<String> licensesAsString = licenses.stream().map(assignedLicense -> assignedLicense.skuId.toString()).collect(Collectors.toList());
-						builder.addAttribute(field.getName(), licensesAsString);
-					}
-				} else {
-					LOG.info("Field type {0} not supported now", objectField.getType().getName());
-				}
-			} catch (NoSuchFieldException | IllegalAccessException e) {
-				LOG.error("Error when getting field {0}: {1}", field.getName(), e);
-			}
-		});
 	}
 
 	/**
@@ -180,31 +152,15 @@ public final class Utils {
 	 *
 	 * @param attributesAccessor    AttributeAccessor with specific attributes for User
 	 * @param guardedStringAccessor GuardedStringAccessor so we can get password
+	 * @param schema                schema for configuration of connector, extension attributes are set via its mapper
 	 * @return User object with filled attributes
 	 */
-	public static User prepareUserObject(AttributesAccessor attributesAccessor, GuardedStringAccessor guardedStringAccessor) {
+	public static User prepareUserObject(AttributesAccessor attributesAccessor, GuardedStringAccessor guardedStringAccessor, SchemaService schema) {
 		User user = new User();
 		setPasswordToUser(guardedStringAccessor, attributesAccessor, user);
 
-		Class<?> clazz = user.getClass();
-		attributesAccessor.listAttributeNames().forEach(attribute -> {
-			try {
-				Field field = clazz.getField(attribute);
-				if (field.getType() == String.class) {
-					field.set(user, attributesAccessor.findString(attribute));
-				} else if (field.getType() == Boolean.class) {
-					field.set(user, attributesAccessor.findBoolean(attribute));
-				} else if (field.getType() == Integer.class) {
-					field.set(user, attributesAccessor.findInteger(attribute));
-				} else {
-					LOG.info("Type {0} is not supported now", field.getType().getName());
-				}
-			} catch (NoSuchFieldException ex) {
-				LOG.error("Specific attribute does not exist", ex);
-			} catch (IllegalAccessException e) {
-				LOG.error("Error during object preparation", e);
-			}
-		});
+		AttributesAccessor basicAttributes = schema.getUserExtensions().setAttributes(user, attributesAccessor);
+		AttributeMapper.forClass(User.class).setAttributes(user, basicAttributes);
 		return user;
 	}
 
@@ -259,33 +215,70 @@ public final class Utils {
 	}
 
 	/**
-	 * Update licenses for users. It will perform get to end system and then make diff and decide which licences should be removed and which should be added
+	 * Prepare body for assignLicense request which only adds licenses, it's used for new users which have no licenses
+	 *
+	 * @param skuIds licenses which should be assigned
+	 * @return JSON body of request
+	 */
+	public static JsonObject prepareLicenseBody(List<UUID> skuIds) {
+		JsonArray addLicenses = new JsonArray();
+		skuIds.forEach(skuId -> {
+			// Plans disabling is not supported now so we are sending empty list
+			JsonObject license = new JsonObject();
+			license.addProperty("skuId", skuId.toString());
+			license.add("disabledPlans", new JsonArray());
+			addLicenses.add(license);
+		});
+		JsonObject body = new JsonObject();
+		body.add("addLicenses", addLicenses);
+		body.add("removeLicenses", new JsonArray());
+		return body;
+	}
+
+	/**
+	 * Update licenses for users. It will perform get to end system and then make diff and decide which licences should be removed and which should be added.
+	 * New licenses are checked against catalog of tenant licenses before they are assigned.
 	 *
 	 * @param addLicenses List with licenses
 	 * @param uid         User identification
 	 * @param graphClient client for Graph API
 	 */
 	public static void setLicenses(List<String> addLicenses, String uid, IBaseGraphServiceClient graphClient) {
-		List<UUID> removeLicenses = new ArrayList<>();
-
 		try {
 			String encodedId = URLEncoder.encode(uid, StandardCharsets.UTF_8.toString());
 			if (addLicenses != null) {
 				LOG.info("We got some licenses for User");
-				// prepare list of licenses which should be removed
-				removeLicenses.addAll(getLicensesForUser(encodedId, graphClient)
+				List<AssignedLicense> assignedLicenses = prepareAddLicence(addLicenses);
+				Set<UUID> currentLicenses = getLicensesForUser(encodedId, graphClient)
 						.stream()
-						.filter(assignedLicense -> !addLicenses.contains(assignedLicense.skuId.toString()))
 						.map(assignedLicense -> assignedLicense.skuId)
-						.collect(Collectors.toList()));
+						.collect(Collectors.toSet());
+				// prepare list of licenses which should be removed
+				List<UUID> removeLicenses = currentLicenses.stream()
+						.filter(skuId -> !addLicenses.contains(skuId.toString()))
+						.collect(Collectors.toList());
+				List<UUID> newLicenses = assignedLicenses.stream()
+						.map(assignedLicense -> assignedLicense.skuId)
+						.filter(skuId -> !currentLicenses.contains(skuId))
+						.collect(Collectors.toList());
+				if (removeLicenses.isEmpty() && newLicenses.isEmpty()) {
+					LOG.info("Licenses of user {0} are up to date", uid);
+					return;
+				}
 
+				SkuCatalog skuCatalog = SkuCatalog.forClient(graphClient);
+				skuCatalog.reserve(newLicenses, graphClient);
 				LOG.info("We will update licenses for user {0}", uid);
-				List<AssignedLicense> assignedLicenses = prepareAddLicence(addLicenses);
-
-				graphClient.users(encodedId)
-						.assignLicense(assignedLicenses, removeLicenses)
-						.buildRequest()
-						.post();
+				try {
+					graphClient.users(encodedId)
+							.assignLicense(assignedLicenses, removeLicenses)
+							.buildRequest()
+							.post();
+				} catch (RuntimeException e) {
+					skuCatalog.release(newLicenses);
+					throw e;
+				}
+				skuCatalog.release(removeLicenses);
 			} else {
 				LOG.info("No licenses for User nothing to do");
 			}
@@ -295,31 +288,15 @@ public final class Utils {
 	}
 
 	/**
-	 * Get licenses for user from Graph API
+	 * Get licenses for user from Graph API. Licenses are read from assignedLicenses attribute of user, so it's one request
 	 *
 	 * @param id          User identification
 	 * @param graphClient client for Graph API
 	 * @return List of AssignedLicense of users licenses
 	 */
 	public static List<AssignedLicense> getLicensesForUser(String id, IBaseGraphServiceClient graphClient) {
-		List<LicenseDetails> licenseDetails = new ArrayList<>();
 		LOG.info("Getting licenses");
-		ILicenseDetailsCollectionPage licenseDetailsCollectionPage = graphClient.users(id).licenseDetails().buildRequest().get();
-		licenseDetails.addAll(licenseDetailsCollectionPage.getCurrentPage());
-
-		LOG.info("First page loaded");
-		while (licenseDetailsCollectionPage.getNextPage() != null) {
-			LOG.info("Loading next page");
-			licenseDetailsCollectionPage = licenseDetailsCollectionPage.getNextPage().buildRequest().get();
-			licenseDetails.addAll(licenseDetailsCollectionPage.getCurrentPage());
-		}
-
-		return licenseDetails.stream()
-				.map(detail -> {
-					AssignedLicense assignedLicense = new AssignedLicense();
-					assignedLicense.skuId = detail.skuId;
-					assignedLicense.disabledPlans = new ArrayList<>();
-					return assignedLicense;
-				}).collect(Collectors.toList());
+		User user = graphClient.users(id).buildRequest().select(ProjectionPlan.ASSIGNED_LICENSES).get();
+		return user.assignedLicenses == null ? new ArrayList<>() : user.assignedLicenses;
 	}
 }
@@ -0,0 +1,46 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Bounded pool of canonical instances of attribute values. Values of some attributes (usageLocation, userType,
+ * skuIds of licenses ...) are the same for most of the users, but every converted user would have its own copy
+ * of the string, which matters when IdM keeps results of reconciliation in memory. When the pool is full, new values
+ * are not added and they are returned as they are, values which are already in pool stay shared.
+ */
+public final class ValueCanonicalizer {
+
+	// Max number of values in pool
+	private static final int MAX_SIZE = 4096;
+	// Longer values are not values of low cardinality attributes
+	private static final int MAX_LENGTH = 128;
+
+	private static final Map<String, String> VALUES = new ConcurrentHashMap<>();
+
+	private ValueCanonicalizer() {
+	}
+
+	/**
+	 * Get canonical instance of value
+	 *
+	 * @param value value of attribute, can be null
+	 * @return instance equal to value which is shared by all callers
+	 */
+	public static String canonicalize(String value) {
+		if (value == null || value.length() > MAX_LENGTH) {
+			return value;
+		}
+		String canonical = VALUES.get(value);
+		if (canonical != null) {
+			return canonical;
+		}
+		if (VALUES.size() >= MAX_SIZE) {
+			return value;
+		}
+		canonical = VALUES.putIfAbsent(value, value);
+		return canonical == null ? value : canonical;
+	}
+}
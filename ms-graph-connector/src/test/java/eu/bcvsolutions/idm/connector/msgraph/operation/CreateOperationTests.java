@@ -0,0 +1,207 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for units of licenses which are reserved when user is created with licenses. Tenant has only one free unit,
+ * so the next user can get the license only if the unit was returned to the catalog.
+ */
+public class CreateOperationTests {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+	private static final String SKU = "00000000-0000-4000-9000-00000000000a";
+
+	private String clientKey;
+	private IGraphServiceClient graphClient;
+	// Number of $batch requests which were received
+	private int batches;
+	// Status of the step which creates user
+	private int createStatus = 201;
+	// Status of the step which assigns licenses
+	private int licensesStatus = 200;
+
+	@Before
+	public void init() {
+		GraphClientRegistry.setTransport(new Transport());
+		GraphConfiguration configuration = new GraphConfiguration();
+		configuration.setTenant(UUID.randomUUID() + ".onmicrosoft.com");
+		configuration.setClientId("test");
+		configuration.setClientSecret(new GuardedString("test".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.setRetryBaseDelay(1);
+		clientKey = GraphClientRegistry.fingerprint(configuration);
+		graphClient = GraphClientRegistry.acquire(clientKey, configuration);
+	}
+
+	@After
+	public void dispose() {
+		GraphClientRegistry.release(clientKey);
+		GraphClientRegistry.setTransport(null);
+	}
+
+	@Test
+	public void unitIsReleasedWhenUserIsNotCreated() {
+		createStatus = 400;
+		createFails("first");
+
+		createStatus = 201;
+		createUser("second");
+
+		assertEquals(2, batches);
+	}
+
+	@Test
+	public void unitIsReleasedWhenLicenseIsNotAssigned() {
+		licensesStatus = 400;
+		createFails("first");
+
+		licensesStatus = 200;
+		createUser("second");
+
+		assertEquals(2, batches);
+	}
+
+	@Test
+	public void assignedUnitIsNotReleased() {
+		createUser("first");
+
+		createFails("second");
+
+		// The second user is not sent, there is no free unit
+		assertEquals(1, batches);
+	}
+
+	private void createFails(String name) {
+		try {
+			createUser(name);
+			fail("User " + name + " must not be created");
+		} catch (ConnectorException e) {
+			// expected
+		}
+	}
+
+	private void createUser(String name) {
+		Set<Attribute> attributes = new HashSet<>();
+		attributes.add(AttributeBuilder.build("userType", "Member"));
+		attributes.add(AttributeBuilder.build("userPrincipalName", name + "@test.onmicrosoft.com"));
+		attributes.add(AttributeBuilder.build("displayName", name));
+		attributes.add(AttributeBuilder.build("assignedLicenses", SKU));
+		new CreateOperation(graphClient, new GuardedStringAccessor(), SchemaService.defaultService()).createUser(attributes);
+	}
+
+	/**
+	 * Answers token requests, catalog of licenses with one free unit and $batch with creation of user and licenses
+	 */
+	private class Transport implements Interceptor {
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request = chain.request();
+			String path = request.url().encodedPath();
+			if (path.endsWith("/token")) {
+				JsonObject token = new JsonObject();
+				token.addProperty("token_type", "Bearer");
+				token.addProperty("expires_in", 3599);
+				token.addProperty("access_token", "test");
+				return response(request, token);
+			}
+			if (path.endsWith("/subscribedSkus")) {
+				JsonObject units = new JsonObject();
+				units.addProperty("enabled", 1);
+				units.addProperty("warning", 0);
+				JsonObject sku = new JsonObject();
+				sku.addProperty("skuId", SKU);
+				sku.add("prepaidUnits", units);
+				sku.addProperty("consumedUnits", 0);
+				JsonArray value = new JsonArray();
+				value.add(sku);
+				JsonObject page = new JsonObject();
+				page.add("value", value);
+				return response(request, page);
+			}
+			batches++;
+			Buffer body = new Buffer();
+			request.body().writeTo(body);
+			JsonArray requests = JsonParser.parseString(body.readUtf8()).getAsJsonObject().getAsJsonArray("requests");
+			JsonObject user = null;
+			JsonArray responses = new JsonArray();
+			for (JsonElement element : requests) {
+				JsonObject step = element.getAsJsonObject();
+				JsonObject response = new JsonObject();
+				response.addProperty("id", step.get("id").getAsString());
+				if ("create".equals(step.get("id").getAsString())) {
+					user = step.getAsJsonObject("body");
+					user.addProperty("id", UUID.randomUUID().toString());
+					response.addProperty("status", createStatus);
+					response.add("body", createStatus < 300 ? user : error("Request_BadRequest"));
+				} else if (createStatus >= 300) {
+					// Dependent step is not executed when its dependency failed
+					response.addProperty("status", 424);
+					response.add("body", error("Request_FailedDependency"));
+				} else {
+					response.addProperty("status", licensesStatus);
+					response.add("body", licensesStatus < 300 ? user : error("Request_BadRequest"));
+				}
+				responses.add(response);
+			}
+			JsonObject result = new JsonObject();
+			result.add("responses", responses);
+			return response(request, result);
+		}
+
+		private JsonObject error(String code) {
+			JsonObject error = new JsonObject();
+			error.addProperty("code", code);
+			error.addProperty("message", "Request failed");
+			JsonObject result = new JsonObject();
+			result.add("error", error);
+			return result;
+		}
+
+		private Response response(Request request, JsonElement body) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(200)
+					.message("OK")
+					.header("Content-Type", JSON.toString())
+					.body(ResponseBody.create(body.toString(), JSON))
+					.build();
+		}
+	}
+}
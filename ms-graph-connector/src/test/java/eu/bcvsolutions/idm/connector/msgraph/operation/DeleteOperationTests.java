@@ -0,0 +1,138 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.function.IntUnaryOperator;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+import eu.bcvsolutions.idm.connector.msgraph.util.RetryPolicy;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for delete of users which is sent again after failure. Graph API is replaced by transport which answers
+ * every attempt with status chosen by the test.
+ */
+public class DeleteOperationTests {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+
+	private GraphConfiguration configuration;
+	private String clientKey;
+	private IGraphServiceClient graphClient;
+	// Number of DELETE requests which were received
+	private int attempts;
+	// Status of DELETE, argument is number of the attempt
+	private IntUnaryOperator deleteStatus = attempt -> 204;
+
+	@Before
+	public void init() {
+		GraphClientRegistry.setTransport(new Transport());
+		configuration = new GraphConfiguration();
+		configuration.setTenant(UUID.randomUUID() + ".onmicrosoft.com");
+		configuration.setClientId("test");
+		configuration.setClientSecret(new GuardedString("test".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.setRetryBaseDelay(1);
+		clientKey = GraphClientRegistry.fingerprint(configuration);
+		graphClient = GraphClientRegistry.acquire(clientKey, configuration);
+	}
+
+	@After
+	public void dispose() {
+		GraphClientRegistry.release(clientKey);
+		GraphClientRegistry.setTransport(null);
+	}
+
+	@Test
+	public void notFoundAfterUnavailableIsSuccess() {
+		// The first attempt was processed, but the response was lost
+		deleteStatus = attempt -> attempt == 1 ? 503 : 404;
+
+		delete(RetryPolicy.Operation.DELETE);
+
+		assertEquals(2, attempts);
+	}
+
+	@Test
+	public void notFoundInFirstAttemptIsUnknownUid() {
+		deleteStatus = attempt -> 404;
+		try {
+			delete(RetryPolicy.Operation.DELETE);
+			fail("User which doesn't exist must not be deleted");
+		} catch (UnknownUidException e) {
+			assertEquals(1, attempts);
+		}
+	}
+
+	@Test(expected = UnknownUidException.class)
+	public void notFoundAfterUnavailableIsUnknownUidInOtherOperations() {
+		deleteStatus = attempt -> attempt == 1 ? 503 : 404;
+
+		delete(RetryPolicy.Operation.UPDATE);
+	}
+
+	private void delete(RetryPolicy.Operation operation) {
+		RetryPolicy policy = RetryPolicy.apply(operation, configuration);
+		try {
+			new DeleteOperation(graphClient).deleteUser(new Uid("user@test.onmicrosoft.com"));
+		} finally {
+			policy.close();
+		}
+	}
+
+	/**
+	 * Answers token requests and DELETE requests with status from {@link #deleteStatus}
+	 */
+	private class Transport implements Interceptor {
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request = chain.request();
+			JsonObject body = new JsonObject();
+			int status = 200;
+			if (request.url().encodedPath().endsWith("/token")) {
+				body.addProperty("token_type", "Bearer");
+				body.addProperty("expires_in", 3599);
+				body.addProperty("access_token", "test");
+			} else {
+				status = deleteStatus.applyAsInt(++attempts);
+				if (status != 204) {
+					JsonObject error = new JsonObject();
+					error.addProperty("code", status == 404 ? "Request_ResourceNotFound" : "serviceNotAvailable");
+					error.addProperty("message", "Request failed");
+					body.add("error", error);
+				}
+			}
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(status)
+					.message(status < 300 ? "OK" : "Error")
+					.header("Content-Type", JSON.toString())
+					.body(ResponseBody.create(status == 204 ? "" : body.toString(), JSON))
+					.build();
+		}
+	}
+}
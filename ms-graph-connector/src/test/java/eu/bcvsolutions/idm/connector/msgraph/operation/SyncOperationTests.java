@@ -0,0 +1,385 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+import eu.bcvsolutions.idm.connector.msgraph.util.MemberIndex;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for sync of users and groups. Graph API is replaced by transport which returns one page of delta chosen
+ * by the test and answers steps of $batch from current and deleted users and groups.
+ */
+public class SyncOperationTests {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+	private static final String DELTA_LINK = "https://graph.microsoft.com/v1.0/users/delta?$deltatoken=previous";
+	private static final String GROUP_DELTA_LINK = "https://graph.microsoft.com/v1.0/groups/delta?$deltatoken=previous";
+	private static final String GROUP = "00000000-0000-4000-9000-000000000001";
+	private static final String FIRST = "00000000-0000-4000-8000-000000000001";
+	private static final String SECOND = "00000000-0000-4000-8000-000000000002";
+	private static final String THIRD = "00000000-0000-4000-8000-000000000003";
+
+	private String clientKey;
+	private IGraphServiceClient graphClient;
+	// Records of the page of delta
+	private final JsonArray delta = new JsonArray();
+	// Current users by id, they are returned by steps of $batch
+	private final Map<String, JsonObject> users = new HashMap<>();
+	// Deleted users by id, they are returned by steps for deleted items
+	private final Map<String, JsonObject> deletedUsers = new HashMap<>();
+	// Ids of steps in every $batch which was received
+	private final List<List<String>> batches = new ArrayList<>();
+	// Records of the page of group delta
+	private final JsonArray groupDelta = new JsonArray();
+	// Current groups by id and ids of their members
+	private final Map<String, JsonObject> groups = new HashMap<>();
+	private final Map<String, List<String>> groupMembers = new HashMap<>();
+	// Urls of all steps which were received
+	private final List<String> stepUrls = new ArrayList<>();
+	// Step which is left out of response of $batch
+	private String missingStep;
+	private GraphConfiguration configuration;
+	private Path indexDirectory;
+
+	@Before
+	public void init() throws IOException {
+		GraphClientRegistry.setTransport(new Transport());
+		indexDirectory = Files.createTempDirectory("sync-operation");
+		configuration = new GraphConfiguration();
+		configuration.setTenant(UUID.randomUUID() + ".onmicrosoft.com");
+		configuration.setClientId("test");
+		configuration.setClientSecret(new GuardedString("test".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.setRetryBaseDelay(1);
+		clientKey = GraphClientRegistry.fingerprint(configuration);
+		graphClient = GraphClientRegistry.acquire(clientKey, configuration);
+	}
+
+	@After
+	public void dispose() throws IOException {
+		GraphClientRegistry.release(clientKey);
+		GraphClientRegistry.setTransport(null);
+		try (Stream<Path> files = Files.walk(indexDirectory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	public void firstRoundIsConvertedWithoutLoadingUsers() {
+		delta.add(user("1", "first@test.onmicrosoft.com"));
+		delta.add(user("2", "second@test.onmicrosoft.com"));
+
+		List<SyncDelta> changes = sync(null);
+
+		assertEquals(2, changes.size());
+		assertEquals("first@test.onmicrosoft.com", changes.get(0).getUid().getUidValue());
+		assertEquals(SyncDeltaType.CREATE_OR_UPDATE, changes.get(0).getDeltaType());
+		assertEquals("second@test.onmicrosoft.com", changes.get(1).getUid().getUidValue());
+		assertTrue(batches.isEmpty());
+	}
+
+	@Test
+	public void userReturnedMoreTimesIsLoadedAndReturnedOnce() {
+		delta.add(changed("1"));
+		delta.add(changed("2"));
+		delta.add(changed("1"));
+		users.put("1", user("1", "first@test.onmicrosoft.com"));
+		users.put("2", user("2", "second@test.onmicrosoft.com"));
+
+		List<SyncDelta> changes = sync(new SyncToken(DELTA_LINK));
+
+		assertEquals(2, changes.size());
+		assertEquals("first@test.onmicrosoft.com", changes.get(0).getUid().getUidValue());
+		assertEquals("second@test.onmicrosoft.com", changes.get(1).getUid().getUidValue());
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+	}
+
+	@Test
+	public void removedUserIsResolvedFromDeletedItems() {
+		delta.add(removed("1"));
+		delta.add(removed("2"));
+		// Graph API prefixes name of deleted user with its id without dashes
+		deletedUsers.put("1", user("1", "1first@test.onmicrosoft.com"));
+
+		List<SyncDelta> changes = sync(new SyncToken(DELTA_LINK));
+
+		// Second user is not in deleted items anymore, so its UID is not known
+		assertEquals(1, changes.size());
+		assertEquals(SyncDeltaType.DELETE, changes.get(0).getDeltaType());
+		assertEquals("first@test.onmicrosoft.com", changes.get(0).getUid().getUidValue());
+	}
+
+	@Test
+	public void userWhichIsNotFoundIsSkipped() {
+		delta.add(changed("1"));
+		delta.add(changed("2"));
+		users.put("2", user("2", "second@test.onmicrosoft.com"));
+
+		List<SyncDelta> changes = sync(new SyncToken(DELTA_LINK));
+
+		assertEquals(1, changes.size());
+		assertEquals("second@test.onmicrosoft.com", changes.get(0).getUid().getUidValue());
+	}
+
+	@Test(expected = ConnectorException.class)
+	public void missingResponseInBatchIsReported() {
+		delta.add(changed("1"));
+		users.put("1", user("1", "first@test.onmicrosoft.com"));
+		missingStep = "user_1";
+
+		sync(new SyncToken(DELTA_LINK));
+	}
+
+	@Test
+	public void membersOfGroupAreAppliedToStateOfPreviousSync() {
+		users.put(FIRST, user(FIRST, "first@test.onmicrosoft.com"));
+		users.put(SECOND, user(SECOND, "second@test.onmicrosoft.com"));
+		users.put(THIRD, user(THIRD, "third@test.onmicrosoft.com"));
+		groups.put(GROUP, group(GROUP));
+		groupDelta.add(groupChange(GROUP, memberChange(FIRST, false), memberChange(SECOND, false)));
+		configuration.setMemberIndexDirectory(indexDirectory.toString());
+
+		assertEquals(Arrays.asList("first@test.onmicrosoft.com", "second@test.onmicrosoft.com"), getMembers(syncGroups(null)));
+
+		groupDelta.remove(0);
+		groupDelta.add(groupChange(GROUP, memberChange(FIRST, true), memberChange(THIRD, false)));
+		List<SyncDelta> changes = syncGroups(new SyncToken(GROUP_DELTA_LINK));
+
+		assertEquals(Arrays.asList("second@test.onmicrosoft.com", "third@test.onmicrosoft.com"), getMembers(changes));
+		assertTrue(stepUrls.stream().noneMatch(url -> url.contains("/members")));
+	}
+
+	@Test
+	public void membersOfGroupWhichIsNotInStateAreLoaded() {
+		users.put(FIRST, user(FIRST, "first@test.onmicrosoft.com"));
+		groups.put(GROUP, group(GROUP));
+		groupMembers.put(GROUP, Collections.singletonList(FIRST));
+		// Only name of group was changed, but members from previous sync are not known
+		groupDelta.add(groupChange(GROUP));
+		configuration.setMemberIndexDirectory(indexDirectory.toString());
+
+		List<SyncDelta> changes = syncGroups(new SyncToken(GROUP_DELTA_LINK));
+
+		assertEquals(Collections.singletonList("first@test.onmicrosoft.com"), getMembers(changes));
+		assertTrue(stepUrls.stream().anyMatch(url -> url.startsWith("/groups/" + GROUP + "/members")));
+	}
+
+	private List<SyncDelta> syncGroups(SyncToken token) {
+		ProjectionPlan projection = ProjectionPlan.all();
+		MemberIndex memberIndex = MemberIndex.forConfiguration(configuration);
+		SearchOperation searchOperation = new SearchOperation(graphClient, configuration, projection, memberIndex);
+		List<SyncDelta> changes = new ArrayList<>();
+		new SyncOperation(graphClient, searchOperation, projection, memberIndex).syncGroups(ObjectClass.GROUP, token, changes::add);
+		return changes;
+	}
+
+	private static List<Object> getMembers(List<SyncDelta> changes) {
+		assertEquals(1, changes.size());
+		List<Object> members = new ArrayList<>(changes.get(0).getObject().getAttributeByName("members").getValue());
+		members.sort(Comparator.comparing(Object::toString));
+		return members;
+	}
+
+	private List<SyncDelta> sync(SyncToken token) {
+		ProjectionPlan projection = ProjectionPlan.all();
+		SearchOperation searchOperation = new SearchOperation(graphClient, new GraphConfiguration(), projection, null);
+		List<SyncDelta> changes = new ArrayList<>();
+		new SyncOperation(graphClient, searchOperation, projection, null).syncUsers(ObjectClass.ACCOUNT, token, changes::add);
+		return changes;
+	}
+
+	private static JsonObject user(String id, String userPrincipalName) {
+		JsonObject user = new JsonObject();
+		user.addProperty("id", id);
+		user.addProperty("userPrincipalName", userPrincipalName);
+		user.addProperty("displayName", "User " + id);
+		user.addProperty("accountEnabled", true);
+		return user;
+	}
+
+	private static JsonObject group(String id) {
+		JsonObject group = new JsonObject();
+		group.addProperty("id", id);
+		group.addProperty("displayName", "Group " + id);
+		return group;
+	}
+
+	private static JsonObject groupChange(String id, JsonObject... memberChanges) {
+		JsonObject group = group(id);
+		if (memberChanges.length > 0) {
+			JsonArray members = new JsonArray();
+			Arrays.stream(memberChanges).forEach(members::add);
+			group.add("members@delta", members);
+		}
+		return group;
+	}
+
+	private static JsonObject memberChange(String id, boolean removed) {
+		JsonObject member = member(id);
+		if (removed) {
+			member.add("@removed", new JsonObject());
+		}
+		return member;
+	}
+
+	private static JsonObject member(String id) {
+		JsonObject member = new JsonObject();
+		member.addProperty("@odata.type", "#microsoft.graph.user");
+		member.addProperty("id", id);
+		return member;
+	}
+
+	/**
+	 * Delta returns only changed attributes in next rounds
+	 */
+	private static JsonObject changed(String id) {
+		JsonObject user = new JsonObject();
+		user.addProperty("id", id);
+		user.addProperty("displayName", "Changed " + id);
+		return user;
+	}
+
+	private static JsonObject removed(String id) {
+		JsonObject user = new JsonObject();
+		user.addProperty("id", id);
+		JsonObject reason = new JsonObject();
+		reason.addProperty("reason", "changed");
+		user.add("@removed", reason);
+		return user;
+	}
+
+	/**
+	 * Answers token requests, delta of users and groups and $batch requests
+	 */
+	private class Transport implements Interceptor {
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request = chain.request();
+			String path = request.url().encodedPath();
+			if (path.endsWith("/token")) {
+				JsonObject token = new JsonObject();
+				token.addProperty("token_type", "Bearer");
+				token.addProperty("expires_in", 3599);
+				token.addProperty("access_token", "test");
+				return response(request, 200, token);
+			}
+			// SDK requests delta as function of namespace microsoft.graph
+			if (path.endsWith("/delta") || path.endsWith("/microsoft.graph.delta")) {
+				boolean groups = path.contains("/groups/");
+				JsonObject page = new JsonObject();
+				page.add("value", groups ? groupDelta : delta);
+				page.addProperty("@odata.deltaLink", groups ? GROUP_DELTA_LINK : DELTA_LINK);
+				return response(request, 200, page);
+			}
+
+			Buffer body = new Buffer();
+			request.body().writeTo(body);
+			JsonArray requests = JsonParser.parseString(body.readUtf8()).getAsJsonObject().getAsJsonArray("requests");
+			List<String> ids = new ArrayList<>();
+			JsonArray responses = new JsonArray();
+			for (JsonElement element : requests) {
+				JsonObject step = element.getAsJsonObject();
+				String id = step.get("id").getAsString();
+				ids.add(id);
+				if (id.equals(missingStep)) {
+					continue;
+				}
+				String url = URLDecoder.decode(step.get("url").getAsString(), StandardCharsets.UTF_8.name());
+				stepUrls.add(url);
+				JsonObject object = answer(url);
+				JsonObject response = new JsonObject();
+				response.addProperty("id", id);
+				response.addProperty("status", object == null ? 404 : 200);
+				response.add("body", object == null ? new JsonObject() : object);
+				responses.add(response);
+			}
+			batches.add(ids);
+			JsonObject result = new JsonObject();
+			result.add("responses", responses);
+			return response(request, 200, result);
+		}
+
+		/**
+		 * @return body of step for the url or null if object doesn't exist
+		 */
+		private JsonObject answer(String url) {
+			String[] segments = (url.contains("?") ? url.substring(0, url.indexOf('?')) : url).split("/");
+			String objectId = segments[2];
+			if (url.startsWith("/directory/deletedItems/")) {
+				return deletedUsers.get(segments[3]);
+			}
+			if (url.startsWith("/users/")) {
+				return users.get(objectId);
+			}
+			if (segments.length == 3) {
+				return groups.get(objectId);
+			}
+			JsonArray value = new JsonArray();
+			if ("members".equals(segments[3])) {
+				groupMembers.getOrDefault(objectId, new ArrayList<>()).forEach(memberId -> value.add(member(memberId)));
+			}
+			JsonObject page = new JsonObject();
+			page.add("value", value);
+			return page;
+		}
+
+		private Response response(Request request, int status, JsonElement body) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(status)
+					.message(status == 200 ? "OK" : "Error")
+					.header("Content-Type", JSON.toString())
+					.body(ResponseBody.create(body.toString(), JSON))
+					.build();
+		}
+	}
+}
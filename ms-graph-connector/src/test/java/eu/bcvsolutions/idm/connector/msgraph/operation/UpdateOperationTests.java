@@ -0,0 +1,337 @@
+package eu.bcvsolutions.idm.connector.msgraph.operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+import eu.bcvsolutions.idm.connector.msgraph.util.GuardedStringAccessor;
+import eu.bcvsolutions.idm.connector.msgraph.util.ProjectionPlan;
+import eu.bcvsolutions.idm.connector.msgraph.util.SchemaService;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for update of members and owners of group. Graph API is replaced by transport which keeps members and owners
+ * of one group and records every step of $batch, so tests can check which changes were sent.
+ */
+public class UpdateOperationTests {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+	private static final String GROUP = "00000000-0000-4000-9000-000000000001";
+
+	private String clientKey;
+	private IGraphServiceClient graphClient;
+	// Users by id
+	private final Map<String, String> users = new HashMap<>();
+	// Previous names of renamed users, value is the id
+	private final Map<String, String> previousNames = new HashMap<>();
+	// Current members and owners of the group by relation
+	private final Map<String, Set<String>> relations = new HashMap<>();
+	// Method and url of every step which was received, in the order of batches
+	private final List<String> steps = new ArrayList<>();
+	// Sizes of members@odata.bind in PATCH of group
+	private final List<Integer> boundMembers = new ArrayList<>();
+	// Members which are not in the list of members, because they were added after it was loaded
+	private final Set<String> addedLater = new HashSet<>();
+	// True if PATCH with members@odata.bind should be rejected
+	private boolean rejectBind;
+
+	@Before
+	public void init() {
+		GraphClientRegistry.setTransport(new Transport());
+		GraphConfiguration configuration = new GraphConfiguration();
+		configuration.setTenant(UUID.randomUUID() + ".onmicrosoft.com");
+		configuration.setClientId("test");
+		configuration.setClientSecret(new GuardedString("test".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.setRetryBaseDelay(1);
+		clientKey = GraphClientRegistry.fingerprint(configuration);
+		graphClient = GraphClientRegistry.acquire(clientKey, configuration);
+		relations.put(ProjectionPlan.MEMBERS, new HashSet<>());
+		relations.put(ProjectionPlan.OWNERS, new HashSet<>());
+	}
+
+	@After
+	public void dispose() {
+		GraphClientRegistry.release(clientKey);
+		GraphClientRegistry.setTransport(null);
+	}
+
+	@Test
+	public void onlyDifferencesOfMembersAreSent() {
+		String first = user("first");
+		String second = user("second");
+		String third = user("third");
+		relations.get(ProjectionPlan.MEMBERS).addAll(Arrays.asList(first, second));
+
+		updateMembers("first@test.onmicrosoft.com", "third@test.onmicrosoft.com");
+
+		assertEquals(new HashSet<>(Arrays.asList(first, third)), relations.get(ProjectionPlan.MEMBERS));
+		assertEquals(Collections.singletonList(1), boundMembers);
+		assertEquals(1, count("DELETE /groups/" + GROUP + "/members/" + second));
+	}
+
+	@Test
+	public void memberRequestedByIdOrOtherNameIsNotChanged() {
+		String first = user("first");
+		String second = user("second");
+		relations.get(ProjectionPlan.MEMBERS).addAll(Arrays.asList(first, second));
+		// The second user was renamed, IdM still has the old name
+		users.put(second, "renamed@test.onmicrosoft.com");
+		previousNames.put("second@test.onmicrosoft.com", second);
+
+		updateMembers(first, "second@test.onmicrosoft.com");
+
+		assertEquals(new HashSet<>(Arrays.asList(first, second)), relations.get(ProjectionPlan.MEMBERS));
+		assertTrue(boundMembers.isEmpty());
+		assertEquals(0, count("DELETE "));
+	}
+
+	@Test(expected = ConnectorException.class)
+	public void memberWhichDoesNotExistIsRejected() {
+		updateMembers("unknown@test.onmicrosoft.com");
+	}
+
+	@Test
+	public void newMembersAreBoundInChunks() {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 45; i++) {
+			user("user" + i);
+			names.add("user" + i + "@test.onmicrosoft.com");
+		}
+
+		updateMembers(names.toArray(new String[0]));
+
+		assertEquals(Arrays.asList(20, 20, 5), boundMembers);
+		assertEquals(45, relations.get(ProjectionPlan.MEMBERS).size());
+	}
+
+	@Test
+	public void rejectedChunkIsAddedOneByOne() {
+		String first = user("first");
+		String second = user("second");
+		rejectBind = true;
+		// Member was added in the meantime, so Graph API rejects the whole chunk
+		relations.get(ProjectionPlan.MEMBERS).add(first);
+		addedLater.add(first);
+
+		updateMembers("first@test.onmicrosoft.com", "second@test.onmicrosoft.com");
+
+		assertEquals(new HashSet<>(Arrays.asList(first, second)), relations.get(ProjectionPlan.MEMBERS));
+		assertEquals(2, count("POST /groups/" + GROUP + "/members/$ref"));
+		assertEquals(Collections.singletonList("GET /groups/" + GROUP + "/members/" + first + "?$select=id"),
+				steps.stream().filter(step -> step.startsWith("GET /groups/" + GROUP + "/members/")).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void rejectedReferenceWhichDoesNotExistFails() {
+		user("first");
+		rejectBind = true;
+		// Any reference is rejected and it's not in the group
+		relations.put(ProjectionPlan.MEMBERS, new RejectingSet());
+		try {
+			updateMembers("first@test.onmicrosoft.com");
+			throw new AssertionError("Invalid reference must not be ignored");
+		} catch (ConnectorException e) {
+			assertEquals(1, count("GET /groups/" + GROUP + "/members/"));
+		}
+	}
+
+	@Test
+	public void newOwnerIsAddedBeforeOldOneIsRemoved() {
+		String first = user("first");
+		String second = user("second");
+		relations.get(ProjectionPlan.OWNERS).add(first);
+
+		UpdateOperation operation = createOperation();
+		operation.updateGroup(Collections.singleton(AttributeBuilder.build(ProjectionPlan.OWNERS, "second@test.onmicrosoft.com")), new Uid(GROUP));
+
+		assertEquals(Collections.singleton(second), relations.get(ProjectionPlan.OWNERS));
+		int added = steps.indexOf("POST /groups/" + GROUP + "/owners/$ref");
+		int removed = steps.indexOf("DELETE /groups/" + GROUP + "/owners/" + first + "/$ref");
+		assertTrue(added >= 0 && added < removed);
+	}
+
+	private void updateMembers(String... names) {
+		createOperation().updateGroup(Collections.singleton(AttributeBuilder.build(ProjectionPlan.MEMBERS, Arrays.asList(names))), new Uid(GROUP));
+	}
+
+	private UpdateOperation createOperation() {
+		return new UpdateOperation(graphClient, new GuardedStringAccessor(), new GraphConfiguration(), SchemaService.defaultService(), null);
+	}
+
+	private String user(String name) {
+		String id = UUID.randomUUID().toString();
+		users.put(id, name + "@test.onmicrosoft.com");
+		return id;
+	}
+
+	private long count(String prefix) {
+		return steps.stream().filter(step -> step.startsWith(prefix)).count();
+	}
+
+	/**
+	 * Relation which rejects every new reference, it behaves like reference to object which can't be member
+	 */
+	private static class RejectingSet extends HashSet<String> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean add(String id) {
+			return false;
+		}
+	}
+
+	/**
+	 * Answers token requests and steps of $batch for members and owners of the group
+	 */
+	private class Transport implements Interceptor {
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request = chain.request();
+			if (request.url().encodedPath().endsWith("/token")) {
+				JsonObject token = new JsonObject();
+				token.addProperty("token_type", "Bearer");
+				token.addProperty("expires_in", 3599);
+				token.addProperty("access_token", "test");
+				return response(request, 200, token);
+			}
+			Buffer body = new Buffer();
+			request.body().writeTo(body);
+			JsonArray requests = JsonParser.parseString(body.readUtf8()).getAsJsonObject().getAsJsonArray("requests");
+			JsonArray responses = new JsonArray();
+			for (JsonElement element : requests) {
+				JsonObject step = element.getAsJsonObject();
+				String method = step.get("method").getAsString();
+				String url = URLDecoder.decode(step.get("url").getAsString(), StandardCharsets.UTF_8.name());
+				steps.add(method + " " + url);
+				JsonObject response = new JsonObject();
+				response.addProperty("id", step.get("id").getAsString());
+				JsonObject result = answer(method, url, step.has("body") ? step.getAsJsonObject("body") : null);
+				response.addProperty("status", result.has("status") ? result.remove("status").getAsInt() : 200);
+				response.add("body", result);
+				responses.add(response);
+			}
+			JsonObject result = new JsonObject();
+			result.add("responses", responses);
+			return response(request, 200, result);
+		}
+
+		/**
+		 * @return body of step, status is in property status if it's not 200
+		 */
+		private JsonObject answer(String method, String url, JsonObject body) {
+			String[] segments = (url.contains("?") ? url.substring(0, url.indexOf('?')) : url).split("/");
+			if ("users".equals(segments[1])) {
+				String id = users.entrySet().stream()
+						.filter(user -> user.getKey().equals(segments[2]) || user.getValue().equalsIgnoreCase(segments[2]))
+						.map(Map.Entry::getKey)
+						.findFirst().orElse(previousNames.get(segments[2]));
+				return id == null ? error(404, "Request_ResourceNotFound") : member(id);
+			}
+			if (segments.length == 3 && "PATCH".equals(method)) {
+				JsonArray bind = body.getAsJsonArray("members@odata.bind");
+				boundMembers.add(bind.size());
+				if (rejectBind) {
+					return error(400, "Request_BadRequest");
+				}
+				bind.forEach(reference -> relations.get(ProjectionPlan.MEMBERS).add(getId(reference.getAsString())));
+				return status(204);
+			}
+			Set<String> relation = relations.get(segments[3]);
+			if (segments.length == 4 && "GET".equals(method)) {
+				JsonArray value = new JsonArray();
+				relation.stream().filter(id -> !addedLater.contains(id)).forEach(id -> value.add(member(id)));
+				JsonObject page = new JsonObject();
+				page.add("value", value);
+				return page;
+			}
+			if (segments.length == 5 && "$ref".equals(segments[4]) && "POST".equals(method)) {
+				return relation.add(getId(body.get("@odata.id").getAsString())) ? status(204) : error(400, "Request_BadRequest");
+			}
+			if (segments.length == 5 && "GET".equals(method)) {
+				return relation.contains(segments[4]) ? member(segments[4]) : error(404, "Request_ResourceNotFound");
+			}
+			if (segments.length == 6 && "DELETE".equals(method)) {
+				return relation.remove(segments[4]) ? status(204) : error(404, "Request_ResourceNotFound");
+			}
+			return error(400, "Request_UnsupportedQuery");
+		}
+
+		private JsonObject member(String id) {
+			JsonObject member = new JsonObject();
+			member.addProperty("@odata.type", "#microsoft.graph.user");
+			member.addProperty("id", id);
+			member.addProperty("userPrincipalName", users.get(id));
+			return member;
+		}
+
+		private String getId(String reference) {
+			return reference.substring(reference.lastIndexOf('/') + 1);
+		}
+
+		private JsonObject status(int status) {
+			JsonObject result = new JsonObject();
+			result.addProperty("status", status);
+			return result;
+		}
+
+		private JsonObject error(int status, String code) {
+			JsonObject result = status(status);
+			JsonObject error = new JsonObject();
+			error.addProperty("code", code);
+			error.addProperty("message", "Request failed");
+			result.add("error", error);
+			return result;
+		}
+
+		private Response response(Request request, int status, JsonElement body) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(status)
+					.message(status == 200 ? "OK" : "Error")
+					.header("Content-Type", JSON.toString())
+					.body(ResponseBody.create(body.toString(), JSON))
+					.build();
+		}
+	}
+}
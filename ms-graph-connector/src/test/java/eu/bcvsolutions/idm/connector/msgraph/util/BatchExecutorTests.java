@@ -0,0 +1,318 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.IntUnaryOperator;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for splitting of steps into batches and for sending of failed steps again. Graph API is replaced by transport
+ * which answers every step with status chosen by the test.
+ */
+public class BatchExecutorTests {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+
+	private GraphConfiguration configuration;
+	private String clientKey;
+	private IGraphServiceClient graphClient;
+	// Ids of steps in every $batch which was received
+	private final List<List<String>> batches = new ArrayList<>();
+	// Number of attempts of every step
+	private final Map<String, Integer> attempts = new HashMap<>();
+	// Status of step, arguments are id of step and number of its attempt
+	private BiFunction<String, Integer, Integer> stepStatus = (id, attempt) -> 200;
+	// Status of the whole $batch request, argument is number of the batch
+	private IntUnaryOperator batchStatus = batch -> 200;
+
+	@Before
+	public void init() {
+		GraphClientRegistry.setTransport(new Transport());
+		configuration = new GraphConfiguration();
+		// Every test has its own client and throttle
+		configuration.setTenant(UUID.randomUUID() + ".onmicrosoft.com");
+		configuration.setClientId("test");
+		configuration.setClientSecret(new GuardedString("test".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.setRetryBaseDelay(1);
+		clientKey = GraphClientRegistry.fingerprint(configuration);
+		graphClient = GraphClientRegistry.acquire(clientKey, configuration);
+	}
+
+	@After
+	public void dispose() {
+		GraphClientRegistry.release(clientKey);
+		GraphClientRegistry.setTransport(null);
+	}
+
+	@Test
+	public void independentStepsAreSplitByBatchSize() {
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps("step", 45));
+
+		assertEquals(45, responses.size());
+		assertEquals(3, batches.size());
+		assertEquals(20, batches.get(0).size());
+		assertEquals(20, batches.get(1).size());
+		assertEquals(5, batches.get(2).size());
+	}
+
+	@Test
+	public void dependentStepsAreSentInOneBatch() {
+		List<BatchStep> steps = steps("step", 19);
+		steps.add(BatchStep.get("first", "/users/first"));
+		steps.add(BatchStep.get("second", "/users/second").dependsOn("first"));
+		steps.add(BatchStep.get("third", "/users/third").dependsOn("second"));
+
+		new BatchExecutor(graphClient).execute(steps);
+
+		assertEquals(2, batches.size());
+		assertInSameBatch("first", "second", "third");
+	}
+
+	@Test
+	public void chainsAreMergedWhenStepDependsOnBoth() {
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(BatchStep.get("left", "/users/left"));
+		steps.addAll(steps("step", 18));
+		steps.add(BatchStep.get("right", "/users/right"));
+		steps.add(BatchStep.get("both", "/users/both").dependsOn("left", "right"));
+
+		new BatchExecutor(graphClient).execute(steps);
+
+		assertInSameBatch("left", "right", "both");
+	}
+
+	@Test(expected = ConnectorException.class)
+	public void unknownDependencyIsRejected() {
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(BatchStep.get("step", "/users/step").dependsOn("unknown"));
+		new BatchExecutor(graphClient).execute(steps);
+	}
+
+	@Test(expected = ConnectorException.class)
+	public void tooLongChainIsRejected() {
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(BatchStep.get("step0", "/users/step0"));
+		for (int i = 1; i <= BatchExecutor.MAX_BATCH_SIZE; i++) {
+			steps.add(BatchStep.get("step" + i, "/users/step" + i).dependsOn("step" + (i - 1)));
+		}
+		new BatchExecutor(graphClient).execute(steps);
+	}
+
+	@Test
+	public void throttledStepIsSentAgain() {
+		stepStatus = (id, attempt) -> "throttled".equals(id) && attempt == 1 ? 429 : 200;
+		List<BatchStep> steps = steps("step", 3);
+		steps.add(BatchStep.get("throttled", "/users/throttled"));
+
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		assertEquals(200, responses.get("throttled").getStatus());
+		assertEquals(2, batches.size());
+		assertEquals(1, batches.get(1).size());
+	}
+
+	@Test
+	public void failedDependencyIsSentWithItsDependencyInEveryAttempt() {
+		// Dependency is throttled in all attempts but the last one, dependent step fails with 424 until then
+		stepStatus = (id, attempt) -> attempt < 3 ? ("created".equals(id) ? 429 : 424) : 200;
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(new BatchStep("created", "POST", "/users", new JsonObject()));
+		steps.add(new BatchStep("license", "POST", "/users/created/assignLicense", new JsonObject()).dependsOn("created"));
+
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		assertEquals(200, responses.get("created").getStatus());
+		assertEquals(200, responses.get("license").getStatus());
+		assertEquals(Integer.valueOf(3), attempts.get("license"));
+	}
+
+	@Test
+	public void failedDependencyIsReturnedWhenDependencyIsNotSentAgain() {
+		stepStatus = (id, attempt) -> "created".equals(id) ? 400 : 424;
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(new BatchStep("created", "POST", "/users", new JsonObject()));
+		steps.add(new BatchStep("license", "POST", "/users/created/assignLicense", new JsonObject()).dependsOn("created"));
+
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		assertEquals(400, responses.get("created").getStatus());
+		assertEquals(424, responses.get("license").getStatus());
+		assertEquals(1, batches.size());
+	}
+
+	@Test
+	public void notFoundIsSentAgainOnlyInCreateOperation() {
+		stepStatus = (id, attempt) -> attempt == 1 ? 404 : 200;
+		RetryPolicy policy = RetryPolicy.apply(RetryPolicy.Operation.READ, configuration);
+		try {
+			assertEquals(404, new BatchExecutor(graphClient).execute(steps("read", 1)).get("read0").getStatus());
+		} finally {
+			policy.close();
+		}
+		policy = RetryPolicy.apply(RetryPolicy.Operation.CREATE, configuration);
+		try {
+			assertEquals(200, new BatchExecutor(graphClient).execute(steps("create", 1)).get("create0").getStatus());
+		} finally {
+			policy.close();
+		}
+		assertEquals(Integer.valueOf(1), attempts.get("read0"));
+		assertEquals(Integer.valueOf(2), attempts.get("create0"));
+	}
+
+	@Test
+	public void unavailableStepIsSentAgainOnlyWhenItDoesNotChangeAnything() {
+		stepStatus = (id, attempt) -> attempt == 1 ? 503 : 200;
+		List<BatchStep> steps = new ArrayList<>();
+		steps.add(BatchStep.get("read", "/users/read"));
+		steps.add(new BatchStep("write", "PATCH", "/users/write", new JsonObject()));
+
+		Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps);
+
+		assertEquals(200, responses.get("read").getStatus());
+		assertEquals(503, responses.get("write").getStatus());
+	}
+
+	@Test
+	public void batchWithOnlyReadsIsSentAgainAfterServerError() {
+		batchStatus = batch -> batch == 1 ? 503 : 200;
+
+		RetryPolicy policy = RetryPolicy.apply(RetryPolicy.Operation.READ, configuration);
+		try {
+			Map<String, BatchResponse> responses = new BatchExecutor(graphClient).execute(steps("read", 2));
+			assertEquals(200, responses.get("read0").getStatus());
+		} finally {
+			policy.close();
+		}
+		assertEquals(2, batches.size());
+	}
+
+	@Test
+	public void batchWithWriteIsNotSentAgainAfterServerError() {
+		batchStatus = batch -> batch == 1 ? 503 : 200;
+		List<BatchStep> steps = steps("read", 1);
+		steps.add(new BatchStep("write", "PATCH", "/users/write", new JsonObject()));
+
+		RetryPolicy policy = RetryPolicy.apply(RetryPolicy.Operation.UPDATE, configuration);
+		try {
+			new BatchExecutor(graphClient).execute(steps);
+			fail("Batch with write must not be sent again");
+		} catch (RuntimeException e) {
+			assertEquals(1, batches.size());
+		} finally {
+			policy.close();
+		}
+	}
+
+	private static List<BatchStep> steps(String prefix, int count) {
+		List<BatchStep> steps = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			steps.add(BatchStep.get(prefix + i, "/users/" + prefix + i));
+		}
+		return steps;
+	}
+
+	private void assertInSameBatch(String... ids) {
+		for (List<String> batch : batches) {
+			if (batch.contains(ids[0])) {
+				for (String id : ids) {
+					assertTrue("Step " + id + " is not in batch with " + ids[0], batch.contains(id));
+				}
+				return;
+			}
+		}
+		fail("Step " + ids[0] + " was not sent");
+	}
+
+	/**
+	 * Answers token requests and $batch requests, every step gets status from {@link #stepStatus}
+	 */
+	private class Transport implements Interceptor {
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request = chain.request();
+			if (request.url().encodedPath().endsWith("/token")) {
+				JsonObject token = new JsonObject();
+				token.addProperty("token_type", "Bearer");
+				token.addProperty("expires_in", 3599);
+				token.addProperty("access_token", "test");
+				return response(request, 200, token);
+			}
+			Buffer body = new Buffer();
+			request.body().writeTo(body);
+			JsonArray requests = JsonParser.parseString(body.readUtf8()).getAsJsonObject().getAsJsonArray("requests");
+			List<String> ids = new ArrayList<>();
+			requests.forEach(step -> ids.add(step.getAsJsonObject().get("id").getAsString()));
+			batches.add(ids);
+			int status = batchStatus.applyAsInt(batches.size());
+			if (status != 200) {
+				JsonObject error = new JsonObject();
+				JsonObject detail = new JsonObject();
+				detail.addProperty("code", "serviceNotAvailable");
+				detail.addProperty("message", "Service is not available");
+				error.add("error", detail);
+				return response(request, status, error);
+			}
+
+			JsonArray responses = new JsonArray();
+			for (String id : ids) {
+				int attempt = attempts.merge(id, 1, Integer::sum);
+				JsonObject response = new JsonObject();
+				response.addProperty("id", id);
+				response.addProperty("status", stepStatus.apply(id, attempt));
+				JsonObject headers = new JsonObject();
+				headers.addProperty("Retry-After", "0");
+				response.add("headers", headers);
+				response.add("body", new JsonObject());
+				responses.add(response);
+			}
+			JsonObject result = new JsonObject();
+			result.add("responses", responses);
+			return response(request, 200, result);
+		}
+
+		private Response response(Request request, int status, JsonElement body) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(status)
+					.message(status == 200 ? "OK" : "Error")
+					.header("Content-Type", JSON.toString())
+					.body(ResponseBody.create(body.toString(), JSON))
+					.build();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.Test;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for translation of ConnId filters into $filter and $search of Graph API
+ */
+public class GraphFilterTranslatorTests {
+
+	private static final String SKU_ID = "23b8c1e9-3924-46de-beb1-3b9046685257";
+
+	@Test
+	public void uidEqualsIsQueryForOneObject() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.equalTo(new Name("jan@contoso.com")));
+
+		assertEquals("jan@contoso.com", filter.getUid());
+		assertEquals("userPrincipalName eq 'jan@contoso.com'", filter.getFilter());
+		assertFalse(filter.isAdvanced());
+	}
+
+	@Test
+	public void groupUidIsId() {
+		GraphFilter filter = translateOne(ObjectClass.GROUP, FilterBuilder.equalTo(new Uid("eaafe543-2434-4678-a9e2-7ba9952e6abb")));
+
+		assertEquals("id eq 'eaafe543-2434-4678-a9e2-7ba9952e6abb'", filter.getFilter());
+	}
+
+	@Test
+	public void quoteIsEscaped() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, equalTo("surname", "O'Neil"));
+
+		assertEquals("surname eq 'O''Neil'", filter.getFilter());
+	}
+
+	@Test
+	public void equalsForSameAttributeAreMergedIntoIn() {
+		Filter or = FilterBuilder.or(FilterBuilder.or(equalTo("department", "Sales"), equalTo("department", "Finance")),
+				equalTo("department", "IT"));
+
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, or);
+
+		assertEquals("department in ('Sales','Finance','IT')", filter.getFilter());
+		assertNull(filter.getUid());
+		assertFalse(filter.isAdvanced());
+	}
+
+	@Test
+	public void uidsAreMergedIntoIn() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.or(
+				FilterBuilder.equalTo(new Name("jan@contoso.com")), FilterBuilder.equalTo(new Name("eva@contoso.com"))));
+
+		assertEquals("userPrincipalName in ('jan@contoso.com','eva@contoso.com')", filter.getFilter());
+		assertNull(filter.getUid());
+	}
+
+	@Test
+	public void equalsForDifferentAttributesAreNotMerged() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.or(equalTo("department", "Sales"), equalTo("city", "Praha")));
+
+		assertEquals("(department eq 'Sales') or (city eq 'Praha')", filter.getFilter());
+	}
+
+	@Test
+	public void notEqualsNeedsAdvancedQuery() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.not(equalTo("department", "Sales")));
+
+		assertEquals("department ne 'Sales'", filter.getFilter());
+		assertTrue(filter.isAdvanced());
+	}
+
+	@Test
+	public void containsIsEvaluatedByFramework() {
+		// $search matches only start of words, "son" would not find "Johnson"
+		assertTrue(translate(ObjectClass.ACCOUNT, FilterBuilder.contains(AttributeBuilder.build("displayName", "son"))).isEmpty());
+		assertTrue(translate(ObjectClass.ACCOUNT, FilterBuilder.not(FilterBuilder.contains(AttributeBuilder.build("displayName", "son")))).isEmpty());
+	}
+
+	@Test
+	public void containsInAndNarrowsOnlyTranslatedPart() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.and(
+				FilterBuilder.contains(AttributeBuilder.build("displayName", "son")), equalTo("department", "Sales")));
+
+		assertEquals("department eq 'Sales'", filter.getFilter());
+		assertFalse(filter.isAdvanced());
+	}
+
+	@Test
+	public void containsInOrNeedsAllObjects() {
+		assertTrue(translate(ObjectClass.ACCOUNT, FilterBuilder.or(
+				FilterBuilder.contains(AttributeBuilder.build("displayName", "son")), equalTo("department", "Sales"))).isEmpty());
+	}
+
+	@Test
+	public void licensesAreFilteredByLambda() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT,
+				FilterBuilder.containsAllValues(AttributeBuilder.build(ProjectionPlan.ASSIGNED_LICENSES, SKU_ID)));
+
+		assertEquals("assignedLicenses/any(x:x/skuId eq " + SKU_ID + ")", filter.getFilter());
+		assertTrue(filter.isAdvanced());
+	}
+
+	@Test
+	public void unsupportedFiltersAreEvaluatedByFramework() {
+		assertTrue(translate(ObjectClass.ACCOUNT,
+				FilterBuilder.containsAllValues(AttributeBuilder.build(ProjectionPlan.ASSIGNED_LICENSES, "not uuid"))).isEmpty());
+		assertTrue(translate(ObjectClass.ACCOUNT, FilterBuilder.equalTo(AttributeBuilder.build(ProjectionPlan.ASSIGNED_LICENSES, SKU_ID))).isEmpty());
+		assertTrue(translate(ObjectClass.GROUP, FilterBuilder.contains(AttributeBuilder.build(ProjectionPlan.MEMBERS, "jan"))).isEmpty());
+	}
+
+	@Test
+	public void equalsNullNeedsAdvancedQuery() {
+		GraphFilter filter = translateOne(ObjectClass.ACCOUNT, FilterBuilder.equalTo(AttributeBuilder.build("department")));
+
+		assertEquals("department eq null", filter.getFilter());
+		assertTrue(filter.isAdvanced());
+	}
+
+	private static Filter equalTo(String name, String value) {
+		return FilterBuilder.equalTo(AttributeBuilder.build(name, value));
+	}
+
+	private static List<GraphFilter> translate(ObjectClass objectClass, Filter filter) {
+		return new GraphFilterTranslator(objectClass).translate(filter);
+	}
+
+	private static GraphFilter translateOne(ObjectClass objectClass, Filter filter) {
+		List<GraphFilter> filters = translate(objectClass, filter);
+		assertEquals(1, filters.size());
+		return filters.get(0);
+	}
+}
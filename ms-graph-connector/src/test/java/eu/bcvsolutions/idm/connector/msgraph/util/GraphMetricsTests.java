@@ -0,0 +1,35 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for reset of metrics via JMX
+ */
+public class GraphMetricsTests {
+
+	@Test
+	public void resetClearsCountersAndRates() throws InterruptedException {
+		GraphMetrics metrics = new GraphMetrics();
+		try (GraphMetrics.Scope ignored = metrics.bind()) {
+			metrics.recordRequest("/users", 200, 10);
+			GraphMetrics.recordObject();
+		}
+		// Rate is computed only from completed seconds
+		Thread.sleep(1100);
+		assertTrue(metrics.getRequestsPerSecond() > 0);
+		assertTrue(metrics.getObjectsConvertedPerSecond() > 0);
+
+		metrics.reset();
+
+		assertEquals(0, metrics.getRequestCount());
+		assertEquals(0, metrics.getObjectsConverted());
+		assertTrue(metrics.getEndpoints().isEmpty());
+		assertEquals(0, metrics.getRequestsPerSecond(), 0);
+		assertEquals(0, metrics.getObjectsConvertedPerSecond(), 0);
+	}
+}
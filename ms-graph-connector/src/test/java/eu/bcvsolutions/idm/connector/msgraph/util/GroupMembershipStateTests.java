@@ -0,0 +1,105 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for members of groups stored next to the index of members
+ */
+public class GroupMembershipStateTests {
+
+	private static final String GROUP = "00000000-0000-4000-9000-000000000001";
+	private static final String USER = "00000000-0000-4000-8000-000000000001";
+	private static final String DEVICE = "00000000-0000-4000-7000-000000000001";
+
+	private Path directory;
+	private MemberIndex index;
+	private GroupMembershipState state;
+
+	@Before
+	public void init() throws IOException {
+		directory = Files.createTempDirectory("membership-state");
+		GraphConfiguration configuration = new GraphConfiguration();
+		configuration.setTenant("contoso.onmicrosoft.com");
+		configuration.setMemberIndexDirectory(directory.toString());
+		index = MemberIndex.forConfiguration(configuration);
+		state = GroupMembershipState.forIndex(index);
+	}
+
+	@After
+	public void dispose() throws IOException {
+		index.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	public void stateIsNotCreatedWithoutIndex() {
+		assertNull(GroupMembershipState.forIndex(null));
+	}
+
+	@Test
+	public void membersAreStoredInFile() {
+		Map<String, Boolean> members = new HashMap<>();
+		members.put(USER, true);
+		members.put(DEVICE, false);
+		state.put(GROUP, members);
+
+		// New instance reads the same file, e.g. after restart of IdM
+		assertEquals(members, GroupMembershipState.forIndex(index).get(GROUP));
+		assertTrue(Files.exists(directory.resolve("contoso.onmicrosoft.com.groups").resolve(GROUP)));
+	}
+
+	@Test
+	public void unknownGroupIsNotTracked() {
+		assertNull(state.get(GROUP));
+		assertNull(state.get("not-an-id"));
+	}
+
+	@Test
+	public void removedGroupIsNotTracked() {
+		state.put(GROUP, Collections.singletonMap(USER, true));
+		state.remove(GROUP);
+
+		assertNull(state.get(GROUP));
+	}
+
+	@Test
+	public void clearedGroupsAreNotTracked() {
+		state.put(GROUP, Collections.singletonMap(USER, true));
+		state.clear();
+
+		assertNull(state.get(GROUP));
+	}
+
+	@Test
+	public void invalidFileIsLoadedAgain() throws IOException {
+		state.put(GROUP, Collections.singletonMap(USER, true));
+		Path file = directory.resolve("contoso.onmicrosoft.com.groups").resolve(GROUP);
+		Files.write(file, Collections.singletonList(USER), StandardCharsets.UTF_8);
+
+		assertNull(state.get(GROUP));
+	}
+}
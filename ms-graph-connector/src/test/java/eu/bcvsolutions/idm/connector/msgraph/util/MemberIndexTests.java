@@ -0,0 +1,164 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for index of members stored in memory-mapped file
+ */
+public class MemberIndexTests {
+
+	private static final int MAGIC = 0x4D474958;
+
+	private Path directory;
+	private GraphConfiguration configuration;
+	private MemberIndex index;
+
+	@Before
+	public void init() throws IOException {
+		directory = Files.createTempDirectory("member-index");
+		configuration = new GraphConfiguration();
+		configuration.setTenant("Contoso.onmicrosoft.com");
+		configuration.setMemberIndexDirectory(directory.toString());
+		index = MemberIndex.forConfiguration(configuration);
+	}
+
+	@After
+	public void dispose() throws IOException {
+		index.close();
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void indexIsNotCreatedWithoutDirectory() {
+		GraphConfiguration withoutIndex = new GraphConfiguration();
+		withoutIndex.setTenant("contoso.onmicrosoft.com");
+		assertNull(MemberIndex.forConfiguration(withoutIndex));
+	}
+
+	@Test
+	public void indexIsSharedForTenant() {
+		assertSame(index, MemberIndex.forConfiguration(configuration));
+	}
+
+	@Test
+	public void userPrincipalNameIsStoredAndChanged() {
+		String id = UUID.randomUUID().toString();
+		assertNull(index.get(id));
+
+		index.put(id, "jan@contoso.com");
+		assertEquals("jan@contoso.com", index.get(id));
+		assertEquals("jan@contoso.com", index.get(id.toUpperCase()));
+
+		index.put(id, "jan.novak@contoso.com");
+		assertEquals("jan.novak@contoso.com", index.get(id));
+	}
+
+	@Test
+	public void invalidValuesAreIgnored() {
+		index.put("not-uuid", "jan@contoso.com");
+		index.put(UUID.randomUUID().toString(), " ");
+
+		assertNull(index.get("not-uuid"));
+		assertEquals(0, readHeader().getInt(12));
+	}
+
+	@Test
+	public void fileHasHeaderWithCapacityAndSize() {
+		index.put(UUID.randomUUID().toString(), "jan@contoso.com");
+		index.put(UUID.randomUUID().toString(), "eva@contoso.com");
+
+		ByteBuffer header = readHeader();
+		assertEquals(MAGIC, header.getInt(0));
+		assertEquals(1, header.getInt(4));
+		int capacity = header.getInt(8);
+		assertEquals(1, Integer.bitCount(capacity));
+		assertEquals(2, header.getInt(12));
+		// Values are stored after the table, every slot has 24 bytes
+		assertEquals(32 + capacity * 24 + 2 * (2 + "jan@contoso.com".length()), header.getInt(16));
+	}
+
+	@Test
+	public void tableIsRebuiltWhenItIsFull() {
+		int initialCapacity = readHeader().getInt(8);
+		int count = (int) (initialCapacity * 0.7f) + 10;
+		UUID[] ids = new UUID[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = UUID.randomUUID();
+			index.put(ids[i].toString(), "user" + i + "@contoso.com");
+		}
+
+		ByteBuffer header = readHeader();
+		assertEquals(initialCapacity * 2, header.getInt(8));
+		assertEquals(count, header.getInt(12));
+		for (int i = 0; i < count; i++) {
+			assertEquals("user" + i + "@contoso.com", index.get(ids[i].toString()));
+		}
+	}
+
+	@Test
+	public void indexIsKeptAfterReopen() throws IOException {
+		String id = UUID.randomUUID().toString();
+		index.put(id, "jan@contoso.com");
+		index.put(id, "jan.novak@contoso.com");
+		index.close();
+
+		index = MemberIndex.forConfiguration(configuration);
+		assertEquals("jan.novak@contoso.com", index.get(id));
+		assertEquals(1, readHeader().getInt(12));
+	}
+
+	@Test
+	public void brokenFileIsCreatedAgain() throws IOException {
+		String id = UUID.randomUUID().toString();
+		index.put(id, "jan@contoso.com");
+		index.close();
+		// Version is set to -1 while the table is rebuilt, file is broken if IdM stops in the meantime
+		try (RandomAccessFile file = new RandomAccessFile(getFile().toFile(), "rw")) {
+			file.seek(4);
+			file.writeInt(-1);
+		}
+
+		index = MemberIndex.forConfiguration(configuration);
+		assertNull(index.get(id));
+		assertEquals(1, readHeader().getInt(4));
+		index.put(id, "jan@contoso.com");
+		assertEquals("jan@contoso.com", index.get(id));
+	}
+
+	private Path getFile() {
+		return directory.resolve("contoso.onmicrosoft.com.idx");
+	}
+
+	private ByteBuffer readHeader() {
+		try (RandomAccessFile file = new RandomAccessFile(getFile().toFile(), "r")) {
+			byte[] header = new byte[32];
+			file.readFully(header);
+			return ByteBuffer.wrap(header);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
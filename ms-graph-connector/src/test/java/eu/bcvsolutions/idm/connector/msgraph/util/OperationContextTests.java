@@ -0,0 +1,69 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for binding of retry policy and metrics to pooled threads
+ */
+public class OperationContextTests {
+
+	private ExecutorService executor;
+
+	@Before
+	public void init() {
+		// Thread is created before any operation, so it can't inherit anything
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void dispose() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void contextIsBoundOnlyWhileTaskIsExecuted() throws Exception {
+		GraphMetrics metrics = new GraphMetrics();
+		RetryPolicy policy = RetryPolicy.apply(RetryPolicy.Operation.UPDATE, new GraphConfiguration());
+		GraphMetrics.Scope scope = metrics.bind();
+		OperationContext context;
+		try {
+			context = OperationContext.capture();
+		} finally {
+			scope.close();
+			policy.close();
+		}
+
+		assertSame(policy, executor.submit(context.wrap(RetryPolicy::current)).get());
+		assertSame(metrics, executor.submit(context.wrap(GraphMetrics::current)).get());
+		// Nothing is left in pooled thread for the next task
+		assertNull(executor.submit(RetryPolicy::bound).get());
+		assertNull(executor.submit(GraphMetrics::current).get());
+	}
+
+	@Test
+	public void contextIsNotInheritedByPooledThread() throws Exception {
+		RetryPolicy policy = RetryPolicy.apply(RetryPolicy.Operation.UPDATE, new GraphConfiguration());
+		try {
+			ExecutorService started = Executors.newSingleThreadExecutor();
+			try {
+				assertNull(started.submit(RetryPolicy::bound).get());
+			} finally {
+				started.shutdownNow();
+			}
+		} finally {
+			policy.close();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.Test;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Tests for loading of next pages in background. Pages are numbers, next page is loaded by function chosen by the test.
+ */
+public class PagePrefetcherTests {
+
+	private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	@Test
+	public void allPagesAreReturnedInOrder() {
+		List<Integer> pages = new ArrayList<>();
+		try (PagePrefetcher<Integer> prefetcher = PagePrefetcher.start(1, page -> page < 10 ? page + 1 : null, 3)) {
+			prefetcher.forEachRemaining(pages::add);
+		}
+
+		assertEquals(10, pages.size());
+		assertEquals(Integer.valueOf(10), pages.get(9));
+	}
+
+	@Test
+	public void onlyLookAheadPagesAreLoadedInAdvance() throws InterruptedException {
+		AtomicInteger loaded = new AtomicInteger(1);
+		try (PagePrefetcher<Integer> prefetcher = PagePrefetcher.start(1, page -> {
+			loaded.incrementAndGet();
+			return page + 1;
+		}, 3)) {
+			waitUntilStable(loaded);
+			assertEquals(3, loaded.get());
+
+			prefetcher.next();
+			waitUntilStable(loaded);
+			// Consumer took one page, so one more page can be loaded
+			assertEquals(4, loaded.get());
+		}
+	}
+
+	@Test
+	public void loaderIsInterruptedWhenPrefetcherIsClosed() throws InterruptedException {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		PagePrefetcher<Integer> prefetcher = PagePrefetcher.start(1, page -> {
+			loading.countDown();
+			try {
+				// Response which never comes
+				Thread.sleep(TIMEOUT * 10);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return null;
+		}, 1);
+		assertEquals(Integer.valueOf(1), prefetcher.next());
+		assertTrue(loading.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		prefetcher.close();
+
+		assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void loaderWaitingForFreePlaceIsStoppedWhenPrefetcherIsClosed() throws InterruptedException {
+		AtomicInteger loaded = new AtomicInteger(1);
+		PagePrefetcher<Integer> prefetcher = PagePrefetcher.start(1, page -> {
+			loaded.incrementAndGet();
+			return page + 1;
+		}, 2);
+		waitUntilStable(loaded);
+
+		prefetcher.close();
+		Thread.sleep(100);
+
+		assertEquals(2, loaded.get());
+	}
+
+	@Test(expected = ConnectorException.class)
+	public void failureOfLoadingIsThrownToConsumer() {
+		try (PagePrefetcher<Integer> prefetcher = PagePrefetcher.start(1, page -> {
+			throw new ConnectorException("Loading failed");
+		}, 2)) {
+			assertEquals(Integer.valueOf(1), prefetcher.next());
+			assertFalse(prefetcher.hasNext());
+		}
+	}
+
+	/**
+	 * Wait until the loader stops loading of pages
+	 */
+	private static void waitUntilStable(AtomicInteger loaded) throws InterruptedException {
+		int previous;
+		do {
+			previous = loaded.get();
+			Thread.sleep(100);
+		} while (previous != loaded.get());
+	}
+}
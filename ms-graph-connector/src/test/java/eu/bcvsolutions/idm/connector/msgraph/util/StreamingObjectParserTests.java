@@ -0,0 +1,236 @@
+package eu.bcvsolutions.idm.connector.msgraph.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.logger.DefaultLogger;
+import com.microsoft.graph.models.extensions.Group;
+import com.microsoft.graph.models.extensions.User;
+import com.microsoft.graph.serializer.DefaultSerializer;
+import com.microsoft.graph.serializer.ISerializer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Streaming parser must return the same objects as conversion of SDK objects in {@link Utils}
+ */
+public class StreamingObjectParserTests {
+
+	private static final String USER_TYPE = "#microsoft.graph.user";
+
+	private final ISerializer serializer = new DefaultSerializer(new DefaultLogger());
+
+	@Test
+	public void usersAreSameAsFromSdk() throws IOException {
+		assertUsers(ProjectionPlan.all(), fullUser(), minimalUser());
+	}
+
+	@Test
+	public void usersWithSelectedAttributesAreSameAsFromSdk() throws IOException {
+		ProjectionPlan projection = ProjectionPlan.of(new OperationOptionsBuilder()
+				.setAttributesToGet("displayName", "accountEnabled", "businessPhones", ProjectionPlan.ASSIGNED_LICENSES, "extensionAttribute2", "mobilePhone")
+				.build());
+		assertUsers(projection, fullUser(), minimalUser());
+	}
+
+	@Test
+	public void userWithoutUserPrincipalNameIsSkipped() throws IOException {
+		JsonObject user = minimalUser();
+		user.add("userPrincipalName", JsonNull.INSTANCE);
+		StreamingObjectParser parser = new StreamingObjectParser(ObjectClass.ACCOUNT, ProjectionPlan.all(), null);
+
+		GraphPageReader.Page<ConnectorObject> page = GraphPageReader.parse(new StringReader(page(user, fullUser()).toString()), parser::parseUser);
+
+		assertEquals(1, page.getObjects().size());
+		assertEquals("https://graph.microsoft.com/v1.0/users?$skiptoken=next", page.getNextLink());
+	}
+
+	@Test
+	public void groupsAreSameAsFromSdk() throws IOException {
+		MembershipLoader.Membership membership = new MembershipLoader.Membership(
+				Arrays.asList("jan@contoso.com", "eva@contoso.com"), Collections.singletonList("petr@contoso.com"), null, null);
+		JsonObject group = group("eaafe543-2434-4678-a9e2-7ba9952e6abb");
+		JsonObject groupWithoutMembers = group("15b02530-f020-4992-b576-255e98549f22");
+		groupWithoutMembers.remove(ProjectionPlan.MEMBERS);
+		groupWithoutMembers.remove(ProjectionPlan.OWNERS);
+
+		for (ProjectionPlan projection : Arrays.asList(ProjectionPlan.all(),
+				ProjectionPlan.of(new OperationOptionsBuilder().setAttributesToGet("displayName", "groupTypes", ProjectionPlan.MEMBERS).build()))) {
+			List<StreamingObjectParser.GroupRecord> records = parseGroups(projection, group, groupWithoutMembers);
+			assertEquals(2, records.size());
+			assertEquals(Utils.handleGroup(serializer.deserializeObject(group.toString(), Group.class), ObjectClass.GROUP, membership, projection),
+					records.get(0).toConnectorObject(membership));
+			assertEquals(Utils.handleGroup(serializer.deserializeObject(groupWithoutMembers.toString(), Group.class), ObjectClass.GROUP, null, projection),
+					records.get(1).toConnectorObject(null));
+		}
+	}
+
+	@Test
+	public void completeExpandedMembersAreKept() throws IOException {
+		JsonObject group = group("eaafe543-2434-4678-a9e2-7ba9952e6abb");
+
+		StreamingObjectParser.GroupRecord record = parseGroups(ProjectionPlan.all(), group).get(0);
+
+		assertEquals(toList(group.getAsJsonArray(ProjectionPlan.MEMBERS)), record.getMembers());
+		assertEquals(toList(group.getAsJsonArray(ProjectionPlan.OWNERS)), record.getOwners());
+	}
+
+	@Test
+	public void truncatedExpandedMembersMustBeLoaded() throws IOException {
+		JsonObject group = group("eaafe543-2434-4678-a9e2-7ba9952e6abb");
+		group.addProperty(ProjectionPlan.MEMBERS + "@odata.nextLink", "https://graph.microsoft.com/v1.0/groups/eaafe543-2434-4678-a9e2-7ba9952e6abb/members?$skiptoken=next");
+		JsonArray owners = new JsonArray();
+		for (int i = 0; i < MembershipLoader.EXPAND_LIMIT; i++) {
+			owners.add(member("00000000-0000-4000-8000-0000000000" + (10 + i), "owner" + i + "@contoso.com"));
+		}
+		group.add(ProjectionPlan.OWNERS, owners);
+
+		StreamingObjectParser.GroupRecord record = parseGroups(ProjectionPlan.all(), group).get(0);
+
+		assertNull(record.getMembers());
+		assertNull(record.getOwners());
+	}
+
+	private void assertUsers(ProjectionPlan projection, JsonObject... users) throws IOException {
+		StreamingObjectParser parser = new StreamingObjectParser(ObjectClass.ACCOUNT, projection, null);
+		List<ConnectorObject> parsed = GraphPageReader.parse(new StringReader(page(users).toString()), parser::parseUser).getObjects();
+
+		assertEquals(users.length, parsed.size());
+		for (int i = 0; i < users.length; i++) {
+			User user = serializer.deserializeObject(users[i].toString(), User.class);
+			assertEquals(Utils.handleUser(user, ObjectClass.ACCOUNT, projection), parsed.get(i));
+		}
+	}
+
+	private static List<StreamingObjectParser.GroupRecord> parseGroups(ProjectionPlan projection, JsonObject... groups) throws IOException {
+		StreamingObjectParser parser = new StreamingObjectParser(ObjectClass.GROUP, projection, null);
+		return GraphPageReader.parse(new StringReader(page(groups).toString()), parser::parseGroup).getObjects();
+	}
+
+	private static JsonObject page(JsonObject... objects) {
+		JsonObject page = new JsonObject();
+		page.addProperty("@odata.context", "https://graph.microsoft.com/v1.0/$metadata#users");
+		JsonArray value = new JsonArray();
+		Arrays.stream(objects).forEach(value::add);
+		page.add("value", value);
+		page.addProperty("@odata.nextLink", "https://graph.microsoft.com/v1.0/users?$skiptoken=next");
+		return page;
+	}
+
+	private static JsonObject fullUser() {
+		JsonObject user = new JsonObject();
+		user.addProperty("@odata.type", USER_TYPE);
+		user.addProperty("id", "386ecbe0-6b65-46a4-8b81-48f6b38a088c");
+		user.addProperty("accountEnabled", true);
+		JsonArray phones = new JsonArray();
+		phones.add("+420 298704996");
+		phones.add("+420 298704997");
+		user.add("businessPhones", phones);
+		user.addProperty("city", "Praha");
+		user.addProperty("companyName", "Contoso");
+		user.addProperty("createdDateTime", "2020-01-25T08:51:00Z");
+		user.addProperty("department", "Finance");
+		user.addProperty("displayName", "Jan Němec \"J\"");
+		user.addProperty("employeeId", "10000");
+		user.addProperty("givenName", "Jan");
+		user.addProperty("jobTitle", "Developer");
+		user.addProperty("mail", "jan.nemec@contoso.com");
+		user.addProperty("mailNickname", "jan.nemec");
+		user.add("mobilePhone", JsonNull.INSTANCE);
+		user.addProperty("showInAddressList", false);
+		JsonObject extensionAttributes = new JsonObject();
+		for (int i = 1; i <= 15; i++) {
+			if (i <= 3) {
+				extensionAttributes.addProperty("extensionAttribute" + i, "value" + i);
+			} else {
+				extensionAttributes.add("extensionAttribute" + i, JsonNull.INSTANCE);
+			}
+		}
+		user.add("onPremisesExtensionAttributes", extensionAttributes);
+		user.add("onPremisesImmutableId", JsonNull.INSTANCE);
+		user.addProperty("surname", "Němec");
+		user.addProperty("usageLocation", "CZ");
+		user.addProperty("userPrincipalName", "jan.nemec@contoso.com");
+		user.addProperty("userType", "Member");
+		JsonArray licenses = new JsonArray();
+		licenses.add(license("23b8c1e9-3924-46de-beb1-3b9046685257"));
+		licenses.add(license("9a1de644-815e-46d1-bb8f-aa1837f8a88b"));
+		user.add(ProjectionPlan.ASSIGNED_LICENSES, licenses);
+		// Properties which are not in schema are skipped
+		JsonObject unknown = new JsonObject();
+		unknown.add("values", new JsonArray());
+		user.add("unknownProperty", unknown);
+		return user;
+	}
+
+	private static JsonObject minimalUser() {
+		JsonObject user = new JsonObject();
+		user.addProperty("id", "a981b098-b2cf-452d-a7f3-33b3f7baf55e");
+		user.addProperty("userPrincipalName", "eva@contoso.com");
+		user.add("businessPhones", new JsonArray());
+		return user;
+	}
+
+	private static JsonObject license(String skuId) {
+		JsonObject license = new JsonObject();
+		license.add("disabledPlans", new JsonArray());
+		license.addProperty("skuId", skuId);
+		return license;
+	}
+
+	private static JsonObject group(String id) {
+		JsonObject group = new JsonObject();
+		group.addProperty("id", id);
+		group.addProperty("createdDateTime", "2019-06-01T10:00:00Z");
+		group.addProperty("description", "Sales team");
+		group.addProperty("displayName", "Sales");
+		JsonArray groupTypes = new JsonArray();
+		groupTypes.add("Unified");
+		group.add("groupTypes", groupTypes);
+		group.add("mail", JsonNull.INSTANCE);
+		group.addProperty("mailEnabled", false);
+		group.addProperty("mailNickname", "sales");
+		group.addProperty("securityEnabled", true);
+		group.add("visibility", JsonNull.INSTANCE);
+		JsonArray members = new JsonArray();
+		members.add(member("a981b098-b2cf-452d-a7f3-33b3f7baf55e", "jan@contoso.com"));
+		members.add(member("15b02530-f020-4992-b576-255e98549f22", "eva@contoso.com"));
+		group.add(ProjectionPlan.MEMBERS, members);
+		JsonArray owners = new JsonArray();
+		owners.add(member("d11fc8c0-297c-44ff-b75d-599f6b2d5b09", "petr@contoso.com"));
+		group.add(ProjectionPlan.OWNERS, owners);
+		return group;
+	}
+
+	private static JsonObject member(String id, String userPrincipalName) {
+		JsonObject member = new JsonObject();
+		member.addProperty("@odata.type", USER_TYPE);
+		member.addProperty("id", id);
+		member.addProperty("userPrincipalName", userPrincipalName);
+		return member;
+	}
+
+	private static List<JsonObject> toList(JsonArray array) {
+		List<JsonObject> list = new ArrayList<>();
+		for (JsonElement element : array) {
+			list.add(element.getAsJsonObject());
+		}
+		return list;
+	}
+}
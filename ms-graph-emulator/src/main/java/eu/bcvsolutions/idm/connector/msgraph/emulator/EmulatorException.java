@@ -0,0 +1,28 @@
+package eu.bcvsolutions.idm.connector.msgraph.emulator;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Error which emulator returns as Graph API error response
+ */
+public class EmulatorException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+	private final String code;
+
+	public EmulatorException(int status, String code, String message) {
+		super(message);
+		this.status = status;
+		this.code = code;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,743 @@
+package eu.bcvsolutions.idm.connector.msgraph.emulator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Emulator of Graph API for load tests without Azure tenant. It's the last interceptor of the client
+ * (see GraphClientRegistry.setTransport), so requests never leave the process, but they go through the whole chain
+ * of the client including retry and throttling. Token endpoint is emulated too.
+ * <p>
+ * Supported are users, groups with members and owners, paging via $top and $skiptoken, $select, $expand of members
+ * and owners (first 20 like Graph API), $filter with one eq, $batch with dependsOn, delta query with delta links,
+ * deleted users, licenses and invitations. $orderby is ignored, objects are returned in the order they were created.
+ * Throttling (429 with Retry-After), server errors (503) and latency can be injected.
+ */
+public class GraphEmulator implements Interceptor {
+
+	private static final MediaType JSON = MediaType.get("application/json");
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	private static final int MAX_PAGE_SIZE = 999;
+	private static final int EXPAND_LIMIT = 20;
+	private static final String USER_TYPE = "#microsoft.graph.user";
+	// Attributes which Graph API returns when there is no $select
+	private static final List<String> DEFAULT_USER_ATTRS = Arrays.asList("id", "businessPhones", "displayName", "givenName",
+			"jobTitle", "mail", "mobilePhone", "officeLocation", "preferredLanguage", "surname", "userPrincipalName");
+	private static final List<String> DEFAULT_MEMBER_ATTRS = Arrays.asList("id", "displayName", "userPrincipalName");
+	private static final Pattern EQ_FILTER = Pattern.compile("(\\w+) eq '((?:[^']|'')*)'");
+	private static final Pattern EXPAND = Pattern.compile("(members|owners)(?:\\(\\$select=([^)]*)\\))?");
+
+	private final SyntheticTenant tenant;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder batchSteps = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private volatile long latency;
+	private volatile double throttleRate;
+	private volatile int retryAfter;
+	private volatile double serverErrorRate;
+
+	public GraphEmulator(SyntheticTenant tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * @param millis time which every HTTP request waits before response is returned
+	 * @return this emulator
+	 */
+	public GraphEmulator withLatency(long millis) {
+		this.latency = millis;
+		return this;
+	}
+
+	/**
+	 * @param rate              probability of 429 for every request and every step in $batch
+	 * @param retryAfterSeconds value of Retry-After header
+	 * @return this emulator
+	 */
+	public GraphEmulator withThrottling(double rate, int retryAfterSeconds) {
+		this.throttleRate = rate;
+		this.retryAfter = retryAfterSeconds;
+		return this;
+	}
+
+	/**
+	 * @param rate probability of 503 for every request and every step in $batch
+	 * @return this emulator
+	 */
+	public GraphEmulator withServerErrors(double rate) {
+		this.serverErrorRate = rate;
+		return this;
+	}
+
+	public SyntheticTenant getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * @return number of HTTP requests including token requests and retried ones
+	 */
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	/**
+	 * @return number of requests in $batch
+	 */
+	public long getBatchStepCount() {
+		return batchSteps.sum();
+	}
+
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	public long getServerErrorCount() {
+		return serverErrors.sum();
+	}
+
+	public void resetCounters() {
+		requests.reset();
+		batchSteps.reset();
+		throttled.reset();
+		serverErrors.reset();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		Request request = chain.request();
+		requests.increment();
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Request was interrupted");
+			}
+		}
+
+		Reply reply;
+		if (request.url().encodedPath().endsWith("/oauth2/v2.0/token")) {
+			reply = token();
+		} else {
+			reply = fault();
+			if (reply == null) {
+				reply = handle(request.method(), request.url(), readBody(request));
+			}
+		}
+		return reply.toResponse(request);
+	}
+
+	private Reply handle(String method, HttpUrl url, JsonElement body) {
+		try {
+			List<String> path = url.pathSegments().subList(1, url.pathSegments().size());
+			switch (path.get(0)) {
+				case "$batch":
+					return batch(url, body.getAsJsonObject());
+				case "users":
+					return users(method, path, url, body);
+				case "groups":
+					return groups(method, path, url, body);
+				case "directoryRoles":
+					return page(url, new JsonArray(), -1);
+				case "subscribedSkus":
+					return page(url, tenant.getSubscribedSkus(), -1);
+				case "invitations":
+					return invitation(body.getAsJsonObject());
+				case "directory":
+					return deletedItem(method, path, url);
+				default:
+					throw unsupported(method, url);
+			}
+		} catch (EmulatorException e) {
+			return Reply.error(e.getStatus(), e.getCode(), e.getMessage());
+		}
+	}
+
+	private Reply users(String method, List<String> path, HttpUrl url, JsonElement body) {
+		if (path.size() == 1 && "GET".equals(method)) {
+			return listUsers(url);
+		}
+		if (path.size() == 1 && "POST".equals(method)) {
+			return new Reply(201, tenant.createUser(body.getAsJsonObject()));
+		}
+		if (path.size() == 2 && isDelta(path.get(1))) {
+			return userDelta(url);
+		}
+		String key = path.get(1);
+		if (path.size() == 2) {
+			switch (method) {
+				case "GET":
+					return new Reply(200, select(requireUser(key), url.queryParameter("$select"), DEFAULT_USER_ATTRS));
+				case "PATCH":
+					tenant.updateUser(key, body.getAsJsonObject());
+					return new Reply(204, null);
+				case "DELETE":
+					tenant.deleteUser(key);
+					return new Reply(204, null);
+				default:
+					throw unsupported(method, url);
+			}
+		}
+		if (path.size() == 3 && "assignLicense".equals(path.get(2)) && "POST".equals(method)) {
+			return new Reply(200, tenant.assignLicense(key, body.getAsJsonObject()));
+		}
+		if (path.size() == 3 && "licenseDetails".equals(path.get(2)) && "GET".equals(method)) {
+			return page(url, licenseDetails(requireUser(key)), -1);
+		}
+		throw unsupported(method, url);
+	}
+
+	private Reply groups(String method, List<String> path, HttpUrl url, JsonElement body) {
+		if (path.size() == 1 && "GET".equals(method)) {
+			return listGroups(url);
+		}
+		if (path.size() == 1 && "POST".equals(method)) {
+			return new Reply(201, tenant.createGroup(body.getAsJsonObject()));
+		}
+		if (path.size() == 2 && isDelta(path.get(1))) {
+			return groupDelta(url);
+		}
+		String id = path.get(1);
+		if (path.size() == 2) {
+			switch (method) {
+				case "GET":
+					return new Reply(200, select(requireGroup(id), url.queryParameter("$select"), null));
+				case "PATCH":
+					tenant.updateGroup(id, body.getAsJsonObject());
+					return new Reply(204, null);
+				case "DELETE":
+					tenant.deleteGroup(id);
+					return new Reply(204, null);
+				default:
+					throw unsupported(method, url);
+			}
+		}
+		String relation = path.get(2);
+		if (!SyntheticTenant.MEMBERS.equals(relation) && !SyntheticTenant.OWNERS.equals(relation)) {
+			throw unsupported(method, url);
+		}
+		if (path.size() == 3 && "GET".equals(method)) {
+			return listRelation(url, id, relation);
+		}
+		if (path.size() == 4 && "GET".equals(method)) {
+			if (!tenant.getRelation(id, relation).contains(path.get(3))) {
+				throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + path.get(3) + " does not exist or one of its queried reference-property objects are not present.");
+			}
+			JsonObject reference = new JsonObject();
+			reference.addProperty("id", path.get(3));
+			return new Reply(200, reference);
+		}
+		if (path.size() == 4 && "$ref".equals(path.get(3)) && "POST".equals(method)) {
+			String reference = body.getAsJsonObject().get("@odata.id").getAsString();
+			tenant.addRelation(id, relation, reference.substring(reference.lastIndexOf('/') + 1));
+			return new Reply(204, null);
+		}
+		if (path.size() == 5 && "$ref".equals(path.get(4)) && "DELETE".equals(method)) {
+			tenant.removeRelation(id, relation, path.get(3));
+			return new Reply(204, null);
+		}
+		throw unsupported(method, url);
+	}
+
+	private Reply listUsers(HttpUrl url) {
+		if (url.queryParameter("$search") != null) {
+			throw new EmulatorException(400, "Request_UnsupportedQuery", "$search is not supported by emulator");
+		}
+		Predicate<JsonObject> filter = filter(url.queryParameter("$filter"));
+		String select = url.queryParameter("$select");
+		int top = getTop(url);
+		int index = getSkip(url);
+		int slots = tenant.getUserSlots();
+		JsonArray value = new JsonArray();
+		while (index < slots && value.size() < top) {
+			JsonObject user = tenant.getUserAt(index++);
+			if (user != null && filter.test(user)) {
+				value.add(select(user, select, DEFAULT_USER_ATTRS));
+			}
+		}
+		return page(url, value, index < slots ? index : -1);
+	}
+
+	private Reply listGroups(HttpUrl url) {
+		Predicate<JsonObject> filter = filter(url.queryParameter("$filter"));
+		String select = url.queryParameter("$select");
+		String expand = url.queryParameter("$expand");
+		int top = getTop(url);
+		int index = getSkip(url);
+		int slots = tenant.getGroupSlots();
+		JsonArray value = new JsonArray();
+		while (index < slots && value.size() < top) {
+			JsonObject group = tenant.getGroupAt(index++);
+			if (group != null && filter.test(group)) {
+				JsonObject selected = select(group, select, null);
+				if (expand != null) {
+					expand(selected, expand);
+				}
+				value.add(selected);
+			}
+		}
+		return page(url, value, index < slots ? index : -1);
+	}
+
+	private Reply listRelation(HttpUrl url, String groupId, String relation) {
+		List<String> ids = tenant.getRelation(groupId, relation);
+		String select = url.queryParameter("$select");
+		int top = getTop(url);
+		int index = getSkip(url);
+		JsonArray value = new JsonArray();
+		while (index < ids.size() && value.size() < top) {
+			JsonObject member = directoryObject(ids.get(index++), select);
+			if (member != null) {
+				value.add(member);
+			}
+		}
+		return page(url, value, index < ids.size() ? index : -1);
+	}
+
+	private void expand(JsonObject group, String expand) {
+		Matcher matcher = EXPAND.matcher(expand);
+		while (matcher.find()) {
+			String relation = matcher.group(1);
+			JsonArray records = new JsonArray();
+			for (String id : tenant.getRelation(group.get("id").getAsString(), relation)) {
+				if (records.size() >= EXPAND_LIMIT) {
+					break;
+				}
+				JsonObject member = directoryObject(id, matcher.group(2));
+				if (member != null) {
+					records.add(member);
+				}
+			}
+			group.add(relation, records);
+		}
+	}
+
+	/**
+	 * Delta without token returns all users and delta link at the end. Delta with token returns users changed
+	 * since the token. Removed users have only id and @removed. Skip token contains position and the mark of the round.
+	 */
+	private Reply userDelta(HttpUrl url) {
+		String select = url.queryParameter("$select");
+		String deltaToken = url.queryParameter("$deltatoken");
+		if ("latest".equals(deltaToken)) {
+			return deltaPage(url, new JsonArray(), null, tenant.getUserChangeMark());
+		}
+		int[] position = getDeltaPosition(url, tenant.getUserChangeMark());
+		int index = position[0];
+		int top = getTop(url);
+		JsonArray value = new JsonArray();
+		boolean hasNext;
+		if (deltaToken == null) {
+			int slots = tenant.getUserSlots();
+			while (index < slots && value.size() < top) {
+				JsonObject user = tenant.getUserAt(index++);
+				if (user != null) {
+					value.add(select(user, select, DEFAULT_USER_ATTRS));
+				}
+			}
+			hasNext = index < slots;
+		} else {
+			List<String> changes = tenant.getUserChangesSince(Integer.parseInt(deltaToken));
+			while (index < changes.size() && value.size() < top) {
+				String id = changes.get(index++);
+				value.add(tenant.isDeleted(id) ? removed(id) : select(tenant.getUserForDelta(id), select, DEFAULT_USER_ATTRS));
+			}
+			hasNext = index < changes.size();
+		}
+		return deltaPage(url, value, hasNext ? index + "." + position[1] : null, position[1]);
+	}
+
+	/**
+	 * Deleted user as Graph returns it, userPrincipalName is prefixed with id without dashes.
+	 */
+	private Reply deletedItem(String method, List<String> path, HttpUrl url) {
+		if (path.size() != 3 || !"deletedItems".equals(path.get(1)) || !"GET".equals(method)) {
+			throw unsupported(method, url);
+		}
+		String id = path.get(2);
+		JsonObject user = tenant.isDeleted(id) ? tenant.getUserForDelta(id) : null;
+		if (user == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + id + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		JsonObject deleted = select(user, url.queryParameter("$select"), DEFAULT_USER_ATTRS);
+		if (deleted.has("userPrincipalName")) {
+			deleted.addProperty("userPrincipalName", id.replace("-", "") + deleted.get("userPrincipalName").getAsString());
+		}
+		return new Reply(200, deleted);
+	}
+
+	private Reply groupDelta(HttpUrl url) {
+		String select = url.queryParameter("$select");
+		boolean withMembers = select != null && Arrays.asList(select.split(",")).contains(SyntheticTenant.MEMBERS);
+		String deltaToken = url.queryParameter("$deltatoken");
+		if ("latest".equals(deltaToken)) {
+			return deltaPage(url, new JsonArray(), null, tenant.getGroupChangeMark());
+		}
+		int[] position = getDeltaPosition(url, tenant.getGroupChangeMark());
+		int index = position[0];
+		int top = getTop(url);
+		JsonArray value = new JsonArray();
+		boolean hasNext;
+		if (deltaToken == null) {
+			int slots = tenant.getGroupSlots();
+			while (index < slots && value.size() < top) {
+				JsonObject group = tenant.getGroupAt(index++);
+				if (group != null) {
+					value.add(deltaGroup(group, select, withMembers, -1));
+				}
+			}
+			hasNext = index < slots;
+		} else {
+			List<String> changes = tenant.getGroupChangesSince(Integer.parseInt(deltaToken));
+			while (index < changes.size() && value.size() < top) {
+				String id = changes.get(index++);
+				JsonObject group = tenant.findGroup(id);
+				value.add(group == null ? removed(id) : deltaGroup(group, select, withMembers, Integer.parseInt(deltaToken)));
+			}
+			hasNext = index < changes.size();
+		}
+		return deltaPage(url, value, hasNext ? index + "." + position[1] : null, position[1]);
+	}
+
+	/**
+	 * First round contains all members in members@delta, next rounds only members added or removed since the mark.
+	 * Removed members have @removed like in Graph API. Property is missing when membership didn't change.
+	 *
+	 * @param mark delta token of previous round, -1 for the first round
+	 */
+	private JsonObject deltaGroup(JsonObject group, String select, boolean withMembers, int mark) {
+		JsonObject selected = select(group, select, null);
+		selected.remove(SyntheticTenant.MEMBERS);
+		if (withMembers) {
+			String groupId = group.get("id").getAsString();
+			List<String> current = tenant.getRelation(groupId, SyntheticTenant.MEMBERS);
+			Collection<String> changed = mark < 0 ? current : tenant.getMemberChangesSince(groupId, mark);
+			if (changed.isEmpty() && mark >= 0) {
+				return selected;
+			}
+			Set<String> currentSet = new HashSet<>(current);
+			JsonArray members = new JsonArray();
+			changed.forEach(id -> {
+				JsonObject member = new JsonObject();
+				member.addProperty("@odata.type", USER_TYPE);
+				member.addProperty("id", id);
+				if (!currentSet.contains(id)) {
+					JsonObject removed = new JsonObject();
+					removed.addProperty("reason", "deleted");
+					member.add("@removed", removed);
+				}
+				members.add(member);
+			});
+			selected.add("members@delta", members);
+		}
+		return selected;
+	}
+
+	private Reply batch(HttpUrl url, JsonObject body) {
+		String root = url.scheme() + "://" + url.host() + "/" + url.pathSegments().get(0);
+		Map<String, Integer> statuses = new HashMap<>();
+		JsonArray responses = new JsonArray();
+		for (JsonElement element : body.getAsJsonArray("requests")) {
+			batchSteps.increment();
+			JsonObject step = element.getAsJsonObject();
+			String id = step.get("id").getAsString();
+			Reply reply = null;
+			if (step.has("dependsOn")) {
+				for (JsonElement dependency : step.getAsJsonArray("dependsOn")) {
+					Integer status = statuses.get(dependency.getAsString());
+					if (status == null || status >= 400) {
+						reply = Reply.error(424, "FailedDependency", "Dependency " + dependency.getAsString() + " failed");
+						break;
+					}
+				}
+			}
+			if (reply == null) {
+				reply = fault();
+			}
+			if (reply == null) {
+				reply = handle(step.get("method").getAsString(), HttpUrl.get(root + step.get("url").getAsString()),
+						step.has("body") ? step.get("body") : JsonNull.INSTANCE);
+			}
+			statuses.put(id, reply.status);
+			responses.add(reply.toBatchResponse(id));
+		}
+		JsonObject result = new JsonObject();
+		result.add("responses", responses);
+		return new Reply(200, result);
+	}
+
+	private Reply invitation(JsonObject body) {
+		String email = body.get("invitedUserEmailAddress").getAsString();
+		JsonObject user = new JsonObject();
+		user.addProperty("userPrincipalName", email.replace('@', '_') + "#EXT#@" + tenant.getDomain());
+		user.addProperty("mail", email);
+		user.add("displayName", body.get("invitedUserDisplayName"));
+		user.addProperty("userType", "Guest");
+		user.addProperty("accountEnabled", true);
+		JsonObject created = tenant.createUser(user);
+
+		JsonObject invitation = body.deepCopy();
+		invitation.addProperty("id", UUID.randomUUID().toString());
+		invitation.addProperty("status", "PendingAcceptance");
+		JsonObject invitedUser = new JsonObject();
+		invitedUser.add("id", created.get("id"));
+		invitation.add("invitedUser", invitedUser);
+		return new Reply(201, invitation);
+	}
+
+	private JsonArray licenseDetails(JsonObject user) {
+		JsonArray details = new JsonArray();
+		user.getAsJsonArray("assignedLicenses").forEach(license -> {
+			JsonObject detail = new JsonObject();
+			String skuId = license.getAsJsonObject().get("skuId").getAsString();
+			detail.addProperty("id", user.get("id").getAsString() + "_" + skuId);
+			detail.addProperty("skuId", skuId);
+			detail.add("servicePlans", new JsonArray());
+			details.add(detail);
+		});
+		return details;
+	}
+
+	private JsonObject directoryObject(String id, String select) {
+		JsonObject user = tenant.findUser(id);
+		if (user == null) {
+			return null;
+		}
+		JsonObject member = select(user, select, DEFAULT_MEMBER_ATTRS);
+		member.addProperty("@odata.type", USER_TYPE);
+		return member;
+	}
+
+	private JsonObject requireUser(String key) {
+		JsonObject user = tenant.findUser(key);
+		if (user == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + key + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		return user;
+	}
+
+	private JsonObject requireGroup(String id) {
+		JsonObject group = tenant.findGroup(id);
+		if (group == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + id + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		return group;
+	}
+
+	private Reply fault() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (throttleRate > 0 && random.nextDouble() < throttleRate) {
+			throttled.increment();
+			return Reply.error(429, "TooManyRequests", "Too many requests").header("Retry-After", String.valueOf(retryAfter));
+		}
+		if (serverErrorRate > 0 && random.nextDouble() < serverErrorRate) {
+			serverErrors.increment();
+			return Reply.error(503, "ServiceUnavailable", "Service is temporarily unavailable");
+		}
+		return null;
+	}
+
+	private static Reply token() {
+		JsonObject token = new JsonObject();
+		token.addProperty("token_type", "Bearer");
+		token.addProperty("expires_in", 3599);
+		token.addProperty("ext_expires_in", 3599);
+		token.addProperty("access_token", "emulated-" + UUID.randomUUID());
+		return new Reply(200, token);
+	}
+
+	private static Reply page(HttpUrl url, JsonArray value, int next) {
+		JsonObject page = new JsonObject();
+		page.addProperty("@odata.context", url.scheme() + "://" + url.host() + "/" + url.pathSegments().get(0) + "/$metadata");
+		if (next >= 0) {
+			page.addProperty("@odata.nextLink", url.newBuilder().setQueryParameter("$skiptoken", String.valueOf(next)).build().toString());
+		}
+		page.add("value", value);
+		return new Reply(200, page);
+	}
+
+	private static Reply deltaPage(HttpUrl url, JsonArray value, String skipToken, int mark) {
+		JsonObject page = new JsonObject();
+		HttpUrl.Builder link = url.newBuilder().removeAllQueryParameters("$skiptoken");
+		if (skipToken != null) {
+			page.addProperty("@odata.nextLink", link.setQueryParameter("$skiptoken", skipToken).build().toString());
+		} else {
+			page.addProperty("@odata.deltaLink", link.setQueryParameter("$deltatoken", String.valueOf(mark)).build().toString());
+		}
+		page.add("value", value);
+		return new Reply(200, page);
+	}
+
+	/**
+	 * @return position in the round and mark of changes when the round started
+	 */
+	private static int[] getDeltaPosition(HttpUrl url, int currentMark) {
+		String skipToken = url.queryParameter("$skiptoken");
+		if (skipToken == null) {
+			return new int[]{0, currentMark};
+		}
+		String[] parts = skipToken.split("\\.");
+		return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+	}
+
+	private static JsonObject removed(String id) {
+		JsonObject object = new JsonObject();
+		object.addProperty("id", id);
+		JsonObject removed = new JsonObject();
+		removed.addProperty("reason", "changed");
+		object.add("@removed", removed);
+		return object;
+	}
+
+	/**
+	 * SDK builders use qualified name of delta function
+	 */
+	private static boolean isDelta(String segment) {
+		return "delta".equals(segment) || "microsoft.graph.delta".equals(segment);
+	}
+
+	private static JsonObject select(JsonObject object, String select, List<String> defaults) {
+		if (select == null && defaults == null) {
+			return object.deepCopy();
+		}
+		Set<String> attributes = new HashSet<>(select == null ? defaults : Arrays.asList(select.split(",")));
+		attributes.add("id");
+		JsonObject selected = new JsonObject();
+		for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+			if (attributes.contains(entry.getKey())) {
+				selected.add(entry.getKey(), entry.getValue().deepCopy());
+			}
+		}
+		return selected;
+	}
+
+	private static Predicate<JsonObject> filter(String filter) {
+		if (filter == null) {
+			return object -> true;
+		}
+		Matcher matcher = EQ_FILTER.matcher(filter.trim());
+		if (!matcher.matches()) {
+			throw new EmulatorException(400, "Request_UnsupportedQuery", "Filter " + filter + " is not supported by emulator");
+		}
+		String attribute = matcher.group(1);
+		String value = matcher.group(2).replace("''", "'");
+		return object -> object.has(attribute) && !object.get(attribute).isJsonNull()
+				&& value.equalsIgnoreCase(object.get(attribute).getAsString());
+	}
+
+	private static int getTop(HttpUrl url) {
+		String top = url.queryParameter("$top");
+		return top == null ? DEFAULT_PAGE_SIZE : Math.min(MAX_PAGE_SIZE, Integer.parseInt(top));
+	}
+
+	private static int getSkip(HttpUrl url) {
+		String skipToken = url.queryParameter("$skiptoken");
+		return skipToken == null ? 0 : Integer.parseInt(skipToken);
+	}
+
+	private static EmulatorException unsupported(String method, HttpUrl url) {
+		return new EmulatorException(400, "Request_BadRequest", "Request " + method + " " + url.encodedPath() + " is not supported by emulator");
+	}
+
+	private static JsonElement readBody(Request request) throws IOException {
+		if (request.body() == null) {
+			return JsonNull.INSTANCE;
+		}
+		Buffer buffer = new Buffer();
+		request.body().writeTo(buffer);
+		String content = buffer.readUtf8();
+		return content.isEmpty() ? JsonNull.INSTANCE : JsonParser.parseString(content);
+	}
+
+	/**
+	 * Response of emulator, it can be sent as HTTP response or as response of one step in $batch
+	 */
+	private static final class Reply {
+		private final int status;
+		private final JsonElement body;
+		private final Map<String, String> headers = new LinkedHashMap<>();
+
+		private Reply(int status, JsonElement body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		private static Reply error(int status, String code, String message) {
+			JsonObject innerError = new JsonObject();
+			innerError.addProperty("request-id", UUID.randomUUID().toString());
+			JsonObject error = new JsonObject();
+			error.addProperty("code", code);
+			error.addProperty("message", message);
+			error.add("innerError", innerError);
+			JsonObject body = new JsonObject();
+			body.add("error", error);
+			return new Reply(status, body);
+		}
+
+		private Reply header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		private Response toResponse(Request request) {
+			Response.Builder response = new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(status)
+					.message(status < 400 ? "OK" : "Error")
+					.body(ResponseBody.create(body == null ? "" : body.toString(), JSON));
+			if (body != null) {
+				// Graph SDK reads the type of content from header, not from body
+				response.header("Content-Type", JSON.toString());
+			}
+			headers.forEach(response::header);
+			return response.build();
+		}
+
+		private JsonObject toBatchResponse(String id) {
+			JsonObject response = new JsonObject();
+			response.addProperty("id", id);
+			response.addProperty("status", status);
+			JsonObject headersJson = new JsonObject();
+			headersJson.addProperty("Content-Type", "application/json");
+			headers.forEach(headersJson::addProperty);
+			response.add("headers", headersJson);
+			if (body != null) {
+				response.add("body", body);
+			}
+			return response;
+		}
+	}
+}
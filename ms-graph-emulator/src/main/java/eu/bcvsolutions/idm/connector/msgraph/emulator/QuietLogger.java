@@ -0,0 +1,38 @@
+package eu.bcvsolutions.idm.connector.msgraph.emulator;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.logging.LogSpi;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Logger for the harness, connector logs every converted object on info level and it would flood the output.
+ * Only warnings and errors are printed.
+ */
+public class QuietLogger implements LogSpi {
+
+	@Override
+	public void log(Class<?> clazz, String method, Log.Level level, String message, Throwable ex) {
+		if (isLoggable(clazz, level)) {
+			System.err.println(level + " " + clazz.getName() + ": " + message);
+			if (ex != null) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void log(Class<?> clazz, StackTraceElement caller, Log.Level level, String message, Throwable ex) {
+		log(clazz, caller == null ? null : caller.getMethodName(), level, message, ex);
+	}
+
+	@Override
+	public boolean isLoggable(Class<?> clazz, Log.Level level) {
+		return level == Log.Level.WARN || level == Log.Level.ERROR;
+	}
+
+	@Override
+	public boolean needToInferCaller(Class<?> clazz, Log.Level level) {
+		return false;
+	}
+}
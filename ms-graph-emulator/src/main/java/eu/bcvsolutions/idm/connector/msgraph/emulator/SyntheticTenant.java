@@ -0,0 +1,571 @@
+package eu.bcvsolutions.idm.connector.msgraph.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Data of one emulated tenant. Generated users and groups are not stored, they are computed from their index,
+ * so the tenant can have millions of users. Only objects which were created or changed via API are stored.
+ * Users are {@code user<index>@<domain>}, group {@code g} has members with indexes {@code g * membersPerGroup} and next ones.
+ */
+public class SyntheticTenant {
+
+	public static final String MEMBERS = "members";
+	public static final String OWNERS = "owners";
+
+	private static final long USER_ID_PREFIX = 0x8000L;
+	private static final long GROUP_ID_PREFIX = 0x9000L;
+	private static final long CREATED_USER_ID_PREFIX = 0xa000L;
+	private static final long CREATED_GROUP_ID_PREFIX = 0xb000L;
+	private static final long SKU_ID_PREFIX = 0xc000L;
+	private static final String[] DEPARTMENTS = {"Sales", "Finance", "IT", "Legal", "Marketing", "Operations", "HR"};
+	private static final String[] JOB_TITLES = {"Manager", "Specialist", "Analyst", "Developer", "Consultant"};
+	private static final int OWNERS_PER_GROUP = 2;
+
+	private final String domain;
+	private final int userCount;
+	private final int groupCount;
+	private final int membersPerGroup;
+	private final List<UUID> skuIds = new ArrayList<>();
+
+	// Users and groups created or changed via API, key is id
+	private final Map<String, JsonObject> users = new ConcurrentHashMap<>();
+	private final Map<String, JsonObject> groups = new ConcurrentHashMap<>();
+	// Created users by lower case userPrincipalName
+	private final Map<String, String> createdUpns = new ConcurrentHashMap<>();
+	// Ids of created objects, they are listed after the generated ones. Guarded by itself
+	private final List<String> createdUsers = new ArrayList<>();
+	private final List<String> createdGroups = new ArrayList<>();
+	private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+	// Members and owners of groups which were changed via API, key is relation and id of group
+	private final Map<String, Set<String>> relations = new ConcurrentHashMap<>();
+	// Log of changed objects for delta query, index in the list is the delta token. Guarded by itself
+	private final List<String> userChanges = new ArrayList<>();
+	private final List<String> groupChanges = new ArrayList<>();
+	// Added and removed members, value is the delta token when member was changed. Guarded by groupChanges
+	private final Map<String, Map<String, Integer>> memberChanges = new HashMap<>();
+	private final AtomicLong createdCounter = new AtomicLong();
+
+	/**
+	 * @param domain          domain of tenant, it's used as tenant in configuration too
+	 * @param userCount       number of generated users
+	 * @param groupCount      number of generated groups
+	 * @param membersPerGroup number of members of every generated group, it must not be greater than number of users
+	 */
+	public SyntheticTenant(String domain, int userCount, int groupCount, int membersPerGroup) {
+		if (membersPerGroup > userCount) {
+			throw new IllegalArgumentException("Group can't have more members than there are users");
+		}
+		this.domain = domain;
+		this.userCount = userCount;
+		this.groupCount = groupCount;
+		this.membersPerGroup = membersPerGroup;
+		for (int i = 0; i < 3; i++) {
+			skuIds.add(UUID.fromString(id(SKU_ID_PREFIX, i)));
+		}
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public List<UUID> getSkuIds() {
+		return Collections.unmodifiableList(skuIds);
+	}
+
+	public String getUserPrincipalName(int index) {
+		return "user" + index + "@" + domain;
+	}
+
+	public String getGroupId(int index) {
+		return id(GROUP_ID_PREFIX, index);
+	}
+
+	// Users
+
+	/**
+	 * @return number of positions in list of users including created and deleted ones
+	 */
+	public int getUserSlots() {
+		synchronized (createdUsers) {
+			return userCount + createdUsers.size();
+		}
+	}
+
+	/**
+	 * @param index position in list of users
+	 * @return user or null if it was deleted
+	 */
+	public JsonObject getUserAt(int index) {
+		String id;
+		if (index < userCount) {
+			id = id(USER_ID_PREFIX, index);
+		} else {
+			synchronized (createdUsers) {
+				id = createdUsers.get(index - userCount);
+			}
+		}
+		return getUser(id);
+	}
+
+	/**
+	 * @param key id or userPrincipalName
+	 * @return user or null if there is no such user
+	 */
+	public JsonObject findUser(String key) {
+		String id = toUserId(key);
+		return id == null ? null : getUser(id);
+	}
+
+	public JsonObject createUser(JsonObject body) {
+		String upn = getString(body, "userPrincipalName");
+		if (upn == null) {
+			throw new EmulatorException(400, "Request_BadRequest", "Property userPrincipalName is required");
+		}
+		if (findUser(upn) != null) {
+			throw new EmulatorException(400, "Request_BadRequest", "Another object with the same value for property userPrincipalName already exists.");
+		}
+		JsonObject user = body.deepCopy();
+		user.remove("passwordProfile");
+		String id = id(CREATED_USER_ID_PREFIX, createdCounter.incrementAndGet());
+		user.addProperty("id", id);
+		if (!user.has("assignedLicenses")) {
+			user.add("assignedLicenses", new JsonArray());
+		}
+		users.put(id, user);
+		createdUpns.put(upn.toLowerCase(), id);
+		synchronized (createdUsers) {
+			createdUsers.add(id);
+		}
+		logChange(userChanges, id);
+		return user;
+	}
+
+	public JsonObject updateUser(String key, JsonObject patch) {
+		JsonObject user = requireUser(key).deepCopy();
+		patch.entrySet().stream()
+				.filter(entry -> !"passwordProfile".equals(entry.getKey()) && !"id".equals(entry.getKey()))
+				.forEach(entry -> user.add(entry.getKey(), entry.getValue()));
+		String id = getString(user, "id");
+		users.put(id, user);
+		String upn = getString(user, "userPrincipalName");
+		if (upn != null && !toUserIdOrEmpty(upn).equals(id)) {
+			createdUpns.put(upn.toLowerCase(), id);
+		}
+		logChange(userChanges, id);
+		return user;
+	}
+
+	public void deleteUser(String key) {
+		String id = getString(requireUser(key), "id");
+		deleted.add(id);
+		logChange(userChanges, id);
+	}
+
+	/**
+	 * Assign and remove licenses, body is the same as for assignLicense action
+	 */
+	public JsonObject assignLicense(String key, JsonObject body) {
+		JsonObject user = requireUser(key);
+		Set<String> licenses = new LinkedHashSet<>();
+		user.getAsJsonArray("assignedLicenses").forEach(license -> licenses.add(getString(license.getAsJsonObject(), "skuId")));
+		for (JsonElement license : body.getAsJsonArray("addLicenses")) {
+			String skuId = getString(license.getAsJsonObject(), "skuId");
+			if (skuIds.stream().noneMatch(sku -> sku.toString().equals(skuId))) {
+				throw new EmulatorException(400, "Request_BadRequest", "License " + skuId + " does not correspond to a valid company License.");
+			}
+			licenses.add(skuId);
+		}
+		body.getAsJsonArray("removeLicenses").forEach(skuId -> licenses.remove(skuId.getAsString()));
+
+		JsonArray assigned = new JsonArray();
+		licenses.forEach(skuId -> assigned.add(license(skuId)));
+		JsonObject patch = new JsonObject();
+		patch.add("assignedLicenses", assigned);
+		return updateUser(key, patch);
+	}
+
+	// Groups
+
+	public int getGroupSlots() {
+		synchronized (createdGroups) {
+			return groupCount + createdGroups.size();
+		}
+	}
+
+	public JsonObject getGroupAt(int index) {
+		String id;
+		if (index < groupCount) {
+			id = id(GROUP_ID_PREFIX, index);
+		} else {
+			synchronized (createdGroups) {
+				id = createdGroups.get(index - groupCount);
+			}
+		}
+		return findGroup(id);
+	}
+
+	public JsonObject findGroup(String id) {
+		if (deleted.contains(id)) {
+			return null;
+		}
+		JsonObject group = groups.get(id);
+		if (group != null) {
+			return group;
+		}
+		long index = index(GROUP_ID_PREFIX, id);
+		return index >= 0 && index < groupCount ? generateGroup((int) index) : null;
+	}
+
+	public JsonObject createGroup(JsonObject body) {
+		JsonObject group = body.deepCopy();
+		String id = id(CREATED_GROUP_ID_PREFIX, createdCounter.incrementAndGet());
+		group.addProperty("id", id);
+		// Members and owners can be set by members@odata.bind when group is created
+		Set<String> members = new LinkedHashSet<>(readBinds(group.remove(MEMBERS + "@odata.bind")));
+		Set<String> owners = new LinkedHashSet<>(readBinds(group.remove(OWNERS + "@odata.bind")));
+		relations.put(MEMBERS + id, Collections.synchronizedSet(members));
+		relations.put(OWNERS + id, Collections.synchronizedSet(owners));
+		groups.put(id, group);
+		synchronized (createdGroups) {
+			createdGroups.add(id);
+		}
+		members.forEach(memberId -> logMemberChange(id, memberId));
+		logChange(groupChanges, id);
+		return group;
+	}
+
+	public void updateGroup(String id, JsonObject patch) {
+		JsonObject group = requireGroup(id).deepCopy();
+		JsonElement binds = patch.remove(MEMBERS + "@odata.bind");
+		patch.entrySet().stream()
+				.filter(entry -> !"id".equals(entry.getKey()))
+				.forEach(entry -> group.add(entry.getKey(), entry.getValue()));
+		groups.put(id, group);
+		for (String memberId : readBinds(binds)) {
+			addRelation(id, MEMBERS, memberId);
+		}
+		logChange(groupChanges, id);
+	}
+
+	public void deleteGroup(String id) {
+		requireGroup(id);
+		deleted.add(id);
+		logChange(groupChanges, id);
+	}
+
+	/**
+	 * @param groupId  id of group
+	 * @param relation members or owners
+	 * @return ids of members or owners
+	 */
+	public List<String> getRelation(String groupId, String relation) {
+		requireGroup(groupId);
+		Set<String> changed = relations.get(relation + groupId);
+		if (changed != null) {
+			synchronized (changed) {
+				return new ArrayList<>(changed);
+			}
+		}
+		return new ArrayList<>(generateRelation(groupId, relation));
+	}
+
+	public void addRelation(String groupId, String relation, String memberId) {
+		if (findUser(memberId) == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + memberId + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		Set<String> current = changedRelation(groupId, relation);
+		if (!current.add(memberId)) {
+			throw new EmulatorException(400, "Request_BadRequest", "One or more added object references already exist for the following modified properties: " + relation);
+		}
+		if (MEMBERS.equals(relation)) {
+			logMemberChange(groupId, memberId);
+		}
+		logChange(groupChanges, groupId);
+	}
+
+	public void removeRelation(String groupId, String relation, String memberId) {
+		if (!changedRelation(groupId, relation).remove(memberId)) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + memberId + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		if (MEMBERS.equals(relation)) {
+			logMemberChange(groupId, memberId);
+		}
+		logChange(groupChanges, groupId);
+	}
+
+	// Licenses
+
+	public JsonArray getSubscribedSkus() {
+		JsonArray skus = new JsonArray();
+		for (int i = 0; i < skuIds.size(); i++) {
+			JsonObject sku = new JsonObject();
+			sku.addProperty("id", "tenant_" + skuIds.get(i));
+			sku.addProperty("skuId", skuIds.get(i).toString());
+			sku.addProperty("skuPartNumber", "SKU_" + i);
+			sku.addProperty("capabilityStatus", "Enabled");
+			sku.addProperty("consumedUnits", userCount / skuIds.size());
+			JsonObject units = new JsonObject();
+			units.addProperty("enabled", Integer.MAX_VALUE / 2);
+			units.addProperty("warning", 0);
+			units.addProperty("suspended", 0);
+			sku.add("prepaidUnits", units);
+			skus.add(sku);
+		}
+		return skus;
+	}
+
+	// Delta
+
+	public int getUserChangeMark() {
+		synchronized (userChanges) {
+			return userChanges.size();
+		}
+	}
+
+	public int getGroupChangeMark() {
+		synchronized (groupChanges) {
+			return groupChanges.size();
+		}
+	}
+
+	/**
+	 * @param mark value of {@link #getUserChangeMark()} when previous delta round ended
+	 * @return ids of users changed since the mark, every id only once
+	 */
+	public List<String> getUserChangesSince(int mark) {
+		return changesSince(userChanges, mark);
+	}
+
+	public List<String> getGroupChangesSince(int mark) {
+		return changesSince(groupChanges, mark);
+	}
+
+	/**
+	 * @param groupId id of group
+	 * @param mark    value of {@link #getGroupChangeMark()} when previous delta round ended
+	 * @return ids of members which were added or removed since the mark
+	 */
+	public Set<String> getMemberChangesSince(String groupId, int mark) {
+		synchronized (groupChanges) {
+			Map<String, Integer> changes = memberChanges.getOrDefault(groupId, Collections.emptyMap());
+			return changes.entrySet().stream()
+					.filter(entry -> entry.getValue() >= mark)
+					.map(Map.Entry::getKey)
+					.collect(Collectors.toCollection(LinkedHashSet::new));
+		}
+	}
+
+	public boolean isDeleted(String id) {
+		return deleted.contains(id);
+	}
+
+	/**
+	 * User by id including deleted ones, delta needs them
+	 */
+	public JsonObject getUserForDelta(String id) {
+		JsonObject user = users.get(id);
+		if (user != null) {
+			return user;
+		}
+		long index = index(USER_ID_PREFIX, id);
+		return index >= 0 && index < userCount ? generateUser((int) index) : null;
+	}
+
+	// Internal
+
+	private JsonObject getUser(String id) {
+		if (deleted.contains(id)) {
+			return null;
+		}
+		return getUserForDelta(id);
+	}
+
+	private JsonObject requireUser(String key) {
+		JsonObject user = findUser(key);
+		if (user == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + key + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		return user;
+	}
+
+	private JsonObject requireGroup(String id) {
+		JsonObject group = findGroup(id);
+		if (group == null) {
+			throw new EmulatorException(404, "Request_ResourceNotFound", "Resource " + id + " does not exist or one of its queried reference-property objects are not present.");
+		}
+		return group;
+	}
+
+	private String toUserId(String key) {
+		String id = toUserIdOrEmpty(key);
+		return id.isEmpty() ? null : id;
+	}
+
+	private String toUserIdOrEmpty(String key) {
+		if (index(USER_ID_PREFIX, key) >= 0 || index(CREATED_USER_ID_PREFIX, key) >= 0) {
+			return key;
+		}
+		String lowerCase = key.toLowerCase();
+		String created = createdUpns.get(lowerCase);
+		if (created != null) {
+			return created;
+		}
+		String suffix = "@" + domain.toLowerCase();
+		if (lowerCase.startsWith("user") && lowerCase.endsWith(suffix)) {
+			try {
+				int index = Integer.parseInt(lowerCase.substring(4, lowerCase.length() - suffix.length()));
+				if (index >= 0 && index < userCount) {
+					return id(USER_ID_PREFIX, index);
+				}
+			} catch (NumberFormatException e) {
+				// Not generated user
+			}
+		}
+		return "";
+	}
+
+	private JsonObject generateUser(int index) {
+		JsonObject user = new JsonObject();
+		String upn = getUserPrincipalName(index);
+		user.addProperty("id", id(USER_ID_PREFIX, index));
+		user.addProperty("accountEnabled", index % 10 != 0);
+		JsonArray phones = new JsonArray();
+		phones.add(String.format("+420 %09d", index));
+		user.add("businessPhones", phones);
+		user.addProperty("city", "Praha");
+		user.addProperty("country", "CZ");
+		user.addProperty("companyName", "Contoso");
+		user.addProperty("createdDateTime", "2020-01-01T08:00:00Z");
+		user.addProperty("department", DEPARTMENTS[index % DEPARTMENTS.length]);
+		user.addProperty("displayName", "User " + index);
+		user.addProperty("employeeId", String.valueOf(100000 + index));
+		user.addProperty("givenName", "User");
+		user.addProperty("jobTitle", JOB_TITLES[index % JOB_TITLES.length]);
+		user.addProperty("mail", upn);
+		user.addProperty("mailNickname", "user" + index);
+		user.add("mobilePhone", null);
+		user.addProperty("officeLocation", "Building " + index % 5);
+		user.addProperty("preferredLanguage", "cs-CZ");
+		user.addProperty("surname", String.valueOf(index));
+		user.addProperty("usageLocation", "CZ");
+		user.addProperty("userPrincipalName", upn);
+		user.addProperty("userType", "Member");
+		JsonArray licenses = new JsonArray();
+		licenses.add(license(skuIds.get(index % skuIds.size()).toString()));
+		user.add("assignedLicenses", licenses);
+		return user;
+	}
+
+	private JsonObject generateGroup(int index) {
+		JsonObject group = new JsonObject();
+		String department = DEPARTMENTS[index % DEPARTMENTS.length];
+		group.addProperty("id", id(GROUP_ID_PREFIX, index));
+		group.addProperty("createdDateTime", "2019-06-01T10:00:00Z");
+		group.addProperty("description", department + " team " + index);
+		group.addProperty("displayName", department + "-" + index);
+		group.add("groupTypes", new JsonArray());
+		group.add("mail", null);
+		group.addProperty("mailEnabled", false);
+		group.addProperty("mailNickname", department.toLowerCase() + index);
+		group.addProperty("securityEnabled", true);
+		group.add("visibility", null);
+		return group;
+	}
+
+	private Set<String> generateRelation(String groupId, String relation) {
+		long index = index(GROUP_ID_PREFIX, groupId);
+		Set<String> ids = new LinkedHashSet<>();
+		if (index < 0 || userCount == 0) {
+			return ids;
+		}
+		int count = MEMBERS.equals(relation) ? membersPerGroup : Math.min(OWNERS_PER_GROUP, userCount);
+		long first = MEMBERS.equals(relation) ? index * membersPerGroup : index;
+		for (int i = 0; i < count; i++) {
+			ids.add(id(USER_ID_PREFIX, (first + i) % userCount));
+		}
+		return ids;
+	}
+
+	private Set<String> changedRelation(String groupId, String relation) {
+		requireGroup(groupId);
+		return relations.computeIfAbsent(relation + groupId,
+				key -> Collections.synchronizedSet(generateRelation(groupId, relation)));
+	}
+
+	private static List<String> readBinds(JsonElement binds) {
+		List<String> ids = new ArrayList<>();
+		if (binds != null && binds.isJsonArray()) {
+			binds.getAsJsonArray().forEach(bind -> {
+				String url = bind.getAsString();
+				ids.add(url.substring(url.lastIndexOf('/') + 1));
+			});
+		}
+		return ids;
+	}
+
+	private static JsonObject license(String skuId) {
+		JsonObject license = new JsonObject();
+		license.add("disabledPlans", new JsonArray());
+		license.addProperty("skuId", skuId);
+		return license;
+	}
+
+	private void logMemberChange(String groupId, String memberId) {
+		synchronized (groupChanges) {
+			memberChanges.computeIfAbsent(groupId, key -> new LinkedHashMap<>()).put(memberId, groupChanges.size());
+		}
+	}
+
+	private static void logChange(List<String> changes, String id) {
+		synchronized (changes) {
+			changes.add(id);
+		}
+	}
+
+	private static List<String> changesSince(List<String> changes, int mark) {
+		synchronized (changes) {
+			return new ArrayList<>(new LinkedHashSet<>(changes.subList(Math.min(mark, changes.size()), changes.size())));
+		}
+	}
+
+	private static String getString(JsonObject object, String property) {
+		JsonElement value = object.get(property);
+		return value == null || value.isJsonNull() ? null : value.getAsString();
+	}
+
+	/**
+	 * Ids are valid UUIDs, type of object and its index are encoded in the last part
+	 */
+	private static String id(long prefix, long index) {
+		return String.format("00000000-0000-4000-%04x-%012x", prefix, index);
+	}
+
+	private static long index(long prefix, String id) {
+		String start = String.format("00000000-0000-4000-%04x-", prefix);
+		if (id.length() != 36 || !id.regionMatches(true, 0, start, 0, start.length())) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(id.substring(start.length()), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
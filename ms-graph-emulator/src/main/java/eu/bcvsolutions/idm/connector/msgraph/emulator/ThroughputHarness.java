@@ -0,0 +1,170 @@
+package eu.bcvsolutions.idm.connector.msgraph.emulator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import eu.bcvsolutions.idm.connector.msgraph.GraphConfiguration;
+import eu.bcvsolutions.idm.connector.msgraph.GraphConnector;
+import eu.bcvsolutions.idm.connector.msgraph.util.GraphClientRegistry;
+
+/**
+ * @author Roman Kučera
+ * <p>
+ * Measures throughput of connector against {@link GraphEmulator}. For every scale (number of users in tenant)
+ * it runs reconciliation of all users (executeQuery), creates and updates users and prints objects per second,
+ * HTTP requests per object and peak heap. Arguments are scales separated by comma, other options are system properties:
+ * harness.operations (number of creates and updates, default 1000), harness.latency (ms), harness.throttleRate,
+ * harness.serverErrorRate (0 - 1), harness.membersPerGroup (default 50).
+ * <p>
+ * Connector logs every object on info level, so run it with QuietLogger, see README.
+ */
+public final class ThroughputHarness {
+
+	private static final String DEFAULT_SCALES = "10000,100000,1000000";
+
+	private ThroughputHarness() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String scales = args.length > 0 ? args[0] : DEFAULT_SCALES;
+		int operations = Integer.getInteger("harness.operations", 1000);
+		long latency = Long.getLong("harness.latency", 0L);
+		double throttleRate = Double.parseDouble(System.getProperty("harness.throttleRate", "0"));
+		double serverErrorRate = Double.parseDouble(System.getProperty("harness.serverErrorRate", "0"));
+		int membersPerGroup = Integer.getInteger("harness.membersPerGroup", 50);
+
+		System.out.printf("%-10s %-13s %10s %12s %14s %14s %8s%n", "scale", "operation", "objects", "objects/s", "requests/obj", "peak heap MB", "errors");
+		for (String scale : scales.split(",")) {
+			int users = Integer.parseInt(scale.trim());
+			SyntheticTenant tenant = new SyntheticTenant("scale" + users + ".onmicrosoft.com", users,
+					Math.max(1, users / 100), Math.min(membersPerGroup, users));
+			GraphEmulator emulator = new GraphEmulator(tenant)
+					.withLatency(latency)
+					.withThrottling(throttleRate, 0)
+					.withServerErrors(serverErrorRate);
+			run(emulator, users, Math.min(operations, users));
+		}
+	}
+
+	private static void run(GraphEmulator emulator, int users, int operations) {
+		GraphClientRegistry.setTransport(emulator);
+		GraphConnector connector = new GraphConnector();
+		try {
+			connector.init(configuration(emulator.getTenant()));
+			// Client and token are created before measurement
+			connector.test();
+
+			AtomicLong loaded = new AtomicLong();
+			measure(emulator, users, "executeQuery", () -> {
+				connector.executeQuery(ObjectClass.ACCOUNT, null, object -> {
+					loaded.incrementAndGet();
+					return true;
+				}, null);
+				return loaded.get();
+			});
+
+			String runId = Long.toString(System.currentTimeMillis(), 36);
+			measure(emulator, users, "create", () -> {
+				long errors = 0;
+				for (int i = 0; i < operations; i++) {
+					try {
+						connector.create(ObjectClass.ACCOUNT, createAttributes(emulator.getTenant(), runId, i), null);
+					} catch (RuntimeException e) {
+						errors++;
+					}
+				}
+				return operations - errors;
+			});
+
+			measure(emulator, users, "update", () -> {
+				long errors = 0;
+				for (int i = 0; i < operations; i++) {
+					try {
+						Uid uid = new Uid(emulator.getTenant().getUserPrincipalName(i));
+						connector.update(ObjectClass.ACCOUNT, uid, updateAttributes(i), null);
+					} catch (RuntimeException e) {
+						errors++;
+					}
+				}
+				return operations - errors;
+			});
+		} finally {
+			connector.dispose();
+			GraphClientRegistry.setTransport(null);
+		}
+	}
+
+	/**
+	 * Run the phase and print results
+	 *
+	 * @param phase returns number of successfully processed objects
+	 */
+	private static void measure(GraphEmulator emulator, int users, String operation, Phase phase) {
+		System.gc();
+		ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+		emulator.resetCounters();
+
+		long start = System.nanoTime();
+		long objects = phase.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long peakHeap = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP)
+				.mapToLong(pool -> pool.getPeakUsage().getUsed())
+				.sum();
+		long requests = emulator.getRequestCount() + emulator.getBatchStepCount();
+		System.out.printf("%-10d %-13s %10d %12.0f %14.3f %14d %8d%n", users, operation, objects, objects / seconds,
+				objects == 0 ? 0.0 : (double) requests / objects, peakHeap / (1024 * 1024),
+				emulator.getThrottledCount() + emulator.getServerErrorCount());
+	}
+
+	private static GraphConfiguration configuration(SyntheticTenant tenant) {
+		GraphConfiguration configuration = new GraphConfiguration();
+		configuration.setTenant(tenant.getDomain());
+		configuration.setClientId("emulator");
+		configuration.setClientSecret(new GuardedString("emulator".toCharArray()));
+		configuration.setNationalCloud("Global");
+		configuration.setScopes(new String[]{"https://graph.microsoft.com/.default"});
+		configuration.validate();
+		return configuration;
+	}
+
+	private static Set<Attribute> createAttributes(SyntheticTenant tenant, String runId, int index) {
+		String name = "created" + runId + "x" + index;
+		Set<Attribute> attributes = new HashSet<>();
+		attributes.add(AttributeBuilder.build("userPrincipalName", name + "@" + tenant.getDomain()));
+		attributes.add(AttributeBuilder.build("displayName", "Created " + index));
+		attributes.add(AttributeBuilder.build("mailNickname", name));
+		attributes.add(AttributeBuilder.build("accountEnabled", true));
+		attributes.add(AttributeBuilder.build("userType", "Member"));
+		attributes.add(AttributeBuilder.buildPassword(new GuardedString("Heslo123456".toCharArray())));
+		// Every other user is created with license, so both plain create and $batch with license are measured
+		if (index % 2 == 0) {
+			attributes.add(AttributeBuilder.build("assignedLicenses",
+					Collections.singletonList(tenant.getSkuIds().get(index % tenant.getSkuIds().size()).toString())));
+		}
+		return attributes;
+	}
+
+	private static Set<Attribute> updateAttributes(int index) {
+		Set<Attribute> attributes = new HashSet<>();
+		attributes.add(AttributeBuilder.build("displayName", "Updated " + index));
+		attributes.add(AttributeBuilder.build("department", "Updated"));
+		return attributes;
+	}
+
+	private interface Phase {
+		long run();
+	}
+}